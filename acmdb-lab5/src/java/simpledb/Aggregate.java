@@ -2,21 +2,33 @@ package simpledb;
 
 import javax.swing.text.html.HTMLDocument;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * min). Several aggregates may be computed in one pass over the child, but
+ * grouping is on at most a single column.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Default number of groups an Aggregate may hold in memory before spilling */
+    public static final int DEFAULT_MAX_GROUPS = 1 << 18;
+
     private DbIterator child;
     private int afield, gfield;
     private Aggregator.Op aggreOp;
+    private int[] afields;
+    private Aggregator.Op[] aggreOps;
+
+    private Type gbFieldType;
+    private int maxGroups = DEFAULT_MAX_GROUPS;
+    private int parallelism = 1;
+    private final AtomicLong spillBytes = new AtomicLong();
 
-    private Aggregator aggregator;
+    private SpillingAggregator aggregator;
     private DbIterator iterator;
     /**
      * Constructor.
@@ -38,16 +50,89 @@ public class Aggregate extends Operator {
      */
     public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
 	// some code goes here
+        this(child, new int[]{afield}, gfield, new Aggregator.Op[]{aop});
+    }
+
+    /**
+     * Constructor for computing several aggregates in a single pass over the
+     * child. The output tuples hold the group by field (if any) followed by
+     * one column per aggregate, in the order given.
+     *
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param gfield
+     *            The column over which we are grouping the result, or -1 if
+     *            there is no grouping
+     * @param aops
+     *            The aggregation operator for each column in afields
+     */
+    public Aggregate(DbIterator child, int[] afields, int gfield, Aggregator.Op[] aops) {
+        if (afields.length == 0 || afields.length != aops.length)
+            throw new IllegalArgumentException("need one operator per aggregate field");
         this.child = child;
-        this.afield = afield;
+        this.afields = afields.clone();
+        this.aggreOps = aops.clone();
+        this.afield = afields[0];
         this.gfield = gfield;
-        this.aggreOp = aop;
+        this.aggreOp = aops[0];
 
-        Type gbFieldType = gfield == Aggregator.NO_GROUPING ? null : child.getTupleDesc().getFieldType(gfield);
-        if (child.getTupleDesc().getFieldType(afield).equals(Type.INT_TYPE))
-            aggregator = new IntegerAggregator(gfield, gbFieldType, afield, aop);
-        else
-            aggregator = new StringAggregator(gfield, gbFieldType, afield, aop);
+        TupleDesc td = child.getTupleDesc();
+        this.gbFieldType = gfield == Aggregator.NO_GROUPING ? null : td.getFieldType(gfield);
+        for (int i = 0; i < afields.length; i++) {
+            if (!td.getFieldType(afields[i]).equals(Type.INT_TYPE)
+                    && aops[i] != Aggregator.Op.COUNT && aops[i] != Aggregator.Op.COUNT_DISTINCT)
+                throw new UnsupportedOperationException("String only support COUNT");
+        }
+    }
+
+    /**
+     * Set the maximum number of groups this operator keeps in memory. Tuples
+     * of groups beyond the budget are partitioned to temporary files and
+     * aggregated partition by partition. Takes effect at the next open().
+     *
+     * @param maxGroups
+     *            the group budget, at least 1
+     */
+    public void setMaxGroupsInMemory(int maxGroups) {
+        if (maxGroups < 1)
+            throw new IllegalArgumentException("the group budget must be at least 1");
+        this.maxGroups = maxGroups;
+    }
+
+    /**
+     * Set the number of worker threads used to consume the child. With more
+     * than one worker, a child that is a SeqScan over a HeapFile, possibly
+     * under a chain of Filters, is split into disjoint page ranges; each
+     * worker aggregates its range into a thread-local partial aggregate (AVG
+     * as SUM_COUNT) and the partials are combined by a final aggregate (AVG
+     * as SC_AVG). Other children, and COUNT_DISTINCT, are aggregated on the
+     * calling thread. Takes effect at the next open().
+     *
+     * @param dop
+     *            the degree of parallelism, at least 1
+     */
+    public void setParallelism(int dop) {
+        if (dop < 1)
+            throw new IllegalArgumentException("the degree of parallelism must be at least 1");
+        this.parallelism = dop;
+    }
+
+    /**
+     * @return the degree of parallelism this operator was asked to use
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @return the number of bytes this operator has spilled to temporary
+     *         files
+     */
+    @Override
+    public long getSpillBytes() {
+        return spillBytes.get();
     }
 
     /**
@@ -95,6 +180,21 @@ public class Aggregate extends Operator {
 	    return aggreOp;
     }
 
+    /**
+     * @return the columns of the input tuples over which the aggregates are
+     *         computed, one per output aggregate column
+     * */
+    public int[] aggregateFields() {
+        return afields.clone();
+    }
+
+    /**
+     * @return the aggregate operators, one per output aggregate column
+     * */
+    public Aggregator.Op[] aggregateOps() {
+        return aggreOps.clone();
+    }
+
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
 	    return aop.toString();
     }
@@ -102,15 +202,131 @@ public class Aggregate extends Operator {
     public void open() throws NoSuchElementException, DbException,
 	    TransactionAbortedException {
 	// some code goes here
-        child.open();
         super.open();
-        while(child.hasNext()){
-            aggregator.mergeTupleIntoGroup(child.next());
+        DbIterator[] parts = parallelism > 1 ? splitChild(parallelism) : null;
+        if (parts != null) {
+            aggregateInParallel(parts);
+        } else {
+            child.open();
+            aggregator = new SpillingAggregator(child.getTupleDesc(), gfield, gbFieldType,
+                    afields, aggreOps, maxGroups, spillBytes);
+            while(child.hasNext()){
+                aggregator.mergeTupleIntoGroup(child.next());
+            }
         }
         iterator = aggregator.iterator();
         iterator.open();
     }
 
+    /**
+     * Split the child into at most dop pipelines that claim morsels of the
+     * scanned table from a shared cursor.  A {@link Gather} child is split
+     * into the pipelines it gathers.
+     *
+     * @return the pipelines, or null if the child cannot be split or the
+     *         aggregates cannot be computed from partial aggregates
+     */
+    private DbIterator[] splitChild(int dop) {
+        for (Aggregator.Op op : aggreOps) {
+            if (op != Aggregator.Op.MIN && op != Aggregator.Op.MAX && op != Aggregator.Op.SUM
+                    && op != Aggregator.Op.COUNT && op != Aggregator.Op.AVG)
+                return null;
+        }
+        if (child instanceof Gather) {
+            DbIterator[] parts = ((Gather) child).getChildren();
+            return parts.length < 2 ? null : parts;
+        }
+        ArrayList<Predicate> preds = new ArrayList<Predicate>();
+        DbIterator it = child;
+        while (it instanceof Filter) {
+            preds.add(((Filter) it).getPredicate());
+            it = ((Filter) it).getChildren()[0];
+        }
+        if (!(it instanceof SeqScan))
+            return null;
+        SeqScan scan = (SeqScan) it;
+        if (scan instanceof ParallelSeqScan)
+            preds.addAll(Arrays.asList(((ParallelSeqScan) scan).getPredicates()));
+        else if (!(Database.getCatalog().getDatabaseFile(scan.getTableId()) instanceof HeapFile))
+            return null;
+
+        DbIterator[] parts = ParallelSeqScan.pipelines(scan.getTransactionId(), scan.getTableId(),
+                scan.getAlias(), preds, dop);
+        return parts.length < 2 ? null : parts;
+    }
+
+    /**
+     * Aggregate each part on its own worker into a partial aggregate, and
+     * combine the partial aggregates into this operator's aggregator.
+     */
+    private void aggregateInParallel(DbIterator[] parts) throws DbException, TransactionAbortedException {
+        final Aggregator.Op[] partialOps = new Aggregator.Op[aggreOps.length];
+        Aggregator.Op[] finalOps = new Aggregator.Op[aggreOps.length];
+        int[] finalFields = new int[aggreOps.length];
+        int col = gfield == Aggregator.NO_GROUPING ? 0 : 1;
+        for (int i = 0; i < aggreOps.length; i++) {
+            finalFields[i] = col;
+            switch (aggreOps[i]) {
+            case AVG:
+                partialOps[i] = Aggregator.Op.SUM_COUNT;
+                finalOps[i] = Aggregator.Op.SC_AVG;
+                col += 2;
+                break;
+            case COUNT:
+                partialOps[i] = Aggregator.Op.COUNT;
+                finalOps[i] = Aggregator.Op.SUM;
+                col++;
+                break;
+            default:
+                partialOps[i] = aggreOps[i];
+                finalOps[i] = aggreOps[i];
+                col++;
+            }
+        }
+        TupleDesc partialTd = new AggregateHashTable(gfield, gbFieldType, afields, partialOps).getTupleDesc();
+        aggregator = new SpillingAggregator(partialTd,
+                gfield == Aggregator.NO_GROUPING ? Aggregator.NO_GROUPING : 0, gbFieldType,
+                finalFields, finalOps, maxGroups, spillBytes);
+
+        // each worker keeps its share of the group budget in memory, and
+        // hands its partial aggregate to the final aggregate when it is full
+        final int budget = Math.max(1, maxGroups / parts.length);
+        PageCursor.restart(parts);
+        ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final DbIterator part : parts) {
+            tasks.add(new Callable<Void>() {
+                public Void call() throws DbException, TransactionAbortedException {
+                    AggregateHashTable partial = new AggregateHashTable(gfield, gbFieldType, afields, partialOps);
+                    part.open();
+                    try {
+                        while (part.hasNext()) {
+                            Tuple t = part.next();
+                            if (!partial.merge(t, budget)) {
+                                combine(partial);
+                                partial = new AggregateHashTable(gfield, gbFieldType, afields, partialOps);
+                                partial.merge(t);
+                            }
+                        }
+                    } finally {
+                        part.close();
+                    }
+                    combine(partial);
+                    return null;
+                }
+            });
+        }
+        WorkerPool.invokeAll(tasks);
+    }
+
+    private void combine(AggregateHashTable partial) throws DbException, TransactionAbortedException {
+        DbIterator it = partial.iterator();
+        it.open();
+        synchronized (aggregator) {
+            while (it.hasNext())
+                aggregator.mergeTupleIntoGroup(it.next());
+        }
+    }
+
     /**
      * Returns the next tuple. If there is a group by field, then the first
      * field is the field by which we are grouping, and the second field is the
@@ -145,24 +361,38 @@ public class Aggregate extends Operator {
     public TupleDesc getTupleDesc() {
 	// some code goes here
         TupleDesc child_td = child.getTupleDesc();
-        Type[] types;
-        String[] names;
-        String aggName = child_td.getFieldName(afield);
+        ArrayList<Type> types = new ArrayList<Type>();
+        ArrayList<String> names = new ArrayList<String>();
 
-        if (gfield == Aggregator.NO_GROUPING){
-            types = new Type[]{Type.INT_TYPE};
-            names = new String[]{nameOfAggregatorOp(aggreOp) + "(" + aggName + ")"};
-        } else {
-            types = new Type[]{child_td.getFieldType(gfield), Type.INT_TYPE};
-            names = new String[]{child_td.getFieldName(gfield),nameOfAggregatorOp(aggreOp) + "(" + aggName + ")"};
+        if (gfield != Aggregator.NO_GROUPING) {
+            types.add(child_td.getFieldType(gfield));
+            names.add(child_td.getFieldName(gfield));
+        }
+        for (int i = 0; i < afields.length; i++) {
+            String aggName = child_td.getFieldName(afields[i]);
+            if (aggreOps[i] == Aggregator.Op.SUM_COUNT) {
+                // partial average: a sum column and a count column
+                types.add(Type.INT_TYPE);
+                names.add(nameOfAggregatorOp(Aggregator.Op.SUM) + "(" + aggName + ")");
+                types.add(Type.INT_TYPE);
+                names.add(nameOfAggregatorOp(Aggregator.Op.COUNT) + "(" + aggName + ")");
+            } else {
+                types.add(Type.INT_TYPE);
+                names.add(nameOfAggregatorOp(aggreOps[i]) + "(" + aggName + ")");
+            }
         }
-	    return new TupleDesc(types, names);
+	    return new TupleDesc(types.toArray(new Type[0]), names.toArray(new String[0]));
     }
 
     public void close() {
 	// some code goes here
         super.close();
-        iterator.close();
+        if (iterator != null)
+            iterator.close();
+        if (aggregator != null)
+            aggregator.discard();
+        iterator = null;
+        aggregator = null;
         child.close();
     }
 
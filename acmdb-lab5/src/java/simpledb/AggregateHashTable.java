@@ -0,0 +1,623 @@
+package simpledb;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * AggregateHashTable is the grouping engine shared by {@link IntegerAggregator}
+ * and {@link StringAggregator}.
+ * <p>
+ * Groups are kept in an open-addressing (linear probing) table that maps a
+ * group-by value to a dense group number; int group keys are stored in a
+ * primitive array so they are never boxed.  Every aggregate keeps its running
+ * state in primitive long arrays indexed by group number, so several
+ * aggregates (e.g. MIN, MAX and AVG of the same column) and COUNT DISTINCT can
+ * be computed in a single pass over the input.
+ * <p>
+ * SUM_COUNT produces two output columns (sum, count), and SC_AVG reads a
+ * (sum, count) pair from its aggregate field and the field after it, so that
+ * partial aggregates computed by separate workers can be combined.
+ * <p>
+ * Groups are reported in the order in which they were first seen.
+ */
+class AggregateHashTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int EMPTY = -1;
+
+    private final int gbfield;
+    private final boolean intKeys;
+    private final Accumulator[] accumulators;
+    private final TupleDesc tupleDesc;
+
+    // hash index: slot -> group number, or EMPTY
+    private int[] slots;
+    private int[] slotIntKeys;
+    private Field[] slotKeys;
+    private int mask;
+
+    private int numGroups;
+    private Field[] groupValues;
+
+    /**
+     * Constructor.
+     *
+     * @param gbfield
+     *            the 0-based index of the group-by field in the tuple, or
+     *            NO_GROUPING if there is no grouping
+     * @param gbfieldtype
+     *            the type of the group by field, or null if there is no
+     *            grouping
+     * @param afields
+     *            the 0-based indexes of the aggregate fields in the tuple
+     * @param ops
+     *            the aggregation operator applied to each aggregate field
+     */
+    AggregateHashTable(int gbfield, Type gbfieldtype, int[] afields, Aggregator.Op[] ops) {
+        if (afields.length == 0 || afields.length != ops.length)
+            throw new IllegalArgumentException("need one operator per aggregate field");
+        this.gbfield = gbfield;
+        this.intKeys = gbfield != Aggregator.NO_GROUPING && gbfieldtype == Type.INT_TYPE;
+        this.accumulators = new Accumulator[ops.length];
+        boolean grouped = gbfield != Aggregator.NO_GROUPING;
+        int width = grouped ? 1 : 0;
+        for (int i = 0; i < ops.length; i++) {
+            accumulators[i] = Accumulator.create(ops[i], afields[i]);
+            width += accumulators[i].width();
+        }
+
+        Type[] types = new Type[width];
+        String[] names = new String[width];
+        int k = 0;
+        if (grouped) {
+            types[k] = gbfieldtype;
+            names[k++] = "groupValue";
+        }
+        while (k < width) {
+            types[k] = Type.INT_TYPE;
+            names[k++] = "aggregateValue";
+        }
+        this.tupleDesc = new TupleDesc(types, names);
+
+        slots = new int[INITIAL_CAPACITY];
+        Arrays.fill(slots, EMPTY);
+        if (intKeys)
+            slotIntKeys = new int[INITIAL_CAPACITY];
+        else
+            slotKeys = new Field[INITIAL_CAPACITY];
+        mask = INITIAL_CAPACITY - 1;
+        groupValues = new Field[INITIAL_CAPACITY];
+    }
+
+    /**
+     * @return the TupleDesc of the tuples returned by {@link #iterator}
+     */
+    TupleDesc getTupleDesc() {
+        return tupleDesc;
+    }
+
+    /**
+     * @return the number of groups currently held in the table
+     */
+    int numGroups() {
+        return numGroups;
+    }
+
+    /**
+     * Fold one input tuple into its group, updating every aggregate.
+     */
+    void merge(Tuple tup) {
+        merge(tup, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Fold one input tuple into its group, unless that would create a group
+     * beyond the first maxGroups.
+     *
+     * @return false if the tuple belongs to a new group and the table already
+     *         holds maxGroups groups; the table is left unchanged in that case
+     */
+    boolean merge(Tuple tup, int maxGroups) {
+        boolean mayAdd = numGroups < maxGroups;
+        int group;
+        if (gbfield == Aggregator.NO_GROUPING)
+            group = numGroups > 0 ? 0 : (mayAdd ? addGroup(null) : EMPTY);
+        else if (intKeys)
+            group = findIntGroup((IntField) tup.getField(gbfield), mayAdd);
+        else
+            group = findGroup(tup.getField(gbfield), mayAdd);
+        if (group == EMPTY)
+            return false;
+
+        for (int i = 0; i < accumulators.length; i++)
+            accumulators[i].add(group, tup);
+        return true;
+    }
+
+    /**
+     * @return the number of (group, value) pairs and interned values the
+     *         COUNT DISTINCT aggregates hold in memory
+     */
+    int distinctEntries() {
+        int n = 0;
+        for (Accumulator a : accumulators) {
+            if (a instanceof DistinctAccumulator)
+                n += ((DistinctAccumulator) a).entries();
+        }
+        return n;
+    }
+
+    /**
+     * Move the (group, value) pairs of the COUNT DISTINCT aggregates to disk.
+     * {@link #iterator} merges them with the pairs in memory, sorting
+     * runTuples pairs at a time.
+     *
+     * @return the number of bytes written
+     */
+    long spillDistinct(int runTuples) throws IOException {
+        long bytes = 0;
+        for (Accumulator a : accumulators) {
+            if (a instanceof DistinctAccumulator)
+                bytes += ((DistinctAccumulator) a).spill(runTuples);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return an iterator over (groupValue, aggregateValue...) tuples, or
+     *         (aggregateValue...) tuples if there is no grouping
+     */
+    DbIterator iterator() {
+        for (Accumulator a : accumulators)
+            a.finish();
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>(numGroups);
+        int offset = gbfield == Aggregator.NO_GROUPING ? 0 : 1;
+        for (int g = 0; g < numGroups; g++) {
+            Tuple tuple = new Tuple(tupleDesc);
+            int k = offset;
+            if (offset == 1)
+                tuple.setField(0, groupValues[g]);
+            for (Accumulator a : accumulators) {
+                a.result(g, tuple, k);
+                k += a.width();
+            }
+            tuples.add(tuple);
+        }
+        return new TupleIterator(tupleDesc, tuples);
+    }
+
+    private int findIntGroup(IntField f, boolean mayAdd) {
+        int key = f.getValue();
+        int slot = mix(key) & mask;
+        while (slots[slot] != EMPTY) {
+            if (slotIntKeys[slot] == key)
+                return slots[slot];
+            slot = (slot + 1) & mask;
+        }
+        if (!mayAdd)
+            return EMPTY;
+        int group = addGroup(f);
+        slots[slot] = group;
+        slotIntKeys[slot] = key;
+        maybeResize();
+        return group;
+    }
+
+    private int findGroup(Field f, boolean mayAdd) {
+        int slot = mix(f.hashCode()) & mask;
+        while (slots[slot] != EMPTY) {
+            if (slotKeys[slot].equals(f))
+                return slots[slot];
+            slot = (slot + 1) & mask;
+        }
+        if (!mayAdd)
+            return EMPTY;
+        int group = addGroup(f);
+        slots[slot] = group;
+        slotKeys[slot] = f;
+        maybeResize();
+        return group;
+    }
+
+    private int addGroup(Field value) {
+        if (numGroups == groupValues.length)
+            groupValues = Arrays.copyOf(groupValues, numGroups * 2);
+        groupValues[numGroups] = value;
+        for (Accumulator a : accumulators)
+            a.ensureCapacity(numGroups + 1);
+        return numGroups++;
+    }
+
+    /** Keep the load factor at or below one half. */
+    private void maybeResize() {
+        if (numGroups * 2 <= slots.length)
+            return;
+        int capacity = slots.length * 2;
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        mask = capacity - 1;
+        if (intKeys)
+            slotIntKeys = new int[capacity];
+        else
+            slotKeys = new Field[capacity];
+
+        for (int g = 0; g < numGroups; g++) {
+            if (intKeys) {
+                int key = ((IntField) groupValues[g]).getValue();
+                int slot = mix(key) & mask;
+                while (slots[slot] != EMPTY)
+                    slot = (slot + 1) & mask;
+                slots[slot] = g;
+                slotIntKeys[slot] = key;
+            } else {
+                int slot = mix(groupValues[g].hashCode()) & mask;
+                while (slots[slot] != EMPTY)
+                    slot = (slot + 1) & mask;
+                slots[slot] = g;
+                slotKeys[slot] = groupValues[g];
+            }
+        }
+    }
+
+    static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    static int mix(long k) {
+        k *= 0x9E3779B97F4A7C15L;
+        return (int) (k ^ (k >>> 32));
+    }
+
+    /**
+     * Running state for one aggregate over every group.  Subclasses are
+     * specialized per operator so the per-row work is a single virtual call
+     * and a primitive array update.
+     */
+    static abstract class Accumulator implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        /** the field of the input tuples this accumulator reads */
+        int afield;
+
+        static Accumulator create(Aggregator.Op op, int afield) {
+            Accumulator a;
+            switch (op) {
+            case MIN:
+                a = new MinAccumulator();
+                break;
+            case MAX:
+                a = new MaxAccumulator();
+                break;
+            case SUM:
+                a = new SumAccumulator(false);
+                break;
+            case AVG:
+                a = new SumAccumulator(true);
+                break;
+            case COUNT:
+                a = new CountAccumulator();
+                break;
+            case COUNT_DISTINCT:
+                a = new DistinctAccumulator();
+                break;
+            case SUM_COUNT:
+                a = new SumCountAccumulator();
+                break;
+            case SC_AVG:
+                a = new ScAvgAccumulator();
+                break;
+            default:
+                throw new UnsupportedOperationException("unsupported aggregate " + op);
+            }
+            a.afield = afield;
+            return a;
+        }
+
+        abstract void ensureCapacity(int groups);
+
+        void add(int group, Tuple tup) {
+            add(group, tup.getField(afield));
+        }
+
+        abstract void add(int group, Field value);
+
+        abstract int result(int group);
+
+        /** Complete the results once every tuple has been added */
+        void finish() {
+        }
+
+        /** @return the number of output columns of this aggregate */
+        int width() {
+            return 1;
+        }
+
+        void result(int group, Tuple out, int offset) {
+            out.setField(offset, new IntField(result(group)));
+        }
+
+        static int grow(int length, int groups) {
+            return Math.max(groups, Math.max(INITIAL_CAPACITY, length * 2));
+        }
+
+        static long intValue(Field f) {
+            if (!(f instanceof IntField))
+                throw new UnsupportedOperationException("only COUNT is supported over non-integer fields");
+            return ((IntField) f).getValue();
+        }
+    }
+
+    static class MinAccumulator extends Accumulator {
+        private static final long serialVersionUID = 1L;
+        private long[] min = new long[0];
+
+        void ensureCapacity(int groups) {
+            if (groups > min.length) {
+                int old = min.length;
+                min = Arrays.copyOf(min, grow(old, groups));
+                Arrays.fill(min, old, min.length, Long.MAX_VALUE);
+            }
+        }
+
+        void add(int group, Field value) {
+            long v = intValue(value);
+            if (v < min[group])
+                min[group] = v;
+        }
+
+        int result(int group) {
+            return (int) min[group];
+        }
+    }
+
+    static class MaxAccumulator extends Accumulator {
+        private static final long serialVersionUID = 1L;
+        private long[] max = new long[0];
+
+        void ensureCapacity(int groups) {
+            if (groups > max.length) {
+                int old = max.length;
+                max = Arrays.copyOf(max, grow(old, groups));
+                Arrays.fill(max, old, max.length, Long.MIN_VALUE);
+            }
+        }
+
+        void add(int group, Field value) {
+            long v = intValue(value);
+            if (v > max[group])
+                max[group] = v;
+        }
+
+        int result(int group) {
+            return (int) max[group];
+        }
+    }
+
+    static class SumAccumulator extends Accumulator {
+        private static final long serialVersionUID = 1L;
+        private final boolean average;
+        long[] sum = new long[0];
+        long[] count = new long[0];
+
+        SumAccumulator(boolean average) {
+            this.average = average;
+        }
+
+        void ensureCapacity(int groups) {
+            if (groups > sum.length) {
+                int size = grow(sum.length, groups);
+                sum = Arrays.copyOf(sum, size);
+                count = Arrays.copyOf(count, size);
+            }
+        }
+
+        void add(int group, Field value) {
+            sum[group] += intValue(value);
+            count[group]++;
+        }
+
+        int result(int group) {
+            return (int) (average ? sum[group] / count[group] : sum[group]);
+        }
+    }
+
+    /**
+     * SUM_COUNT: the partial state of an average, output as (sum, count).
+     */
+    static class SumCountAccumulator extends SumAccumulator {
+        private static final long serialVersionUID = 1L;
+
+        SumCountAccumulator() {
+            super(false);
+        }
+
+        int width() {
+            return 2;
+        }
+
+        void result(int group, Tuple out, int offset) {
+            out.setField(offset, new IntField((int) sum[group]));
+            out.setField(offset + 1, new IntField((int) count[group]));
+        }
+    }
+
+    /**
+     * SC_AVG: the average of a set of (sum, count) pairs produced by SUM_COUNT,
+     * read from the aggregate field and the field after it.
+     */
+    static class ScAvgAccumulator extends SumAccumulator {
+        private static final long serialVersionUID = 1L;
+
+        ScAvgAccumulator() {
+            super(true);
+        }
+
+        void add(int group, Tuple tup) {
+            sum[group] += intValue(tup.getField(afield));
+            count[group] += intValue(tup.getField(afield + 1));
+        }
+    }
+
+    static class CountAccumulator extends Accumulator {
+        private static final long serialVersionUID = 1L;
+        private long[] count = new long[0];
+
+        void ensureCapacity(int groups) {
+            if (groups > count.length)
+                count = Arrays.copyOf(count, grow(count.length, groups));
+        }
+
+        void add(int group, Field value) {
+            count[group]++;
+        }
+
+        int result(int group) {
+            return (int) count[group];
+        }
+    }
+
+    /**
+     * COUNT DISTINCT: every (group, value) pair is packed into a long and
+     * remembered in an open-addressing long set.  Int values are packed
+     * directly; other values are first interned to a dense int id.
+     * <p>
+     * The pairs may be moved to a {@link SpillFile} to bound memory, after
+     * which the set starts over; the counts are then recomputed by sorting
+     * the spilled pairs together with the last ones in memory.
+     */
+    static class DistinctAccumulator extends Accumulator {
+        private static final long serialVersionUID = 1L;
+        private long[] count = new long[0];
+        private final Map<Field, Integer> dictionary = new HashMap<Field, Integer>();
+        private long[] seen = new long[INITIAL_CAPACITY];
+        private boolean[] used = new boolean[INITIAL_CAPACITY];
+        private int size;
+        /** The spilled (group, value) pairs, or null */
+        private transient SpillFile spilled;
+        private int runTuples;
+
+        void ensureCapacity(int groups) {
+            if (groups > count.length)
+                count = Arrays.copyOf(count, grow(count.length, groups));
+        }
+
+        void add(int group, Field value) {
+            int id;
+            if (value instanceof IntField) {
+                id = ((IntField) value).getValue();
+            } else {
+                Integer known = dictionary.get(value);
+                if (known == null) {
+                    known = dictionary.size();
+                    dictionary.put(value, known);
+                }
+                id = known;
+            }
+            if (insert(((long) group << 32) | (id & 0xFFFFFFFFL)))
+                count[group]++;
+        }
+
+        int result(int group) {
+            return (int) count[group];
+        }
+
+        int entries() {
+            return size + dictionary.size();
+        }
+
+        long spill(int runTuples) throws IOException {
+            this.runTuples = runTuples;
+            if (size == 0)
+                return 0;
+            Field[] values = null;
+            if (!dictionary.isEmpty()) {
+                values = new Field[dictionary.size()];
+                for (Map.Entry<Field, Integer> e : dictionary.entrySet())
+                    values[e.getValue()] = e.getKey();
+            }
+            long before = spilled == null ? 0 : spilled.getBytes();
+            for (int i = 0; i < seen.length; i++) {
+                if (!used[i])
+                    continue;
+                int id = (int) seen[i];
+                Field value = values == null ? new IntField(id) : values[id];
+                if (spilled == null)
+                    spilled = new SpillFile(new TupleDesc(new Type[] { Type.INT_TYPE, value.getType() }));
+                Tuple pair = new Tuple(spilled.getTupleDesc());
+                pair.setField(0, new IntField((int) (seen[i] >>> 32)));
+                pair.setField(1, value);
+                spilled.add(pair);
+            }
+            dictionary.clear();
+            seen = new long[INITIAL_CAPACITY];
+            used = new boolean[INITIAL_CAPACITY];
+            size = 0;
+            return spilled.getBytes() - before;
+        }
+
+        /** Count the distinct pairs of each group, if any were spilled */
+        void finish() {
+            if (spilled == null)
+                return;
+            try {
+                spill(runTuples);
+                Arrays.fill(count, 0);
+                ExternalSort sorted = new ExternalSort(spilled.iterator(), new int[] { 0, 1 }, true, runTuples);
+                sorted.open();
+                Tuple prev = null;
+                while (sorted.hasNext()) {
+                    Tuple t = sorted.next();
+                    if (prev == null || !t.getField(0).equals(prev.getField(0))
+                            || !t.getField(1).equals(prev.getField(1)))
+                        count[((IntField) t.getField(0)).getValue()]++;
+                    prev = t;
+                }
+                sorted.close();
+            } catch (IOException | DbException | TransactionAbortedException e) {
+                throw new RuntimeException(e);
+            } finally {
+                spilled.delete();
+                spilled = null;
+            }
+        }
+
+        private boolean insert(long key) {
+            int mask = seen.length - 1;
+            int slot = mix(key) & mask;
+            while (used[slot]) {
+                if (seen[slot] == key)
+                    return false;
+                slot = (slot + 1) & mask;
+            }
+            used[slot] = true;
+            seen[slot] = key;
+            if (++size * 2 > seen.length)
+                rehash();
+            return true;
+        }
+
+        private void rehash() {
+            long[] oldSeen = seen;
+            boolean[] oldUsed = used;
+            seen = new long[oldSeen.length * 2];
+            used = new boolean[oldSeen.length * 2];
+            int mask = seen.length - 1;
+            for (int i = 0; i < oldSeen.length; i++) {
+                if (!oldUsed[i])
+                    continue;
+                int slot = mix(oldSeen[i]) & mask;
+                while (used[slot])
+                    slot = (slot + 1) & mask;
+                used[slot] = true;
+                seen[slot] = oldSeen[i];
+            }
+        }
+    }
+}
@@ -21,10 +21,22 @@ import simpledb.Predicate.Op;
  */
 public class BTreeFile implements DbFile {
 
+	/**
+	 * The number of times findLeafPage descends without locks before it
+	 * locks the pages along the path
+	 */
+	private static final int OPTIMISTIC_DESCENTS = 3;
+
 	private final File f;
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	private final int[] tiebreak;
+	private final BTreeFreeSpace freeSpace = new BTreeFreeSpace();
+	/** The ranges of pages written by the bulk loads of each running transaction */
+	private final HashMap<TransactionId, ArrayList<int[]>> loadedPages = new HashMap<TransactionId, ArrayList<int[]>>();
+	/** The last page the running bulk load plans to write, or 0; guarded by this */
+	private int reservedPages;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -35,10 +47,28 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, key, td, new int[0]);
+	}
+
+	/**
+	 * Constructs a B+ tree file whose tuples with equal keys are ordered by
+	 * some of their other fields, so that every tuple can be found by a
+	 * single search for its key together with those fields (see
+	 * {@link #keyOf(Tuple)}).  The fields are stored in the entries of the
+	 * internal pages next to the keys.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param tiebreak - the fields ordering tuples with equal keys, in order
+	 */
+	public BTreeFile(File f, int key, TupleDesc td, int[] tiebreak) {
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.tiebreak = tiebreak.clone();
 	}
 
 	/**
@@ -177,52 +207,160 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the
-	 * leaf node with permission perm.
+	 * Returns the fields ordering tuples with equal keys, if any
+	 */
+	int[] tiebreak() {
+		return tiebreak;
+	}
+
+	/**
+	 * Returns the key the tuples of this B+ tree are ordered by: the key
+	 * field of t, or a {@link CompositeField} of the key field and the
+	 * tiebreak fields if the file has any.  Searching for the key of a tuple
+	 * finds that very tuple even among many with the same key field.
+	 */
+	public Field keyOf(Tuple t) {
+		return keyOf(t, keyField, tiebreak);
+	}
+
+	static Field keyOf(Tuple t, int keyField, int[] tiebreak) {
+		if(tiebreak.length == 0)
+			return t.getField(keyField);
+		Field[] rest = new Field[tiebreak.length];
+		for(int i = 0; i < rest.length; i++)
+			rest[i] = t.getField(tiebreak[i]);
+		return new CompositeField(t.getField(keyField), rest);
+	}
+
+	/**
+	 * Find and lock the leaf page in the B+ tree corresponding to the
+	 * left-most page possibly containing the key field f, starting from the
+	 * root pointer page, an internal page or a leaf page. Only the leaf page
+	 * is locked, with permission perm: the root pointer and internal pages
+	 * along the path are read without locks, so that the locks of readers do
+	 * not keep writers from splitting them until the readers complete.
+	 * <p>
+	 * Each page on the path is read optimistically (see
+	 * {@link BufferPool#optimisticRead(TransactionId, PageId, boolean)}),
+	 * under the latch of internal pages, and the read of a page is validated
+	 * after the page below it has been read or locked, so a page that was
+	 * changed in the meantime, e.g. merged, is noticed and the descent starts
+	 * over. Pages that another transaction is splitting are read too: a page
+	 * whose parent has no entry yet for the page that took its upper entries
+	 * links to that page, and the descent moves right to it for keys above
+	 * the split key (see {@link BTreeInternalPage#moveRight}). After a few
+	 * descents that did not validate, the pages are locked with READ_ONLY
+	 * permission instead.
 	 *
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 *
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @param pid - the current page being searched
+	 * @param pid - the page to start from
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @param last - whether to find the right-most leaf page possibly
+	 * containing f instead, or the right-most leaf page if f is null
+	 * @return the left-most (or right-most) leaf page possibly containing the
+	 * key field f, or null if pid is the root pointer page and the tree has
+	 * no root yet
 	 *
 	 */
 	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
-			Field f)
+			Field f, boolean last)
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-		if (pid.pgcateg() == BTreePageId.LEAF)
-			return (BTreeLeafPage) this.getPage(tid, dirtypages, pid, perm);
-
-		BTreeInternalPage page = (BTreeInternalPage) this.getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-		Iterator<BTreeEntry> it = page.iterator();
-		BTreeEntry entry = it.next();
- 		BTreePageId searchId = null;
- 		if (f == null) searchId = entry.getLeftChild();
- 		else {
- 			while (f.compare(Op.GREATER_THAN, entry.getKey()) && it.hasNext()){
- 				entry = it.next();
+		BufferPool bp = Database.getBufferPool();
+		for (int attempt = 0; ; attempt++) {
+			boolean locking = attempt >= OPTIMISTIC_DESCENTS;
+			Page parent = null;
+			long parentVersion = -1;
+			int parentStamp = 0;
+			BTreePageId searchId = pid;
+			boolean valid = true;
+			while (searchId != null && searchId.pgcateg() != BTreePageId.LEAF) {
+				long version = locking || dirtypages.containsKey(searchId) ? -1 : bp.optimisticRead(tid, searchId, true);
+				boolean locked = version < 0;
+				Page page;
+				if (locked) {
+					page = this.getPage(tid, dirtypages, searchId, Permissions.READ_ONLY);
+					// no other transaction can change the page now
+					version = bp.optimisticRead(tid, searchId, true);
+				}
+				else {
+					page = bp.getPageUnlocked(searchId);
+				}
+				int stamp = latchStamp(page);
+				BTreePageId childId = null;
+				if ((stamp & 1) == 0) {
+					try {
+						childId = childId(page, f, last);
+						if (childId == null && locked && searchId.pgcateg() == BTreePageId.INTERNAL)
+							throw new DbException("internal page " + searchId.pageNumber() + " has no entries");
+					} catch (RuntimeException e) {
+						// the page changed while it was read
+						if (locked)
+							throw e;
+					}
+				}
+				// an internal page without entries is a root whose last
+				// entry was just deleted, which the root pointer is about to
+				// skip
+				if ((childId == null && searchId.pgcateg() == BTreePageId.INTERNAL)
+						|| !validateRead(bp, tid, page, version, stamp)
+						|| (parent != null && !validateRead(bp, tid, parent, parentVersion, parentStamp))) {
+					valid = false;
+					break;
+				}
+				parent = page;
+				parentVersion = version;
+				parentStamp = stamp;
+				searchId = childId;
 			}
-
- 			if (f.compare(Op.LESS_THAN_OR_EQ, entry.getKey())){
- 				searchId = entry.getLeftChild();
-			} else {
- 				searchId = entry.getRightChild();
+			if (!valid) {
+				Thread.yield();
+				continue;
 			}
+			BTreeLeafPage leaf = searchId == null ? null
+					: (BTreeLeafPage) this.getPage(tid, dirtypages, searchId, perm);
+			if (parent == null || validateRead(bp, tid, parent, parentVersion, parentStamp))
+				return leaf;
 		}
-        return findLeafPage(tid, dirtypages, searchId, perm, f);
+	}
+
+	/**
+	 * @return the latch stamp of an internal page, or 0 for other pages
+	 * @see BTreeInternalPage#getLatchStamp
+	 */
+	private static int latchStamp(Page page) {
+		return page instanceof BTreeInternalPage ? ((BTreeInternalPage) page).getLatchStamp() : 0;
+	}
+
+	/**
+	 * @return true if a page read with version and latch stamp was not
+	 * changed since
+	 */
+	private static boolean validateRead(BufferPool bp, TransactionId tid, Page page, long version, int stamp) {
+		return bp.validateRead(tid, page.getId(), version, true) && latchStamp(page) == stamp;
+	}
 
+	/**
+	 * @return the page below a root pointer or internal page on the path to
+	 * the left-most (or, if last, right-most) leaf page possibly containing
+	 * f, the page to its right if an internal page is being split and f is
+	 * above the split key, or null if the page has no root or entries
+	 */
+	private BTreePageId childId(Page page, Field f, boolean last) {
+		if (page instanceof BTreeRootPtrPage)
+			return ((BTreeRootPtrPage) page).getRootId();
+		BTreeInternalPage internal = (BTreeInternalPage) page;
+		BTreePageId right = internal.moveRight(f, last);
+		return right != null ? right : internal.findChildId(f, last);
 	}
 
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
 	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field, boolean)
 	 *
 	 * @param tid - the transaction id
 	 * @param pid - the current page being searched
@@ -234,7 +372,41 @@ public class BTreeFile implements DbFile {
 	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
 			Field f)
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f, false);
+	}
+
+	/**
+	 * Find the right-most leaf page possibly containing the key field f, or
+	 * the right-most leaf page if f is null, when there is no dirtypages
+	 * HashMap. Used by the descending iterator.
+	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field, boolean)
+	 */
+	BTreeLeafPage findLastLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
+			Field f)
+					throws DbException, TransactionAbortedException {
+		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f, true);
+	}
+
+	/**
+	 * The key of the parent entry between two pages, given the greatest key
+	 * of the left page and the least key of the right page.  For string keys
+	 * this is the shortest prefix of right that is not less than left, unless
+	 * left is a prefix of right, so that internal pages hold short keys and
+	 * many entries; other keys are used as they are.
+	 *
+	 * @return a key k with left <= k <= right
+	 */
+	static Field separator(Field left, Field right) {
+		if(!(left instanceof StringField))
+			return left;
+		String l = ((StringField) left).getValue();
+		String r = ((StringField) right).getValue();
+		int n = 0;
+		while(n < l.length() && n < r.length() && l.charAt(n) == r.charAt(n))
+			n++;
+		if(n >= l.length() || n >= r.length())
+			return left;
+		return new StringField(r.substring(0, n + 1), Type.STRING_LEN);
 	}
 
 	/**
@@ -297,10 +469,9 @@ public class BTreeFile implements DbFile {
 		//use it.next() field instead of the tupleToMove[0] filed is to deal with the duplicate problem
 		//if <= midkey sort left else sort right
 		Tuple tuple = it.next();
-		Field midkey = tuple.getField(keyField);
+		Field midkey = separator(keyOf(tuple), keyOf(tupleToMove[0]));
 		BTreeEntry midEntry = new BTreeEntry(midkey, page.getId(), newRLeaf.getId());
-		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), midkey);
-		parent.insertEntry(midEntry);
+		BTreeInternalPage parent = insertParentEntry(tid, dirtypages, page.getParentId(), midEntry);
 		updateParentPointer(tid, dirtypages, parent.getId(), page.getId());
 		updateParentPointer(tid, dirtypages, parent.getId(), newRLeaf.getId());
 
@@ -338,28 +509,36 @@ public class BTreeFile implements DbFile {
 		BTreeInternalPage newInternal = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
 		//Copy half of the entries
 		Iterator<BTreeEntry> it = page.reverseIterator();
-		int numEntries = page.getNumEntries();
-		// The structure is  n/2 - 1 - n/2 (pick the mid one as parent)
-		int len = numEntries / 2;
+		// The structure is  n/2 - 1 - n/2 (pick the mid one as parent), or
+		// for string keys split by the bytes of the entries
+		int len = page.getNumEntriesToSplit();
 		BTreeEntry [] entryToMove = new BTreeEntry[len];
 		for (int i = len - 1; i >= 0; i--)
 			entryToMove[i] = it.next();
 
 		BTreeEntry midEntry = it.next();
-		for (int i = len - 1; i >= 0; i--){
-			page.deleteKeyAndRightChild(entryToMove[i]);
-			newInternal.insertEntry(entryToMove[i]);
+		Field midkey = midEntry.getKey();
+		// readers that hold no locks see the entries either on this page or
+		// on the new page behind the right link, never on neither
+		page.beginChange();
+		try {
+			for (int i = len - 1; i >= 0; i--){
+				page.deleteKeyAndRightChild(entryToMove[i]);
+				newInternal.insertEntry(entryToMove[i]);
+			}
+			page.deleteKeyAndRightChild(midEntry);
+			page.setRightLink(newInternal.getId(), midkey);
+		} finally {
+			page.endChange();
 		}
-		page.deleteKeyAndRightChild(midEntry);
 
-		//Update the relation of parent
-		Field midkey = midEntry.getKey();
+		//Update the relation of parent, which no longer needs the right link
 		midEntry = new BTreeEntry(midkey, page.getId(), newInternal.getId());
 		updateParentPointers(tid, dirtypages, newInternal);
 		updateParentPointers(tid, dirtypages, page);
 
-		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), midkey);
-		parent.insertEntry(midEntry);
+		BTreeInternalPage parent = insertParentEntry(tid, dirtypages, page.getParentId(), midEntry);
+		page.setRightLink(null, null);
 		updateParentPointer(tid, dirtypages, parent.getId(), page.getId());
 		updateParentPointer(tid, dirtypages, parent.getId(), newInternal.getId());
 
@@ -377,7 +556,7 @@ public class BTreeFile implements DbFile {
 	 * @param parentId - the id of the parent. May be an internal page or the RootPtr page
 	 * @param field - the key of the entry which will be inserted. Needed in case the parent must be split
 	 * to accommodate the new entry
-	 * @return the parent page, guaranteed to have at least one empty slot
+	 * @return the parent page, guaranteed to have room for an entry with the given key
 	 * @see #splitInternalPage(TransactionId, HashMap, BTreeInternalPage, Field)
 	 *
 	 * @throws DbException
@@ -410,8 +589,10 @@ public class BTreeFile implements DbFile {
 					Permissions.READ_WRITE);
 		}
 
-		// split the parent if needed
-		if(parent.getNumEmptySlots() == 0) {
+		// split the parent if needed; for string keys, the half a split
+		// leaves may still have no room if the key shortens the prefix its
+		// keys share
+		while(!parent.hasRoomFor(field)) {
 			parent = splitInternalPage(tid, dirtypages, parent, field);
 		}
 
@@ -419,6 +600,41 @@ public class BTreeFile implements DbFile {
 
 	}
 
+	/**
+	 * Insert the entry for a split page into its parent, splitting the parent
+	 * as needed, or into a new root if the split page was the root.  A new
+	 * root is only linked from the root pointer page once it has the entry,
+	 * since readers that hold no locks may read it as soon as it is linked.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param parentId - the id of the parent. May be an internal page or the RootPtr page
+	 * @param entry - the entry to insert
+	 * @return the page the entry was inserted into
+	 * @see #getParentWithEmptySlots(TransactionId, HashMap, BTreePageId, Field)
+	 *
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private BTreeInternalPage insertParentEntry(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			BTreePageId parentId, BTreeEntry entry) throws DbException, IOException, TransactionAbortedException {
+		if(parentId.pgcateg() != BTreePageId.ROOT_PTR) {
+			BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, parentId, entry.getKey());
+			parent.insertEntry(entry);
+			return parent;
+		}
+
+		BTreeInternalPage root = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+		root.insertEntry(entry);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+				BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+		BTreePage prevRootPage = (BTreePage) getPage(tid, dirtypages, rootPtr.getRootId(), Permissions.READ_WRITE);
+		prevRootPage.setParentId(root.getId());
+		rootPtr.setRootId(root.getId());
+		return root;
+	}
+
 	/**
 	 * Helper function to update the parent pointer of a node.
 	 *
@@ -516,21 +732,20 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
-
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
-		}
-
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		createRootPtrPage();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE, keyOf(t), false);
+		if(leafPage == null) {
+			// the root has just been created, so set the root pointer to point to it
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+			if(rootPtr.getRootId() == null)
+				rootPtr.setRootId(emptyRootId());
+			leafPage = findLeafPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE, keyOf(t), false);
+		}
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+			leafPage = splitLeafPage(tid, dirtypages, leafPage, keyOf(t));
 		}
 
 		// insert the tuple into the leaf page
@@ -541,6 +756,436 @@ public class BTreeFile implements DbFile {
 		return dirtyPagesArr;
 	}
 
+	/**
+	 * The number of pages of tuples a bulk load sorts in memory at a time
+	 */
+	private static final int BULK_LOAD_SORT_PAGES = 256;
+
+	/**
+	 * Load tuples into this B+ tree in bulk, on behalf of transaction tid.
+	 * The tuples are sorted on the key field with an {@link ExternalSort}
+	 * and appended to the right edge of the tree: the tuples are spread
+	 * over the right-most leaf and new leaves filled to fillFactor of their
+	 * capacity, and the internal levels above the new leaves are built
+	 * bottom-up in the same pass, adding levels above the root as needed.
+	 * The new pages are numbered from the end of the file, and written to
+	 * disk as soon as they are full, so the load holds only the right edge
+	 * of the tree in the buffer pool.  On an empty tree this builds the
+	 * whole tree.
+	 * <p>
+	 * Tuples with keys less than the largest key already in the tree cannot
+	 * be appended; they are inserted one at a time with
+	 * {@link BufferPool#insertTuple} before the others are appended, so
+	 * appending is efficient when the keys keep increasing from load to load.
+	 * <p>
+	 * The load is transactional: the root pointer page and the right edge
+	 * are locked exclusively and changed in the buffer pool, so the new pages
+	 * only become part of the tree when tid commits.  The new pages are
+	 * locked exclusively as well, and each is logged with
+	 * {@link LogFile#logWrite} before it is written.  If tid aborts, they are
+	 * marked empty in the header pages once the abort has rolled back the
+	 * pages that refer to them (see {@link #transactionComplete}).
+	 *
+	 * @param tid - the transaction id
+	 * @param tuples - the tuples to load, in any order
+	 * @param fillFactor - the fraction of the capacity of each page to fill, from 0.5 to 1
+	 * @return the number of tuples loaded
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	public int bulkLoad(TransactionId tid, DbIterator tuples, double fillFactor)
+			throws DbException, IOException, TransactionAbortedException {
+		if(!(fillFactor >= 0.5 && fillFactor <= 1.0))
+			throw new IllegalArgumentException("fill factor " + fillFactor + " is not between 0.5 and 1");
+		BufferPool bp = Database.getBufferPool();
+
+		// the root pointer is locked for the whole load, which keeps other
+		// transactions from changing the right edge of the tree; the pages
+		// the load numbers from the end of the file are reserved instead
+		// (see #appendEmptyPage)
+		createRootPtrPage();
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPinnedPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid));
+		if(rootPtr.getRootId() == null)
+			rootPtr.setRootId(emptyRootId());
+		ArrayList<BTreePage> edge = rightEdge(tid, dirtypages, rootPtr.getRootId(), Permissions.READ_ONLY);
+		BTreeLeafPage lastLeaf = (BTreeLeafPage) edge.get(0);
+		Field max = null;
+		if(lastLeaf.getNumTuples() > 0)
+			max = keyOf(lastLeaf.reverseIterator().next());
+
+		BTreeLeafPage empty = new BTreeLeafPage(lastLeaf.getId(), BTreePage.createEmptyPageData(), keyField);
+		int[] order = new int[tiebreak.length + 1];
+		order[0] = keyField;
+		System.arraycopy(tiebreak, 0, order, 1, tiebreak.length);
+		ExternalSort sorted = new ExternalSort(tuples, order, true, BULK_LOAD_SORT_PAGES * empty.getMaxTuples());
+		sorted.open();
+		try {
+			int inserted = 0;
+			Tuple pending = null;
+			while(sorted.hasNext()) {
+				Tuple t = sorted.next();
+				if(max == null || !keyOf(t).compare(Op.LESS_THAN, max)) {
+					pending = t;
+					break;
+				}
+				bp.insertTuple(tid, tableid, t);
+				inserted++;
+			}
+			if(pending != null)
+				appendTuples(tid, rootPtr, pending, sorted, sorted.numTuples() - inserted, fillFactor);
+			return sorted.numTuples();
+		} finally {
+			sorted.close();
+		}
+	}
+
+	/**
+	 * @return the id of the empty root leaf that {@link #createRootPtrPage}
+	 * writes, which the root pointer of a new tree points to once a tuple
+	 * is added; not the last page, which may be one an aborted load left
+	 */
+	private BTreePageId emptyRootId() {
+		return new BTreePageId(tableid, 1, BTreePageId.LEAF);
+	}
+
+	/**
+	 * Get a page with read-write permission and mark it dirty right away:
+	 * the buffer pool never evicts a dirty page, so the changes a bulk load
+	 * makes to the page stay in memory while it writes new pages.
+	 */
+	private Page getPinnedPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid)
+			throws DbException, TransactionAbortedException {
+		Page p = getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+		p.markDirty(true, tid);
+		return p;
+	}
+
+	/**
+	 * @return the pages on the right edge of the subtree rooted at rootId,
+	 * from the right-most leaf up to the root
+	 */
+	private ArrayList<BTreePage> rightEdge(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId rootId,
+			Permissions perm) throws DbException, TransactionAbortedException {
+		ArrayList<BTreePage> edge = new ArrayList<BTreePage>();
+		BTreePageId id = rootId;
+		while(true) {
+			BTreePage page = (BTreePage) (perm == Permissions.READ_WRITE ? getPinnedPage(tid, dirtypages, id)
+					: getPage(tid, dirtypages, id, perm));
+			edge.add(0, page);
+			if(id.pgcateg() == BTreePageId.LEAF)
+				return edge;
+			id = ((BTreeInternalPage) page).reverseIterator().next().getRightChild();
+		}
+	}
+
+	/**
+	 * The pages of one level of the tree that a bulk load writes to: the page
+	 * on the right edge of the tree, if the level already exists, followed by
+	 * the new pages of the level.  Every level is a sequence of items, the
+	 * tuples of the leaves or the children of the internal pages, made of
+	 * the items already on the edge page followed by the new ones, and each
+	 * page gets the number of consecutive items given by sizes.
+	 */
+	private static class BulkLevel {
+		final ArrayList<BTreePageId> ids = new ArrayList<BTreePageId>();
+		int[] sizes;
+		/** the page on the right edge of the tree, or null for a new level */
+		BTreePage edge;
+		/** the position among the items of this level of the first page of the level below */
+		int base;
+
+		/** the index of the page being filled, and the items on it */
+		int page;
+		int count;
+		BTreePage current;
+		/** the key that goes up to the parent for the page being filled */
+		Field key;
+		BTreePageId lastChild;
+
+		/** @return the page with the item at a position */
+		BTreePageId pageOf(int pos) {
+			for(int i = 0; i < sizes.length; i++) {
+				if(pos < sizes[i])
+					return ids.get(i);
+				pos -= sizes[i];
+			}
+			throw new IllegalArgumentException("no item at " + pos);
+		}
+	}
+
+	/**
+	 * Spread total items over pages as evenly as possible, with as many
+	 * pages as there are full ones of cap items, but at least one and enough
+	 * for no page to hold more than max items.  Every page but a single one
+	 * then holds at least cap items.
+	 */
+	private static int[] packLevel(int total, int cap, int max) {
+		return spread(total, Math.max(1, Math.max(total / cap, (total + max - 1) / max)));
+	}
+
+	private static int[] spread(int total, int pages) {
+		int[] sizes = new int[pages];
+		for(int i = 0; i < pages; i++)
+			sizes[i] = total / pages + (i < total % pages ? 1 : 0);
+		return sizes;
+	}
+
+	/**
+	 * Append sorted tuples, whose keys are not less than any key in the tree,
+	 * to the right edge of the tree.
+	 *
+	 * @param first - the first tuple
+	 * @param rest - the tuples after the first
+	 * @param n - the number of tuples, including the first
+	 */
+	private void appendTuples(TransactionId tid, BTreeRootPtrPage rootPtr, Tuple first, DbIterator rest, int n,
+			double fillFactor) throws DbException, IOException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		dirtypages.put(rootPtr.getId(), rootPtr);
+		ArrayList<BTreePage> edge = rightEdge(tid, dirtypages, rootPtr.getRootId(), Permissions.READ_WRITE);
+		int height = edge.size() - 1;
+		BTreeLeafPage edgeLeaf = (BTreeLeafPage) edge.get(0);
+		int maxTuples = edgeLeaf.getMaxTuples();
+		// internal pages are planned to hold keys of any length
+		int maxEntries = new BTreeInternalPage(new BTreePageId(tableid, 0, BTreePageId.INTERNAL),
+				BTreePage.createEmptyPageData(), keyField).getGuaranteedEntries();
+		int leafCap = Math.max(1, (int) (maxTuples * fillFactor));
+		int childCap = (int) (maxEntries * fillFactor) + 1;
+
+		// plan the pages of every level from the bottom up, numbering the
+		// new pages from the end of the file, and reserve them until the
+		// load has written them
+		ArrayList<BulkLevel> levels = new ArrayList<BulkLevel>();
+		BulkLevel leaves = new BulkLevel();
+		leaves.edge = edgeLeaf;
+		leaves.sizes = packLevel(edgeLeaf.getNumTuples() + n, leafCap, maxTuples);
+		levels.add(leaves);
+		synchronized(this) {
+			int nextPage = numPages() + 1;
+			synchronized(loadedPages) {
+				if(!loadedPages.containsKey(tid))
+					loadedPages.put(tid, new ArrayList<int[]>());
+				loadedPages.get(tid).add(new int[] {nextPage, nextPage - 1});
+			}
+			for(int k = 0; ; k++) {
+				BulkLevel level = levels.get(k);
+				int category = k == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+				if(level.edge != null)
+					level.ids.add(level.edge.getId());
+				while(level.ids.size() < level.sizes.length)
+					level.ids.add(new BTreePageId(tableid, nextPage++, category));
+				// nothing changes above a level with a single page
+				if(level.sizes.length == 1)
+					break;
+				BulkLevel above = new BulkLevel();
+				if(k < height) {
+					BTreeInternalPage parent = (BTreeInternalPage) edge.get(k + 1);
+					int children = parent.getNumEntries() + 1;
+					above.edge = parent;
+					above.base = children - 1;
+					above.sizes = packLevel(children + level.sizes.length - 1, childCap, maxEntries + 1);
+				}
+				else {
+					above.sizes = packLevel(level.sizes.length, childCap, maxEntries + 1);
+				}
+				levels.add(above);
+			}
+			reservedPages = nextPage - 1;
+		}
+
+		// the edge pages whose parent changes
+		for(int k = 0; k + 1 < levels.size() && k <= height; k++) {
+			BTreePageId parentId = levels.get(k + 1).pageOf(levels.get(k + 1).base);
+			if(!parentId.equals(edge.get(k).getParentId()))
+				edge.get(k).setParentId(parentId);
+		}
+
+		// the tuples the edge leaf gives to the new leaves go first
+		ArrayList<Tuple> moved = new ArrayList<Tuple>();
+		Iterator<Tuple> it = edgeLeaf.reverseIterator();
+		while(edgeLeaf.getNumTuples() - moved.size() > leaves.sizes[0])
+			moved.add(0, it.next());
+		for(Tuple t : moved)
+			edgeLeaf.deleteTuple(t);
+
+		// an edge page that gives children to the new pages stays latched
+		// until they are in the tree, so that readers without locks wait for
+		// the load instead of missing the children
+		ArrayList<BTreeInternalPage> latched = new ArrayList<BTreeInternalPage>();
+		try {
+			for(int k = 0; k < levels.size(); k++) {
+				BulkLevel level = levels.get(k);
+				level.current = level.edge;
+				if(level.edge == null)
+					continue;
+				if(k == 0) {
+					level.count = edgeLeaf.getNumTuples();
+					continue;
+				}
+				BTreeInternalPage page = (BTreeInternalPage) level.edge;
+				level.count = level.base + 1;
+				ArrayList<BTreeEntry> given = new ArrayList<BTreeEntry>();
+				Iterator<BTreeEntry> entries = page.reverseIterator();
+				while(level.count - given.size() > level.sizes[0])
+					given.add(0, entries.next());
+				if(!given.isEmpty()) {
+					page.beginChange();
+					latched.add(page);
+					for(int i = given.size() - 1; i >= 0; i--)
+						page.deleteKeyAndRightChild(given.get(i));
+					level.count -= given.size();
+				}
+				level.lastChild = page.reverseIterator().next().getRightChild();
+				int pos = level.count;
+				for(int i = 0; i < given.size(); i++) {
+					BTreePageId child = given.get(i).getRightChild();
+					// the edge page below already knows its parent
+					if(i < given.size() - 1)
+						((BTreePage) getPinnedPage(tid, dirtypages, child)).setParentId(level.pageOf(pos + i));
+					addChild(tid, rootPtr, levels, k, child, given.get(i).getKey());
+				}
+			}
+			// a new level above the old root starts with the old root
+			if(levels.size() > height + 1)
+				addChild(tid, rootPtr, levels, height + 1, edge.get(height).getId(), null);
+
+			for(Tuple t : moved)
+				addTuple(tid, rootPtr, levels, t);
+			addTuple(tid, rootPtr, levels, first);
+			TableStats.tupleInserted(tableid, first);
+			while(rest.hasNext()) {
+				Tuple t = rest.next();
+				addTuple(tid, rootPtr, levels, t);
+				TableStats.tupleInserted(tableid, t);
+			}
+			for(int k = 0; k < levels.size(); k++)
+				finishPage(tid, rootPtr, levels, k);
+		} finally {
+			for(BTreeInternalPage page : latched)
+				page.endChange();
+			endReservation(tid);
+		}
+	}
+
+	/**
+	 * End the reservation of the pages a bulk load planned.  The pages of
+	 * the reservation that other transactions appended pages after are in
+	 * the file even if the load failed before writing them, and are freed
+	 * with the pages it wrote if tid aborts.
+	 */
+	private void endReservation(TransactionId tid) {
+		int last;
+		synchronized(this) {
+			last = Math.min(reservedPages, numPages());
+			reservedPages = 0;
+		}
+		synchronized(loadedPages) {
+			ArrayList<int[]> ranges = loadedPages.get(tid);
+			int[] range = ranges.get(ranges.size() - 1);
+			range[1] = Math.max(range[1], last);
+		}
+	}
+
+	private void addTuple(TransactionId tid, BTreeRootPtrPage rootPtr, ArrayList<BulkLevel> levels, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		BulkLevel leaves = levels.get(0);
+		if(leaves.count == leaves.sizes[leaves.page]) {
+			Field key = separator(keyOf(((BTreeLeafPage) leaves.current).reverseIterator().next()),
+					keyOf(t));
+			finishPage(tid, rootPtr, levels, 0);
+			leaves.page++;
+			leaves.count = 0;
+			leaves.current = new BTreeLeafPage(leaves.ids.get(leaves.page), BTreePage.createEmptyPageData(), keyField);
+			leaves.key = key;
+		}
+		((BTreeLeafPage) leaves.current).insertTuple(t);
+		leaves.count++;
+	}
+
+	private void addChild(TransactionId tid, BTreeRootPtrPage rootPtr, ArrayList<BulkLevel> levels, int k,
+			BTreePageId child, Field key) throws DbException, IOException, TransactionAbortedException {
+		BulkLevel level = levels.get(k);
+		if(level.current == null || level.count == level.sizes[level.page]) {
+			if(level.current != null) {
+				finishPage(tid, rootPtr, levels, k);
+				level.page++;
+			}
+			level.count = 0;
+			level.current = new BTreeInternalPage(level.ids.get(level.page), BTreePage.createEmptyPageData(), keyField);
+			level.key = key;
+		}
+		else {
+			((BTreeInternalPage) level.current).insertEntry(new BTreeEntry(key, level.lastChild, child));
+		}
+		level.lastChild = child;
+		level.count++;
+	}
+
+	/**
+	 * Finish the page being filled on level k of a bulk load: a new page
+	 * is linked to its parent and siblings, logged and written to disk, and
+	 * then added to the level above, or becomes the root.
+	 */
+	private void finishPage(TransactionId tid, BTreeRootPtrPage rootPtr, ArrayList<BulkLevel> levels, int k)
+			throws DbException, IOException, TransactionAbortedException {
+		BulkLevel level = levels.get(k);
+		BTreePage page = level.current;
+		if(k == 0 && level.page + 1 < level.ids.size())
+			((BTreeLeafPage) page).setRightSiblingId(level.ids.get(level.page + 1));
+		if(page == level.edge)
+			return;
+
+		BulkLevel above = k + 1 < levels.size() ? levels.get(k + 1) : null;
+		if(k == 0 && level.page > 0)
+			((BTreeLeafPage) page).setLeftSiblingId(level.ids.get(level.page - 1));
+		page.setParentId(above == null ? rootPtr.getId() : above.pageOf(above.base + level.page));
+		Database.getBufferPool().lockPage(tid, page.getId(), Permissions.READ_WRITE);
+		Database.getLogFile().logWrite(tid, page.getBeforeImage(), page);
+		writePage(page);
+		synchronized(loadedPages) {
+			ArrayList<int[]> ranges = loadedPages.get(tid);
+			int[] range = ranges.get(ranges.size() - 1);
+			range[1] = Math.max(range[1], page.getId().pageNumber());
+		}
+		if(above != null)
+			addChild(tid, rootPtr, levels, k + 1, page.getId(), level.key);
+		else
+			rootPtr.setRootId(page.getId());
+	}
+
+	/**
+	 * Mark the pages the bulk loads of an aborted transaction wrote empty:
+	 * the abort rolled back every page that referred to them.  They are
+	 * freed by a transaction of their own, and stay unused if it cannot
+	 * lock the header pages.
+	 */
+	public void transactionComplete(TransactionId tid, boolean commit) throws IOException {
+		ArrayList<int[]> ranges;
+		synchronized(loadedPages) {
+			ranges = loadedPages.remove(tid);
+		}
+		if(ranges == null || commit)
+			return;
+		TransactionId cleanup = new TransactionId();
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		boolean freed = false;
+		try {
+			for(int[] range : ranges) {
+				for(int pgNo = range[0]; pgNo <= range[1]; pgNo++)
+					setEmptyPage(cleanup, dirtypages, pgNo);
+			}
+			for(Page p : dirtypages.values())
+				p.markDirty(true, cleanup);
+			freed = true;
+		} catch(DbException | TransactionAbortedException e) {
+			// the pages are only lost to later allocations
+		} finally {
+			Database.getBufferPool().transactionComplete(cleanup, freed);
+		}
+	}
+
 	/**
 	 * Handle the case when a B+ tree page becomes less than half full due to deletions.
 	 * If one of its siblings has extra tuples/entries, redistribute those tuples/entries.
@@ -581,11 +1226,21 @@ public class BTreeFile implements DbFile {
 			}
 		}
 
-		if(page.getId().pgcateg() == BTreePageId.LEAF) {
-			handleMinOccupancyLeafPage(tid, dirtypages, (BTreeLeafPage) page, parent, leftEntry, rightEntry);
-		}
-		else { // BTreePageId.INTERNAL
-			handleMinOccupancyInternalPage(tid, dirtypages, (BTreeInternalPage) page, parent, leftEntry, rightEntry);
+		// entries move between the children of the parent without a right
+		// link, so readers that hold no locks must not pass the parent until
+		// they are done
+		if (parent != null)
+			parent.beginChange();
+		try {
+			if(page.getId().pgcateg() == BTreePageId.LEAF) {
+				handleMinOccupancyLeafPage(tid, dirtypages, (BTreeLeafPage) page, parent, leftEntry, rightEntry);
+			}
+			else { // BTreePageId.INTERNAL
+				handleMinOccupancyInternalPage(tid, dirtypages, (BTreeInternalPage) page, parent, leftEntry, rightEntry);
+			}
+		} finally {
+			if (parent != null)
+				parent.endChange();
 		}
 	}
 
@@ -661,6 +1316,8 @@ public class BTreeFile implements DbFile {
 		// that the tuples are evenly distributed. Be sure to update
 		// the corresponding parent entry.
 		int numTomove = (sibling.getNumTuples() - page.getNumTuples()) / 2;
+		if (numTomove <= 0)
+			return;
 		Tuple[] tupleTomove = new Tuple[numTomove];
 		Iterator<Tuple> it;
 		if (isRightSibling) it = sibling.iterator();
@@ -669,12 +1326,19 @@ public class BTreeFile implements DbFile {
 		for (int i = 0; i < numTomove; i++)
 			tupleTomove[i] = it.next();
 
+		// the new key separates the greatest key on the left from the least
+		// key on the right; a longer string key may not fit on the parent
+		Field moved = keyOf(tupleTomove[numTomove - 1]);
+		Field next = keyOf(it.next());
+		Field key = isRightSibling ? separator(moved, next) : separator(next, moved);
+		if (!parent.hasRoomToUpdate(entry, key))
+			return;
+
 		for (Tuple tuple : tupleTomove){
 			sibling.deleteTuple(tuple);
 			page.insertTuple(tuple);
 		}
-		if (isRightSibling) entry.setKey(page.reverseIterator().next().getField(keyField));
-		else entry.setKey(sibling.reverseIterator().next().getField(keyField));
+		entry.setKey(key);
 		parent.updateEntry(entry);
 	}
 
@@ -708,9 +1372,10 @@ public class BTreeFile implements DbFile {
 		int maxEmptySlots = page.getMaxEntries() - page.getMaxEntries()/2; // ceiling
 		if(leftSiblingId != null) {
 			BTreeInternalPage leftSibling = (BTreeInternalPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
-			// if the left sibling is at minimum occupancy, merge with it. Otherwise
-			// steal some entries from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			// if the left sibling is at minimum occupancy, or for string keys if
+			// both pages fit on one, merge with it. Otherwise steal some entries from it
+			if(page.isCompact() ? fitOnOnePage(leftSibling, page, leftEntry)
+					: leftSibling.getNumEmptySlots() >= maxEmptySlots) {
 				mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
 			else {
@@ -719,9 +1384,10 @@ public class BTreeFile implements DbFile {
 		}
 		else if(rightSiblingId != null) {
 			BTreeInternalPage rightSibling = (BTreeInternalPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
-			// if the right sibling is at minimum occupancy, merge with it. Otherwise
-			// steal some entries from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			// if the right sibling is at minimum occupancy, or for string keys if
+			// both pages fit on one, merge with it. Otherwise steal some entries from it
+			if(page.isCompact() ? fitOnOnePage(page, rightSibling, rightEntry)
+					: rightSibling.getNumEmptySlots() >= maxEmptySlots) {
 				mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 			else {
@@ -752,11 +1418,14 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
 		// some code goes here
-		int numTomove = (leftSibling.getNumEntries() - page.getNumEntries()) / 2;
+		int numTomove = numEntriesToSteal(page, leftSibling, leftSibling.reverseIterator());
 		BTreeEntry[] entryTomove = new BTreeEntry[numTomove];
 		Iterator<BTreeEntry> it = leftSibling.reverseIterator();
 		for (int i = 0; i < numTomove; i++)
 			entryTomove[i] = it.next();
+		numTomove = numEntriesThatFit(page, parent, parentEntry, entryTomove);
+		if (numTomove == 0)
+			return;
 
 		//Down the parent to right page (leftchild is the orgin left rightlast, rightchild is the origin right leftfirst)
 		BTreePageId LeftChild = leftSibling.reverseIterator().next().getRightChild();
@@ -804,11 +1473,14 @@ public class BTreeFile implements DbFile {
 		// that the entries are evenly distributed. Be sure to update
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
-		int numTomove = (rightSibling.getNumEntries() - page.getNumEntries()) / 2;
+		int numTomove = numEntriesToSteal(page, rightSibling, rightSibling.iterator());
 		BTreeEntry[] entryTomove = new BTreeEntry[numTomove];
 		Iterator<BTreeEntry> it = rightSibling.iterator();
 		for (int i = 0; i < numTomove; i++)
 			entryTomove[i] = it.next();
+		numTomove = numEntriesThatFit(page, parent, parentEntry, entryTomove);
+		if (numTomove == 0)
+			return;
 
 		//Down the parent to right page (leftchild is the orgin left rightlast, rightchild is the origin right leftfirst)
 		BTreePageId LeftChild = page.reverseIterator().next().getRightChild();
@@ -830,6 +1502,63 @@ public class BTreeFile implements DbFile {
 		updateParentPointers(tid, dirtypages, page);
 	}
 
+	/**
+	 * @return the number of entries an internal page below minimum occupancy
+	 * steals from its sibling, taking them in the order of the given iterator
+	 * over the entries of the sibling: half the difference in their numbers of
+	 * entries, or for string keys as many as even out the bytes of the pages
+	 */
+	private static int numEntriesToSteal(BTreeInternalPage page, BTreeInternalPage sibling,
+			Iterator<BTreeEntry> it) {
+		if(!page.isCompact())
+			return (sibling.getNumEntries() - page.getNumEntries()) / 2;
+		int pageBytes = page.getUsedBytes();
+		int siblingBytes = sibling.getUsedBytes();
+		int n = 0;
+		while(n < sibling.getNumEntries() - 1) {
+			int size = sibling.getEntrySize(it.next().getKey());
+			if(pageBytes + size > siblingBytes - size)
+				break;
+			pageBytes += size;
+			siblingBytes -= size;
+			n++;
+		}
+		return Math.max(1, n);
+	}
+
+	/**
+	 * @return how many of the entries to steal, in the order they are taken
+	 * from the sibling, can rotate through the parent entry into the page: all
+	 * of them, but for string keys only as many as leave room on the page for
+	 * the keys coming down and on the parent for the key going up
+	 */
+	private static int numEntriesThatFit(BTreeInternalPage page, BTreeInternalPage parent,
+			BTreeEntry parentEntry, BTreeEntry[] entries) {
+		for(int n = entries.length; n > 0; n--) {
+			ArrayList<Field> keys = new ArrayList<Field>();
+			keys.add(parentEntry.getKey());
+			for(int i = 0; i < n - 1; i++)
+				keys.add(entries[i].getKey());
+			if(page.hasRoomFor(keys) && parent.hasRoomToUpdate(parentEntry, entries[n - 1].getKey()))
+				return n;
+		}
+		return 0;
+	}
+
+	/**
+	 * @return whether the entries of two sibling internal pages fit on the
+	 * left one, together with the key pulled down from the parent entry
+	 * between them
+	 */
+	private static boolean fitOnOnePage(BTreeInternalPage left, BTreeInternalPage right, BTreeEntry parentEntry) {
+		ArrayList<Field> keys = new ArrayList<Field>();
+		keys.add(parentEntry.getKey());
+		Iterator<BTreeEntry> it = right.iterator();
+		while(it.hasNext())
+			keys.add(it.next().getKey());
+		return left.hasRoomFor(keys);
+	}
+
 
 	/**
 	 * Merge two leaf pages by moving all tuples from the right page to the left page.
@@ -960,7 +1689,6 @@ public class BTreeFile implements DbFile {
 		// the parent is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
-		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
 		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged
@@ -976,7 +1704,7 @@ public class BTreeFile implements DbFile {
 			// release the parent page for reuse
 			setEmptyPage(tid, dirtypages, parent.getId().pageNumber());
 		}
-		else if(parent.getNumEmptySlots() > maxEmptySlots) {
+		else if(parent.isLessThanHalfFull()) {
 			handleMinOccupancyPage(tid, dirtypages, parent);
 		}
 	}
@@ -1025,6 +1753,18 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
+		createRootPtrPage();
+
+		// get a read lock on the root pointer page
+		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Create the root pointer page and root page if the file is empty.
+	 *
+	 * @throws IOException
+	 */
+	private void createRootPtrPage() throws IOException {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
@@ -1037,9 +1777,34 @@ public class BTreeFile implements DbFile {
 				bw.close();
 			}
 		}
+	}
 
-		// get a read lock on the root pointer page
-		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+	/**
+	 * Read the id of the first header page from the root pointer page without
+	 * locking it, unless another transaction has it locked exclusively.
+	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field, boolean)
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @return the id of the first header page, or null if there is none
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private BTreePageId getHeaderId(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		createRootPtrPage();
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		for (int attempt = 0; attempt < OPTIMISTIC_DESCENTS && !dirtypages.containsKey(rootPtrId); attempt++) {
+			long version = bp.optimisticRead(tid, rootPtrId);
+			if (version < 0)
+				break;
+			BTreePageId headerId = ((BTreeRootPtrPage) bp.getPageUnlocked(rootPtrId)).getHeaderId();
+			if (bp.validateRead(tid, rootPtrId, version))
+				return headerId;
+		}
+		return ((BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_ONLY)).getHeaderId();
 	}
 
 	/**
@@ -1056,50 +1821,142 @@ public class BTreeFile implements DbFile {
 	 */
 	protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages)
 			throws DbException, IOException, TransactionAbortedException {
-		// get a read lock on the root pointer page and use it to locate the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
-		int emptyPageNo = 0;
+		int emptyPageNo = takeFreePage(tid, dirtypages);
+		return emptyPageNo >= 0 ? emptyPageNo : appendEmptyPage();
+	}
 
-		if(headerId != null) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-			int headerPageCount = 0;
-			// try to find a header page with an empty slot
-			while(headerPage != null && headerPage.getEmptySlot() == -1) {
-				headerId = headerPage.getNextPageId();
-				if(headerId != null) {
-					headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-					headerPageCount++;
-				}
-				else {
-					headerPage = null;
-				}
+	/**
+	 * Find a page the header pages mark empty through the cache of free pages,
+	 * and mark it used in its header page.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @return the page number of the page, or -1 if no page is empty
+	 * @see BTreeFreeSpace
+	 *
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private int takeFreePage(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		if(!freeSpace.isValid())
+			loadFreeSpace(tid, dirtypages);
+		int slots = BTreeHeaderPage.getNumSlots();
+		boolean reloaded = false;
+		while(true) {
+			int pgNo = freeSpace.take();
+			if(pgNo < 0) {
+				// pages handed out since the cache was loaded may have been
+				// freed again by transactions that aborted
+				if(reloaded || !freeSpace.tookPages())
+					return -1;
+				loadFreeSpace(tid, dirtypages);
+				reloaded = true;
+				continue;
 			}
-
-			// if headerPage is not null, it must have an empty slot
-			if(headerPage != null) {
+			BTreePageId headerId = freeSpace.getHeaderId(pgNo / slots);
+			if(headerId == null)
+				continue;
+			BTreeHeaderPage headerPage;
+			try {
 				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-				int emptySlot = headerPage.getEmptySlot();
-				headerPage.markSlotUsed(emptySlot, true);
-				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+			} catch(TransactionAbortedException e) {
+				freeSpace.put(pgNo);
+				throw e;
+			}
+			// another transaction may have taken the page, or the one that freed
+			// it may have aborted
+			if(!headerPage.isSlotUsed(pgNo % slots)) {
+				headerPage.markSlotUsed(pgNo % slots, true);
+				return pgNo;
 			}
 		}
+	}
 
-		// at this point if headerId is null, either there are no header pages
-		// or there are no free slots
-		if(headerId == null) {
-			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
+	/**
+	 * Append an empty page to the file, after the pages a running bulk load
+	 * plans to write: the load writes them with {@link #writePage} once they
+	 * are full, which would overwrite a page appended in their place.
+	 *
+	 * @return the page number of the new page
+	 * @throws IOException
+	 */
+	private synchronized int appendEmptyPage() throws IOException {
+		int emptyPageNo = Math.max(numPages(), reservedPages) + 1;
+		RandomAccessFile rf = new RandomAccessFile(f, "rw");
+		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
+		rf.write(BTreeInternalPage.createEmptyPageData());
+		rf.close();
+		return emptyPageNo;
+	}
+
+	/**
+	 * Load the cache of free pages from the chain of header pages.  Since the
+	 * cache is only a hint, the pages are read without locks unless another
+	 * transaction is changing them.  If this transaction changed the chain and
+	 * has not committed yet, the cache serves the current operation only.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 *
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private void loadFreeSpace(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		ArrayList<BTreePageId> headers = new ArrayList<BTreePageId>();
+		BitSet free = new BitSet();
+		boolean committed = true;
+		BTreePageId pid = BTreeRootPtrPage.getId(tableid);
+		while(pid != null) {
+			Page live = dirtypages.get(pid);
+			byte[] data = live == null ? null : live.getPageData();
+			for(int attempt = 0; data == null && attempt < OPTIMISTIC_DESCENTS; attempt++) {
+				long version = bp.optimisticRead(tid, pid);
+				if(version < 0)
+					break;
+				live = bp.getPageUnlocked(pid);
+				data = live.getPageData();
+				if(!bp.validateRead(tid, pid, version))
+					data = null;
 			}
+			if(data == null) {
+				live = getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+				data = live.getPageData();
+			}
+			Page page;
+			if(pid.pgcateg() == BTreePageId.ROOT_PTR) {
+				page = new BTreeRootPtrPage(pid, data);
+			}
+			else {
+				BTreeHeaderPage headerPage = new BTreeHeaderPage(pid, data);
+				int base = headers.size() * BTreeHeaderPage.getNumSlots();
+				for(int i = 0; i < BTreeHeaderPage.getNumSlots(); i++) {
+					if(!headerPage.isSlotUsed(i))
+						free.set(base + i);
+				}
+				headers.add(pid);
+				page = headerPage;
+			}
+			BTreePageId next = nextHeaderId(page);
+			if(live.isDirty() != null && !Objects.equals(next, nextHeaderId(live.getBeforeImage())))
+				committed = false;
+			pid = next;
 		}
+		freeSpace.load(headers, free, committed);
+	}
 
-		return emptyPageNo;
+	/**
+	 * @return the id of the header page the root pointer page or a header
+	 * page points to
+	 */
+	private static BTreePageId nextHeaderId(Page page) {
+		if(page instanceof BTreeRootPtrPage)
+			return ((BTreeRootPtrPage) page).getHeaderId();
+		return ((BTreeHeaderPage) page).getNextPageId();
 	}
 
 	/**
@@ -1121,15 +1978,19 @@ public class BTreeFile implements DbFile {
 	private Page getEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pgcateg)
 			throws DbException, IOException, TransactionAbortedException {
 		// create the new page
-		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
+		int emptyPageNo = takeFreePage(tid, dirtypages);
+		if(emptyPageNo >= 0) {
+			// wipe the reused page on disk; an appended page is empty already
+			RandomAccessFile rf = new RandomAccessFile(f, "rw");
+			rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
+			rf.write(BTreePage.createEmptyPageData());
+			rf.close();
+		}
+		else {
+			emptyPageNo = appendEmptyPage();
+		}
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
-		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
-
 		// make sure the page is not in the buffer pool	or in the local cache
 		Database.getBufferPool().discardPage(newPageId);
 		dirtypages.remove(newPageId);
@@ -1140,6 +2001,8 @@ public class BTreeFile implements DbFile {
 	/**
 	 * Mark a page in this BTreeFile as empty. Find the corresponding header page
 	 * (create it if needed), and mark the corresponding slot in the header page as empty.
+	 * Header page i holds the slots of pages i * BTreeHeaderPage.getNumSlots() to
+	 * (i + 1) * BTreeHeaderPage.getNumSlots() - 1.
 	 *
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -1173,54 +2036,77 @@ public class BTreeFile implements DbFile {
 //			}
 //		}
 
-		// otherwise, get a read lock on the root pointer page and use it to locate
-		// the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
-		BTreePageId prevId = null;
-		int headerPageCount = 0;
+		// otherwise, find the header page holding the slot through the cache
+		// of free pages, and only walk the chain if it has to grow
+		if(!freeSpace.isValid())
+			loadFreeSpace(tid, dirtypages);
+		int headerIndex = emptyPageNo / BTreeHeaderPage.getNumSlots();
+		BTreePageId headerId = freeSpace.getHeaderId(headerIndex);
+		if(headerId == null) {
+			headerId = addHeaderPages(tid, dirtypages, headerIndex);
+			freeSpace.invalidate();
+		}
+
+		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+		headerPage.markSlotUsed(emptyPageNo % BTreeHeaderPage.getNumSlots(), false);
+		freeSpace.put(emptyPageNo);
+	}
+
+	/**
+	 * Walk the chain of header pages from the root pointer page to the header
+	 * page with the given position, adding header pages to the chain until it
+	 * has one.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param headerIndex - the position of the header page in the chain
+	 * @return the id of the header page
+	 *
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private BTreePageId addHeaderPages(TransactionId tid, HashMap<PageId, Page> dirtypages, int headerIndex)
+			throws DbException, IOException, TransactionAbortedException {
+		// use the root pointer page to locate the first header page
+		BTreePageId headerId = getHeaderId(tid, dirtypages);
 
 		// if there are no header pages, create the first header page and update
 		// the header pointer in the BTreeRootPtrPage
 		if(headerId == null) {
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
-			headerId = headerPage.getId();
-			headerPage.init();
-			rootPtr.setHeaderId(headerId);
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+
+			// another transaction may have created it since the root pointer page was read
+			headerId = rootPtr.getHeaderId();
+			if(headerId == null) {
+				BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
+				headerId = headerPage.getId();
+				headerPage.init();
+				rootPtr.setHeaderId(headerId);
+			}
 		}
 
-		// iterate through all the existing header pages to find the one containing the slot
-		// corresponding to emptyPageNo
-		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+		// walk the chain up to the header page wanted, adding the header pages
+		// missing at its end
+		for(int headerPageCount = 0; headerPageCount < headerIndex; headerPageCount++) {
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-			prevId = headerId;
-			headerId = headerPage.getNextPageId();
-			headerPageCount++;
-		}
-
-		// at this point headerId should either be null or set with
-		// the headerPage containing the slot corresponding to emptyPageNo.
-		// Add header pages until we have one with a slot corresponding to emptyPageNo
-		while((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
-			BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
-
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
-			headerId = headerPage.getId();
-			headerPage.init();
-			headerPage.setPrevPageId(prevId);
-			prevPage.setNextPageId(headerId);
+			BTreePageId nextId = headerPage.getNextPageId();
+			if(nextId == null) {
+				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
 
-			headerPageCount++;
-			prevId = headerId;
+				// another transaction may have added it since headerPage was read
+				nextId = headerPage.getNextPageId();
+				if(nextId == null) {
+					BTreeHeaderPage nextPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
+					nextId = nextPage.getId();
+					nextPage.init();
+					nextPage.setPrevPageId(headerId);
+					headerPage.setNextPageId(nextId);
+				}
+			}
+			headerId = nextId;
 		}
-
-		// now headerId should be set with the headerPage containing the slot corresponding to
-		// emptyPageNo
-		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-		int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
-		headerPage.markSlotUsed(emptySlot, false);
+		return headerId;
 	}
 
 	/**
@@ -1237,6 +2123,111 @@ public class BTreeFile implements DbFile {
 		return new BTreeSearchIterator(this, tid, ipred);
 	}
 
+	/**
+	 * get the tuples from the file that satisfy both of two index predicates,
+	 * on behalf of the specified transaction. The scan starts at the first key
+	 * matching ipred and ends at the first key failing stop, so a range such as
+	 * <tt>key &gt; 5 AND key &lt; 10</tt> reads only the leaf pages holding the
+	 * range. This method will acquire a read lock on the affected pages of the
+	 * file, and may block until the lock can be acquired.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to filter on
+	 * @param stop - an upper bound (LESS_THAN or LESS_THAN_OR_EQ) ending the
+	 * scan, or null to end it as indexIterator(tid, ipred) does
+	 * @return an iterator for the filtered tuples
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred, IndexPredicate stop) {
+		if (stop != null && stop.getOp() != Op.LESS_THAN && stop.getOp() != Op.LESS_THAN_OR_EQ)
+			throw new IllegalArgumentException("the stop predicate of an index scan must be an upper bound");
+		return new BTreeSearchIterator(this, tid, ipred, stop);
+	}
+
+	/**
+	 * get the tuples from the file that satisfy two index predicates in
+	 * descending key order, on behalf of the specified transaction. The scan
+	 * starts at the last key matching ipred, follows the left sibling
+	 * pointers of the leaf pages, and ends at the first key failing stop, so
+	 * e.g. the greatest keys below a bound are read from the last leaf pages
+	 * holding them. This method will acquire a read lock on the affected
+	 * pages of the file, and may block until the lock can be acquired.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to filter on, or null for all
+	 * the tuples
+	 * @param stop - a lower bound (GREATER_THAN or GREATER_THAN_OR_EQ) ending
+	 * the scan, or null
+	 * @return an iterator for the filtered tuples, greatest key first
+	 */
+	public DbFileIterator descendingIterator(TransactionId tid, IndexPredicate ipred, IndexPredicate stop) {
+		if (stop != null && stop.getOp() != Op.GREATER_THAN && stop.getOp() != Op.GREATER_THAN_OR_EQ)
+			throw new IllegalArgumentException("the stop predicate of a descending index scan must be a lower bound");
+		return new BTreeReverseSearchIterator(this, tid, ipred, stop);
+	}
+
+	/**
+	 * Get the ids of all leaf pages of this B+ tree in key order, reading only
+	 * the root pointer and internal pages. The pages are read without locks,
+	 * like the pages a lookup descends through (see findLeafPage), but also
+	 * while another transaction holds them: this is for statistics, which
+	 * need no isolation, and neither wait for writers nor keep them waiting.
+	 * A page is read again until a read of it validates.
+	 *
+	 * @param tid - the transaction id
+	 * @return the ids of the leaf pages, empty if the tree is empty
+	 */
+	List<BTreePageId> leafPageIds(TransactionId tid) throws DbException {
+		List<BTreePageId> leaves = new ArrayList<BTreePageId>();
+		collectLeafPageIds(tid, BTreeRootPtrPage.getId(getId()), leaves);
+		return leaves;
+	}
+
+	private void collectLeafPageIds(TransactionId tid, BTreePageId pid, List<BTreePageId> leaves)
+			throws DbException {
+		if (pid.pgcateg() == BTreePageId.LEAF) {
+			leaves.add(pid);
+			return;
+		}
+		for (BTreePageId childId : childIds(tid, pid))
+			collectLeafPageIds(tid, childId, leaves);
+	}
+
+	/**
+	 * @return the ids of the pages below a root pointer or internal page, read
+	 * without locking it
+	 */
+	private List<BTreePageId> childIds(TransactionId tid, BTreePageId pid) throws DbException {
+		BufferPool bp = Database.getBufferPool();
+		while (true) {
+			long version = bp.optimisticRead(tid, pid, true);
+			Page page = bp.getPageUnlocked(pid);
+			int stamp = latchStamp(page);
+			List<BTreePageId> children = new ArrayList<BTreePageId>();
+			if ((stamp & 1) == 0) {
+				try {
+					if (page instanceof BTreeRootPtrPage) {
+						if (((BTreeRootPtrPage) page).getRootId() != null)
+							children.add(((BTreeRootPtrPage) page).getRootId());
+					}
+					else {
+						Iterator<BTreeEntry> it = ((BTreeInternalPage) page).iterator();
+						while (it.hasNext()) {
+							BTreeEntry e = it.next();
+							if (children.isEmpty())
+								children.add(e.getLeftChild());
+							children.add(e.getRightChild());
+						}
+					}
+					if (validateRead(bp, tid, page, version, stamp))
+						return children;
+				} catch (RuntimeException e) {
+					// the page changed while it was read
+				}
+			}
+			Thread.yield();
+		}
+	}
+
 	/**
 	 * Get an iterator for all tuples in this B+ tree file in sorted order. This method
 	 * will acquire a read lock on the affected pages of the file, and may block until
@@ -1276,11 +2267,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
-		it = curp.iterator();
+		curp = f.findLeafPage(tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY, null);
+		it = curp == null ? null : curp.iterator();
 	}
 
 	/**
@@ -1343,6 +2331,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	TransactionId tid;
 	BTreeFile f;
 	IndexPredicate ipred;
+	IndexPredicate stop;
 
 	/**
 	 * Constructor for this iterator
@@ -1351,9 +2340,22 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * @param ipred - the predicate to filter on
 	 */
 	public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
+		this(f, tid, ipred, null);
+	}
+
+	/**
+	 * Constructor for an iterator over a bounded range of keys
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on
+	 * @param stop - an upper bound on the keys, or null; the iteration ends at
+	 * the first tuple that fails it
+	 */
+	public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred, IndexPredicate stop) {
 		this.f = f;
 		this.tid = tid;
 		this.ipred = ipred;
+		this.stop = stop;
 	}
 
 	/**
@@ -1361,17 +2363,16 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
+		BTreePageId root = BTreeRootPtrPage.getId(f.getId());
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
 			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			it = curp == null ? null : curp.iterator(ipred.getField());
 		}
 		else {
 			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			it = curp == null ? null : curp.iterator();
 		}
-		it = curp.iterator();
 	}
 
 	/**
@@ -1387,7 +2388,11 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+				if (stop != null && !f.keyOf(t).compare(stop.getOp(), stop.getField())) {
+					// keys are sorted, so every later tuple is past the stop key too
+					return null;
+				}
+				if (f.keyOf(t).compare(ipred.getOp(), ipred.getField())) {
 					return t;
 				}
 				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
@@ -1396,7 +2401,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 					return null;
 				}
 				else if(ipred.getOp() == Op.EQUALS &&
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+						f.keyOf(t).compare(Op.GREATER_THAN, ipred.getField())) {
 					// if the tuple is now greater than the field passed in and the operation
 					// is equals, we have reached the end
 					return null;
@@ -1434,3 +2439,142 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		it = null;
 	}
 }
+
+/**
+ * Helper class that implements the DbFileIterator for search tuples on a
+ * B+ Tree File in descending key order
+ */
+class BTreeReverseSearchIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	BTreeLeafPage curp = null;
+
+	TransactionId tid;
+	BTreeFile f;
+	IndexPredicate ipred;
+	IndexPredicate stop;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on, or null
+	 * @param stop - a lower bound on the keys, or null; the iteration ends at
+	 * the first tuple that fails it
+	 */
+	public BTreeReverseSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred, IndexPredicate stop) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+		this.stop = stop;
+	}
+
+	/**
+	 * @return the key the iteration starts at, or null to start at the
+	 * greatest key
+	 */
+	private Field upperBound() {
+		if (ipred == null)
+			return null;
+		Op op = ipred.getOp();
+		if (op == Op.EQUALS || op == Op.LESS_THAN || op == Op.LESS_THAN_OR_EQ)
+			return ipred.getField();
+		return null;
+	}
+
+	/**
+	 * @return true if the key of t is not above the key the iteration
+	 * starts at
+	 */
+	private boolean belowUpperBound(Tuple t, Field bound) {
+		return bound == null || f.keyOf(t).compare(
+				ipred.getOp() == Op.LESS_THAN ? Op.LESS_THAN : Op.LESS_THAN_OR_EQ, bound);
+	}
+
+	/**
+	 * Open this iterator by getting a reverse iterator on the last leaf page
+	 * applicable for the given predicate operation
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		Field bound = upperBound();
+		curp = f.findLastLeafPage(tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY, bound);
+		// the page may have been split while the search waited for its lock,
+		// moving keys below the bound to its right sibling
+		while (curp != null && curp.getRightSiblingId() != null) {
+			Iterator<Tuple> last = curp.reverseIterator();
+			if (last.hasNext() && !belowUpperBound(last.next(), bound))
+				break;
+			BTreeLeafPage right = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+					curp.getRightSiblingId(), Permissions.READ_ONLY);
+			Iterator<Tuple> first = right.iterator();
+			if (first.hasNext() && !belowUpperBound(first.next(), bound))
+				break;
+			curp = right;
+		}
+		if (curp == null)
+			it = null;
+		else if (bound == null)
+			it = curp.reverseIterator();
+		else
+			it = curp.reverseIterator(bound, ipred.getOp() != Op.LESS_THAN);
+	}
+
+	/**
+	 * Read the next tuple either from the current page if it has more tuples matching
+	 * the predicate or from the previous page by following the left sibling pointer.
+	 *
+	 * @return the next tuple matching the predicate, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException,
+	NoSuchElementException {
+		while (it != null) {
+
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				Field key = f.keyOf(t);
+				if (stop != null && !key.compare(stop.getOp(), stop.getField())) {
+					// keys are sorted, so every earlier tuple is past the stop key too
+					return null;
+				}
+				if (ipred == null || key.compare(ipred.getOp(), ipred.getField())) {
+					return t;
+				}
+				else if (ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ
+						|| (ipred.getOp() == Op.EQUALS && key.compare(Op.LESS_THAN, ipred.getField()))) {
+					// the keys left are all below the ones matching the predicate
+					return null;
+				}
+			}
+
+			BTreePageId prevp = curp.getLeftSiblingId();
+			// if there are no more pages to the left, end the iteration
+			if (prevp == null) {
+				return null;
+			}
+			else {
+				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+						prevp, Permissions.READ_ONLY);
+				it = curp.reverseIterator();
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+	}
+}
@@ -232,6 +232,10 @@ public class BTreeFileEncoder {
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
+		if (keyType == Type.STRING_TYPE) {
+			// as many entries as fit whatever the length of their keys
+			nentries = BTreeInternalPage.getGuaranteedEntries(keyType, npagebytes);
+		}
 
 		ArrayList<ArrayList<BTreeEntry>> entries = new ArrayList<ArrayList<BTreeEntry>>();
 
@@ -624,6 +628,11 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
+		if (keyType == Type.STRING_TYPE) {
+			Collections.sort(entries, new EntryComparator());
+			return BTreeInternalPage.createCompactPageData(entries, npagebytes, childPageCategory);
+		}
+
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
@@ -0,0 +1,103 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * BTreeFreeSpace caches, for one BTreeFile, the chain of its header pages
+ * and the pages they mark empty, so that allocating or freeing a page goes
+ * straight to the header page holding its slot instead of walking the
+ * chain through the buffer pool.
+ * <p>
+ * The cache is only a hint.  A page taken from it has to be checked
+ * against its header page under a write lock before it is used, since
+ * another transaction may have taken it, or the transaction that freed it
+ * may have aborted.  A page whose allocation was rolled back looks used to
+ * the cache until the cache is loaded again, which the BTreeFile does when
+ * the cache runs out of pages after handing out some.
+ *
+ * @see BTreeFile#getEmptyPageNo(TransactionId, HashMap)
+ * @see BTreeFile#setEmptyPage(TransactionId, HashMap, int)
+ */
+class BTreeFreeSpace {
+
+	private final ArrayList<BTreePageId> headers = new ArrayList<BTreePageId>();
+	private final BitSet free = new BitSet();
+	// no page before the hint is free
+	private int hint = 0;
+	private boolean valid = false;
+	private boolean taken = false;
+
+	/**
+	 * @return true if the cache holds the committed chain of header pages,
+	 * false if it has to be loaded before it is used
+	 */
+	synchronized boolean isValid() {
+		return valid;
+	}
+
+	/**
+	 * Replace the contents of the cache.
+	 *
+	 * @param headerIds - the ids of the header pages, in the order of the chain
+	 * @param freePages - the page numbers the header pages mark empty
+	 * @param committed - whether the chain read is committed; if it is not,
+	 * the cache serves the current operation only
+	 */
+	synchronized void load(List<BTreePageId> headerIds, BitSet freePages, boolean committed) {
+		headers.clear();
+		headers.addAll(headerIds);
+		free.clear();
+		free.or(freePages);
+		hint = 0;
+		valid = committed;
+		taken = false;
+	}
+
+	/**
+	 * Make the next operation load the cache again, e.g. because the chain
+	 * of header pages changed.
+	 */
+	synchronized void invalidate() {
+		valid = false;
+	}
+
+	/**
+	 * @return the id of the header page with the given position in the
+	 * chain, or null if the cache does not know it
+	 */
+	synchronized BTreePageId getHeaderId(int index) {
+		return index < headers.size() ? headers.get(index) : null;
+	}
+
+	/**
+	 * Take the first free page out of the cache.
+	 *
+	 * @return the page number, or -1 if the cache has no free page
+	 */
+	synchronized int take() {
+		int pgNo = free.nextSetBit(hint);
+		if (pgNo < 0) {
+			hint = free.length();
+			return -1;
+		}
+		free.clear(pgNo);
+		hint = pgNo + 1;
+		taken = true;
+		return pgNo;
+	}
+
+	/**
+	 * Put a page into the cache as free.
+	 */
+	synchronized void put(int pgNo) {
+		free.set(pgNo);
+		hint = Math.min(hint, pgNo);
+	}
+
+	/**
+	 * @return true if pages were taken out of the cache since it was loaded
+	 */
+	synchronized boolean tookPages() {
+		return taken;
+	}
+}
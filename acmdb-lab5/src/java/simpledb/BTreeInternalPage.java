@@ -18,9 +18,30 @@ public class BTreeInternalPage extends BTreePage {
 	private final Field keys[];
 	private final int children[];
 	private final int numSlots;
+	/** Whether the keys are strings, stored without their common prefix and padding */
+	private final boolean compact;
+	/** Set in the child category byte of pages in the compact format, so that
+	    pages of string keys written in the fixed-size format are not misread */
+	static final int COMPACT_FORMAT = 0x80;
+	/** The number of bytes a key takes in a slot of a page whose keys are not
+	    compact: the key field and the tiebreak fields, if any */
+	private final int keySize;
 	
 	private int childCategory; // either leaf or internal
 
+	/** The used slots in key order, built by the first search after a change */
+	private volatile BTreeKeyDirectory directory = null;
+	/** The number of changes to the entries of this page; only the
+	    transaction holding the page exclusively changes it */
+	private volatile int changes = 0;
+	/** Odd while a change of the entries is in progress, see {@link #beginChange} */
+	private volatile int latch = 0;
+	private int latchDepth = 0;
+	/** The page that took the upper entries of this page in a split, and the
+	    key it was split at, until the parent has an entry for that page */
+	private volatile BTreePageId rightLink = null;
+	private Field highKey = null;
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -37,7 +58,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		if (checkOccupancy && depth > 0) {
-			assert (getNumEntries() >= getMaxEntries() / 2);
+			assert (!isLessThanHalfFull());
 		}
 	}
 	
@@ -57,6 +78,19 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * String keys are not stored in fixed-size slots, which would limit a page
+	 * to a few dozen entries.  After the header comes the length and bytes of
+	 * the prefix all the keys share, followed by the child pointer of each used
+	 * slot and, but for slot 0, the length and bytes of the rest of its key.
+	 * There are as many slots as entries with keys equal to the prefix fit, and
+	 * the bytes of the entries limit how many of them are used.  The keys of a
+	 * B+ tree ordering tuples with equal keys by other fields (see
+	 * {@link BTreeFile#keyOf}) take fixed-size slots holding those fields
+	 * after the key field, whatever its type.
+	 * <p>
+	 * A page in the compact format has {@link #COMPACT_FORMAT} set in its child
+	 * category byte.  A page of string keys without it that has entries was
+	 * written in the fixed-size format of earlier versions, and is rejected.
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -67,6 +101,11 @@ public class BTreeInternalPage extends BTreePage {
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
+		this.compact = td.getFieldType(keyField) == Type.STRING_TYPE && tiebreak.length == 0;
+		int size = td.getFieldType(keyField).getLen();
+		for (int f : tiebreak)
+			size += td.getFieldType(f).getLen();
+		this.keySize = size;
 		this.numSlots = getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -79,14 +118,30 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		// read the child page category
-		childCategory = (int) dis.readByte();
+		int category = dis.readUnsignedByte();
+		childCategory = category & ~COMPACT_FORMAT;
 
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
 		for (int i=0; i<header.length; i++)
 			header[i] = dis.readByte();
 
+		// a new page is all zeros, and can be used in either format
+		boolean marked = (category & COMPACT_FORMAT) != 0;
+		if (marked != compact && (marked || getNumEntries() > 0 || isSlotUsed(0)))
+			throw new IOException("internal page " + id + " is " + (marked ? "" : "not ")
+					+ "in the compact format of string keys, unlike the pages of its B+ tree;"
+					+ " files written before it was introduced have to be loaded again");
+
 		keys = new Field[numSlots];
+		children = new int[numSlots];
+		if (compact) {
+			readCompactEntries(dis);
+			dis.close();
+			setBeforeImage();
+			return;
+		}
+
 		try{
 			// allocate and read the keys of this page
 			// start from 1 because the first key slot is not used
@@ -98,7 +153,6 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		children = new int[numSlots];
 		try{
 			// allocate and read the child pointers of this page
 			for (int i=0; i<children.length; i++)
@@ -113,29 +167,80 @@ public class BTreeInternalPage extends BTreePage {
 
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
+	 * A page of string keys holds that many only if the keys are all equal.
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		if (compact)
+			return getMaxEntries(Type.STRING_TYPE, BufferPool.getPageSize());
+		return getMaxEntries(keySize, BufferPool.getPageSize());
+	}
+
+	/**
+	 * @return the number of entry slots of an internal page with the given
+	 *         key type and page size
+	 */
+	static int getMaxEntries(Type keyType, int pageSize) {
+		if (keyType == Type.STRING_TYPE) {
+			// an entry takes at least its child pointer and the length of
+			// its key; the extra bits include the length of the prefix
+			int bitsPerEntryIncludingHeader = (INDEX_SIZE + 1) * 8 + 1;
+			int extraBits = 2 * INDEX_SIZE * 8 + 8 + 8 + 1;
+			return (pageSize*8 - extraBits) / bitsPerEntryIncludingHeader;
+		}
+		return getMaxEntries(keyType.getLen(), pageSize);
+	}
+
+	private static int getMaxEntries(int keySize, int pageSize) {
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
 		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1; 
-		int entriesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader; //round down
+		int entriesPerPage = (pageSize*8 - extraBits) / bitsPerEntryIncludingHeader; //round down
 		return entriesPerPage;
 	}
 
+	/**
+	 * Retrieve the number of entries this page holds whatever their keys,
+	 * which for string keys is the number of entries with keys of the
+	 * greatest length that fit.
+	 */
+	public int getGuaranteedEntries() {
+		if (!compact)
+			return getMaxEntries();
+		return getGuaranteedEntries(Type.STRING_TYPE, BufferPool.getPageSize());
+	}
+
+	static int getGuaranteedEntries(Type keyType, int pageSize) {
+		int max = getMaxEntries(keyType, pageSize);
+		if (keyType != Type.STRING_TYPE)
+			return max;
+		int extraBytes = 2 * INDEX_SIZE + 2 + getHeaderSize(max + 1);
+		return Math.min(max, (pageSize - extraBytes) / (INDEX_SIZE + 1 + Type.STRING_LEN));
+	}
+
 	/**
 	 * Computes the number of bytes in the header of a B+ internal page with each entry occupying entrySize bytes
 	 * @return the number of bytes in the header
 	 */
 	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
+		return getHeaderSize(getMaxEntries() + 1);
+	}
+
+	private static int getHeaderSize(int slotsPerPage) {
 		int hb = (slotsPerPage / 8);
 		if (hb * 8 < slotsPerPage) hb++;
 
 		return hb;
 	}
 
+	/**
+	 * @return whether this page stores string keys, whose entries take as
+	 *         many bytes as their keys need
+	 */
+	public boolean isCompact() {
+		return compact;
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeInternalPage getBeforeImage(){
@@ -168,7 +273,7 @@ public class BTreeInternalPage extends BTreePage {
 		// if associated bit is not set, read forward to the next key, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
+			for (int i=0; i<keySize; i++) {
 				try {
 					dis.readByte();
 				} catch (IOException e) {
@@ -182,6 +287,12 @@ public class BTreeInternalPage extends BTreePage {
 		Field f = null;
 		try {
 			f = td.getFieldType(keyField).parse(dis);
+			if (tiebreak.length > 0) {
+				Field[] rest = new Field[tiebreak.length];
+				for (int i=0; i<rest.length; i++)
+					rest[i] = td.getFieldType(tiebreak[i]).parse(dis);
+				f = new CompositeField(f, rest);
+			}
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 			throw new NoSuchElementException("parsing error!");
@@ -190,6 +301,231 @@ public class BTreeInternalPage extends BTreePage {
 		return f;
 	}
 
+	/**
+	 * Read the entries of a page of string keys, in the format described at
+	 * {@link #BTreeInternalPage}.
+	 */
+	private void readCompactEntries(DataInputStream dis) throws IOException {
+		byte[] prefix = new byte[dis.readUnsignedByte()];
+		dis.readFully(prefix);
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				children[i] = -1;
+				continue;
+			}
+			children[i] = dis.readInt();
+			if (i == 0)
+				continue;
+			byte[] bs = Arrays.copyOf(prefix, prefix.length + dis.readUnsignedByte());
+			dis.readFully(bs, prefix.length, bs.length - prefix.length);
+			keys[i] = new StringField(new String(bs), Type.STRING_LEN);
+		}
+	}
+
+	/**
+	 * Write the entries of a page of string keys, in the format described at
+	 * {@link #BTreeInternalPage}.
+	 */
+	private static void writeCompactEntries(DataOutputStream dos, byte[] header, Field[] keys, int[] children)
+			throws IOException {
+		ArrayList<byte[]> bytes = new ArrayList<byte[]>();
+		for (int i=1; i<keys.length; i++) {
+			if (isSlotUsed(header, i))
+				bytes.add(keyBytes(keys[i]));
+		}
+		int prefix = commonPrefix(bytes);
+		dos.writeByte(prefix);
+		if (prefix > 0)
+			dos.write(bytes.get(0), 0, prefix);
+		for (int i=0, k=0; i<children.length; i++) {
+			if (!isSlotUsed(header, i))
+				continue;
+			dos.writeInt(children[i]);
+			if (i == 0)
+				continue;
+			byte[] key = bytes.get(k++);
+			dos.writeByte(key.length - prefix);
+			dos.write(key, prefix, key.length - prefix);
+		}
+	}
+
+	/**
+	 * Create the data of a page of string keys holding the given entries, in
+	 * key order, and no more of them than the page is guaranteed to hold.
+	 * @see #getGuaranteedEntries(Type, int)
+	 */
+	static byte[] createCompactPageData(List<BTreeEntry> entries, int pageSize, int childCategory)
+			throws IOException {
+		int slots = getMaxEntries(Type.STRING_TYPE, pageSize) + 1;
+		int count = Math.min(entries.size(), getGuaranteedEntries(Type.STRING_TYPE, pageSize));
+		byte[] header = new byte[getHeaderSize(slots)];
+		Field[] keys = new Field[slots];
+		int[] children = new int[slots];
+		children[0] = entries.get(0).getLeftChild().pageNumber();
+		header[0] |= 1;
+		for (int i=1; i<=count; i++) {
+			keys[i] = entries.get(i - 1).getKey();
+			children[i] = entries.get(i - 1).getRightChild().pageNumber();
+			header[i / 8] |= 1 << (i % 8);
+		}
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(pageSize);
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(0); // parent pointer
+		dos.writeByte((byte) (childCategory | COMPACT_FORMAT));
+		dos.write(header);
+		writeCompactEntries(dos, header, keys, children);
+		dos.write(new byte[pageSize - dos.size()]);
+		dos.flush();
+		return baos.toByteArray();
+	}
+
+	/** @return the bytes a string key is serialized with, one per character */
+	private static byte[] keyBytes(Field key) {
+		String s = ((StringField) key).getValue();
+		byte[] bs = new byte[s.length()];
+		for (int i=0; i<bs.length; i++)
+			bs[i] = (byte) s.charAt(i);
+		return bs;
+	}
+
+	/** @return the length of the longest prefix the given keys share */
+	private static int commonPrefix(List<byte[]> keys) {
+		if (keys.isEmpty())
+			return 0;
+		byte[] first = keys.get(0);
+		int prefix = first.length;
+		for (byte[] key : keys) {
+			int n = 0;
+			while (n < prefix && n < key.length && key[n] == first[n])
+				n++;
+			prefix = n;
+		}
+		return prefix;
+	}
+
+	/**
+	 * @return the number of bytes a page of string keys takes with the given
+	 *         keys, that is, with their entries and the extra child pointer
+	 */
+	private int getCompactSize(List<Field> keys) {
+		ArrayList<byte[]> bytes = new ArrayList<byte[]>(keys.size());
+		int size = 2 * INDEX_SIZE + 2 + header.length;
+		for (Field key : keys) {
+			byte[] bs = keyBytes(key);
+			bytes.add(bs);
+			size += INDEX_SIZE + 1 + bs.length;
+		}
+		// the prefix is stored once instead of with every key
+		return size - (keys.size() - 1) * commonPrefix(bytes);
+	}
+
+	/** @return the keys of the used slots of this page, in key order */
+	private ArrayList<Field> usedKeys() {
+		ArrayList<Field> used = new ArrayList<Field>();
+		for (int i=1; i<numSlots; i++) {
+			if (isSlotUsed(i))
+				used.add(keys[i]);
+		}
+		return used;
+	}
+
+	/**
+	 * @return the number of bytes the entries of this page take, together with
+	 *         the pointers and the header
+	 */
+	public int getUsedBytes() {
+		if (compact)
+			return getCompactSize(usedKeys());
+		return 2 * INDEX_SIZE + 1 + header.length
+				+ getNumEntries() * (keySize + INDEX_SIZE);
+	}
+
+	/**
+	 * @return the number of bytes an entry with the given key takes on this
+	 *         page, not counting a prefix it shares with the other keys
+	 */
+	public int getEntrySize(Field key) {
+		if (compact)
+			return INDEX_SIZE + 1 + keyBytes(key).length;
+		return keySize + INDEX_SIZE;
+	}
+
+	/**
+	 * @return whether an entry with the given key can be inserted into this page
+	 */
+	public boolean hasRoomFor(Field key) {
+		return hasRoomFor(Collections.singletonList(key));
+	}
+
+	/**
+	 * @return whether entries with the given keys can be inserted into this
+	 *         page, which for string keys depends on their length as well as
+	 *         on their number
+	 */
+	public boolean hasRoomFor(List<Field> added) {
+		if (getNumEmptySlots() < added.size())
+			return false;
+		if (!compact)
+			return true;
+		ArrayList<Field> all = usedKeys();
+		all.addAll(added);
+		return getCompactSize(all) <= BufferPool.getPageSize();
+	}
+
+	/**
+	 * @return whether the key of an entry on this page can be changed to the
+	 *         given key, which is always the case but for string keys
+	 */
+	public boolean hasRoomToUpdate(BTreeEntry e, Field key) {
+		if (!compact)
+			return true;
+		int slot = e.getRecordId().tupleno();
+		ArrayList<Field> all = new ArrayList<Field>();
+		for (int i=1; i<numSlots; i++) {
+			if (isSlotUsed(i))
+				all.add(i == slot ? key : keys[i]);
+		}
+		return getCompactSize(all) <= BufferPool.getPageSize();
+	}
+
+	/**
+	 * @return whether this page is below minimum occupancy, which for string
+	 *         keys is less than half of the bytes of the page, less the room
+	 *         of the few entries by which splitting and redistributing entries
+	 *         may miss an even share
+	 */
+	public boolean isLessThanHalfFull() {
+		if (!compact)
+			return getNumEmptySlots() > getMaxEntries() - getMaxEntries() / 2;
+		int maxEntrySize = INDEX_SIZE + 1 + Type.STRING_LEN;
+		return 2 * getUsedBytes() < BufferPool.getPageSize() - 4 * maxEntrySize;
+	}
+
+	/**
+	 * @return the number of entries at the end of this page that a split moves
+	 *         to a new page, the entry before them going up to the parent: half
+	 *         of the entries, or for string keys the entries taking about half
+	 *         of the bytes
+	 */
+	public int getNumEntriesToSplit() {
+		int numEntries = getNumEntries();
+		if (!compact)
+			return numEntries / 2;
+		int total = 0;
+		for (Field key : usedKeys())
+			total += getEntrySize(key);
+		int moved = 0;
+		int count = 0;
+		for (int i=numSlots-1; i>0 && 2 * moved < total; i--) {
+			if (isSlotUsed(i)) {
+				moved += getEntrySize(keys[i]);
+				count++;
+			}
+		}
+		return Math.max(1, Math.min(numEntries - 2, count));
+	}
+
 	/**
 	 * Read child pointers from the source file.
 	 */
@@ -244,9 +580,9 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		// write out the child page category
+		// write out the child page category, marked with the format
 		try {
-			dos.writeByte((byte) childCategory);
+			dos.writeByte((byte) (compact ? childCategory | COMPACT_FORMAT : childCategory));
 
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -262,6 +598,17 @@ public class BTreeInternalPage extends BTreePage {
 			}
 		}
 
+		if (compact) {
+			try {
+				writeCompactEntries(dos, header, keys, children);
+				dos.write(new byte[len - dos.size()]);
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// create the keys
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -269,7 +616,7 @@ public class BTreeInternalPage extends BTreePage {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
+				for (int j=0; j<keySize; j++) {
 					try {
 						dos.writeByte(0);
 					} catch (IOException e) {
@@ -316,7 +663,7 @@ public class BTreeInternalPage extends BTreePage {
 
 		// padding
 		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+				keySize * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -345,6 +692,15 @@ public class BTreeInternalPage extends BTreePage {
 	 *        delete the left child
 	 */
 	private void deleteEntry(BTreeEntry e, boolean deleteRightChild) throws DbException {
+		beginChange();
+		try {
+			removeEntry(e, deleteRightChild);
+		} finally {
+			endChange();
+		}
+	}
+
+	private void removeEntry(BTreeEntry e, boolean deleteRightChild) throws DbException {
 		RecordId rid = e.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to delete entry with null rid");
@@ -365,6 +721,7 @@ public class BTreeInternalPage extends BTreePage {
 			}
 		}
 		e.setRecordId(null);
+		changes++;
 	}
 
 	/**
@@ -402,6 +759,15 @@ public class BTreeInternalPage extends BTreePage {
 	 *         order on the page
 	 */
 	public void updateEntry(BTreeEntry e) throws DbException {
+		beginChange();
+		try {
+			replaceEntry(e);
+		} finally {
+			endChange();
+		}
+	}
+
+	private void replaceEntry(BTreeEntry e) throws DbException {
 		RecordId rid = e.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to update entry with null rid");
@@ -409,6 +775,8 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.tupleno()))
 			throw new DbException("tried to update null entry.");
+		if (!hasRoomToUpdate(e, e.getKey()))
+			throw new DbException("tried to update entry with a key the page has no room for");
 		
 		for(int i = rid.tupleno() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
@@ -431,6 +799,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 		children[rid.tupleno()] = e.getRightChild().pageNumber(); 
 		keys[rid.tupleno()] = e.getKey();
+		changes++;
 	}
 
 	/**
@@ -441,7 +810,17 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
+		beginChange();
+		try {
+			addEntry(e);
+		} finally {
+			endChange();
+		}
+	}
+
+	private void addEntry(BTreeEntry e) throws DbException {
+		if (!e.getKey().getType().equals(td.getFieldType(keyField))
+				|| (e.getKey() instanceof CompositeField) != (tiebreak.length > 0))
 			throw new DbException("key field type mismatch, in insertEntry");
 
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
@@ -456,6 +835,9 @@ public class BTreeInternalPage extends BTreePage {
 		else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
 			throw new DbException("child page category mismatch in insertEntry");
 
+		if (compact && !hasRoomFor(e.getKey()))
+			throw new DbException("called insertEntry on page with no room for the entry.");
+
 		// if this is the first entry, add it and return
 		if(getNumEmptySlots() == getMaxEntries()) {
 			children[0] = e.getLeftChild().pageNumber();
@@ -464,6 +846,7 @@ public class BTreeInternalPage extends BTreePage {
 			markSlotUsed(0, true);
 			markSlotUsed(1, true);
 			e.setRecordId(new RecordId(pid, 1));
+			changes++;
 			return;
 		}
 
@@ -525,15 +908,11 @@ public class BTreeInternalPage extends BTreePage {
 		// while keeping entries in sorted order
 		int goodSlot = -1;
 		if(emptySlot < lessOrEqKey) {
-			for(int i = emptySlot; i < lessOrEqKey; i++) {
-				moveEntry(i+1, i);
-			}
+			moveEntries(emptySlot + 1, emptySlot, lessOrEqKey - emptySlot);
 			goodSlot = lessOrEqKey;
 		}
 		else {
-			for(int i = emptySlot; i > lessOrEqKey + 1; i--) {
-				moveEntry(i-1, i);
-			}
+			moveEntries(lessOrEqKey + 1, lessOrEqKey + 2, emptySlot - lessOrEqKey - 1);
 			goodSlot = lessOrEqKey + 1;
 		}
 
@@ -543,19 +922,29 @@ public class BTreeInternalPage extends BTreePage {
 		keys[goodSlot] = e.getKey();
 		children[goodSlot] = e.getRightChild().pageNumber();
 		e.setRecordId(new RecordId(pid, goodSlot));
+		changes++;
 	}
 
 	/**
-	 * Move an entry from one slot to another slot, and update the corresponding
-	 * headers
+	 * Move count consecutive slots, used or not, one slot forward or back,
+	 * together with their headers.  The slot left behind is freed.
 	 */
-	private void moveEntry(int from, int to) {
-		if(!isSlotUsed(to) && isSlotUsed(from)) {
-			markSlotUsed(to, true);
-			keys[to] = keys[from];
-			children[to] = children[from];
-			markSlotUsed(from, false);
+	private void moveEntries(int from, int to, int count) {
+		if (count <= 0)
+			return;
+		System.arraycopy(keys, from, keys, to, count);
+		System.arraycopy(children, from, children, to, count);
+		if (from < to) {
+			for (int i = count - 1; i >= 0; i--)
+				setSlotBit(to + i, isSlotUsed(from + i));
+			setSlotBit(from, false);
+		}
+		else {
+			for (int i = 0; i < count; i++)
+				setSlotBit(to + i, isSlotUsed(from + i));
+			setSlotBit(from + count - 1, false);
 		}
+		changes++;
 	}
 
 	/**
@@ -582,6 +971,10 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns true if associated slot on this page is filled.
 	 */
 	public boolean isSlotUsed(int i) {
+		return isSlotUsed(header, i);
+	}
+
+	private static boolean isSlotUsed(byte[] header, int i) {
 		int headerbit = i % 8;
 		int headerbyte = (i - headerbit) / 8;
 		return (header[headerbyte] & (1 << headerbit)) != 0;
@@ -591,14 +984,142 @@ public class BTreeInternalPage extends BTreePage {
 	 * Abstraction to fill or clear a slot on this page.
 	 */
 	private void markSlotUsed(int i, boolean value) {
+		Debug.log(1, "BTreeInternalPage.setSlot: setting slot %d to %b", i, value);
+		setSlotBit(i, value);
+	}
+
+	private void setSlotBit(int i, boolean value) {
 		int headerbit = i % 8;
 		int headerbyte = (i - headerbit) / 8;
 
-		Debug.log(1, "BTreeInternalPage.setSlot: setting slot %d to %b", i, value);
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		changes++;
+	}
+
+	/**
+	 * Begin a change of the entries of this page that readers which hold no
+	 * lock on the page must not see half done.  The latch stamp is odd from
+	 * here until the matching {@link #endChange}, and differs from any stamp
+	 * read before; changes may be nested.  Only the transaction holding the
+	 * page exclusively changes it, so no two threads begin changes at once.
+	 */
+	void beginChange() {
+		if (latchDepth++ == 0)
+			latch++;
+	}
+
+	/** End a change begun with {@link #beginChange} */
+	void endChange() {
+		if (--latchDepth == 0)
+			latch++;
+	}
+
+	/**
+	 * @return the latch stamp of this page, which is odd while its entries
+	 *         change; a read of the page without a lock is consistent if the
+	 *         stamp was even before it and is the same after it
+	 */
+	int getLatchStamp() {
+		return latch;
+	}
+
+	/**
+	 * Link this page to the page that took its entries with keys above
+	 * highKey in a split, for readers that reached this page through a parent
+	 * without an entry for that page to move right.  The link only lives in
+	 * memory: it is cleared once the parent has the entry, which is before
+	 * the transaction that split the page commits.
+	 * @param right - the new right page, or null to clear the link
+	 * @param highKey - the key the page was split at
+	 */
+	void setRightLink(BTreePageId right, Field highKey) {
+		beginChange();
+		this.highKey = highKey;
+		this.rightLink = right;
+		endChange();
+	}
+
+	/**
+	 * @return the page linked to this page by a split in progress if f is
+	 *         greater than the key it was split at, or null if the entries of
+	 *         this page cover f
+	 */
+	public BTreePageId moveRight(Field f) {
+		return moveRight(f, false);
+	}
+
+	/**
+	 * @param f - the key to search for, or null
+	 * @param last - whether the search is for the right-most page possibly
+	 *        containing f, which is to the right of the split for a key equal
+	 *        to the split key too, and for a null key
+	 * @return the page linked to this page by a split in progress if it may
+	 *         hold the keys searched for, or null if this page covers them
+	 */
+	public BTreePageId moveRight(Field f, boolean last) {
+		BTreePageId right = rightLink;
+		Field high = highKey;
+		if (right == null || high == null || (f == null && !last))
+			return null;
+		if (f != null && !high.compare(last ? Op.LESS_THAN_OR_EQ : Op.LESS_THAN, f))
+			return null;
+		return right;
+	}
+
+	/**
+	 * @return the used slots of this page in key order, building them if
+	 *         the page changed since they were last built
+	 */
+	private BTreeKeyDirectory directory() {
+		// a reader that took no lock may build the directory while the page
+		// changes, so a directory is only used if no change started since
+		// it was begun
+		int stamp = changes;
+		BTreeKeyDirectory d = directory;
+		if (d == null || d.stamp != stamp) {
+			d = new BTreeKeyDirectory(numSlots, intKeys());
+			d.stamp = stamp;
+			for (int i = 0; i < numSlots; i++) {
+				if (isSlotUsed(i))
+					d.add(i, i == 0 ? null : keys[i]);
+			}
+			directory = d;
+		}
+		return d;
+	}
+
+	/**
+	 * Find the child to descend into when searching for a key: the left child
+	 * of the first entry whose key is greater than or equal to f, or the
+	 * right child of the last entry if there is none.  The entries are
+	 * binary searched, without creating a {@link BTreeEntry} for them.
+	 * @param f - the key to search for, or null for the left-most child
+	 * @return the id of the child, or null if the page has no entries
+	 */
+	public BTreePageId findChildId(Field f) {
+		return findChildId(f, false);
+	}
+
+	/**
+	 * Find the child to descend into when searching for a key from the left
+	 * or from the right.  Searching from the right, it is the left child of
+	 * the first entry whose key is greater than f, i.e. the right-most child
+	 * possibly containing f.
+	 * @param f - the key to search for, or null for the left-most or
+	 *        right-most child
+	 * @param last - whether to search for the right-most child
+	 * @return the id of the child, or null if the page has no entries
+	 * @see #findChildId(Field)
+	 */
+	public BTreePageId findChildId(Field f, boolean last) {
+		BTreeKeyDirectory d = directory();
+		if (d.size < 2 || d.slots[0] != 0)
+			return null;
+		int i = f != null ? d.search(1, f, last) : last ? d.size : 1;
+		return new BTreePageId(pid.getTableId(), children[d.slots[i - 1]], childCategory);
 	}
 
 	/**
@@ -769,7 +1290,8 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 					nextToReturn = new BTreeEntry(key, nextChildId, childId);
 					nextToReturn.setRecordId(recordId);
 					childId = nextChildId;
-					key = p.getKey(entry);
+					// slot 0 has no key, and ends the iteration
+					key = entry > 0 ? p.getKey(entry) : null;
 					recordId = new RecordId(p.pid, entry);
 					return true;
 				}
@@ -0,0 +1,122 @@
+package simpledb;
+
+/**
+ * The used slots of a B+ tree page in key order, with their keys packed next
+ * to each other, so that the page can be binary searched.  Integer keys are
+ * also kept unboxed and compared without calling {@link Field#compare}.
+ * <p>
+ * A page builds its directory when it is first searched and keeps it up to
+ * date as it changes, or builds it again after a change.  Readers may build a
+ * directory concurrently, but only a writer holding the page exclusively
+ * changes one.
+ */
+class BTreeKeyDirectory {
+	/** The used slots in increasing order */
+	int[] slots;
+	/** The key of each slot, or null if the slot has no key */
+	Field[] keys;
+	/** The values of the integer keys, or null if the keys are not integers */
+	int[] ints;
+	int size = 0;
+	/** The change count of the page when the directory was built, for pages
+	    that count their changes */
+	int stamp = 0;
+
+	BTreeKeyDirectory(int capacity, boolean intKeys) {
+		slots = new int[capacity];
+		keys = new Field[capacity];
+		ints = intKeys ? new int[capacity] : null;
+	}
+
+	/** Append a slot whose key is not smaller than the last one */
+	void add(int slot, Field key) {
+		insert(size, slot, key);
+	}
+
+	/** Insert a slot at an index, shifting the later ones back */
+	void insert(int index, int slot, Field key) {
+		int n = size - index;
+		System.arraycopy(slots, index, slots, index + 1, n);
+		System.arraycopy(keys, index, keys, index + 1, n);
+		slots[index] = slot;
+		keys[index] = key;
+		if (ints != null) {
+			System.arraycopy(ints, index, ints, index + 1, n);
+			ints[index] = key == null ? 0 : ((IntField) key).getValue();
+		}
+		size++;
+	}
+
+	/** Remove the slot at an index, shifting the later ones forward */
+	void remove(int index) {
+		int n = size - index - 1;
+		System.arraycopy(slots, index + 1, slots, index, n);
+		System.arraycopy(keys, index + 1, keys, index, n);
+		if (ints != null)
+			System.arraycopy(ints, index + 1, ints, index, n);
+		keys[--size] = null;
+	}
+
+	/** Add delta to the slots at the indexes from (inclusive) to to (exclusive) */
+	void moveSlots(int from, int to, int delta) {
+		for (int i = from; i < to; i++)
+			slots[i] += delta;
+	}
+
+	/** @return the index of a used slot, or -1 if it is not used */
+	int indexOf(int slot) {
+		int lo = 0, hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (slots[mid] < slot)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo < size && slots[lo] == slot ? lo : -1;
+	}
+
+	/**
+	 * @return the first slot that is not used; every slot before it is
+	 */
+	int firstFreeSlot() {
+		// slots[i] == i up to the first free slot and slots[i] > i after it
+		int lo = 0, hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (slots[mid] == mid)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * @return the first index at or after from whose key is greater than or
+	 *         equal to f, or greater than f if strict; size if there is none
+	 */
+	int search(int from, Field f, boolean strict) {
+		int lo = from, hi = size;
+		if (ints != null && f instanceof IntField) {
+			int v = ((IntField) f).getValue();
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (ints[mid] < v || (strict && ints[mid] == v))
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+		Predicate.Op before = strict ? Predicate.Op.LESS_THAN_OR_EQ : Predicate.Op.LESS_THAN;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[mid].compare(before, f))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+}
@@ -19,6 +19,9 @@ public class BTreeLeafPage extends BTreePage {
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
 
+	/** The used slots in key order, built by the first search and kept up to date */
+	private volatile BTreeKeyDirectory directory = null;
+
 	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
@@ -26,8 +29,9 @@ public class BTreeLeafPage extends BTreePage {
 		Iterator<Tuple> it = this.iterator();
 		while (it.hasNext()) {
 			Tuple t = it.next();
-			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(fieldid)));
-			prev = t.getField(fieldid);
+			Field key = fieldid == keyField ? keyOf(t) : t.getField(fieldid);
+			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, key));
+			prev = key;
 			assert(t.getRecordId().getPageId().equals(this.getId()));
 		}
 
@@ -294,6 +298,9 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("tried to delete tuple on invalid page or table");
 		if (!isSlotUsed(rid.tupleno()))
 			throw new DbException("tried to delete null tuple.");
+		BTreeKeyDirectory d = directory;
+		if (d != null)
+			d.remove(d.indexOf(rid.tupleno()));
 		markSlotUsed(rid.tupleno(), false);
 		t.setRecordId(null);
 	}
@@ -310,45 +317,33 @@ public class BTreeLeafPage extends BTreePage {
 		if (!t.getTupleDesc().equals(td))
 			throw new DbException("type mismatch, in addTuple");
 
-		// find the first empty slot 
-		int emptySlot = -1;
-		for (int i=0; i<numSlots; i++) {
-			if (!isSlotUsed(i)) {
-				emptySlot = i;
-				break;
-			}
-		}
-
-		if (emptySlot == -1)
+		BTreeKeyDirectory d = directory();
+		if (d.size == numSlots)
 			throw new DbException("called addTuple on page with no empty slots.");
 
+		// every slot before the first empty one is used, so the first empty
+		// slot is also the index of the directory at which the slots after it start
+		int emptySlot = d.firstFreeSlot();
+
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+		Field key = keyOf(t);
+		int after = d.search(0, key, true);
+		int lessOrEqKey = after == 0 ? -1 : d.slots[after - 1];
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
 		int goodSlot = -1;
 		if(emptySlot < lessOrEqKey) {
-			for(int i = emptySlot; i < lessOrEqKey; i++) {
-				moveRecord(i+1, i);
-			}
+			moveRecords(emptySlot + 1, emptySlot, lessOrEqKey - emptySlot);
+			d.moveSlots(emptySlot, after, -1);
 			goodSlot = lessOrEqKey;
 		}
 		else {
-			for(int i = emptySlot; i > lessOrEqKey + 1; i--) {
-				moveRecord(i-1, i);
-			}
+			moveRecords(lessOrEqKey + 1, lessOrEqKey + 2, emptySlot - lessOrEqKey - 1);
+			d.moveSlots(after, emptySlot, 1);
 			goodSlot = lessOrEqKey + 1;
 		}
+		d.insert(after, goodSlot, key);
 
 		// insert new record into the correct spot in sorted order
 		markSlotUsed(goodSlot, true);
@@ -359,16 +354,27 @@ public class BTreeLeafPage extends BTreePage {
 	}
 
 	/**
-	 * Move a record from one slot to another slot, and update the corresponding
-	 * headers and RecordId
+	 * Move count consecutive slots, used or not, one slot forward or back,
+	 * together with their headers, and update the RecordIds of the moved
+	 * records.  The slot left behind is freed.
 	 */
-	private void moveRecord(int from, int to) {
-		if(!isSlotUsed(to) && isSlotUsed(from)) {
-			markSlotUsed(to, true);
-			RecordId rid = new RecordId(pid, to);
-			tuples[to] = tuples[from];
-			tuples[to].setRecordId(rid);
-			markSlotUsed(from, false);
+	private void moveRecords(int from, int to, int count) {
+		if (count <= 0)
+			return;
+		System.arraycopy(tuples, from, tuples, to, count);
+		if (from < to) {
+			for (int i = count - 1; i >= 0; i--)
+				setSlotBit(to + i, isSlotUsed(from + i));
+			setSlotBit(from, false);
+		}
+		else {
+			for (int i = 0; i < count; i++)
+				setSlotBit(to + i, isSlotUsed(from + i));
+			setSlotBit(from + count - 1, false);
+		}
+		for (int i = to; i < to + count; i++) {
+			if (isSlotUsed(i))
+				tuples[i].setRecordId(new RecordId(pid, i));
 		}
 	}
 
@@ -465,16 +471,37 @@ public class BTreeLeafPage extends BTreePage {
 	 * Abstraction to fill or clear a slot on this page.
 	 */
 	private void markSlotUsed(int i, boolean value) {
+		Debug.log(1, "BTreeLeafPage.setSlot: setting slot %d to %b", i, value);
+		setSlotBit(i, value);
+	}
+
+	private void setSlotBit(int i, boolean value) {
 		int headerbit = i % 8;
 		int headerbyte = (i - headerbit) / 8;
 
-		Debug.log(1, "BTreeLeafPage.setSlot: setting slot %d to %b", i, value);
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	/**
+	 * @return the used slots of this page in key order, building them if
+	 *         this page has not been searched yet
+	 */
+	private BTreeKeyDirectory directory() {
+		BTreeKeyDirectory d = directory;
+		if (d == null) {
+			d = new BTreeKeyDirectory(numSlots, intKeys());
+			for (int i = 0; i < numSlots; i++) {
+				if (isSlotUsed(i))
+					d.add(i, keyOf(tuples[i]));
+			}
+			directory = d;
+		}
+		return d;
+	}
+
 	/**
 	 * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -483,6 +510,20 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @return an iterator over the tuples on this page whose keys are greater
+	 * than or equal to f, found by binary search (calling remove on this
+	 * iterator throws an UnsupportedOperationException)
+	 * @param f - the key to start from
+	 */
+	public Iterator<Tuple> iterator(Field f) {
+		BTreeKeyDirectory d = directory();
+		int i = d.search(0, f, false);
+		BTreeLeafPageIterator it = new BTreeLeafPageIterator(this);
+		it.curTuple = i < d.size ? d.slots[i] : numSlots;
+		return it;
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -491,6 +532,22 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageReverseIterator(this);
 	}
 
+	/**
+	 * @return a reverse iterator over the tuples on this page whose keys are
+	 * less than f, or less than or equal to f if inclusive, found by binary
+	 * search (calling remove on this iterator throws an
+	 * UnsupportedOperationException)
+	 * @param f - the key to start from
+	 * @param inclusive - whether to return the tuples whose key is f
+	 */
+	public Iterator<Tuple> reverseIterator(Field f, boolean inclusive) {
+		BTreeKeyDirectory d = directory();
+		int i = d.search(0, f, inclusive);
+		BTreeLeafPageReverseIterator it = new BTreeLeafPageReverseIterator(this);
+		it.curTuple = i > 0 ? d.slots[i - 1] : -1;
+		return it;
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith tuple out of this page
 	 * @param i - the index of the tuple
@@ -22,6 +22,8 @@ public abstract class BTreePage implements Page {
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
+	/** The fields ordering tuples with equal keys, see {@link BTreeFile#keyOf} */
+	protected final int[] tiebreak;
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
@@ -55,6 +57,24 @@ public abstract class BTreePage implements Page {
 		this.pid = id;
 		this.keyField = key;
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		DbFile file = Database.getCatalog().getDatabaseFile(id.getTableId());
+		this.tiebreak = file instanceof BTreeFile ? ((BTreeFile) file).tiebreak() : new int[0];
+	}
+
+	/**
+	 * @return the key a tuple is ordered by on this page
+	 * @see BTreeFile#keyOf(Tuple)
+	 */
+	protected Field keyOf(Tuple t) {
+		return BTreeFile.keyOf(t, keyField, tiebreak);
+	}
+
+	/**
+	 * @return whether the keys of this page are integers, which a
+	 *         {@link BTreeKeyDirectory} keeps unboxed
+	 */
+	protected boolean intKeys() {
+		return tiebreak.length == 0 && td.getFieldType(keyField) == Type.INT_TYPE;
 	}
 
 	/**
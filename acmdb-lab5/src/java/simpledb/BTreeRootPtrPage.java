@@ -152,10 +152,12 @@ public class BTreeRootPtrPage implements Page {
 	}
 
 	/**
-	 * Get the id of the root page in this B+ tree
+	 * Get the id of the root page in this B+ tree.  Synchronized with
+	 * setRootId, since readers that hold no lock on this page may read the
+	 * root while a split of the root changes it.
 	 * @return the id of the root page
 	 */
-	public BTreePageId getRootId() {
+	public synchronized BTreePageId getRootId() {
 		if(root == 0) {
 			return null;
 		}
@@ -167,7 +169,7 @@ public class BTreeRootPtrPage implements Page {
 	 * @param id - the id of the root page
 	 * @throws DbException if the id is invalid
 	 */
-	public void setRootId(BTreePageId id) throws DbException {
+	public synchronized void setRootId(BTreePageId id) throws DbException {
 		if(id == null) {
 			root = 0;
 		}
@@ -4,7 +4,7 @@ import java.util.*;
 
 /**
  * BTreeScan is an operator which reads tuples in sorted order 
- * according to a predicate
+ * according to a predicate, in ascending or descending key order
  */
 public class BTreeScan implements DbIterator {
 
@@ -14,6 +14,9 @@ public class BTreeScan implements DbIterator {
 	private TransactionId tid;
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
+	private IndexPredicate stop = null;
+	private boolean descending = false;
+	private int tableid;
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
@@ -38,8 +41,64 @@ public class BTreeScan implements DbIterator {
 	 *            in sorted order
 	 */
 	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred) {
+		this(tid, tableid, tableAlias, ipred, null);
+	}
+
+	/**
+	 * Creates a B+ tree scan over a bounded range of keys of the specified
+	 * table, which starts at the first key matching ipred and stops at the
+	 * first key failing stop.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param tableid
+	 *            the table to scan.
+	 * @param tableAlias
+	 *            the alias of this table
+	 * @param ipred
+	 *            The index predicate to match; must not be null if stop is
+	 *            not null
+	 * @param stop
+	 *            an upper bound (LESS_THAN or LESS_THAN_OR_EQ) on the keys
+	 *            returned, or null
+	 * @see BTreeFile#indexIterator(TransactionId, IndexPredicate, IndexPredicate)
+	 */
+	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred,
+			IndexPredicate stop) {
+		this(tid, tableid, tableAlias, ipred, stop, false);
+	}
+
+	/**
+	 * Creates a B+ tree scan over a bounded range of keys of the specified
+	 * table in ascending or descending key order.  A descending scan starts
+	 * at the last key matching ipred and stops at the first key failing
+	 * stop, which is a lower bound then.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param tableid
+	 *            the table to scan.
+	 * @param tableAlias
+	 *            the alias of this table
+	 * @param ipred
+	 *            The index predicate to match, or null to return all tuples;
+	 *            must not be null if stop is not null
+	 * @param stop
+	 *            an upper bound (LESS_THAN or LESS_THAN_OR_EQ) on the keys
+	 *            returned by an ascending scan, a lower bound (GREATER_THAN
+	 *            or GREATER_THAN_OR_EQ) on those of a descending scan, or null
+	 * @param descending
+	 *            whether to return the tuples greatest key first
+	 * @see BTreeFile#descendingIterator(TransactionId, IndexPredicate, IndexPredicate)
+	 */
+	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred,
+			IndexPredicate stop, boolean descending) {
+		if (ipred == null && stop != null)
+			throw new IllegalArgumentException("a bounded index scan needs a start predicate");
 		this.tid = tid;
 		this.ipred = ipred;
+		this.stop = stop;
+		this.descending = descending;
 		reset(tableid,tableAlias);
 	}
 
@@ -60,6 +119,34 @@ public class BTreeScan implements DbIterator {
 		return this.alias;
 	}
 
+	/**
+	 * @return the id of the table this operator scans
+	 */
+	public int getTableId() {
+		return this.tableid;
+	}
+
+	/**
+	 * @return the index predicate the scan starts at, or null for a full scan
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return this.ipred;
+	}
+
+	/**
+	 * @return the bound the scan stops at, or null
+	 */
+	public IndexPredicate getStopPredicate() {
+		return this.stop;
+	}
+
+	/**
+	 * @return true if the scan returns the tuples greatest key first
+	 */
+	public boolean isDescending() {
+		return this.descending;
+	}
+
 	/**
 	 * Reset the tableid, and tableAlias of this operator.
 	 * @param tableid
@@ -74,13 +161,17 @@ public class BTreeScan implements DbIterator {
 	 */
 	public void reset(int tableid, String tableAlias) {
 		this.isOpen=false;
+		this.tableid = tableid;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
-		if(ipred == null) {
+		if(descending) {
+			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).descendingIterator(tid, ipred, stop);
+		}
+		else if(ipred == null) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
 		}
 		else {
-			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
+			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred, stop);
 		}
 		myTd = Database.getCatalog().getTupleDesc(tableid);
 		String[] newNames = new String[myTd.numFields()];
@@ -95,6 +186,15 @@ public class BTreeScan implements DbIterator {
 		myTd = new TupleDesc(newTypes, newNames);
 	}
 
+	/**
+	 * Run this scan as a part of another transaction from now on; the scan
+	 * must be closed.
+	 */
+	public void setTransactionId(TransactionId tid) {
+		this.tid = tid;
+		reset(tableid, alias);
+	}
+
 	public BTreeScan(TransactionId tid, int tableid, IndexPredicate ipred) {
 		this(tid, tableid, Database.getCatalog().getTableName(tableid), ipred);
 	}
@@ -0,0 +1,40 @@
+package simpledb;
+
+/**
+ * Broadcast runs a pipeline once and hands all of its output to each of
+ * several consumers, e.g. the build side of a hash join to every copy of the
+ * probe pipeline.
+ * <p>
+ * The consumers are created together by {@link #broadcast}, and must be read
+ * concurrently.
+ */
+public class Broadcast extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    private Broadcast(ExchangeBuffer buffer, int consumer) {
+        super(buffer, consumer);
+    }
+
+    /**
+     * Broadcast the output of a pipeline.
+     *
+     * @param input
+     *            the pipeline to run
+     * @param consumers
+     *            the number of consumers
+     * @return one operator per consumer
+     */
+    public static Broadcast[] broadcast(DbIterator input, int consumers) {
+        ExchangeBuffer buffer = new ExchangeBuffer(new DbIterator[]{input}, consumers,
+                ExchangeBuffer.BROADCAST);
+        Broadcast[] out = new Broadcast[consumers];
+        for (int i = 0; i < consumers; i++)
+            out[i] = new Broadcast(buffer, i);
+        return out;
+    }
+
+    public String getName() {
+        return "broadcast " + getConsumer() + "/" + numConsumers();
+    }
+}
@@ -22,6 +22,9 @@ class PageLock{
     public PageId pageId;
     private Set<TransactionId> sharedLocks;
     private TransactionId exclusiveLock;
+    // bumped whenever an exclusive lock is granted or released, so that a
+    // reader that took no lock can tell whether the page may have changed
+    private long version = 0;
 
     PageLock(PageId pid){
         pageId = pid;
@@ -56,6 +59,7 @@ class PageLock{
             if (sharedLocks.size() > 1) return false;
             if (sharedLocks.isEmpty() || sharedLocks.contains(tid)){
                 exclusiveLock = tid;
+                version++;
                 sharedLocks.clear();
                 return true;
             }
@@ -65,12 +69,24 @@ class PageLock{
 
     void releaseLock(TransactionId tid){
         assert exclusiveLock == null || tid.equals(exclusiveLock);
-        if (tid.equals(exclusiveLock)) exclusiveLock = null;
+        if (tid.equals(exclusiveLock)) {
+            exclusiveLock = null;
+            version++;
+        }
         else sharedLocks.remove(tid);
     }
 
+    /**
+     * @return the version of the page if uncommitted is true or no
+     *         transaction other than tid holds an exclusive lock on it, or -1
+     */
+    long readableVersion(TransactionId tid, boolean uncommitted){
+        if (!uncommitted && exclusiveLock != null && !exclusiveLock.equals(tid)) return -1;
+        return version;
+    }
+
     boolean holdsLock(TransactionId tid){
-        return exclusiveLock.equals(tid) || sharedLocks.contains(tid);
+        return tid.equals(exclusiveLock) || sharedLocks.contains(tid);
     }
 
     boolean exclusive() {
@@ -105,6 +121,25 @@ public class BufferPool {
     private ConcurrentHashMap<TransactionId, Set<PageId>> TidToPageId;
     private DependencyGraph dependencyGraph;
 
+    /** Pages requested and pages read from disk by each thread, see
+        {@link #threadPageCounts} */
+    private static final ThreadLocal<long[]> threadPageCounts = new ThreadLocal<long[]>() {
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
+    /**
+     * @return the number of pages the current thread has requested from any
+     *         buffer pool so far, at index 0, and the number of those pages
+     *         that had to be read from disk, at index 1.  The array is live,
+     *         so an operator can take the difference of two snapshots to
+     *         count the pages it requested.
+     */
+    static long[] threadPageCounts() {
+        return threadPageCounts.get();
+    }
+
     //Detect the Deadlock
     private class DependencyGraph{
 
@@ -203,6 +238,20 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
+        long[] counts = threadPageCounts.get();
+        counts[0]++;
+        lockPage(tid, pid, perm);
+        return fetchPage(pid, counts);
+    }
+
+    /**
+     * Acquire a lock on a page with the associated permissions, like
+     * {@link #getPage}, without reading the page; used for pages that are
+     * written straight to disk, such as the pages a B+ tree bulk load
+     * appends to its file.
+     */
+    void lockPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
         PageIdToLock.putIfAbsent(pid, new PageLock(pid));
         boolean applyLock;
         synchronized (PageIdToLock.get(pid)){
@@ -219,17 +268,112 @@ public class BufferPool {
         }
         dependencyGraph.modifyEdges(tid, null);
 
-        TidToPageId.putIfAbsent(tid, new HashSet<>());
+        // the same transaction may fetch pages from several worker threads
+        TidToPageId.putIfAbsent(tid, ConcurrentHashMap.newKeySet());
         TidToPageId.get(tid).add(pid);
-        Page page;
-        if (pgBufferpool.containsKey(pid)){
-            page = pgBufferpool.get(pid);
-        } else{
-            if (pgBufferpool.size() >= capacity) evictPage();
-            page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-            pgBufferpool.put(pid, page);
-            //New page into the bufferpool should record Before statue
-            page.setBeforeImage();
+    }
+
+    /**
+     * Begin reading a page without locking it, for a short traversal such
+     * as the descent through the internal pages of a B+ tree.  Instead of a
+     * lock, which would be held until the transaction completes, the reader
+     * takes the version of the page, reads it through
+     * {@link #getPageUnlocked}, and then checks with {@link #validateRead}
+     * that no other transaction locked the page exclusively in the meantime;
+     * if one did, what it read may be inconsistent and it has to read again.
+     * <p>
+     * A page locked exclusively by another transaction may hold changes that
+     * are not committed, so it cannot be read this way: the reader has to
+     * lock it with {@link #getPage} instead, waiting for the other
+     * transaction to complete, unless it can cope with such changes (see
+     * {@link #optimisticRead(TransactionId, PageId, boolean)}).
+     *
+     * @param tid the ID of the transaction reading the page
+     * @param pid the ID of the page to read
+     * @return the version of the page to validate the read with, or -1 if
+     *         another transaction holds an exclusive lock on the page
+     */
+    long optimisticRead(TransactionId tid, PageId pid) {
+        return optimisticRead(tid, pid, false);
+    }
+
+    /**
+     * Begin reading a page without locking it, like
+     * {@link #optimisticRead(TransactionId, PageId)}, but also if another
+     * transaction holds an exclusive lock on the page and is changing it.
+     * The reader has to be able to tell a consistent read of the page while
+     * it changes, e.g. by a latch of the page, and to live with changes that
+     * are rolled back: until the read is validated, the transaction holding
+     * the lock has neither committed nor aborted.
+     *
+     * @param uncommitted whether to read a page another transaction may be
+     *        changing
+     * @return the version of the page to validate the read with, or -1 if
+     *         uncommitted is false and another transaction holds an exclusive
+     *         lock on the page
+     */
+    long optimisticRead(TransactionId tid, PageId pid, boolean uncommitted) {
+        PageLock lock = lockOf(pid);
+        synchronized (lock) {
+            return lock.readableVersion(tid, uncommitted);
+        }
+    }
+
+    /**
+     * @return true if no other transaction has locked a page exclusively
+     *         since {@link #optimisticRead} returned version for it
+     */
+    boolean validateRead(TransactionId tid, PageId pid, long version) {
+        return validateRead(tid, pid, version, false);
+    }
+
+    /**
+     * @return true if no transaction has locked a page exclusively or
+     *         released an exclusive lock on it since
+     *         {@link #optimisticRead(TransactionId, PageId, boolean)} returned
+     *         version for it
+     */
+    boolean validateRead(TransactionId tid, PageId pid, long version, boolean uncommitted) {
+        PageLock lock = lockOf(pid);
+        synchronized (lock) {
+            return version >= 0 && lock.readableVersion(tid, uncommitted) == version;
+        }
+    }
+
+    /**
+     * Retrieve a page without locking it, reading it from disk if it is not
+     * cached.  The page must only be read, between an
+     * {@link #optimisticRead} and a successful {@link #validateRead}.
+     */
+    Page getPageUnlocked(PageId pid) throws DbException {
+        long[] counts = threadPageCounts.get();
+        counts[0]++;
+        return fetchPage(pid, counts);
+    }
+
+    private PageLock lockOf(PageId pid) {
+        PageLock lock = PageIdToLock.get(pid);
+        if (lock == null) {
+            PageIdToLock.putIfAbsent(pid, new PageLock(pid));
+            lock = PageIdToLock.get(pid);
+        }
+        return lock;
+    }
+
+    private Page fetchPage(PageId pid, long[] counts) throws DbException {
+        Page page = pgBufferpool.get(pid);
+        if (page == null) {
+            synchronized (this) {
+                page = pgBufferpool.get(pid);
+                if (page == null) {
+                    if (pgBufferpool.size() >= capacity) evictPage();
+                    page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                    counts[1]++;
+                    pgBufferpool.put(pid, page);
+                    //New page into the bufferpool should record Before statue
+                    page.setBeforeImage();
+                }
+            }
         }
 //      LRUupdate(pid);
         return page;
@@ -272,14 +416,15 @@ public class BufferPool {
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        synchronized (PageIdToLock.get(p)){
-            return PageIdToLock.get(p).holdsLock(tid);
+        PageLock lock = lockOf(p);
+        synchronized (lock){
+            return lock.holdsLock(tid);
         }
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
-     * the transaction.
+     * the transaction, and let the files it locked pages of know.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
@@ -312,6 +457,18 @@ public class BufferPool {
                 PageIdToLock.get(pid).releaseLock(tid);
             }
         }
+        Set<Integer> tables = new HashSet<>();
+        for (PageId pid : LockPages)
+            tables.add(pid.getTableId());
+        for (int tableId : tables) {
+            DbFile file;
+            try {
+                file = Database.getCatalog().getDatabaseFile(tableId);
+            } catch (NoSuchElementException e) {
+                continue;
+            }
+            file.transactionComplete(tid, commit);
+        }
     }
 
     /**
@@ -323,7 +480,8 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
-     * that future requests see up-to-date pages.
+     * that future requests see up-to-date pages.  The insertion is applied to
+     * the statistics and the secondary indexes of the table as well.
      *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
@@ -340,6 +498,9 @@ public class BufferPool {
             page.markDirty(true, tid);
             pgBufferpool.put(pid, page);
         }
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId))
+            index.insert(tid, t);
+        TableStats.tupleInserted(tableId, t);
     }
 
     /**
@@ -350,7 +511,8 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
-     * that future requests see up-to-date pages.
+     * that future requests see up-to-date pages.  The deletion is applied to
+     * the statistics and the secondary indexes of the table as well.
      *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
@@ -361,12 +523,16 @@ public class BufferPool {
         // not necessary for lab1
         int tableId = t.getRecordId().getPageId().getTableId();
         DbFile tableFile = Database.getCatalog().getDatabaseFile(tableId);
+        // the entries are found by the RecordId of the tuple, so they go first
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId))
+            index.delete(tid, t);
         ArrayList<Page> dirty_pages = tableFile.deleteTuple(tid, t);
         for (Page page : dirty_pages) {
             PageId pid = page.getId();
             page.markDirty(true, tid);
             pgBufferpool.put(pid, page);
         }
+        TableStats.tupleDeleted(tableId, t);
     }
 
 
@@ -0,0 +1,177 @@
+package simpledb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * CardinalityFeedback remembers how many tuples the fragments of executed
+ * plans actually returned, so that later optimizations use them instead of
+ * estimates.
+ * <p>
+ * A fragment is a filtered table or a join of a set of tables, identified by
+ * a signature built from its tables, its filters and the joins among its
+ * tables (see {@link LogicalPlan#fragmentSignature}), which is the same for
+ * the same set in any query.  The operator at the top of a fragment records
+ * the number of tuples it returned when it is first exhausted after being
+ * opened, and {@link JoinOptimizer#orderJoins} uses the recorded count for
+ * any set of tables whose signature it knows.
+ * <p>
+ * Signatures include the constants of the filters, so every value a
+ * {@link PreparedStatement} runs with records a count of its own: the least
+ * recently used count is evicted once {@link #getCapacity} counts are
+ * recorded.  A count is dropped instead of used once the catalog or the
+ * table statistics it was recorded under have changed, see
+ * {@link Catalog#getVersion} and {@link TableStats#getVersion}.
+ * <p>
+ * When re-optimization is enabled, a {@link Query} also checks the inner
+ * inputs of its joins, which are read in full early on: {@link HashEquiJoin}
+ * builds its table from its inner input, and {@link Join} reads all of it
+ * for the first outer tuple.  If the count of an inner input is off from the
+ * estimate the plan was chosen with by {@link #getFactor} times or more, and
+ * the query has not returned a tuple yet, the query is planned again with
+ * the counts recorded so far and restarted.  A sort or an aggregate above
+ * the joins returns nothing until the joins are done, so such a query can
+ * always be re-optimized; other queries only if they have returned nothing
+ * by the end of the first pass over the inner input.
+ */
+public class CardinalityFeedback {
+
+    /** Default ratio between estimated and actual tuples that re-optimizes a query */
+    public static final double DEFAULT_FACTOR = 10.0;
+    /** Maximum number of times a query is planned again */
+    public static final int MAX_REOPTIMIZATIONS = 3;
+    /** Default maximum number of recorded counts */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static int capacity = DEFAULT_CAPACITY;
+    private static final LinkedHashMap<String, Count> observed = new LinkedHashMap<String, Count>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<String, Count> eldest) {
+            return size() > capacity;
+        }
+    };
+    private static volatile double factor = DEFAULT_FACTOR;
+    private static volatile boolean reoptimizing = true;
+
+    /** A recorded count along with the versions it was recorded under */
+    private static class Count {
+        final int rows;
+        final long catalogVersion = Database.getCatalog().getVersion();
+        final long statsVersion = TableStats.getVersion();
+
+        Count(int rows) {
+            this.rows = rows;
+        }
+
+        /**
+         * @return true if the catalog or the statistics have changed since
+         *         the count was recorded
+         */
+        boolean isStale() {
+            return catalogVersion != Database.getCatalog().getVersion()
+                    || statsVersion != TableStats.getVersion();
+        }
+    }
+
+    private CardinalityFeedback() {
+    }
+
+    /**
+     * Set the ratio between the estimated and the actual number of tuples of
+     * a pipeline breaker, in either direction, at which a query is
+     * re-optimized.
+     *
+     * @param f the ratio, greater than 1
+     */
+    public static void setFactor(double f) {
+        if (!(f > 1.0))
+            throw new IllegalArgumentException("the factor must be greater than 1");
+        factor = f;
+    }
+
+    public static double getFactor() {
+        return factor;
+    }
+
+    /** Enable or disable re-optimization of the queries started from now on */
+    public static void setReoptimizing(boolean on) {
+        reoptimizing = on;
+    }
+
+    public static boolean isReoptimizing() {
+        return reoptimizing;
+    }
+
+    /**
+     * Set the maximum number of recorded counts, evicting the least recently
+     * used counts beyond it.
+     */
+    public static synchronized void setCapacity(int n) {
+        if (n < 0)
+            throw new IllegalArgumentException("the capacity of the feedback cannot be negative");
+        capacity = n;
+        while (observed.size() > capacity)
+            observed.remove(observed.keySet().iterator().next());
+    }
+
+    public static synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /** @return the number of fragments with a recorded count, stale or not */
+    public static synchronized int size() {
+        return observed.size();
+    }
+
+    /** Forget all recorded counts */
+    public static synchronized void clear() {
+        observed.clear();
+    }
+
+    /**
+     * @return the number of tuples the fragment with a signature returned
+     *         when it last ran, or null if it has not run since the catalog
+     *         or the statistics last changed, or signature is null
+     */
+    public static synchronized Integer lookup(String signature) {
+        if (signature == null)
+            return null;
+        Count c = observed.get(signature);
+        if (c == null)
+            return null;
+        if (c.isStale()) {
+            observed.remove(signature);
+            return null;
+        }
+        return c.rows;
+    }
+
+    static synchronized void record(String signature, long rows) {
+        observed.put(signature, new Count((int) Math.min(rows, Integer.MAX_VALUE)));
+    }
+
+    /**
+     * @return true if rows is off from the estimate by the factor or more; an
+     *         unknown, negative estimate never is
+     */
+    static boolean deviates(long rows, int estimate) {
+        if (estimate < 0)
+            return false;
+        double r = Math.max(rows, 1), e = Math.max(estimate, 1);
+        return r >= factor * e || e >= factor * r;
+    }
+
+    /**
+     * Thrown by a pipeline breaker whose count deviates from its estimate,
+     * for its {@link Query} to plan the query again.
+     */
+    static class Deviation extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        Deviation(String signature, long rows, int estimate) {
+            super(rows + " tuples instead of " + estimate + " in " + signature);
+        }
+    }
+}
@@ -6,6 +6,8 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -26,6 +28,7 @@ public class Catalog {
         public DbFile file;
         public String name;
         public String pkeyField;
+        public final List<SecondaryIndex> indexes = new CopyOnWriteArrayList<>();
 
         public Table(DbFile file, String name, String pkeyField){
             this.file = file;
@@ -42,6 +45,11 @@ public class Catalog {
     private ConcurrentHashMap<Integer, Table> TableIdMap;
     private ConcurrentHashMap<String, Integer> NameIdMap;
 
+    /** Source of versions, shared by all catalogs so that no two states of
+        any catalogs have the same version */
+    private static final AtomicLong versions = new AtomicLong();
+    private volatile long version = versions.incrementAndGet();
+
     public Catalog() {
         // some code goes here
         TableIdMap = new ConcurrentHashMap<>();
@@ -63,6 +71,7 @@ public class Catalog {
         if (id != null) TableIdMap.remove(id);
         TableIdMap.put(file.getId(), new Table(file, name, pkeyField));
         NameIdMap.put(name, file.getId());
+        version = versions.incrementAndGet();
     }
 
     public void addTable(DbFile file, String name) {
@@ -80,6 +89,46 @@ public class Catalog {
         addTable(file, (UUID.randomUUID()).toString());
     }
 
+    /**
+     * Add a secondary index on a table.  The B+ tree file holding the entries
+     * of the index is added as a table named after the index as well, so
+     * that its pages can be read like those of any other table.
+     * @param index the index to add; its table must be in the catalog
+     * @throws NoSuchElementException if the table of the index doesn't exist
+     */
+    public void addIndex(SecondaryIndex index) throws NoSuchElementException {
+        Table table = TableIdMap.get(index.getTableId());
+        if (table == null) throw new NoSuchElementException();
+        addTable(index.getFile(), index.getName());
+        table.indexes.add(index);
+        version = versions.incrementAndGet();
+    }
+
+    /**
+     * Remove a secondary index and the table holding its entries, such as
+     * one whose creation failed.
+     */
+    public void removeIndex(SecondaryIndex index) {
+        Table table = TableIdMap.get(index.getTableId());
+        if (table != null) table.indexes.remove(index);
+        Table entries = TableIdMap.get(index.getFile().getId());
+        if (entries != null && entries.getFile() == index.getFile()) {
+            TableIdMap.remove(index.getFile().getId());
+            NameIdMap.remove(entries.getName(), index.getFile().getId());
+        }
+        version = versions.incrementAndGet();
+    }
+
+    /**
+     * @return the secondary indexes on the specified table, in the order
+     *     they were added; empty if it has none or doesn't exist
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        Table table = TableIdMap.get(tableid);
+        if (table == null) return Collections.emptyList();
+        return Collections.unmodifiableList(table.indexes);
+    }
+
     /**
      * Return the id of the table with a specified name,
      * @throws NoSuchElementException if the table doesn't exist
@@ -133,11 +182,22 @@ public class Catalog {
         return TableIdMap.get(id).getName();
     }
     
+    /**
+     * @return the version of the contents of the catalog, which changes
+     *         whenever a table or an index is added or the catalog is cleared; plans
+     *         built under one version may refer to tables that no longer
+     *         exist under another
+     */
+    public long getVersion() {
+        return version;
+    }
+
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
         TableIdMap.clear();
         NameIdMap.clear();
+        version = versions.incrementAndGet();
     }
     
     /**
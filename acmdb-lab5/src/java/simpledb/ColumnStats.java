@@ -0,0 +1,406 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * ColumnStats summarizes the values of one column of a table, as read from a
+ * sample of its tuples, for estimating the selectivity of predicates on it.
+ * <p>
+ * The summary has three parts:
+ * <ul>
+ * <li>the most common values (MCVs) and their frequencies, so that the values
+ * of a skewed column that make up most of it are estimated exactly;</li>
+ * <li>an equi-depth histogram of the other values, whose buckets each hold
+ * about the same number of values, so that dense ranges get narrow buckets;
+ * a value never spans two buckets;</li>
+ * <li>a {@link HyperLogLog} sketch and an estimate of the number of distinct
+ * values in the whole table, which the sample alone underestimates.</li>
+ * </ul>
+ * Values are compared by a 64-bit order-preserving key: the value itself for
+ * integers, and the first seven characters for strings.  Equality with a
+ * common value is decided on a hash of the whole value.
+ */
+public class ColumnStats {
+
+    /** Maximum number of most common values kept */
+    static final int NUM_MCVS = 20;
+    /** How many times more often than the average value a value must occur
+        in the sample to be one of the most common values */
+    static final double MCV_MIN_RATIO = 1.25;
+    /** Number of characters of a string its key is made of */
+    static final int STRING_KEY_CHARS = 7;
+
+    private long[] mcvKeys;
+    private long[] mcvHashes;
+    private int[] mcvCounts;
+    private long[] lo;
+    private long[] hi;
+    private int[] counts;
+    /** Distinct keys of each bucket in the sample */
+    private int[] distincts;
+    /** Values summarized, in the MCVs and the histogram together */
+    private int total;
+    /** Estimated number of distinct values in the table when built */
+    private double baseNdv;
+    private HyperLogLog sketch;
+
+    private ColumnStats() {
+    }
+
+    /**
+     * @return the key f is ordered by in column statistics
+     */
+    public static long key(Field f) {
+        if (f instanceof IntField)
+            return ((IntField) f).getValue();
+        String s = ((StringField) f).getValue();
+        long k = 0;
+        for (int i = 0; i < STRING_KEY_CHARS; i++) {
+            // 0 marks the end of the string, so prefixes order first
+            int c = i < s.length() ? Math.min(s.charAt(i), 510) + 1 : 0;
+            k = (k << 9) | c;
+        }
+        return k;
+    }
+
+    /**
+     * @return the hash f is identified by in column statistics
+     */
+    public static long hash(Field f) {
+        if (f instanceof IntField)
+            return HyperLogLog.hash(((IntField) f).getValue());
+        return HyperLogLog.hash(((StringField) f).getValue());
+    }
+
+    /**
+     * Summarize the first n values of a sample.
+     *
+     * @param keys
+     *            the keys of the values
+     * @param hashes
+     *            the hashes of the values, or null if they are integers
+     *            whose hashes follow from their keys
+     * @param n
+     *            the number of values
+     * @param scale
+     *            the number of tuples in the table per tuple in the sample
+     * @param buckets
+     *            the number of histogram buckets to use at most
+     */
+    public static ColumnStats build(long[] keys, long[] hashes, int n, double scale, int buckets) {
+        HyperLogLog sketch = new HyperLogLog();
+        for (int i = 0; i < n; i++)
+            sketch.add(hashes == null ? HyperLogLog.hash(keys[i]) : hashes[i]);
+        return build(keys, hashes, n, scale, buckets, sketch);
+    }
+
+    /**
+     * Summarize the first n values of a sample, with a sketch of the
+     * distinct values of a larger sample it was drawn from.
+     *
+     * @param sketch
+     *            the sketch, which the summary keeps
+     * @see #build(long[], long[], int, double, int)
+     */
+    public static ColumnStats build(long[] keys, long[] hashes, int n, double scale, int buckets,
+            HyperLogLog sketch) {
+        ColumnStats c = new ColumnStats();
+        c.total = n;
+        c.sketch = sketch;
+        long[] h = new long[n];
+        for (int i = 0; i < n; i++)
+            h[i] = hashes == null ? HyperLogLog.hash(keys[i]) : hashes[i];
+        long[] sorted = h.clone();
+        Arrays.sort(sorted);
+
+        // count the distinct values and pick the most common ones
+        int distinct = 0, once = 0;
+        PriorityQueue<long[]> common = new PriorityQueue<long[]>(NUM_MCVS + 1,
+                (a, b) -> Long.compare(a[0], b[0]));
+        for (int i = 0; i < n; ) {
+            int j = i;
+            while (j < n && sorted[j] == sorted[i])
+                j++;
+            distinct++;
+            if (j - i == 1)
+                once++;
+            common.add(new long[] { j - i, sorted[i] });
+            if (common.size() > NUM_MCVS)
+                common.poll();
+            i = j;
+        }
+        double average = distinct == 0 ? 0 : (double) n / distinct;
+        while (!common.isEmpty() && (common.peek()[0] < 2 || common.peek()[0] <= MCV_MIN_RATIO * average))
+            common.poll();
+        int numMcvs = common.size();
+        c.mcvKeys = new long[numMcvs];
+        c.mcvHashes = new long[numMcvs];
+        c.mcvCounts = new int[numMcvs];
+        HashMap<Long, Integer> slots = new HashMap<Long, Integer>();
+        for (int m = 0; m < numMcvs; m++) {
+            long[] e = common.poll();
+            c.mcvCounts[m] = (int) e[0];
+            c.mcvHashes[m] = e[1];
+            slots.put(e[1], m);
+        }
+
+        // histogram the others
+        long[] rest = new long[n];
+        int restN = 0;
+        for (int i = 0; i < n; i++) {
+            Integer m = slots.get(h[i]);
+            if (m == null)
+                rest[restN++] = keys[i];
+            else
+                c.mcvKeys[m] = keys[i];
+        }
+        Arrays.sort(rest, 0, restN);
+        int depth = Math.max(1, (restN + buckets - 1) / buckets);
+        long[] lo = new long[buckets], hi = new long[buckets];
+        int[] counts = new int[buckets], distincts = new int[buckets];
+        int b = 0;
+        for (int i = 0; i < restN; ) {
+            int end = Math.min(i + depth, restN);
+            while (end < restN && rest[end] == rest[end - 1])
+                end++;
+            if (b == buckets) {
+                // runs of equal keys used up the buckets early
+                hi[b - 1] = rest[restN - 1];
+                counts[b - 1] += restN - i;
+                distincts[b - 1] += distinctKeys(rest, i, restN);
+                break;
+            }
+            lo[b] = rest[i];
+            hi[b] = rest[end - 1];
+            counts[b] = end - i;
+            distincts[b] = distinctKeys(rest, i, end);
+            b++;
+            i = end;
+        }
+        c.lo = Arrays.copyOf(lo, b);
+        c.hi = Arrays.copyOf(hi, b);
+        c.counts = Arrays.copyOf(counts, b);
+        c.distincts = Arrays.copyOf(distincts, b);
+
+        // values seen once in the sample stand for many unseen ones (GEE)
+        c.baseNdv = scale <= 1.0 ? distinct : Math.sqrt(scale) * once + (distinct - once);
+        return c;
+    }
+
+    private static int distinctKeys(long[] sorted, int from, int to) {
+        int d = 0;
+        for (int i = from; i < to; i++) {
+            if (i == from || sorted[i] != sorted[i - 1])
+                d++;
+        }
+        return d;
+    }
+
+    /**
+     * @return the estimated number of distinct values in the column
+     */
+    public double ndv() {
+        return Math.max(1.0, Math.max(baseNdv, sketch.estimate()));
+    }
+
+    /**
+     * Estimate the fraction of the column satisfying <tt>column op v</tt>.
+     * LIKE is estimated as an equality.
+     */
+    public double estimateSelectivity(Predicate.Op op, Field v) {
+        long key = key(v);
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return equalFraction(key, hash(v));
+        case NOT_EQUALS:
+            return 1.0 - equalFraction(key, hash(v));
+        case LESS_THAN:
+            return lessFraction(key, false);
+        case LESS_THAN_OR_EQ:
+            return lessFraction(key, true);
+        case GREATER_THAN:
+            return 1.0 - lessFraction(key, true);
+        case GREATER_THAN_OR_EQ:
+            return 1.0 - lessFraction(key, false);
+        default:
+            return 1.0;
+        }
+    }
+
+    /**
+     * @return the expected selectivity of <tt>column op v</tt> for a value v
+     *         drawn from the column
+     */
+    public double avgSelectivity(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return 1.0 / ndv();
+        case NOT_EQUALS:
+            return 1.0 - 1.0 / ndv();
+        default:
+            return 0.5;
+        }
+    }
+
+    private double equalFraction(long key, long hash) {
+        if (total == 0)
+            return 0.0;
+        int mcvTotal = 0;
+        for (int m = 0; m < mcvHashes.length; m++) {
+            if (mcvHashes[m] == hash)
+                return (double) mcvCounts[m] / total;
+            mcvTotal += mcvCounts[m];
+        }
+        if (counts.length == 0 || key < lo[0] || key > hi[hi.length - 1])
+            return 0.0;
+        // the distinct values of the table not among the MCVs, spread over
+        // the buckets in proportion to those seen in the sample
+        int sampleDistinct = 0;
+        for (int d : distincts)
+            sampleDistinct += d;
+        double perSampleValue = Math.max(1.0, ndv() - mcvHashes.length) / Math.max(1, sampleDistinct);
+        int b = bucket(key);
+        if (key < lo[b]) {
+            // between two buckets, where the sample happened to hold no value
+            return (double) (total - mcvTotal) / total / Math.max(1.0, sampleDistinct * perSampleValue);
+        }
+        return (double) counts[b] / total / Math.max(1.0, distincts[b] * perSampleValue);
+    }
+
+    /**
+     * @return the first bucket that does not end below key, which must not
+     *         lie above the histogram
+     */
+    private int bucket(long key) {
+        int b = Arrays.binarySearch(hi, key);
+        return b < 0 ? -b - 1 : b;
+    }
+
+    private double lessFraction(long key, boolean inclusive) {
+        if (total == 0)
+            return 0.0;
+        double below = 0;
+        for (int m = 0; m < mcvKeys.length; m++) {
+            if (mcvKeys[m] < key || (inclusive && mcvKeys[m] == key))
+                below += mcvCounts[m];
+        }
+        for (int b = 0; b < counts.length; b++) {
+            if (hi[b] < key || (inclusive && hi[b] == key)) {
+                below += counts[b];
+            } else if (lo[b] < key || (inclusive && lo[b] == key)) {
+                // assume the keys are spread evenly over the bucket
+                double width = (double) hi[b] - lo[b] + 1;
+                double part = (double) key - lo[b] + (inclusive ? 1 : 0);
+                below += counts[b] * Math.min(1.0, part / width);
+            }
+        }
+        return Math.min(1.0, below / total);
+    }
+
+    /**
+     * Add a value inserted into the table.  The distinct value sketch sees
+     * every value; the frequencies only the values that would have been in
+     * the sample.
+     *
+     * @param inSample
+     *            whether to count the value in the frequencies
+     * @return false if the value lies outside the range of the histogram, so
+     *         that the statistics no longer describe the column well
+     */
+    boolean add(Field v, boolean inSample) {
+        long hash = hash(v);
+        sketch.add(hash);
+        return !inSample || adjust(key(v), hash, 1);
+    }
+
+    /**
+     * Remove a value deleted from the table.
+     *
+     * @param inSample
+     *            whether to count the value in the frequencies
+     */
+    void remove(Field v, boolean inSample) {
+        if (inSample)
+            adjust(key(v), hash(v), -1);
+    }
+
+    private boolean adjust(long key, long hash, int delta) {
+        for (int m = 0; m < mcvHashes.length; m++) {
+            if (mcvHashes[m] == hash) {
+                if (mcvCounts[m] + delta >= 0) {
+                    mcvCounts[m] += delta;
+                    total += delta;
+                }
+                return true;
+            }
+        }
+        if (counts.length == 0 || key < lo[0] || key > hi[hi.length - 1])
+            return false;
+        int b = bucket(key);
+        if (counts[b] + delta >= 0) {
+            counts[b] += delta;
+            total += delta;
+        }
+        return true;
+    }
+
+    /**
+     * Write these statistics to out, in the form read by {@link #read}.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(total);
+        out.writeDouble(baseNdv);
+        out.writeInt(mcvKeys.length);
+        for (int m = 0; m < mcvKeys.length; m++) {
+            out.writeLong(mcvKeys[m]);
+            out.writeLong(mcvHashes[m]);
+            out.writeInt(mcvCounts[m]);
+        }
+        out.writeInt(counts.length);
+        for (int b = 0; b < counts.length; b++) {
+            out.writeLong(lo[b]);
+            out.writeLong(hi[b]);
+            out.writeInt(counts[b]);
+            out.writeInt(distincts[b]);
+        }
+        sketch.write(out);
+    }
+
+    /**
+     * Read statistics written by {@link #write}.
+     */
+    static ColumnStats read(DataInput in) throws IOException {
+        ColumnStats c = new ColumnStats();
+        c.total = in.readInt();
+        c.baseNdv = in.readDouble();
+        int numMcvs = in.readInt();
+        c.mcvKeys = new long[numMcvs];
+        c.mcvHashes = new long[numMcvs];
+        c.mcvCounts = new int[numMcvs];
+        for (int m = 0; m < numMcvs; m++) {
+            c.mcvKeys[m] = in.readLong();
+            c.mcvHashes[m] = in.readLong();
+            c.mcvCounts[m] = in.readInt();
+        }
+        int buckets = in.readInt();
+        c.lo = new long[buckets];
+        c.hi = new long[buckets];
+        c.counts = new int[buckets];
+        c.distincts = new int[buckets];
+        for (int b = 0; b < buckets; b++) {
+            c.lo[b] = in.readLong();
+            c.hi[b] = in.readLong();
+            c.counts[b] = in.readInt();
+            c.distincts[b] = in.readInt();
+        }
+        c.sketch = HyperLogLog.read(in);
+        return c;
+    }
+}
@@ -0,0 +1,103 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * The key of a tuple of a {@link BTreeFile} that orders tuples with equal
+ * keys by some of their other fields: the key field followed by those
+ * fields.  Two composite keys compare field by field.  A composite key
+ * compared to a plain field compares its key field only, so that a search
+ * for a plain key finds all the tuples with that key.
+ */
+class CompositeField implements Field {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Field key;
+    private final Field[] rest;
+
+    /**
+     * @param key the key field
+     * @param rest the fields ordering tuples with equal keys
+     */
+    CompositeField(Field key, Field[] rest) {
+        this.key = key;
+        this.rest = rest;
+    }
+
+    /** @return the key field */
+    Field getKey() {
+        return key;
+    }
+
+    /**
+     * @return a negative number, zero or a positive number as this key is
+     *         less than, equal to or greater than value
+     */
+    private int compareTo(Field value) {
+        if (!(value instanceof CompositeField))
+            return compare(key, value);
+        CompositeField c = (CompositeField) value;
+        int r = compare(key, c.key);
+        for (int i = 0; r == 0 && i < rest.length; i++)
+            r = compare(rest[i], c.rest[i]);
+        return r;
+    }
+
+    private static int compare(Field a, Field b) {
+        if (a.compare(Predicate.Op.LESS_THAN, b))
+            return -1;
+        return a.compare(Predicate.Op.GREATER_THAN, b) ? 1 : 0;
+    }
+
+    public boolean compare(Predicate.Op op, Field value) {
+        int r = compareTo(value);
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return r == 0;
+        case NOT_EQUALS:
+            return r != 0;
+        case GREATER_THAN:
+            return r > 0;
+        case GREATER_THAN_OR_EQ:
+            return r >= 0;
+        case LESS_THAN:
+            return r < 0;
+        case LESS_THAN_OR_EQ:
+            return r <= 0;
+        }
+        return false;
+    }
+
+    /** Write the key field followed by the other fields */
+    public void serialize(DataOutputStream dos) throws IOException {
+        key.serialize(dos);
+        for (Field f : rest)
+            f.serialize(dos);
+    }
+
+    /** @return the type of the key field */
+    public Type getType() {
+        return key.getType();
+    }
+
+    public int hashCode() {
+        return key.hashCode() * 31 + Arrays.hashCode(rest);
+    }
+
+    public boolean equals(Object field) {
+        if (!(field instanceof CompositeField))
+            return false;
+        CompositeField c = (CompositeField) field;
+        return key.equals(c.key) && Arrays.equals(rest, c.rest);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder(key.toString());
+        for (Field f : rest)
+            sb.append(", ").append(f);
+        return "(" + sb + ")";
+    }
+}
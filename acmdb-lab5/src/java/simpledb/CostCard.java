@@ -1,7 +1,7 @@
 package simpledb;
 import java.util.Vector;
 
-/** Class returned by {@link JoinOptimizer#computeCostAndCardOfSubplan} specifying the
+/** Class stored in a {@link PlanCache} by {@link JoinOptimizer#orderJoins} specifying the
     cost and cardinality of the optimal plan represented by plan.
 */
 public class CostCard {
@@ -9,6 +9,8 @@ public class CostCard {
     public double cost;
     /** The cardinality of the optimal subplan */
     public int card;
+    /** Whether any join of the optimal subplan is on a primary key */
+    public boolean pkey;
     /** The optimal subplan */
     public Vector<LogicalJoinNode> plan;
 }
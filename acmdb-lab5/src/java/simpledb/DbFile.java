@@ -88,4 +88,17 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     public TupleDesc getTupleDesc();
+
+    /**
+     * Called by the BufferPool when a transaction that locked pages of this
+     * file commits or aborts, once its pages are flushed or restored and its
+     * locks released.  A file that keeps state about a transaction outside
+     * its pages settles it here; by default there is none.
+     *
+     * @param tid the transaction that completed
+     * @param commit whether it committed
+     * @throws IOException if the file fails to write that state
+     */
+    public default void transactionComplete(TransactionId tid, boolean commit) throws IOException {
+    }
 }
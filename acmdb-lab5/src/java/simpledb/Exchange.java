@@ -0,0 +1,97 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Exchange is the base class of the operators that connect the parallel
+ * regions of a query plan.  An exchange runs its inputs, copies of the same
+ * pipeline, concurrently on worker threads and returns its share of their
+ * output to the operator above it.
+ * <p>
+ * Several exchange operators may share one {@link ExchangeBuffer}, each
+ * reading the tuples meant for one consumer; they must then be read
+ * concurrently, for instance by the copies of a pipeline under a
+ * {@link Gather}.
+ */
+public abstract class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ExchangeBuffer buffer;
+    private final int consumer;
+    private transient Tuple[] batch;
+    private transient int batchPos;
+
+    Exchange(ExchangeBuffer buffer, int consumer) {
+        this.buffer = buffer;
+        this.consumer = consumer;
+    }
+
+    /**
+     * @return a short description of this exchange, for query plans
+     */
+    public abstract String getName();
+
+    /**
+     * @return which of the consumers sharing this exchange's inputs this
+     *         operator is
+     */
+    public int getConsumer() {
+        return consumer;
+    }
+
+    /**
+     * @return the number of consumers sharing the output of this exchange's
+     *         inputs
+     */
+    public int numConsumers() {
+        return buffer.numConsumers();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return buffer.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        buffer.open(consumer);
+        batch = null;
+        batchPos = 0;
+        super.open();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (batch == null || batchPos == batch.length) {
+            batch = buffer.take(consumer);
+            batchPos = 0;
+            if (batch == null)
+                return null;
+        }
+        return batch[batchPos++];
+    }
+
+    public void close() {
+        buffer.close(consumer);
+        batch = null;
+        super.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    /**
+     * @return the inputs of this exchange; exchanges sharing a buffer share
+     *         their inputs
+     */
+    @Override
+    public DbIterator[] getChildren() {
+        return buffer.getInputs();
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        buffer.setInputs(children);
+    }
+}
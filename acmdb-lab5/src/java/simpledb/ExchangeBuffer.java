@@ -0,0 +1,258 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * ExchangeBuffer moves tuples from a set of producer pipelines, each run on
+ * its own worker thread, to a set of consumers.
+ * <p>
+ * Tuples travel in batches through one bounded queue per consumer, so
+ * producers can run ahead of a consumer by a few batches only, and the cost
+ * of synchronizing on a queue is paid once per batch rather than once per
+ * tuple.  Every tuple a producer returns is routed to one consumer chosen by
+ * hashing a field, or to every consumer when broadcasting.
+ * <p>
+ * The producers are started when the first consumer opens, once the page
+ * cursors their scans share are started over, and run until they are
+ * exhausted or every consumer has closed.  The consumers must read
+ * concurrently: a consumer that stops reading without closing eventually
+ * blocks the producers, and with them every other consumer.
+ */
+class ExchangeBuffer {
+
+    /** Number of tuples moved at a time */
+    static final int BATCH_SIZE = 256;
+    /** Partitioning field that sends every tuple to every consumer */
+    static final int BROADCAST = -2;
+    /** Marks the end of one producer's output */
+    private static final Tuple[] DONE = new Tuple[0];
+
+    private DbIterator[] inputs;
+    private final int consumers;
+    private final int partitionField;
+    private Run run;
+
+    /**
+     * @param inputs
+     *            the producer pipelines, which must be run concurrently
+     * @param consumers
+     *            the number of consumers
+     * @param partitionField
+     *            the field to partition tuples among the consumers on, or
+     *            BROADCAST; ignored if there is only one consumer
+     */
+    ExchangeBuffer(DbIterator[] inputs, int consumers, int partitionField) {
+        if (inputs.length == 0)
+            throw new IllegalArgumentException("an exchange needs at least one input");
+        this.inputs = inputs.clone();
+        this.consumers = consumers;
+        this.partitionField = partitionField;
+    }
+
+    DbIterator[] getInputs() {
+        return inputs.clone();
+    }
+
+    synchronized void setInputs(DbIterator[] inputs) {
+        if (run != null)
+            throw new IllegalStateException("cannot replace the inputs of a running exchange");
+        this.inputs = inputs.clone();
+    }
+
+    int numConsumers() {
+        return consumers;
+    }
+
+    TupleDesc getTupleDesc() {
+        return inputs[0].getTupleDesc();
+    }
+
+    /**
+     * Start reading as the given consumer.  The first consumer to open after
+     * all consumers have closed starts the producers anew.
+     *
+     * @throws DbException if the consumer has already read from the current
+     *             run of the producers, which cannot be restarted until all
+     *             consumers have closed
+     */
+    synchronized void open(int consumer) throws DbException {
+        if (run == null)
+            run = new Run();
+        else if (run.opened[consumer])
+            throw new DbException("a consumer of an exchange cannot rewind until all consumers have closed");
+        run.opened[consumer] = true;
+    }
+
+    /**
+     * @return the next batch of tuples for the consumer, or null once every
+     *         producer has finished
+     */
+    Tuple[] take(int consumer) throws DbException, TransactionAbortedException {
+        Run r;
+        synchronized (this) {
+            r = run;
+        }
+        return r == null ? null : r.take(consumer);
+    }
+
+    /**
+     * Stop reading as the given consumer.  Once every consumer has closed
+     * the producers are stopped, and this call waits for them to let go of
+     * their inputs.
+     */
+    void close(int consumer) {
+        Run stopped = null;
+        synchronized (this) {
+            if (run != null && run.close(consumer)) {
+                stopped = run;
+                run = null;
+            }
+        }
+        if (stopped != null)
+            stopped.stop();
+    }
+
+    private int route(Tuple t) {
+        int h = AggregateHashTable.mix(t.getField(partitionField).hashCode());
+        // use the high bits, leaving the low bits to the consumers' hash tables
+        return (int) (((h >>> 1) * (long) consumers) >>> 31);
+    }
+
+    /**
+     * One execution of the producers.  Every run has its own queues, so
+     * producers of an earlier run can never hand tuples to a later one.
+     */
+    private class Run {
+        private final BlockingQueue<Tuple[]>[] queues;
+        private final int[] running;
+        private final boolean[] opened = new boolean[consumers];
+        private final AtomicIntegerArray closed = new AtomicIntegerArray(consumers);
+        private int numClosed = 0;
+        private final List<Future<Void>> workers = new ArrayList<Future<Void>>();
+        private final CountDownLatch exited;
+        private volatile boolean stopped = false;
+
+        @SuppressWarnings("unchecked")
+        Run() {
+            // a producer puts at most one more batch into a queue once its
+            // consumer has closed, so after the queue is cleared no producer
+            // can block on it
+            queues = new BlockingQueue[consumers];
+            running = new int[consumers];
+            for (int c = 0; c < consumers; c++) {
+                queues[c] = new ArrayBlockingQueue<Tuple[]>(2 * inputs.length);
+                running[c] = inputs.length;
+            }
+            exited = new CountDownLatch(inputs.length);
+            PageCursor.restart(inputs);
+            for (final DbIterator input : inputs) {
+                workers.add(WorkerPool.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        try {
+                            produce(input);
+                        } finally {
+                            try {
+                                for (int c = 0; c < consumers; c++)
+                                    put(c, DONE);
+                            } finally {
+                                exited.countDown();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+        }
+
+        private void put(int consumer, Tuple[] batch) throws InterruptedException {
+            if (!stopped && closed.get(consumer) == 0)
+                queues[consumer].put(batch);
+        }
+
+        /** Run one producer, routing its output to the consumers in batches. */
+        private void produce(DbIterator input) throws DbException, TransactionAbortedException,
+                InterruptedException {
+            input.open();
+            try {
+                int targets = consumers == 1 || partitionField == BROADCAST ? 1 : consumers;
+                Tuple[][] out = new Tuple[targets][BATCH_SIZE];
+                int[] n = new int[targets];
+                while (!stopped && input.hasNext()) {
+                    Tuple t = input.next();
+                    int c = targets == 1 ? 0 : route(t);
+                    out[c][n[c]++] = t;
+                    if (n[c] == BATCH_SIZE) {
+                        send(c, out[c]);
+                        out[c] = new Tuple[BATCH_SIZE];
+                        n[c] = 0;
+                    }
+                }
+                for (int c = 0; c < targets; c++) {
+                    if (n[c] > 0)
+                        send(c, Arrays.copyOf(out[c], n[c]));
+                }
+            } finally {
+                input.close();
+            }
+        }
+
+        private void send(int target, Tuple[] batch) throws InterruptedException {
+            if (partitionField == BROADCAST && consumers > 1) {
+                for (int c = 0; c < consumers; c++)
+                    put(c, batch);
+            } else {
+                put(target, batch);
+            }
+        }
+
+        Tuple[] take(int consumer) throws DbException, TransactionAbortedException {
+            while (running[consumer] > 0) {
+                Tuple[] batch;
+                try {
+                    batch = queues[consumer].take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DbException("interrupted while waiting for the exchange producers");
+                }
+                if (batch != DONE)
+                    return batch;
+                running[consumer]--;
+                // rethrow the failure of any producer that has finished
+                for (Future<Void> w : workers) {
+                    if (running[consumer] == 0 || w.isDone())
+                        WorkerPool.await(w);
+                }
+            }
+            return null;
+        }
+
+        /** @return true if every consumer has now closed */
+        boolean close(int consumer) {
+            if (closed.getAndSet(consumer, 1) == 0) {
+                queues[consumer].clear();
+                numClosed++;
+            }
+            return numClosed == consumers;
+        }
+
+        /** Stop the producers and wait for them to close their inputs. */
+        void stop() {
+            stopped = true;
+            for (BlockingQueue<Tuple[]> q : queues)
+                q.clear();
+            try {
+                exited.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
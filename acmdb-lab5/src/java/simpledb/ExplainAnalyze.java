@@ -0,0 +1,351 @@
+package simpledb;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.NoSuchElementException;
+
+/**
+ * ExplainAnalyze runs a query with a counting decorator around each of its
+ * operators and reports what every operator actually did next to the
+ * cardinality the optimizer estimated for it.
+ * <p>
+ * For every operator the report gives the tuples it returned, the number of
+ * times it was opened, the wall clock and CPU time spent in its open, next
+ * and hasNext calls, the pages it requested from the buffer pool and how many
+ * of them were not cached, and the bytes it spilled to disk.  Times and
+ * pages include those of the operator's children, as the children run inside
+ * the calls of their parent; pages are counted on the thread that calls the
+ * operator.  Operators whose estimate is off by {@link #MISESTIMATE} times or
+ * more are marked with a <code>!</code>.
+ * <p>
+ * Reading the CPU time of a thread takes a system call, so the CPU time of
+ * next and hasNext calls is measured for one call in {@link #CPU_SAMPLE} and
+ * extrapolated to all of them; that of open and rewind calls is measured for
+ * every call.  A plan instrumented without timing only counts the tuples on
+ * every call, and measures open and rewind calls alone.
+ * <p>
+ * Some subtrees are not instrumented so that the plan runs as it would
+ * otherwise: the Filters of a chain below another Filter, which evaluates
+ * the whole chain when compiled (see {@link QueryCompiler}), the input of an
+ * {@link Aggregate} that may split it among workers, and the inputs of an
+ * {@link Exchange}, which its workers consume concurrently.
+ */
+public class ExplainAnalyze {
+
+    /** Ratio between estimated and actual rows that marks a misestimate */
+    public static final double MISESTIMATE = 10.0;
+
+    /** One in this many calls for the next tuple has its CPU time measured */
+    public static final int CPU_SAMPLE = 64;
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private ExplainAnalyze() {
+    }
+
+    /**
+     * Wrap every operator of a plan that can be measured in an
+     * {@link Instrumented} decorator, with timing.  Changes the children of
+     * the operators of the plan, so the plan must not be shared.
+     *
+     * @return the root of the instrumented plan
+     */
+    public static DbIterator instrument(DbIterator plan) {
+        return instrument(plan, true);
+    }
+
+    /**
+     * @param timing whether to measure the time and pages of every call, or
+     *        only of open and rewind calls
+     * @see #instrument(DbIterator)
+     */
+    public static DbIterator instrument(DbIterator plan, boolean timing) {
+        if (plan instanceof Operator && !(plan instanceof Exchange)
+                && !(plan instanceof Aggregate && ((Aggregate) plan).getParallelism() > 1)) {
+            Operator op = (Operator) plan;
+            DbIterator[] children = op.getChildren().clone();
+            for (int i = 0; i < children.length; i++) {
+                if (op instanceof Filter && children[i] instanceof Filter) {
+                    // keep the chain intact, but measure what it reads
+                    Filter inner = (Filter) children[i];
+                    inner.setChildren(new DbIterator[] { instrument(inner.getChildren()[0], timing) });
+                } else {
+                    children[i] = instrument(children[i], timing);
+                }
+            }
+            op.setChildren(children);
+        }
+        return new Instrumented(plan, timing);
+    }
+
+    /**
+     * Run an instrumented plan to completion, discarding its output.
+     *
+     * @return the number of tuples the plan returned
+     */
+    public static int run(DbIterator plan) throws DbException, TransactionAbortedException {
+        int rows = 0;
+        plan.open();
+        try {
+            while (plan.hasNext()) {
+                plan.next();
+                rows++;
+            }
+        } finally {
+            plan.close();
+        }
+        return rows;
+    }
+
+    /**
+     * @return the report of an instrumented plan that has run, one line per
+     *         operator, with children indented below their parent
+     */
+    public static String report(DbIterator plan) {
+        StringBuilder b = new StringBuilder();
+        report(plan, 0, b);
+        return b.toString();
+    }
+
+    private static void report(DbIterator it, int depth, StringBuilder b) {
+        for (int i = 0; i < depth; i++)
+            b.append("  ");
+        if (depth > 0)
+            b.append("-> ");
+        DbIterator op = it instanceof Instrumented ? ((Instrumented) it).child : it;
+        b.append(describe(op));
+        if (op instanceof Operator) {
+            int est = ((Operator) op).getEstimatedCardinality();
+            b.append("  (est rows=").append(est);
+            if (it instanceof Instrumented) {
+                long rows = ((Instrumented) it).getRows();
+                if (Math.max(rows, 1) >= MISESTIMATE * Math.max(est, 1)
+                        || Math.max(est, 1) >= MISESTIMATE * Math.max(rows, 1))
+                    b.append(" !");
+            }
+            b.append(")");
+        }
+        if (it instanceof Instrumented) {
+            Instrumented m = (Instrumented) it;
+            b.append(String.format("  (actual rows=%d loops=%d time=%.3f ms cpu=%.3f ms pages=%d misses=%d",
+                    m.rows, m.opens, m.wallNanos / 1e6, m.getCpuNanos() / 1e6, m.pages, m.misses));
+            long spilled = op instanceof Operator ? ((Operator) op).getSpillBytes() : 0;
+            if (spilled > 0)
+                b.append(" spilled=").append(spilled).append(" bytes");
+            b.append(")");
+        } else {
+            b.append("  (not instrumented)");
+        }
+        b.append("\n");
+        if (op instanceof Operator) {
+            for (DbIterator child : ((Operator) op).getChildren())
+                report(child, depth + 1, b);
+        }
+    }
+
+    /** @return a one line description of an operator */
+    private static String describe(DbIterator op) {
+        if (op instanceof SeqScan) {
+            SeqScan s = (SeqScan) op;
+            return (op instanceof ParallelSeqScan ? "ParallelSeqScan " : "SeqScan ")
+                    + s.getTableName() + " " + s.getAlias();
+        }
+        if (op instanceof BTreeScan) {
+            BTreeScan s = (BTreeScan) op;
+            String text = "BTreeScan " + s.getTableName() + " " + s.getAlias();
+            if (s.getIndexPredicate() != null)
+                text += " from key " + s.getIndexPredicate().getOp() + " " + s.getIndexPredicate().getField();
+            if (s.getStopPredicate() != null)
+                text += " to key " + s.getStopPredicate().getOp() + " " + s.getStopPredicate().getField();
+            if (s.isDescending())
+                text += " descending";
+            return text;
+        }
+        if (op instanceof SecondaryIndexScan) {
+            SecondaryIndexScan s = (SecondaryIndexScan) op;
+            String text = (s.isIndexOnly() ? "IndexOnlyScan " : "SecondaryIndexScan ")
+                    + s.getTableName() + " " + s.getAlias() + " on " + s.getIndex().getName();
+            if (s.getIndexPredicate() != null)
+                text += " from key " + s.getIndexPredicate().getOp() + " " + s.getIndexPredicate().getField();
+            if (s.getStopPredicate() != null)
+                text += " to key " + s.getStopPredicate().getOp() + " " + s.getStopPredicate().getField();
+            if (s.isDescending())
+                text += " descending";
+            return text;
+        }
+        if (op instanceof HashScan) {
+            HashScan s = (HashScan) op;
+            String text = "HashScan " + s.getTableName() + " " + s.getAlias();
+            if (s.getIndexPredicate() != null)
+                text += " key " + s.getIndexPredicate().getOp() + " " + s.getIndexPredicate().getField();
+            return text;
+        }
+        if (op instanceof Filter) {
+            Filter f = (Filter) op;
+            Predicate p = f.getPredicate();
+            return "Filter " + f.getTupleDesc().getFieldName(p.getField()) + " " + p.getOp() + " " + p.getOperand();
+        }
+        if (op instanceof Join || op instanceof HashEquiJoin) {
+            Operator j = (Operator) op;
+            JoinPredicate p = op instanceof Join ? ((Join) op).getJoinPredicate() : ((HashEquiJoin) op).getJoinPredicate();
+            DbIterator[] children = j.getChildren();
+            return op.getClass().getSimpleName() + " "
+                    + children[0].getTupleDesc().getFieldName(p.getField1()) + " " + p.getOperator() + " "
+                    + children[1].getTupleDesc().getFieldName(p.getField2());
+        }
+        if (op instanceof Aggregate) {
+            Aggregate a = (Aggregate) op;
+            return a.groupField() == Aggregator.NO_GROUPING ? "Aggregate"
+                    : "Aggregate group by " + a.groupFieldName();
+        }
+        if (op instanceof OrderBy)
+            return "OrderBy " + op.getTupleDesc().getFieldName(((OrderBy) op).getOrderByField());
+        if (op instanceof Exchange)
+            return ((Exchange) op).getName();
+        return op.getClass().getSimpleName();
+    }
+
+    /**
+     * A decorator counting the tuples returned by an iterator and the time
+     * and pages spent in its calls.
+     */
+    public static class Instrumented extends Operator {
+
+        private static final long serialVersionUID = 1L;
+
+        private DbIterator child;
+        private final boolean timing;
+        private long rows = 0, opens = 0, wallNanos = 0, cpuNanos = 0, pages = 0, misses = 0;
+        // the calls for the next tuple, those whose CPU time was measured and
+        // the CPU time they took
+        private long calls = 0, sampledCalls = 0, sampledCpuNanos = 0;
+
+        // snapshots taken at the start of the current call
+        private transient long wall0, cpu0, pages0, misses0;
+        // the page counts of the thread last calling the iterator
+        private transient Thread thread;
+        private transient long[] counts;
+
+        Instrumented(DbIterator child, boolean timing) {
+            this.child = child;
+            this.timing = timing;
+            if (child instanceof Operator)
+                setEstimatedCardinality(((Operator) child).getEstimatedCardinality());
+        }
+
+        /** @return the number of tuples returned */
+        public long getRows() {
+            return rows;
+        }
+
+        /** @return the number of times the iterator was opened */
+        public long getOpens() {
+            return opens;
+        }
+
+        /** @return the wall clock time spent in calls of the iterator */
+        public long getWallNanos() {
+            return wallNanos;
+        }
+
+        /** @return the CPU time of the calling thread spent in calls of the
+            iterator, extrapolated from the calls for the next tuple that
+            were measured */
+        public long getCpuNanos() {
+            if (sampledCalls == 0)
+                return cpuNanos;
+            return cpuNanos + sampledCpuNanos * calls / sampledCalls;
+        }
+
+        /** @return the number of pages requested during calls of the iterator */
+        public long getPages() {
+            return pages;
+        }
+
+        /** @return the number of the requested pages that were read from disk */
+        public long getMisses() {
+            return misses;
+        }
+
+        private void start(boolean cpu) {
+            Thread t = Thread.currentThread();
+            if (t != thread) {
+                thread = t;
+                counts = BufferPool.threadPageCounts();
+            }
+            pages0 = counts[0];
+            misses0 = counts[1];
+            if (cpu)
+                cpu0 = threads.getCurrentThreadCpuTime();
+            wall0 = System.nanoTime();
+        }
+
+        /** @return the CPU time of the call, if measured */
+        private long stop(boolean cpu) {
+            wallNanos += System.nanoTime() - wall0;
+            pages += counts[0] - pages0;
+            misses += counts[1] - misses0;
+            return cpu ? threads.getCurrentThreadCpuTime() - cpu0 : 0;
+        }
+
+        public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+            opens++;
+            start(true);
+            try {
+                child.open();
+            } finally {
+                cpuNanos += stop(true);
+            }
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            child.close();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            start(true);
+            try {
+                child.rewind();
+            } finally {
+                cpuNanos += stop(true);
+            }
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            if (!timing)
+                return next(child);
+            boolean cpu = calls++ % CPU_SAMPLE == 0;
+            start(cpu);
+            try {
+                return next(child);
+            } finally {
+                long nanos = stop(cpu);
+                if (cpu) {
+                    sampledCalls++;
+                    sampledCpuNanos += nanos;
+                }
+            }
+        }
+
+        private Tuple next(DbIterator child) throws DbException, TransactionAbortedException {
+            if (!child.hasNext())
+                return null;
+            rows++;
+            return child.next();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return child.getTupleDesc();
+        }
+
+        public DbIterator[] getChildren() {
+            return new DbIterator[] { child };
+        }
+
+        public void setChildren(DbIterator[] children) {
+            child = children[0];
+        }
+    }
+}
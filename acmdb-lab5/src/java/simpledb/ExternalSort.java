@@ -0,0 +1,200 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * ExternalSort sorts the tuples of its child on a field, using at most a
+ * given number of tuples of memory.  The child is cut into sorted runs of
+ * that many tuples; a single run is returned straight from memory, and
+ * several are written to {@link SpillFile}s and merged.  Tuples with equal
+ * keys are returned in the order the child returned them.
+ */
+class ExternalSort extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private final TupleComparator cmp;
+    private final int runTuples;
+
+    private ArrayList<Tuple> memory;
+    private Iterator<Tuple> memoryIt;
+    private ArrayList<SpillFile> runs;
+    private PriorityQueue<RunHead> heads;
+    private int numTuples;
+
+    /**
+     * @param child the tuples to sort
+     * @param field the field to sort on
+     * @param asc whether to sort in ascending order
+     * @param runTuples the number of tuples sorted in memory at a time
+     */
+    ExternalSort(DbIterator child, int field, boolean asc, int runTuples) {
+        this(child, new int[] { field }, asc, runTuples);
+    }
+
+    /**
+     * @param child the tuples to sort
+     * @param fields the fields to sort on, tuples equal on a field being
+     *        ordered by the next one
+     * @param asc whether to sort in ascending order
+     * @param runTuples the number of tuples sorted in memory at a time
+     */
+    ExternalSort(DbIterator child, int[] fields, boolean asc, int runTuples) {
+        if (runTuples < 1)
+            throw new IllegalArgumentException("a run has to hold a tuple");
+        this.child = child;
+        this.cmp = new TupleComparator(fields, asc);
+        this.runTuples = runTuples;
+    }
+
+    /** @return the number of tuples sorted, once opened */
+    int numTuples() {
+        return numTuples;
+    }
+
+    /** @return the number of runs written to disk, once opened */
+    int numRuns() {
+        return runs == null ? 0 : runs.size();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (memory == null && runs == null)
+            makeRuns();
+        if (runs == null) {
+            memoryIt = memory.iterator();
+        } else {
+            heads = new PriorityQueue<RunHead>();
+            for (int i = 0; i < runs.size(); i++) {
+                DbIterator it = openRun(runs.get(i));
+                if (it.hasNext())
+                    heads.add(new RunHead(i, it, it.next()));
+                else
+                    it.close();
+            }
+        }
+        super.open();
+    }
+
+    private void makeRuns() throws DbException, TransactionAbortedException {
+        ArrayList<Tuple> buffer = new ArrayList<Tuple>();
+        numTuples = 0;
+        child.open();
+        try {
+            while (child.hasNext()) {
+                buffer.add(child.next());
+                numTuples++;
+                if (buffer.size() < runTuples || !child.hasNext())
+                    continue;
+                if (runs == null)
+                    runs = new ArrayList<SpillFile>();
+                runs.add(writeRun(buffer));
+                buffer.clear();
+            }
+            // Collections.sort is stable, and runs are merged in the order
+            // they were cut, so equal keys keep their order
+            if (runs == null) {
+                Collections.sort(buffer, cmp);
+                memory = buffer;
+            } else if (!buffer.isEmpty()) {
+                runs.add(writeRun(buffer));
+            }
+        } catch (IOException e) {
+            throw new DbException("unable to write sorted run: " + e.getMessage());
+        } finally {
+            child.close();
+        }
+    }
+
+    private SpillFile writeRun(ArrayList<Tuple> buffer) throws IOException {
+        Collections.sort(buffer, cmp);
+        SpillFile run = new SpillFile(child.getTupleDesc());
+        for (Tuple t : buffer)
+            run.add(t);
+        return run;
+    }
+
+    private static DbIterator openRun(SpillFile f) throws DbException {
+        try {
+            DbIterator it = f.iterator();
+            it.open();
+            return it;
+        } catch (IOException e) {
+            throw new DbException("unable to read sorted run: " + e.getMessage());
+        } catch (TransactionAbortedException e) {
+            throw new DbException("unexpected abort reading sorted run");
+        }
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (memoryIt != null)
+            return memoryIt.hasNext() ? memoryIt.next() : null;
+        if (heads == null || heads.isEmpty())
+            return null;
+        RunHead head = heads.poll();
+        Tuple t = head.tuple;
+        if (head.it.hasNext()) {
+            head.tuple = head.it.next();
+            heads.add(head);
+        } else {
+            head.it.close();
+        }
+        return t;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        closeRuns();
+        open();
+    }
+
+    private void closeRuns() {
+        memoryIt = null;
+        if (heads != null) {
+            for (RunHead head : heads)
+                head.it.close();
+            heads = null;
+        }
+    }
+
+    /** Closes the iterator and deletes its runs; opening it again sorts the child again. */
+    public void close() {
+        super.close();
+        closeRuns();
+        memory = null;
+        if (runs != null) {
+            for (SpillFile run : runs)
+                run.delete();
+            runs = null;
+        }
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child };
+    }
+
+    public void setChildren(DbIterator[] children) {
+        child = children[0];
+    }
+
+    private class RunHead implements Comparable<RunHead> {
+        final int run;
+        final DbIterator it;
+        Tuple tuple;
+
+        RunHead(int run, DbIterator it, Tuple tuple) {
+            this.run = run;
+            this.it = it;
+            this.tuple = tuple;
+        }
+
+        public int compareTo(RunHead o) {
+            int c = cmp.compare(tuple, o.tuple);
+            return c != 0 ? c : Integer.compare(run, o.run);
+        }
+    }
+}
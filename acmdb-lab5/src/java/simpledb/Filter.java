@@ -11,6 +11,11 @@ public class Filter extends Operator {
 
     private Predicate p;
     private DbIterator child;
+    /** The input read while open: the child, or the input of the chain of
+        Filters below this one if they are evaluated by this one */
+    private transient DbIterator input;
+    /** The compiled predicates of the Filters evaluated by this one, or null */
+    private transient QueryCompiler.TupleTest test;
     /**
      * Constructor accepts a predicate to apply and a child operator to read
      * tuples to filter from.
@@ -36,11 +41,30 @@ public class Filter extends Operator {
         return child.getTupleDesc();
     }
 
+    /**
+     * Open the Filter.  If query compilation is enabled, this Filter and the
+     * chain of Filters below it are compiled into one test, which this Filter
+     * applies to the input of the chain.  The Filters below are opened as
+     * usual, but this one reads past them.
+     *
+     * @see QueryCompiler
+     */
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
         super.open();
         child.open();
+        input = child;
+        test = null;
+        if (QueryCompiler.isEnabled()) {
+            ArrayList<Predicate> preds = new ArrayList<Predicate>();
+            preds.add(p);
+            while (input instanceof Filter) {
+                preds.add(((Filter) input).p);
+                input = ((Filter) input).child;
+            }
+            test = QueryCompiler.compile(preds);
+        }
     }
 
     public void close() {
@@ -67,6 +91,14 @@ public class Filter extends Operator {
             TransactionAbortedException, DbException {
         // some code goes here
 //    TODO
+        if (test != null) {
+            while (input.hasNext()) {
+                Tuple next = input.next();
+                if (test.matches(next))
+                    return next;
+            }
+            return null;
+        }
         while (child.hasNext()){
             Tuple next = child.next();
             if (p.filter(next)) {
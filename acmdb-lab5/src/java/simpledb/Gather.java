@@ -0,0 +1,30 @@
+package simpledb;
+
+/**
+ * Gather runs copies of a pipeline concurrently and merges their output into
+ * a single stream, in no particular order.
+ * <p>
+ * Gather is the top of a parallel region: the copies must together produce
+ * the output of the pipeline exactly once, e.g. because their scans share a
+ * {@link PageCursor} (see {@link ParallelSeqScan#pipelines}) or because they
+ * each read one partition of a {@link Repartition}.  Rewinding a Gather
+ * starts their cursor over and reruns all the copies.
+ */
+public class Gather extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor.
+     *
+     * @param inputs
+     *            the copies of the pipeline to run, one per worker
+     */
+    public Gather(DbIterator[] inputs) {
+        super(new ExchangeBuffer(inputs, 1, 0), 0);
+    }
+
+    public String getName() {
+        return "gather(" + getChildren().length + " workers)";
+    }
+}
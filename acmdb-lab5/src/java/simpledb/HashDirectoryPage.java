@@ -0,0 +1,103 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * HashDirectoryPage lists the page numbers of the first pages of a range of
+ * buckets of a {@link HashFile}; the {@link HashHeaderPage} lists the
+ * directory pages.  Since a file adds directory pages as it splits buckets,
+ * the number of its buckets is not bounded by the size of one page.
+ * <p>
+ * The format of the page is the page numbers of the first pages of
+ * {@link #getMaxBuckets()} buckets, 0 for buckets that do not exist yet.
+ */
+public class HashDirectoryPage implements Page {
+
+    private final HashPageId pid;
+    private final int[] buckets;
+
+    private volatile TransactionId dirtier;
+    private byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    /**
+     * Create a HashDirectoryPage from a set of bytes of data read from disk.
+     */
+    public HashDirectoryPage(HashPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        buckets = new int[getMaxBuckets()];
+        for (int i = 0; i < buckets.length; i++)
+            buckets[i] = dis.readInt();
+        dis.close();
+        setBeforeImage();
+    }
+
+    /** @return the number of buckets a directory page can list */
+    public static int getMaxBuckets() {
+        return BufferPool.getPageSize() / 4;
+    }
+
+    /**
+     * @return the data of the directory page of a new hash file, whose one
+     *         bucket starts at page 2
+     */
+    public static byte[] createInitialPageData() {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        data[3] = 2;
+        return data;
+    }
+
+    public HashPageId getId() {
+        return pid;
+    }
+
+    /** @return the page number of the first page of a bucket */
+    public int getBucketPage(int bucket) {
+        return buckets[bucket % getMaxBuckets()];
+    }
+
+    /** Set the page number of the first page of a new bucket */
+    public void setBucketPage(int bucket, int pgNo) {
+        buckets[bucket % getMaxBuckets()] = pgNo;
+    }
+
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int b : buckets)
+                dos.writeInt(b);
+            dos.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirtier = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return dirtier;
+    }
+
+    public HashDirectoryPage getBeforeImage() {
+        try {
+            byte[] oldDataRef;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            return new HashDirectoryPage(pid, oldDataRef);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData().clone();
+        }
+    }
+}
@@ -0,0 +1,618 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * HashFile is an implementation of a DbFile that stores its tuples in the
+ * buckets of a linear hash table on one of their fields, so that the tuples
+ * with a given key can be found by reading the pages of a single bucket.
+ * Page 0 of the file is a {@link HashHeaderPage}, which lists the
+ * {@link HashDirectoryPage}s that list the first page of every bucket; every
+ * other page is a {@link HashPage}, which is either the first page of a
+ * bucket or an overflow page chained after another page of the same bucket.
+ * <p>
+ * When an insert fills a page, the bucket the header page names next is
+ * split: a new bucket is added, and the tuples of the split bucket whose
+ * hash has the next bit set move there.  This keeps the chains about one
+ * page long without ever rehashing the whole file.
+ *
+ * @see simpledb.HashHeaderPage#HashHeaderPage
+ * @see simpledb.HashPage#HashPage
+ */
+public class HashFile implements DbFile {
+
+    private final File f;
+    private final TupleDesc td;
+    private final int tableid;
+    private final int keyField;
+
+    /** Guards the header and directory pages, which are read without locks */
+    private final Object latch = new Object();
+    /** The last transaction to lock the header page, to split buckets */
+    private TransactionId splitter;
+    private final Object splitLock = new Object();
+    /** Pages no chain or free list refers to, given back by aborted transactions */
+    private final ArrayDeque<Integer> spare = new ArrayDeque<Integer>();
+    /** Pages each running transaction took from spare or added to the file */
+    private final HashMap<TransactionId, ArrayList<HashPageId>> taken =
+            new HashMap<TransactionId, ArrayList<HashPageId>>();
+
+    /**
+     * Constructs a hash file backed by the specified file.
+     *
+     * @param f the file that stores the on-disk backing store for this hash
+     *          file
+     * @param key the field the tuples are hashed on
+     * @param td the tuple descriptor of tuples in the file
+     */
+    public HashFile(File f, int key, TupleDesc td) {
+        this.f = f;
+        this.tableid = f.getAbsoluteFile().hashCode();
+        this.keyField = key;
+        this.td = td;
+    }
+
+    /**
+     * Returns the File backing this HashFile on disk.
+     */
+    public File getFile() {
+        return f;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this HashFile, the hash code of the
+     * absolute name of its file.
+     */
+    public int getId() {
+        return tableid;
+    }
+
+    /**
+     * Returns the index of the field that the tuples are hashed on.
+     */
+    public int keyField() {
+        return keyField;
+    }
+
+    /**
+     * Returns the TupleDesc of the table stored in this DbFile.
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Returns the number of pages in this HashFile, including its header
+     * page.
+     */
+    public int numPages() {
+        return (int) (f.length() / BufferPool.getPageSize());
+    }
+
+    /**
+     * Returns the number of buckets of this HashFile as of its header page
+     * on disk, without locking it; for statistics only.
+     */
+    public int numBuckets() {
+        if (numPages() == 0)
+            return 1;
+        return ((HashHeaderPage) readPage(HashHeaderPage.getId(tableid))).getNumBuckets();
+    }
+
+    /**
+     * @return the hash of a key, which is never negative.  The hash codes of
+     *         the fields are mixed, since the hash code of an IntField is its
+     *         value and the low bits pick the bucket.
+     */
+    static int hash(Field key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h & 0x7fffffff;
+    }
+
+    /**
+     * Read a page from the file on disk.  This should not be called directly
+     * but should be called from the BufferPool via getPage().
+     */
+    public Page readPage(PageId pid) {
+        HashPageId id = (HashPageId) pid;
+        byte[] data = new byte[BufferPool.getPageSize()];
+        RandomAccessFile rf = null;
+        try {
+            rf = new RandomAccessFile(f, "r");
+            rf.seek((long) id.pageNumber() * BufferPool.getPageSize());
+            if (rf.read(data, 0, data.length) < data.length)
+                throw new IllegalArgumentException("Read past end of table");
+            switch (id.pgcateg()) {
+            case HashPageId.HEADER:
+                return new HashHeaderPage(id, data);
+            case HashPageId.DIRECTORY:
+                return new HashDirectoryPage(id, data);
+            default:
+                return new HashPage(id, data);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            try {
+                if (rf != null)
+                    rf.close();
+            } catch (IOException ioe) {
+                // Ignore failures closing the file
+            }
+        }
+    }
+
+    /**
+     * Write a page to disk.  This should not be called directly but should
+     * be called from the BufferPool when pages are flushed to disk.
+     */
+    public void writePage(Page page) throws IOException {
+        RandomAccessFile rf = new RandomAccessFile(f, "rw");
+        try {
+            rf.seek((long) page.getId().pageNumber() * BufferPool.getPageSize());
+            rf.write(page.getPageData());
+        } finally {
+            rf.close();
+        }
+    }
+
+    /**
+     * Create the header page, the directory page and the first page of the
+     * one bucket if the file is empty.
+     */
+    private synchronized void createHeaderPage() throws IOException {
+        if (f.length() == 0) {
+            BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f, true));
+            bw.write(HashHeaderPage.createInitialPageData());
+            bw.write(HashDirectoryPage.createInitialPageData());
+            bw.write(HashPage.createEmptyPageData());
+            bw.close();
+        }
+    }
+
+    /** @return the id of a page of the file that holds tuples */
+    private HashPageId bucketPageId(int pgNo) {
+        return new HashPageId(tableid, pgNo, HashPageId.BUCKET);
+    }
+
+    /**
+     * Get an empty page for a chain: the first free page if the transaction
+     * holds the header page, which it does once it has split a bucket,
+     * otherwise one from {@link #getNewPage}.
+     *
+     * @return the empty page, locked for writing
+     */
+    private HashPage getEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages)
+            throws DbException, IOException, TransactionAbortedException {
+        HashPageId headerId = HashHeaderPage.getId(tableid);
+        HashHeaderPage header = null;
+        if (Database.getBufferPool().holdsLock(tid, headerId))
+            header = (HashHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+        if (header != null && header.getFreePage() != 0) {
+            HashPage page = (HashPage) getPage(tid, dirtypages, bucketPageId(header.getFreePage()),
+                    Permissions.READ_WRITE);
+            header.setFreePage(page.getOverflow());
+            page.setOverflow(0);
+            return page;
+        }
+        return (HashPage) getNewPage(tid, dirtypages, HashPageId.BUCKET);
+    }
+
+    /**
+     * Get a page of the given category that no chain or free list refers
+     * to: a spare page, if there is one, otherwise a new page at the end of
+     * the file.  A new page is written to disk right away, so that no other
+     * transaction is given the same page.  Either way the page is taken on
+     * behalf of the transaction, and becomes a spare page again if it
+     * aborts.
+     *
+     * @return the empty page, locked for writing
+     */
+    private Page getNewPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pgcateg)
+            throws DbException, IOException, TransactionAbortedException {
+        HashPageId pid;
+        synchronized (this) {
+            Integer pgNo = spare.poll();
+            if (pgNo == null) {
+                pgNo = numPages();
+                RandomAccessFile rf = new RandomAccessFile(f, "rw");
+                try {
+                    rf.seek((long) pgNo * BufferPool.getPageSize());
+                    rf.write(HashPage.createEmptyPageData());
+                } finally {
+                    rf.close();
+                }
+            }
+            pid = new HashPageId(tableid, pgNo, pgcateg);
+            take(tid, pid);
+        }
+        Database.getBufferPool().discardPage(pid);
+        dirtypages.remove(pid);
+        return getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+    }
+
+    /** Record that a transaction took a page, which it gives back if it aborts */
+    private synchronized void take(TransactionId tid, HashPageId pid) {
+        ArrayList<HashPageId> pages = taken.get(tid);
+        if (pages == null) {
+            pages = new ArrayList<HashPageId>();
+            taken.put(tid, pages);
+        }
+        pages.add(pid);
+    }
+
+    /**
+     * Make the pages an aborted transaction took spare pages again: what it
+     * wrote to them was rolled back, so nothing refers to them, and they are
+     * empty on disk.
+     */
+    public void transactionComplete(TransactionId tid, boolean commit) {
+        ArrayList<HashPageId> pages;
+        synchronized (this) {
+            pages = taken.remove(tid);
+        }
+        if (pages == null || commit)
+            return;
+        for (HashPageId pid : pages)
+            Database.getBufferPool().discardPage(pid);
+        synchronized (this) {
+            for (HashPageId pid : pages)
+                spare.add(pid.pageNumber());
+        }
+    }
+
+    /**
+     * Method to encapsulate the process of locking/fetching a page, which
+     * returns the page from dirtypages if this operation has dirtied it
+     * already.  A read-only operation passes no dirtypages.
+     *
+     * @see BTreeFile#getPage(TransactionId, HashMap, BTreePageId, Permissions)
+     */
+    private Page getPage(TransactionId tid, HashMap<PageId, Page> dirtypages, HashPageId pid,
+            Permissions perm) throws DbException, TransactionAbortedException {
+        if (dirtypages != null && dirtypages.containsKey(pid))
+            return dirtypages.get(pid);
+        Page p = Database.getBufferPool().getPage(tid, pid, perm);
+        if (dirtypages != null && perm == Permissions.READ_WRITE)
+            dirtypages.put(pid, p);
+        return p;
+    }
+
+    /**
+     * Find and read-lock the first page of a bucket.  The header and
+     * directory pages are not locked, so that neither readers nor inserters
+     * wait for a split of another bucket: they are read optimistically under
+     * the latch, and read again if a split began or completed before the
+     * bucket page was locked.  A split locks the chain of the bucket it
+     * splits before it changes them, so a bucket found this way stays put
+     * while its first page is locked.
+     *
+     * @param hash the hash of the key whose bucket to find, or -1 to find
+     *        the given bucket
+     * @return the first page of the bucket, or null if hash is -1 and there
+     *         is no such bucket
+     */
+    private HashPage lockBucket(TransactionId tid, HashMap<PageId, Page> dirtypages, int hash,
+            int bucket) throws DbException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        HashPageId headerId = HashHeaderPage.getId(tableid);
+        while (true) {
+            long version = bp.optimisticRead(tid, headerId, true);
+            int pgNo = 0;
+            synchronized (latch) {
+                HashHeaderPage header = (HashHeaderPage) bp.getPageUnlocked(headerId);
+                if (hash >= 0)
+                    bucket = header.bucket(hash);
+                if (bucket < header.getNumBuckets())
+                    pgNo = ((HashDirectoryPage) bp.getPageUnlocked(directoryPageId(header, bucket)))
+                            .getBucketPage(bucket);
+            }
+            boolean held = pgNo != 0 && bp.holdsLock(tid, bucketPageId(pgNo));
+            HashPage page = pgNo == 0 ? null
+                    : (HashPage) getPage(tid, dirtypages, bucketPageId(pgNo), Permissions.READ_ONLY);
+            if (bp.validateRead(tid, headerId, version, true))
+                return page;
+            // nothing was read from the page, so it need not stay locked
+            if (page != null && !held)
+                bp.releasePage(tid, page.getId());
+        }
+    }
+
+    /** @return the id of the directory page that lists a bucket */
+    private HashPageId directoryPageId(HashHeaderPage header, int bucket) {
+        return new HashPageId(tableid, header.getDirectoryPage(bucket), HashPageId.DIRECTORY);
+    }
+
+    /**
+     * Lock the header page for writing to split a bucket, unless another
+     * transaction holds it: it is splitting buckets itself, and keeps the
+     * lock until it completes, so that an abort undoes its splits.  Nothing
+     * else locks the header page, so this never waits.
+     *
+     * @return the header page, or null if another transaction is splitting
+     */
+    private HashHeaderPage lockHeader(TransactionId tid, HashMap<PageId, Page> dirtypages)
+            throws DbException, TransactionAbortedException {
+        HashPageId headerId = HashHeaderPage.getId(tableid);
+        synchronized (splitLock) {
+            if (splitter != null && !splitter.equals(tid)
+                    && Database.getBufferPool().holdsLock(splitter, headerId))
+                return null;
+            splitter = tid;
+            return (HashHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+        }
+    }
+
+    /**
+     * Insert a tuple into the bucket its key hashes to, and split a bucket
+     * if the insert filled a page of the chain, so that chains stay about one
+     * page long.
+     *
+     * @return a list of all pages that were dirtied by this operation
+     */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        createHeaderPage();
+        HashPage first = lockBucket(tid, dirtypages, hash(t.getField(keyField)), 0);
+        if (addToBucket(tid, dirtypages, first, t))
+            splitBucket(tid, dirtypages);
+        return new ArrayList<Page>(dirtypages.values());
+    }
+
+    /**
+     * Insert a tuple into the first page with a free slot of the chain that
+     * starts at the given page, adding an overflow page to the end of the
+     * chain if all of its pages are full.
+     *
+     * @return true if the page the tuple was inserted into is now full
+     */
+    private boolean addToBucket(TransactionId tid, HashMap<PageId, Page> dirtypages,
+            HashPage first, Tuple t) throws DbException, IOException, TransactionAbortedException {
+        // look for room with read locks, and lock only the page written
+        HashPage page = first;
+        while (page.getNumEmptySlots() == 0 && page.getOverflow() != 0)
+            page = (HashPage) getPage(tid, dirtypages, bucketPageId(page.getOverflow()),
+                    Permissions.READ_ONLY);
+        page = (HashPage) getPage(tid, dirtypages, page.getId(), Permissions.READ_WRITE);
+        if (page.getNumEmptySlots() == 0) {
+            HashPage overflow = getEmptyPage(tid, dirtypages);
+            page.setOverflow(overflow.getId().pageNumber());
+            page = overflow;
+        }
+        page.insertTuple(t);
+        return page.getNumEmptySlots() == 0;
+    }
+
+    /**
+     * Split the bucket the header page names next: add a bucket, and
+     * rewrite the chain of the split bucket into two, one with the tuples
+     * that stay and one with those that now hash to the new bucket.  The
+     * pages of the old chain are reused, and those left over are freed.  A
+     * directory page is added if the new bucket is the first one it lists.
+     * <p>
+     * The split is skipped if another transaction is splitting buckets; a
+     * later insert splits instead.  The chain of the split bucket is locked
+     * before the header and directory pages change, under the latch, so that
+     * readers that found the bucket by either version of them wait for the
+     * split to complete.
+     */
+    private void splitBucket(TransactionId tid, HashMap<PageId, Page> dirtypages)
+            throws DbException, IOException, TransactionAbortedException {
+        HashHeaderPage header = lockHeader(tid, dirtypages);
+        if (header == null || header.getNumBuckets() == HashHeaderPage.getMaxBuckets())
+            return;
+        // spare pages go on the free list, so that they are not lost when the
+        // file is reopened
+        while (true) {
+            HashPageId pid;
+            synchronized (this) {
+                Integer pgNo = spare.poll();
+                if (pgNo == null)
+                    break;
+                pid = bucketPageId(pgNo);
+                take(tid, pid);
+            }
+            HashPage page = (HashPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+            page.setOverflow(header.getFreePage());
+            header.setFreePage(pid.pageNumber());
+        }
+        int split = header.getNext();
+        int newBucket = header.getNumBuckets();
+        ArrayDeque<HashPage> pages = new ArrayDeque<HashPage>();
+        HashDirectoryPage directory = (HashDirectoryPage) getPage(tid, dirtypages,
+                directoryPageId(header, split), Permissions.READ_ONLY);
+        for (int pgNo = directory.getBucketPage(split); pgNo != 0; ) {
+            HashPage page = (HashPage) getPage(tid, dirtypages, bucketPageId(pgNo), Permissions.READ_WRITE);
+            pgNo = page.getOverflow();
+            pages.add(page);
+        }
+        int dirPgNo = header.getDirectoryPage(newBucket);
+        if (dirPgNo == 0)
+            dirPgNo = getNewPage(tid, dirtypages, HashPageId.DIRECTORY).getId().pageNumber();
+        directory = (HashDirectoryPage) getPage(tid, dirtypages,
+                new HashPageId(tableid, dirPgNo, HashPageId.DIRECTORY), Permissions.READ_WRITE);
+        HashPage newPage = getEmptyPage(tid, dirtypages);
+        synchronized (latch) {
+            header.setDirectoryPage(newBucket, dirPgNo);
+            directory.setBucketPage(newBucket, newPage.getId().pageNumber());
+            header.split();
+        }
+
+        ArrayList<Tuple> stay = new ArrayList<Tuple>();
+        ArrayList<Tuple> moved = new ArrayList<Tuple>();
+        for (HashPage page : pages) {
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                page.deleteTuple(t);
+                if (header.bucket(hash(t.getField(keyField))) == split)
+                    stay.add(t);
+                else
+                    moved.add(t);
+            }
+            page.setOverflow(0);
+        }
+        fillChain(tid, dirtypages, pages.poll(), stay, pages);
+        fillChain(tid, dirtypages, newPage, moved, pages);
+        for (HashPage page : pages) {
+            page.setOverflow(header.getFreePage());
+            header.setFreePage(page.getId().pageNumber());
+        }
+    }
+
+    /**
+     * Insert tuples into the empty page first and the overflow pages chained
+     * after it, which are taken from spare as long as there are any.
+     */
+    private void fillChain(TransactionId tid, HashMap<PageId, Page> dirtypages, HashPage first,
+            List<Tuple> tuples, Deque<HashPage> spare)
+            throws DbException, IOException, TransactionAbortedException {
+        HashPage page = first;
+        for (Tuple t : tuples) {
+            if (page.getNumEmptySlots() == 0) {
+                HashPage next = spare.isEmpty() ? getEmptyPage(tid, dirtypages) : spare.poll();
+                page.setOverflow(next.getId().pageNumber());
+                page = next;
+            }
+            page.insertTuple(t);
+        }
+    }
+
+    /**
+     * Delete a tuple from the page its RecordId names.
+     *
+     * @return a list of all pages that were dirtied by this operation
+     */
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !(rid.getPageId() instanceof HashPageId)
+                || rid.getPageId().getTableId() != tableid)
+            throw new DbException("tuple is not in hash file " + tableid);
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        HashPage page = (HashPage) getPage(tid, dirtypages, (HashPageId) rid.getPageId(),
+                Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        return new ArrayList<Page>(dirtypages.values());
+    }
+
+    /**
+     * Get an iterator for all tuples in this hash file, bucket by bucket.
+     */
+    public DbFileIterator iterator(TransactionId tid) {
+        return new HashFileIterator(tid, null, false);
+    }
+
+    /**
+     * Get an iterator for all tuples in this hash file that unlocks every
+     * page as soon as it has read it, for statistics, which need no
+     * isolation.  Since it holds no lock while it waits for one, it keeps no
+     * writer waiting and is never part of a deadlock.
+     */
+    DbFileIterator unlockingIterator(TransactionId tid) {
+        return new HashFileIterator(tid, null, true);
+    }
+
+    /**
+     * Get an iterator for the tuples matching an index predicate on the key
+     * field.  An EQUALS predicate reads the pages of one bucket only; since
+     * the buckets are in no order, any other predicate reads all of them.
+     */
+    public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+        return new HashFileIterator(tid, ipred, false);
+    }
+
+    /**
+     * Iterator over the tuples of the buckets of a hash file that match an
+     * index predicate, if any, which unlocks the pages it has read if asked
+     * to.
+     */
+    private class HashFileIterator extends AbstractDbFileIterator {
+
+        private final TransactionId tid;
+        private final IndexPredicate ipred;
+        private final boolean unlock;
+        private boolean open;
+        private boolean done;
+        private int bucket;
+        private int nextPage;
+        private Iterator<Tuple> it;
+
+        HashFileIterator(TransactionId tid, IndexPredicate ipred, boolean unlock) {
+            this.tid = tid;
+            this.ipred = ipred;
+            this.unlock = unlock;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            try {
+                createHeaderPage();
+            } catch (IOException e) {
+                throw new DbException("unable to create hash file " + f + ": " + e);
+            }
+            open = true;
+            done = false;
+            bucket = 0;
+            nextPage = 0;
+            it = null;
+        }
+
+        /**
+         * Read the next bucket: the one the key hashes to for an EQUALS
+         * predicate, otherwise buckets 0 and up as long as there are any.  A
+         * bucket a split adds while the scan runs is read as well, so the
+         * tuples it moves from buckets not read yet are not missed; buckets
+         * read already cannot be split, since their pages stay locked.
+         */
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (!open)
+                return null;
+            while (true) {
+                if (it != null && it.hasNext()) {
+                    Tuple t = it.next();
+                    if (ipred == null || t.getField(keyField).compare(ipred.getOp(), ipred.getField()))
+                        return t;
+                } else if (nextPage != 0) {
+                    HashPage page = (HashPage) Database.getBufferPool().getPage(tid,
+                            bucketPageId(nextPage), Permissions.READ_ONLY);
+                    read(page);
+                } else if (!done) {
+                    boolean lookup = ipred != null && ipred.getOp() == Predicate.Op.EQUALS;
+                    HashPage page = lookup ? lockBucket(tid, null, hash(ipred.getField()), 0)
+                            : lockBucket(tid, null, -1, bucket++);
+                    done = lookup || page == null;
+                    if (page != null)
+                        read(page);
+                } else {
+                    return null;
+                }
+            }
+        }
+
+        /** Read the tuples of a page, and the page after it in its chain */
+        private void read(HashPage page) {
+            it = page.iterator();
+            nextPage = page.getOverflow();
+            if (unlock)
+                Database.getBufferPool().releasePage(tid, page.getId());
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            open = false;
+            it = null;
+        }
+    }
+}
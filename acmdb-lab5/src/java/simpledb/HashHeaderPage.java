@@ -0,0 +1,191 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * HashHeaderPage is the first page of a {@link HashFile}.  It holds the
+ * state of its linear hashing: the level, the next bucket to split, and the
+ * page numbers of the {@link HashDirectoryPage}s that list the first page of
+ * every bucket, as well as the first page of the list of free pages, which
+ * are chained by their overflow pointers.  There are 2^level + next
+ * buckets; a key whose hash modulo 2^level is less than next belongs to the
+ * bucket given by its hash modulo 2^(level+1).  Directory page i lists
+ * buckets i * {@link HashDirectoryPage#getMaxBuckets()} and up, and is
+ * added when the first of them is.
+ * <p>
+ * The format of the page is the level, next and the first free page as
+ * integers, followed by the page numbers of the directory pages, which the
+ * page has room for {@link #getMaxDirectories()} of.
+ */
+public class HashHeaderPage implements Page {
+
+    private final HashPageId pid;
+    private int level;
+    private int next;
+    private int free;
+    private final int[] directories;
+
+    private volatile TransactionId dirtier;
+    private byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    /**
+     * Create a HashHeaderPage from a set of bytes of data read from disk.
+     */
+    public HashHeaderPage(HashPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        level = dis.readInt();
+        next = dis.readInt();
+        free = dis.readInt();
+        directories = new int[getMaxDirectories()];
+        for (int i = 0; i < directories.length; i++)
+            directories[i] = dis.readInt();
+        dis.close();
+        setBeforeImage();
+    }
+
+    /** @return the number of directory pages a header page can list */
+    public static int getMaxDirectories() {
+        return BufferPool.getPageSize() / 4 - 3;
+    }
+
+    /** @return the number of buckets a hash file can have */
+    public static int getMaxBuckets() {
+        return getMaxDirectories() * HashDirectoryPage.getMaxBuckets();
+    }
+
+    /**
+     * There is only one header page per hash file.
+     *
+     * @param tableid the tableid of the hash file
+     * @return the id of its header page
+     */
+    public static HashPageId getId(int tableid) {
+        return new HashPageId(tableid, 0, HashPageId.HEADER);
+    }
+
+    /**
+     * @return the data of the header page of a new hash file, whose one
+     *         directory page is page 1
+     */
+    public static byte[] createInitialPageData() {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        data[15] = 1;
+        return data;
+    }
+
+    public HashPageId getId() {
+        return pid;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getNext() {
+        return next;
+    }
+
+    public int getNumBuckets() {
+        return (1 << level) + next;
+    }
+
+    /** @return the page number of the first free page, or 0 if there is none */
+    public int getFreePage() {
+        return free;
+    }
+
+    public void setFreePage(int pgNo) {
+        this.free = pgNo;
+    }
+
+    /** @return the bucket a key with the given hash belongs to */
+    public int bucket(int hash) {
+        int b = hash & ((1 << level) - 1);
+        if (b < next)
+            b = hash & ((1 << (level + 1)) - 1);
+        return b;
+    }
+
+    /**
+     * @return the page number of the directory page that lists a bucket, or
+     *         0 if the bucket is the first one of a directory page that has
+     *         not been added yet
+     */
+    public int getDirectoryPage(int bucket) {
+        if (bucket < 0 || bucket > getNumBuckets() || bucket >= getMaxBuckets())
+            throw new IllegalArgumentException("no bucket " + bucket);
+        return directories[bucket / HashDirectoryPage.getMaxBuckets()];
+    }
+
+    /** Set the page number of the directory page that lists a bucket */
+    public void setDirectoryPage(int bucket, int pgNo) {
+        directories[bucket / HashDirectoryPage.getMaxBuckets()] = pgNo;
+    }
+
+    /**
+     * Split bucket next: add bucket getNumBuckets(), which the keys of the
+     * split bucket with the next bit of their hash set move to, and advance
+     * next.  The directory page that lists the new bucket has to be set
+     * first.
+     *
+     * @return the bucket being split
+     * @throws DbException if the file has as many buckets as it can hold
+     */
+    public int split() throws DbException {
+        if (getNumBuckets() == getMaxBuckets())
+            throw new DbException("hash file has no room for another bucket");
+        if (getDirectoryPage(getNumBuckets()) == 0)
+            throw new DbException("no directory page for bucket " + getNumBuckets());
+        int split = next;
+        if (++next == 1 << level) {
+            level++;
+            next = 0;
+        }
+        return split;
+    }
+
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(level);
+            dos.writeInt(next);
+            dos.writeInt(free);
+            for (int d : directories)
+                dos.writeInt(d);
+            dos.write(new byte[BufferPool.getPageSize() - 4 * (directories.length + 3)]);
+            dos.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirtier = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return dirtier;
+    }
+
+    public HashHeaderPage getBeforeImage() {
+        try {
+            byte[] oldDataRef;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            return new HashHeaderPage(pid, oldDataRef);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData().clone();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * HashPage holds tuples of one bucket of a {@link HashFile}.  The pages of
+ * a bucket form a chain: the first page is listed in the
+ * {@link HashHeaderPage}, and each page points to the overflow page after
+ * it, if any.
+ * <p>
+ * The format of the page is the page number of the overflow page, 0 if
+ * there is none, followed by a header with a bit for every slot as in a
+ * {@link HeapPage}, and the slots.  The number of slots is
+ * <p>
+ *          floor(((page size - 4) * 8) / (tuple size * 8 + 1))
+ */
+public class HashPage implements Page {
+
+    private final HashPageId pid;
+    private final TupleDesc td;
+    private final int numSlots;
+    private final byte[] header;
+    private final Tuple[] tuples;
+    private int overflow;
+
+    private volatile TransactionId dirtier;
+    private byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    /**
+     * Create a HashPage from a set of bytes of data read from disk.  The
+     * TupleDesc of its tuples is that of its table in the catalog.
+     */
+    public HashPage(HashPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = ((BufferPool.getPageSize() - 4) * 8) / (td.getSize() * 8 + 1);
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        overflow = dis.readInt();
+        header = new byte[(numSlots + 7) / 8];
+        dis.readFully(header);
+        tuples = new Tuple[numSlots];
+        try {
+            for (int i = 0; i < numSlots; i++) {
+                if (!isSlotUsed(i)) {
+                    dis.skipBytes(td.getSize());
+                    continue;
+                }
+                Tuple t = new Tuple(td);
+                for (int j = 0; j < td.numFields(); j++)
+                    t.setField(j, td.getFieldType(j).parse(dis));
+                t.setRecordId(new RecordId(pid, i));
+                tuples[i] = t;
+            }
+        } catch (java.text.ParseException e) {
+            throw new IOException("unable to parse a tuple of page " + pid, e);
+        }
+        dis.close();
+        setBeforeImage();
+    }
+
+    /** @return the data of an empty page, without an overflow page */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    public HashPageId getId() {
+        return pid;
+    }
+
+    /** @return the page number of the overflow page after this one, or 0 */
+    public int getOverflow() {
+        return overflow;
+    }
+
+    public void setOverflow(int pgNo) {
+        this.overflow = pgNo;
+    }
+
+    public int getNumEmptySlots() {
+        int n = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i))
+                n++;
+        }
+        return n;
+    }
+
+    public boolean isSlotUsed(int i) {
+        return i >= 0 && i < numSlots && (header[i / 8] & (1 << (i % 8))) != 0;
+    }
+
+    private void markSlotUsed(int i, boolean value) {
+        if (value)
+            header[i / 8] |= (byte) (1 << (i % 8));
+        else
+            header[i / 8] &= (byte) ~(1 << (i % 8));
+    }
+
+    /**
+     * Adds the tuple to a free slot of the page, and sets its RecordId.
+     *
+     * @throws DbException if the page is full or the TupleDesc does not match
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("tupledesc is mismatched");
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                markSlotUsed(i, true);
+                t.setRecordId(new RecordId(pid, i));
+                tuples[i] = t;
+                return;
+            }
+        }
+        throw new DbException("page " + pid + " is full");
+    }
+
+    /**
+     * Delete the tuple from the page, which is found by its RecordId.
+     *
+     * @throws DbException if the tuple is not on this page
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId()) || !isSlotUsed(rid.tupleno()))
+            throw new DbException("tuple is not on page " + pid);
+        markSlotUsed(rid.tupleno(), false);
+        tuples[rid.tupleno()] = null;
+    }
+
+    /**
+     * @return an iterator over the tuples on this page, which does not
+     *         support remove
+     */
+    public Iterator<Tuple> iterator() {
+        ArrayList<Tuple> used = new ArrayList<Tuple>();
+        for (int i = 0; i < numSlots; i++) {
+            if (isSlotUsed(i))
+                used.add(tuples[i]);
+        }
+        return Collections.unmodifiableList(used).iterator();
+    }
+
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(overflow);
+            dos.write(header);
+            byte[] empty = new byte[td.getSize()];
+            for (int i = 0; i < numSlots; i++) {
+                if (!isSlotUsed(i)) {
+                    dos.write(empty);
+                    continue;
+                }
+                for (int j = 0; j < td.numFields(); j++)
+                    tuples[i].getField(j).serialize(dos);
+            }
+            dos.write(new byte[BufferPool.getPageSize() - 4 - header.length - numSlots * td.getSize()]);
+            dos.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirtier = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return dirtier;
+    }
+
+    public HashPage getBeforeImage() {
+        try {
+            byte[] oldDataRef;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            return new HashPage(pid, oldDataRef);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData().clone();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package simpledb;
+
+/**
+ * Unique identifier for the pages of a {@link HashFile}: page 0 is its
+ * {@link HashHeaderPage}, which lists its {@link HashDirectoryPage}s, and
+ * every other page a {@link HashPage} holding tuples of a bucket.
+ */
+public class HashPageId implements PageId {
+
+    public static final int HEADER = 0;
+    public static final int DIRECTORY = 1;
+    public static final int BUCKET = 2;
+
+    private final int tableId;
+    private final int pgNo;
+    private final int pgcateg;
+
+    /**
+     * Constructor. Create a page id structure for a specific page of a
+     * specific hash file.
+     *
+     * @param tableId The table that is being referenced
+     * @param pgNo The page number in that table.
+     * @param pgcateg which kind of page it is
+     */
+    public HashPageId(int tableId, int pgNo, int pgcateg) {
+        this.tableId = tableId;
+        this.pgNo = pgNo;
+        this.pgcateg = pgcateg;
+    }
+
+    public int getTableId() {
+        return tableId;
+    }
+
+    public int pageNumber() {
+        return pgNo;
+    }
+
+    /** @return the category of this page */
+    public int pgcateg() {
+        return pgcateg;
+    }
+
+    public int hashCode() {
+        return (tableId * 239 + pgNo) * 3 + pgcateg;
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof HashPageId))
+            return false;
+        HashPageId p = (HashPageId) o;
+        return tableId == p.tableId && pgNo == p.pgNo && pgcateg == p.pgcateg;
+    }
+
+    public String toString() {
+        return "(" + tableId + ", " + pgNo + ", " + pgcateg + ")";
+    }
+
+    /**
+     * Return a representation of this object as an array of integers, for
+     * writing to disk; they are the arguments of the constructor.
+     */
+    public int[] serialize() {
+        return new int[] { tableId, pgNo, pgcateg };
+    }
+}
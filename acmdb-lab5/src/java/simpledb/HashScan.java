@@ -0,0 +1,113 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * HashScan reads the tuples of a {@link HashFile}: either all of them, in no
+ * particular order, or those matching an index predicate on its key field,
+ * which for an EQUALS predicate means reading the pages of one bucket.
+ */
+public class HashScan implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private TransactionId tid;
+    private final int tableid;
+    private final String alias;
+    private final IndexPredicate ipred;
+    private final TupleDesc td;
+    private transient DbFileIterator it;
+    private boolean isOpen = false;
+
+    /**
+     * Creates a scan over the specified hash file as a part of the specified
+     * transaction.
+     *
+     * @param tid the transaction this scan is running as a part of
+     * @param tableid the table to scan, which must be stored in a HashFile
+     * @param tableAlias the alias of this table; the returned tupleDesc has
+     *        fields named tableAlias.fieldName
+     * @param ipred the index predicate on the key field to match, or null to
+     *        return all the tuples of the table
+     * @see HashFile#indexIterator(TransactionId, IndexPredicate)
+     */
+    public HashScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred) {
+        this.tid = tid;
+        this.tableid = tableid;
+        this.alias = tableAlias;
+        this.ipred = ipred;
+        TupleDesc fileTd = Database.getCatalog().getTupleDesc(tableid);
+        String[] names = new String[fileTd.numFields()];
+        Type[] types = new Type[fileTd.numFields()];
+        for (int i = 0; i < fileTd.numFields(); i++) {
+            names[i] = tableAlias + "." + fileTd.getFieldName(i);
+            types[i] = fileTd.getFieldType(i);
+        }
+        this.td = new TupleDesc(types, names);
+    }
+
+    /** @return the name of the table the operator scans */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(tableid);
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    /** @return the id of the table this operator scans */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /** @return the index predicate on the key field, or null for a full scan */
+    public IndexPredicate getIndexPredicate() {
+        return ipred;
+    }
+
+    /**
+     * Run this scan as a part of another transaction from now on; the scan
+     * must be closed.
+     */
+    public void setTransactionId(TransactionId tid) {
+        this.tid = tid;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (isOpen)
+            throw new DbException("double open on one DbIterator.");
+        HashFile file = (HashFile) Database.getCatalog().getDatabaseFile(tableid);
+        it = ipred == null ? file.iterator(tid) : file.indexIterator(tid, ipred);
+        it.open();
+        isOpen = true;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        return it.hasNext();
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException,
+            NoSuchElementException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        return it.next();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    public void close() {
+        if (it != null)
+            it.close();
+        it = null;
+        isOpen = false;
+    }
+}
@@ -16,6 +16,7 @@ import java.util.*;
 public class HeapFile implements DbFile {
     private File file;
     private TupleDesc tupleDesc;
+    private ZoneMap zoneMap = null;
     /**
      * Constructs a heap file backed by the specified file.
      *
@@ -53,6 +54,16 @@ public class HeapFile implements DbFile {
         return file.getAbsoluteFile().hashCode();
     }
 
+    /**
+     * Returns the zone map of this file, which tells scans the pages they can
+     * skip.
+     */
+    public synchronized ZoneMap getZoneMap() {
+        if (zoneMap == null)
+            zoneMap = new ZoneMap(file, tupleDesc);
+        return zoneMap;
+    }
+
     /**
      * Returns the TupleDesc of the table stored in this DbFile.
      *
@@ -74,6 +85,7 @@ public class HeapFile implements DbFile {
             randomAccessFile.seek(pos);
             randomAccessFile.read(data, 0, data.length);
             page = new HeapPage((HeapPageId) pid, data);
+            getZoneMap().observe((HeapPage) page);
         } catch (IOException e){
             throw new IllegalArgumentException();
         }
@@ -93,6 +105,8 @@ public class HeapFile implements DbFile {
             randomAccessFile = new RandomAccessFile(file, "rw");
             randomAccessFile.seek(offset);
             randomAccessFile.write(page.getPageData());
+            if (page instanceof HeapPage)
+                getZoneMap().written((HeapPage) page);
         } catch (IOException e) {
             throw new IllegalArgumentException();
         }
@@ -111,17 +125,22 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         ArrayList <Page> affectPages = new ArrayList<>();
-        for (int i = 0; i < numPages(); i++){
-            HeapPageId pid = new HeapPageId(getId(), i);
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-            if (page.getNumEmptySlots() != 0){
-                page.insertTuple(t);
-                affectPages.add(page);
-                return affectPages;
+        HeapPageId pid;
+        do {
+            for (int i = 0; i < numPages(); i++){
+                pid = new HeapPageId(getId(), i);
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+                if (page.getNumEmptySlots() != 0){
+                    page.insertTuple(t);
+                    affectPages.add(page);
+                    return affectPages;
+                }
             }
-        }
-
-        HeapPageId pid = new HeapPageId(getId(), numPages());
+            // the new page is locked like any other, e.g. by an index being
+            // created on the table; another transaction may append it first
+            pid = new HeapPageId(getId(), numPages());
+            Database.getBufferPool().lockPage(tid, pid, Permissions.READ_WRITE);
+        } while (pid.pageNumber() < numPages());
         HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
         page.insertTuple(t);
         writePage(page);
@@ -130,6 +149,19 @@ public class HeapFile implements DbFile {
         // not necessary for lab1
     }
 
+    /**
+     * Write the zone map entries that the transaction changed or computed to
+     * the side file, once the pages it wrote are on disk.
+     */
+    public void transactionComplete(TransactionId tid, boolean commit) {
+        ZoneMap zm;
+        synchronized (this) {
+            zm = zoneMap;
+        }
+        if (zm != null)
+            zm.flush();
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
@@ -148,13 +180,47 @@ public class HeapFile implements DbFile {
         private int currentPid;
         private Iterator<Tuple> tupleIterator;
         private TransactionId tid;
-        public HeapFileIterator(TransactionId tid){ this.tid = tid; }
+        private final int firstPage;
+        private final int endPage;
+        private final List<Predicate> preds;
+        public HeapFileIterator(TransactionId tid){ this(tid, 0, -1, null); }
+
+        /**
+         * Iterate over the tuples of pages firstPage to endPage - 1 only.
+         * An endPage of -1 means the last page of the file.  If preds is not
+         * null, the pages whose zone map entry shows that none of their
+         * tuples satisfies all of preds are skipped.
+         */
+        public HeapFileIterator(TransactionId tid, int firstPage, int endPage, List<Predicate> preds){
+            this.tid = tid;
+            this.firstPage = firstPage;
+            this.endPage = endPage;
+            this.preds = preds;
+        }
+
+        private Iterator<Tuple> pageIterator(int pageNo) throws DbException, TransactionAbortedException {
+            if (preds != null && !getZoneMap().mayMatch(pageNo, preds))
+                return Collections.<Tuple>emptyList().iterator();
+            PageId pageId = new HeapPageId(getId(), pageNo);
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
+            if (page.isDirty() == null)
+                getZoneMap().observe(page);
+            return page.iterator();
+        }
+
+        private int lastPid() {
+            int end = endPage < 0 ? numPages() : Math.min(endPage, numPages());
+            return Math.max(end - 1, firstPage);
+        }
 
         @Override
         public void open() throws DbException, TransactionAbortedException{
-            currentPid = 0;
-            PageId pageId = new HeapPageId(getId(), currentPid);
-            tupleIterator = ((HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY)).iterator();
+            currentPid = firstPage;
+            if (endPage >= 0 && firstPage >= endPage) {
+                tupleIterator = Collections.<Tuple>emptyList().iterator();
+                return;
+            }
+            tupleIterator = pageIterator(currentPid);
         }
 
         @Override
@@ -166,10 +232,9 @@ public class HeapFile implements DbFile {
 //            // has next page
 //            if (currentPid < numPages() - 1) return true;
             //Modify from lab1 because of the delete may change the struct so we need to transverse all pages
-            while (!tupleIterator.hasNext() && currentPid < numPages() - 1){
+            while (!tupleIterator.hasNext() && currentPid < lastPid()){
                 currentPid ++;
-                PageId pageId = new HeapPageId(getId(), currentPid);
-                tupleIterator = ((HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY)).iterator();
+                tupleIterator = pageIterator(currentPid);
             }
 
             return tupleIterator.hasNext();
@@ -178,10 +243,6 @@ public class HeapFile implements DbFile {
         @Override
         public Tuple next() throws DbException, TransactionAbortedException{
             if (!hasNext()) throw new NoSuchElementException();
-            if (tupleIterator.hasNext()) return tupleIterator.next();
-            currentPid = currentPid + 1;
-            PageId pageId = new HeapPageId(getId(), currentPid);
-            tupleIterator = ((HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY)).iterator();
             return tupleIterator.next();
         }
 
@@ -192,7 +253,7 @@ public class HeapFile implements DbFile {
 
         @Override
         public void close(){
-            currentPid = 0;
+            currentPid = firstPage;
             tupleIterator = null;
         }
     }
@@ -203,5 +264,104 @@ public class HeapFile implements DbFile {
         return new HeapFileIterator(tid);
     }
 
+    /**
+     * Returns an iterator over the tuples stored on pages firstPage to
+     * endPage - 1 of this file, so that a scan can be divided among workers.
+     *
+     * @param tid the transaction the scan runs as a part of
+     * @param firstPage the first page to read
+     * @param endPage one past the last page to read
+     */
+    public DbFileIterator iterator(TransactionId tid, int firstPage, int endPage) {
+        return new HeapFileIterator(tid, firstPage, endPage, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that skips the pages
+     * whose zone map entry shows that none of their tuples satisfies all of
+     * the predicates.  The tuples of the other pages are all returned.
+     *
+     * @param tid the transaction the scan runs as a part of
+     * @param preds the predicates, whose field indexes refer to the
+     *        TupleDesc of this file; their operands are read as pages are
+     *        reached
+     */
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> preds) {
+        return new HeapFileIterator(tid, 0, -1, preds);
+    }
+
+    /**
+     * Returns an iterator over the tuples of the morsels this iterator claims
+     * from a cursor shared with other workers.  Each page of the cursor is
+     * read by exactly one of the iterators sharing it; opening the iterator
+     * does not start the cursor over (see {@link PageCursor#restart}).
+     *
+     * @param tid the transaction the scan runs as a part of
+     * @param cursor the cursor to claim morsels from
+     * @param preds the predicates to skip pages with, as in
+     *        {@link #iterator(TransactionId, List)}, or null
+     */
+    DbFileIterator iterator(TransactionId tid, PageCursor cursor, List<Predicate> preds) {
+        return new MorselIterator(tid, cursor, preds);
+    }
+
+    private class MorselIterator implements DbFileIterator {
+        private final TransactionId tid;
+        private final PageCursor cursor;
+        private final List<Predicate> preds;
+        private HeapFileIterator morsel;
+        private boolean open = false;
+
+        MorselIterator(TransactionId tid, PageCursor cursor, List<Predicate> preds) {
+            this.tid = tid;
+            this.cursor = cursor;
+            this.preds = preds;
+        }
+
+        @Override
+        public void open() {
+            open = true;
+            morsel = null;
+        }
+
+        @Override
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (!open) return false;
+            while (morsel == null || !morsel.hasNext()) {
+                int first = cursor.claim();
+                if (first < 0) {
+                    open = false;
+                    morsel = null;
+                    return false;
+                }
+                morsel = new HeapFileIterator(tid, first, cursor.morselEnd(first), preds);
+                morsel.open();
+            }
+            return true;
+        }
+
+        @Override
+        public Tuple next() throws DbException, TransactionAbortedException {
+            if (!hasNext()) throw new NoSuchElementException();
+            return morsel.next();
+        }
+
+        /**
+         * Rewinding only reads the file again once the cursor has been
+         * restarted by the operator running every scan sharing it.
+         */
+        @Override
+        public void rewind() {
+            close();
+            open();
+        }
+
+        @Override
+        public void close() {
+            open = false;
+            morsel = null;
+        }
+    }
+
 
 }
\ No newline at end of file
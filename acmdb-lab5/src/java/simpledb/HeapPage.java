@@ -22,6 +22,10 @@ public class HeapPage implements Page {
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
 
+    // the zone map of the file, once looked up
+    private ZoneMap zoneMap;
+    private boolean zoneMapKnown = false;
+
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
@@ -250,6 +254,9 @@ public class HeapPage implements Page {
         int tupleId = recordId.tupleno();
         if (!isSlotUsed(tupleId)) throw new DbException("The tuple is already empty");
         markSlotUsed(tupleId,false);
+        ZoneMap zoneMap = zoneMap();
+        if (zoneMap != null)
+            zoneMap.delete(pid.pageNumber());
     }
 
     /**
@@ -269,10 +276,31 @@ public class HeapPage implements Page {
                     markSlotUsed(i,true);
                     t.setRecordId(new RecordId(pid, i));
                     tuples[i] = t;
+                    ZoneMap zoneMap = zoneMap();
+                    if (zoneMap != null)
+                        zoneMap.insert(pid.pageNumber(), t);
                     return;
                 }
     }
 
+    /**
+     * @return the zone map of the heap file this page belongs to, or null if
+     *         the page does not belong to one in the catalog; looked up in
+     *         the catalog once per page
+     */
+    private ZoneMap zoneMap() {
+        if (!zoneMapKnown) {
+            try {
+                DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                zoneMap = f instanceof HeapFile ? ((HeapFile) f).getZoneMap() : null;
+            } catch (NoSuchElementException e) {
+                zoneMap = null;
+            }
+            zoneMapKnown = true;
+        }
+        return zoneMap;
+    }
+
     private TransactionId tid;
     /**
      * Marks this page as dirty/not dirty and record that transaction
@@ -318,6 +346,13 @@ public class HeapPage implements Page {
         return (b & index) != 0;
     }
 
+    /**
+     * @return the tuple in the specified slot, or null if the slot is empty
+     */
+    Tuple getTuple(int i) {
+        return isSlotUsed(i) ? tuples[i] : null;
+    }
+
     /**
      * Abstraction to fill or clear a slot on this page.
      */
@@ -0,0 +1,108 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * HyperLogLog estimates the number of distinct values in a stream in a fixed
+ * amount of memory, from the 64-bit hashes of the values.
+ * <p>
+ * The hash selects one of 2^p registers by its top p bits, and the register
+ * keeps the longest run of leading zeros seen in the remaining bits.  With
+ * p = 12 the sketch takes 4 KB and its standard error is about 1.6%.  Small
+ * cardinalities are counted from the number of empty registers instead, which
+ * is close to exact.
+ */
+public class HyperLogLog {
+
+    /** Number of index bits */
+    static final int P = 12;
+    private static final int M = 1 << P;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / M);
+
+    private final byte[] registers = new byte[M];
+    /** The estimate, or -1 if a register has changed since it was computed */
+    private volatile double estimate = -1;
+
+    /**
+     * Add the hash of a value to the sketch.  The hash must have its bits
+     * well mixed, e.g. by {@link #hash}.
+     */
+    public void add(long hash) {
+        int index = (int) (hash >>> (64 - P));
+        // the guard bit bounds the rank for hashes whose low bits are all zero
+        long rest = (hash << P) | (1L << (P - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+        if (rank > registers[index]) {
+            registers[index] = rank;
+            estimate = -1;
+        }
+    }
+
+    /**
+     * @return the estimated number of distinct values added
+     */
+    public double estimate() {
+        if (estimate >= 0)
+            return estimate;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0)
+                zeros++;
+        }
+        double e = ALPHA * M * M / sum;
+        if (e <= 2.5 * M && zeros > 0)
+            e = M * Math.log((double) M / zeros);
+        estimate = e;
+        return e;
+    }
+
+    /**
+     * Add every value added to another sketch to this one.
+     */
+    public void merge(HyperLogLog other) {
+        for (int i = 0; i < M; i++) {
+            if (other.registers[i] > registers[i])
+                registers[i] = other.registers[i];
+        }
+        estimate = -1;
+    }
+
+    /**
+     * @return a well mixed 64-bit hash of v
+     */
+    public static long hash(long v) {
+        // the finalizer of MurmurHash3
+        v ^= v >>> 33;
+        v *= 0xff51afd7ed558ccdL;
+        v ^= v >>> 33;
+        v *= 0xc4ceb9fe1a85ec53L;
+        v ^= v >>> 33;
+        return v;
+    }
+
+    /**
+     * @return a well mixed 64-bit hash of s
+     */
+    public static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return hash(h);
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.write(registers);
+    }
+
+    static HyperLogLog read(DataInput in) throws IOException {
+        HyperLogLog h = new HyperLogLog();
+        in.readFully(h.registers);
+        return h;
+    }
+}
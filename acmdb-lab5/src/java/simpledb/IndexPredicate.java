@@ -32,6 +32,14 @@ public class IndexPredicate implements Serializable {
         return fvalue;
     }
 
+    /**
+     * Replace the value the predicate compares against; scans using this
+     * predicate see the new value the next time they are opened.
+     */
+    void setField(Field fvalue) {
+        this.fvalue = fvalue;
+    }
+
     public Predicate.Op getOp() {
         // some code goes here
         return op;
@@ -1,10 +1,5 @@
 package simpledb;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
 /**
  * Knows how to compute some aggregate over a set of IntFields.
  */
@@ -12,15 +7,7 @@ public class IntegerAggregator implements Aggregator {
 
     private static final long serialVersionUID = 1L;
 
-    private int gbfield; // To decide which column used for grouping
-    private int afiled;  // To decide which column used for aggregate
-    private Type gbfieldtype;
-
-    private Op aggreOp;
-    private TupleDesc tupleDesc;
-
-    private Map<Field, Integer> GroupByValue;
-    private Map<Field, Integer> Counts;  //To deal with the average
+    private AggregateHashTable table;
 
     /**
      * Aggregate constructor
@@ -39,18 +26,25 @@ public class IntegerAggregator implements Aggregator {
 
     public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
         // some code goes here
-        this.gbfield = gbfield;
-        this.gbfieldtype = gbfieldtype;
-        this.afiled = afield;
-        this.aggreOp = what;
+        this(gbfield, gbfieldtype, new int[]{afield}, new Op[]{what});
+    }
 
-        if (gbfield == Aggregator.NO_GROUPING)
-            this.tupleDesc = new TupleDesc(new Type[]{Type.INT_TYPE}, new String[]{"aggregateValue"});
-        else
-            this.tupleDesc = new TupleDesc(new Type[] {gbfieldtype, Type.INT_TYPE}, new String[]{"groupValue", "aggregateValue"});
-//      We should pay aatention to ConcurrentHashMap will not take null as the key. But Hashmap will.
-        GroupByValue = new HashMap<>();
-        Counts = new HashMap<>();
+    /**
+     * Constructor for computing several aggregates in a single pass.
+     *
+     * @param gbfield
+     *            the 0-based index of the group-by field in the tuple, or
+     *            NO_GROUPING if there is no grouping
+     * @param gbfieldtype
+     *            the type of the group by field, or null if there is no
+     *            grouping
+     * @param afields
+     *            the 0-based indexes of the aggregate fields in the tuple
+     * @param what
+     *            the aggregation operator for each aggregate field
+     */
+    public IntegerAggregator(int gbfield, Type gbfieldtype, int[] afields, Op[] what) {
+        this.table = new AggregateHashTable(gbfield, gbfieldtype, afields, what);
     }
 
     /**
@@ -62,55 +56,7 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        //Field to group by
-        Field groupfield;
-        if (gbfield == Aggregator.NO_GROUPING)
-            groupfield = null;
-        else
-            groupfield = tup.getField(gbfield);
-
-        Integer oldvalue = GroupByValue.get(groupfield);
-        Integer nowvalue = ((IntField) tup.getField(afiled)).getValue();
-        Integer newvalue = null;
-
-        switch (aggreOp){
-            case MIN:
-                {
-                    if (oldvalue == null) newvalue = nowvalue;
-                    else newvalue = Integer.min(oldvalue, nowvalue);
-                    break;
-                }
-            case MAX:
-                {
-                    if (oldvalue == null) newvalue = nowvalue;
-                    else newvalue = Integer.max(oldvalue, nowvalue);
-                    break;
-                }
-            case COUNT:
-                {
-                    if (oldvalue == null) newvalue = 1;
-                    else newvalue = oldvalue + 1;
-                    break;
-                }
-            case SUM:
-                {
-                    if (oldvalue == null) newvalue = nowvalue;
-                    else newvalue = nowvalue + oldvalue;
-                    break;
-                }
-            case AVG:
-                {
-                    if (oldvalue == null) newvalue = nowvalue;
-                    else newvalue = nowvalue + oldvalue;
-
-                    Integer cnt = Counts.getOrDefault(groupfield, 0);
-                    Counts.put(groupfield, cnt + 1);
-
-                    break;
-                }
-        }
-
-        GroupByValue.put(groupfield, newvalue);
+        table.merge(tup);
     }
 
 
@@ -124,23 +70,7 @@ public class IntegerAggregator implements Aggregator {
      */
     public DbIterator iterator() {
         // some code goes here
-        ArrayList <Tuple> tuples = new ArrayList<>();
-        for (Map.Entry<Field, Integer> entry : GroupByValue.entrySet()){
-            Tuple tuple = new Tuple(tupleDesc);
-            Integer value = entry.getValue();
-            if (aggreOp == Op.AVG) {
-                value = value / Counts.get(entry.getKey());
-            }
-
-            if (gbfield == Aggregator.NO_GROUPING) {
-                tuple.setField(0, new IntField(value));
-            } else {
-                tuple.setField(0, entry.getKey());
-                tuple.setField(1, new IntField(value));
-            }
-            tuples.add(tuple);
-        }
-        return new TupleIterator(tupleDesc, tuples);
+        return table.iterator();
     }
 
 
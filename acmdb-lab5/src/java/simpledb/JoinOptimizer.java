@@ -13,6 +13,8 @@ import javax.swing.tree.*;
 public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
+    /** The join graph of the last call of orderJoins, or null */
+    private JoinGraph graph = null;
 
     /**
      * Constructor
@@ -162,7 +164,8 @@ public class JoinOptimizer {
                 if (t1pkey && t2pkey) card = Integer.min(card1, card2);
                 else if (t1pkey) card = card2;
                 else if (t2pkey) card = card1;
-                else card = Integer.max(card1, card2);
+                else card = equiJoinCardinality(table1Alias, table2Alias, field1PureName,
+                        field2PureName, card1, card2, stats, tableAliasToId);
                 break;
             case NOT_EQUALS:
                 if (t1pkey && t2pkey) card = card1 * card2 - Integer.min(card1, card2);
@@ -182,41 +185,73 @@ public class JoinOptimizer {
     }
 
     /**
-     * Helper method to enumerate all of the subsets of a given size of a
-     * specified vector.
-     * 
-     * @param v
-     *            The vector whose subsets are desired
-     * @param size
-     *            The size of the subsets of interest
-     * @return a set of all subsets of the specified size
+     * Estimate the cardinality of an equality join on fields that are not
+     * keys: every value of the field with fewer distinct values is assumed to
+     * find its matches in the other, so each tuple joins with the tuples of
+     * the other side that share its value, card / ndv of them.  Falls back
+     * to the larger input when the tables have no statistics.
      */
-    @SuppressWarnings("unchecked")
-    public <T> Set<Set<T>> enumerateSubsets(Vector<T> v, int size) {
-        Set<Set<T>> els = new HashSet<Set<T>>();
-        els.add(new HashSet<T>());
-        // Iterator<Set> it;
-        // long start = System.currentTimeMillis();
-
-        for (int i = 0; i < size; i++) {
-            Set<Set<T>> newels = new HashSet<Set<T>>();
-            for (Set<T> s : els) {
-                for (T t : v) {
-                    Set<T> news = (Set<T>) (((HashSet<T>) s).clone());
-                    if (news.add(t))
-                        newels.add(news);
-                }
-            }
-            els = newels;
+    private static int equiJoinCardinality(String table1Alias, String table2Alias,
+            String field1PureName, String field2PureName, int card1, int card2,
+            Map<String, TableStats> stats, Map<String, Integer> tableAliasToId) {
+        double ndv1 = numDistinct(table1Alias, field1PureName, stats, tableAliasToId);
+        double ndv2 = numDistinct(table2Alias, field2PureName, stats, tableAliasToId);
+        if (ndv1 <= 0 || ndv2 <= 0)
+            return Integer.max(card1, card2);
+        // filters may have left fewer tuples than distinct values
+        double ndv = Math.max(Math.min(ndv1, Math.max(card1, 1)), Math.min(ndv2, Math.max(card2, 1)));
+        return (int) Math.min(Integer.MAX_VALUE, Math.ceil((double) card1 * card2 / ndv));
+    }
+
+    /**
+     * @return the estimated number of distinct values of a field of the
+     *         table with the given alias, or 0 if unknown
+     */
+    private static double numDistinct(String alias, String fieldPureName,
+            Map<String, TableStats> stats, Map<String, Integer> tableAliasToId) {
+        if (stats == null || tableAliasToId == null || !tableAliasToId.containsKey(alias))
+            return 0;
+        int tableId = tableAliasToId.get(alias);
+        try {
+            TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+            if (s == null)
+                return 0;
+            return s.numDistinct(Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(fieldPureName));
+        } catch (NoSuchElementException e) {
+            return 0;
         }
+    }
+
+    /** Default number of relations above which joins are ordered greedily */
+    public static final int DEFAULT_MAX_DP_RELATIONS = 16;
 
-        return els;
+    private static volatile int maxDpRelations = DEFAULT_MAX_DP_RELATIONS;
 
+    /**
+     * Set the number of relations above which {@link #orderJoins} orders
+     * joins greedily rather than by dynamic programming, whose cost grows
+     * exponentially with the number of relations.
+     */
+    public static void setMaxDpRelations(int relations) {
+        maxDpRelations = relations;
+    }
+
+    public static int getMaxDpRelations() {
+        return maxDpRelations;
     }
 
     /**
-     * Compute a logical, reasonably efficient join on the specified tables. See
-     * PS4 for hints on how this should be implemented.
+     * Compute a logical, reasonably efficient join on the specified tables.
+     * <p>
+     * The tables are the vertices of the join graph, whose edges are the
+     * joins, and sets of tables are bitmasks over it.  Up to
+     * {@link #getMaxDpRelations} tables, the cheapest plan is found by
+     * dynamic programming over the connected subgraphs of the join graph
+     * (DPccp): every pair of disjoint connected sets joined by an edge is
+     * considered once, in both join orders, so bushy plans are considered as
+     * well as left-deep ones, and cross products never are.  Above that, the
+     * two plans whose join is smallest are joined until one is left (greedy
+     * operator ordering).
      * 
      * @param stats
      *            Statistics for each table involved in the join, referenced by
@@ -228,8 +263,10 @@ public class JoinOptimizer {
      * @param explain
      *            Indicates whether your code should explain its query plan or
      *            simply execute it
-     * @return A Vector<LogicalJoinNode> that stores joins in the left-deep
-     *         order in which they should be executed.
+     * @return A Vector<LogicalJoinNode> that stores joins in the order in
+     *         which they should be executed.  Each join joins the plans that
+     *         the joins before it built for its two tables, so a join may
+     *         join two earlier joins.
      * @throws ParsingException
      *             when stats or filter selectivities is missing a table in the
      *             join, or or when another internal error occurs
@@ -239,205 +276,361 @@ public class JoinOptimizer {
             HashMap<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
         //Not necessary for labs 1--3
-        // Pseudocode for the function (Just a simple DP)
-        // 1. j = set of join nodes
-        // 2. for (i in 1...|j|):  // First find best plan for single join, then for two joins, etc.
-        // 3.     for s in {all length i subsets of j}
-        // 4.       bestPlan = {}
-        // 5.       for s' in {all length i-1 subsets of s}
-        // 6.            subplan = optjoin(s')
-        // 7.            plan = best way to join (s-s') to subplan
-        // 8.            if (cost(plan) < cost(bestPlan))
-        // 9.               bestPlan = plan
-        // 10.      optjoin(s) = bestPlan
-        // 11. return optjoin(j)
 
         // some code goes here
-        int numJoinNodes = joins.size();
-        PlanCache pc = new PlanCache();
-        for (int i = 1; i <= numJoinNodes; i++){
-            Set <Set<LogicalJoinNode>> setOfsubset = this.enumerateSubsets(this.joins, i);
-            for (Set<LogicalJoinNode> subset : setOfsubset){
-                Double bestCost = Double.MAX_VALUE;
-                CostCard bestPlan = null;
-                for (LogicalJoinNode joinToRemove : subset){
-                    CostCard plan = computeCostAndCardOfSubplan(stats, filterSelectivities, joinToRemove, subset, bestCost, pc);
-                    if (plan != null) {
-                        bestCost = plan.cost;
-                        bestPlan = plan;
-                    }
-                }
-                if (bestPlan != null) {
-                    pc.addPlan(subset, bestPlan.cost, bestPlan.card, bestPlan.plan);
-                }
-            }
-
+        if (joins.size() == 0)
+            return joins;
+        JoinGraph g = new JoinGraph(stats, filterSelectivities);
+        graph = g;
+        PlanCache pc = g.pc;
+        Vector<LogicalJoinNode> order = new Vector<LogicalJoinNode>();
+        // a query whose joins leave tables unconnected gets a plan for each
+        // part; LogicalPlan reports the missing join
+        for (long component : g.components()) {
+            if (Long.bitCount(component) > maxDpRelations)
+                g.greedy(component);
+            else
+                g.dpccp(component);
+            order.addAll(pc.getOrder(component));
         }
-        return pc.getOrder(new HashSet<>(joins));
+        return order;
+    }
+
+    /**
+     * @return the number of tuples the plan chosen by the last call of
+     *         {@link #orderJoins} expects the join of a set of tables to
+     *         return, or -1 if it did not plan that set
+     */
+    int estimatedCardinality(Set<String> aliases) {
+        if (graph == null)
+            return -1;
+        long s = graph.relations(aliases);
+        CostCard cc = s == 0 ? null : graph.pc.getPlan(s);
+        return cc == null ? -1 : cc.card;
+    }
+
+    /**
+     * @return the estimated cost of the plan chosen by the last call of
+     *         {@link #orderJoins} for the join of a set of tables, or -1 if
+     *         it did not plan that set
+     */
+    double estimatedCost(Set<String> aliases) {
+        if (graph == null)
+            return -1;
+        long s = graph.relations(aliases);
+        CostCard cc = s == 0 ? null : graph.pc.getPlan(s);
+        return cc == null ? -1 : cc.cost;
     }
 
     // ===================== Private Methods =================================
 
     /**
-     * This is a helper method that computes the cost and cardinality of joining
-     * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
-     * 
-     * @param stats
-     *            table stats for all of the tables, referenced by table names
-     *            rather than alias (see {@link #orderJoins})
-     * @param filterSelectivities
-     *            the selectivities of the filters over each of the tables
-     *            (where tables are indentified by their alias or name if no
-     *            alias is given)
-     * @param joinToRemove
-     *            the join to remove from joinSet
-     * @param joinSet
-     *            the set of joins being considered
-     * @param bestCostSoFar
-     *            the best way to join joinSet so far (minimum of previous
-     *            invocations of computeCostAndCardOfSubplan for this joinSet,
-     *            from returned CostCard)
-     * @param pc
-     *            the PlanCache for this join; should have subplans for all
-     *            plans of size joinSet.size()-1
-     * @return A {@link CostCard} objects desribing the cost, cardinality,
-     *         optimal subplan
-     * @throws ParsingException
-     *             when stats, filterSelectivities, or pc object is missing
-     *             tables involved in join
+     * The join graph of a query, and the plans found for its sets of
+     * relations.  Relation i is bit i of a set; a join with a subquery adds
+     * a relation of its own for the subquery, which is always the inner one.
+     * The number of tuples of a set that {@link CardinalityFeedback} has a
+     * count for is that count instead of an estimate.
      */
-    @SuppressWarnings("unchecked")
-    private CostCard computeCostAndCardOfSubplan(
-            HashMap<String, TableStats> stats,
-            HashMap<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
-            double bestCostSoFar, PlanCache pc) throws ParsingException {
-
-        LogicalJoinNode j = joinToRemove;
-
-        Vector<LogicalJoinNode> prevBest;
-
-        if (this.p.getTableId(j.t1Alias) == null)
-            throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
-            throw new ParsingException("Unknown table " + j.t2Alias);
-
-        String table1Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
-
-        Set<LogicalJoinNode> news = (Set<LogicalJoinNode>) ((HashSet<LogicalJoinNode>) joinSet)
-                .clone();
-        news.remove(j);
-
-        double t1cost, t2cost;
-        int t1card, t2card;
-        boolean leftPkey, rightPkey;
-
-        if (news.isEmpty()) { // base case -- both are base relations
-            prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(
-                    filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias == null ? false : isPkey(table2Alias,
-                    j.f2PureName);
-        } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
+    private class JoinGraph {
+        final HashMap<String, TableStats> stats;
+        final PlanCache pc = new PlanCache();
+        /** The alias of each relation, null for a subquery */
+        final ArrayList<String> aliases = new ArrayList<String>();
+        /** The recorded number of tuples of the sets looked up so far, -1 if
+            there is none */
+        final HashMap<Long, Integer> observed = new HashMap<Long, Integer>();
+        final int n;
+        /** The relations adjacent to each relation */
+        final long[] adj;
+        /** The joins, with each join as given and with its sides swapped */
+        final LogicalJoinNode[] edges, swapped;
+        /** The relations on each side of each join */
+        final long[] left, right;
+        /** Whether each side of each join is a primary key */
+        final boolean[] leftPkey, rightPkey;
+
+        JoinGraph(HashMap<String, TableStats> stats,
+                HashMap<String, Double> filterSelectivities) throws ParsingException {
+            this.stats = stats;
+            HashMap<String, Integer> relations = new HashMap<String, Integer>();
+            ArrayList<CostCard> leaves = new ArrayList<CostCard>();
+            int m = joins.size();
+            edges = new LogicalJoinNode[m];
+            swapped = new LogicalJoinNode[m];
+            left = new long[m];
+            right = new long[m];
+            leftPkey = new boolean[m];
+            rightPkey = new boolean[m];
+            for (int e = 0; e < m; e++) {
+                LogicalJoinNode j = joins.get(e);
+                edges[e] = j;
+                swapped[e] = j.swapInnerOuter();
+                left[e] = 1L << relation(j.t1Alias, relations, leaves, filterSelectivities);
+                leftPkey[e] = isPkey(j.t1Alias, j.f1PureName);
+                if (j instanceof LogicalSubplanJoinNode) {
+                    // a subquery is read in full for every outer tuple
+                    right[e] = 1L << leaf(null, 0.0, 0, leaves);
+                } else {
+                    right[e] = 1L << relation(j.t2Alias, relations, leaves, filterSelectivities);
+                    rightPkey[e] = isPkey(j.t2Alias, j.f2PureName);
+                }
+            }
+            n = leaves.size();
+            adj = new long[n];
+            for (int e = 0; e < m; e++) {
+                adj[Long.numberOfTrailingZeros(left[e])] |= right[e];
+                adj[Long.numberOfTrailingZeros(right[e])] |= left[e];
+            }
+            for (int r = 0; r < n; r++)
+                pc.addPlan(1L << r, leaves.get(r));
+        }
 
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
-                return null;
+        private int relation(String alias, HashMap<String, Integer> relations,
+                ArrayList<CostCard> leaves, HashMap<String, Double> filterSelectivities)
+                throws ParsingException {
+            Integer r = relations.get(alias);
+            if (r != null)
+                return r;
+            Integer tableId = p.getTableId(alias);
+            if (tableId == null)
+                throw new ParsingException("Unknown table " + alias);
+            TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+            Double sel = filterSelectivities.get(alias);
+            if (s == null || sel == null)
+                throw new ParsingException("No statistics for table " + alias);
+            r = leaf(alias, p.estimateAccessCost(alias, s), s.estimateTableCardinality(sel), leaves);
+            int seen = observed(1L << r);
+            if (seen >= 0)
+                leaves.get(r).card = seen;
+            relations.put(alias, r);
+            return r;
+        }
+
+        private int leaf(String alias, double cost, int card, ArrayList<CostCard> leaves) throws ParsingException {
+            if (leaves.size() == Long.SIZE)
+                throw new ParsingException("Cannot join more than " + Long.SIZE + " tables");
+            CostCard cc = new CostCard();
+            cc.cost = cost;
+            cc.card = card;
+            cc.plan = new Vector<LogicalJoinNode>();
+            leaves.add(cc);
+            aliases.add(alias);
+            return leaves.size() - 1;
+        }
+
+        /** @return the relations on either side of a join in the plan */
+        long relations(LogicalJoinNode j) {
+            for (int e = 0; e < edges.length; e++) {
+                if (edges[e] == j || swapped[e] == j)
+                    return left[e] | right[e];
             }
+            return 0;
+        }
 
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
-            if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                t1cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias,
-                        j.f2PureName);
-            } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
-                                                        // (both
-                // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
+        /** @return the set of the relations with the given aliases, or 0 if
+            one of them is not a relation */
+        long relations(Set<String> members) {
+            long s = 0;
+            for (String alias : members) {
+                int r = alias == null ? -1 : aliases.indexOf(alias);
+                if (r < 0)
+                    return 0;
+                s |= 1L << r;
+            }
+            return s;
+        }
 
-            } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
-                return null;
+        /** @return the recorded number of tuples of a set of relations, or
+            -1 if there is none */
+        private int observed(long s) {
+            if (CardinalityFeedback.size() == 0)
+                return -1;
+            Integer card = observed.get(s);
+            if (card == null) {
+                HashSet<String> members = new HashSet<String>();
+                for (long t = s; t != 0; t &= t - 1)
+                    members.add(aliases.get(Long.numberOfTrailingZeros(t)));
+                Integer seen = CardinalityFeedback.lookup(p.fragmentSignature(members));
+                card = seen == null ? -1 : seen;
+                observed.put(s, card);
             }
+            return card;
         }
 
-        // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
-
-        LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
-            boolean tmp;
-            j = j2;
-            cost1 = cost2;
-            tmp = rightPkey;
-            rightPkey = leftPkey;
-            leftPkey = tmp;
+        /** @return the relations adjacent to s that are not in s or x */
+        private long neighbors(long s, long x) {
+            long nb = 0;
+            for (long t = s; t != 0; t &= t - 1)
+                nb |= adj[Long.numberOfTrailingZeros(t)];
+            return nb & ~s & ~x;
         }
-        if (cost1 >= bestCostSoFar)
-            return null;
 
-        CostCard cc = new CostCard();
+        /** @return the connected components of the join graph */
+        List<Long> components() {
+            List<Long> components = new ArrayList<Long>();
+            long all = n == Long.SIZE ? -1L : (1L << n) - 1, seen = 0;
+            while (seen != all) {
+                long component = Long.lowestOneBit(all & ~seen), frontier = component;
+                while (frontier != 0) {
+                    frontier = neighbors(frontier, component);
+                    component |= frontier;
+                }
+                components.add(component);
+                seen |= component;
+            }
+            return components;
+        }
 
-        cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
-                rightPkey, stats);
-        cc.cost = cost1;
-        cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
-        cc.plan.addElement(j); // prevbest is left -- add new join to end
-        return cc;
-    }
+        /**
+         * Find the cheapest plan for a connected set of relations by
+         * dynamic programming.  The connected subgraphs are enumerated from
+         * the highest relation down, each extended only by relations above
+         * the one it started from, and each is paired with the connected
+         * subgraphs of its neighbors that it has not been paired with yet.
+         * Enumerating the subsets of each neighborhood in ascending order
+         * emits the pairs for a set only after the plans of both halves are
+         * complete.
+         */
+        void dpccp(long component) throws ParsingException {
+            for (int i = n - 1; i >= 0; i--) {
+                long v = 1L << i;
+                if ((component & v) == 0)
+                    continue;
+                emitCsg(v);
+                enumerateCsgRec(v, below(i));
+            }
+        }
 
-    /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
-     */
-    private boolean doesJoin(Vector<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table)
-                    || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
+        /** @return the relations numbered up to and including i */
+        private long below(int i) {
+            return i == Long.SIZE - 1 ? -1L : (1L << (i + 1)) - 1;
+        }
+
+        private void enumerateCsgRec(long s, long x) throws ParsingException {
+            long nb = neighbors(s, x);
+            for (long sub = -nb & nb; sub != 0; sub = (sub - nb) & nb)
+                emitCsg(s | sub);
+            for (long sub = -nb & nb; sub != 0; sub = (sub - nb) & nb)
+                enumerateCsgRec(s | sub, x | nb);
+        }
+
+        private void emitCsg(long s1) throws ParsingException {
+            long x = s1 | below(Long.numberOfTrailingZeros(s1));
+            long nb = neighbors(s1, x);
+            for (long t = nb; t != 0; ) {
+                int i = Long.SIZE - 1 - Long.numberOfLeadingZeros(t);
+                long s2 = 1L << i;
+                t &= ~s2;
+                emitCsgCmp(s1, s2);
+                enumerateCmpRec(s1, s2, x | (below(i) & nb));
+            }
+        }
+
+        private void enumerateCmpRec(long s1, long s2, long x) throws ParsingException {
+            long nb = neighbors(s2, x);
+            for (long sub = -nb & nb; sub != 0; sub = (sub - nb) & nb)
+                emitCsgCmp(s1, s2 | sub);
+            for (long sub = -nb & nb; sub != 0; sub = (sub - nb) & nb)
+                enumerateCmpRec(s1, s2 | sub, x | nb);
+        }
+
+        private void emitCsgCmp(long s1, long s2) throws ParsingException {
+            CostCard best = pc.getPlan(s1 | s2);
+            double bestCost = best == null ? Double.MAX_VALUE : best.cost;
+            CostCard plan = join(s1, s2, bestCost);
+            if (plan != null)
+                bestCost = plan.cost;
+            CostCard flipped = join(s2, s1, bestCost);
+            if (flipped != null)
+                plan = flipped;
+            if (plan != null)
+                pc.addPlan(s1 | s2, plan);
+        }
+
+        /**
+         * Join the plans of a connected set of relations pairwise, joining
+         * the two whose join has the fewest tuples first, until one is left.
+         */
+        void greedy(long component) throws ParsingException {
+            ArrayList<Long> parts = new ArrayList<Long>();
+            for (long t = component; t != 0; t &= t - 1)
+                parts.add(Long.lowestOneBit(t));
+            while (parts.size() > 1) {
+                CostCard best = null;
+                int bestA = -1, bestB = -1;
+                for (int a = 0; a < parts.size(); a++) {
+                    for (int b = a + 1; b < parts.size(); b++) {
+                        long s1 = parts.get(a), s2 = parts.get(b);
+                        if ((neighbors(s1, 0) & s2) == 0)
+                            continue;
+                        CostCard plan = join(s1, s2, Double.MAX_VALUE);
+                        CostCard flipped = join(s2, s1, plan == null ? Double.MAX_VALUE : plan.cost);
+                        if (flipped != null)
+                            plan = flipped;
+                        if (plan != null && (best == null || plan.card < best.card
+                                || (plan.card == best.card && plan.cost < best.cost))) {
+                            best = plan;
+                            bestA = a;
+                            bestB = b;
+                        }
+                    }
+                }
+                long joined = parts.get(bestA) | parts.get(bestB);
+                pc.addPlan(joined, best);
+                parts.remove(bestB);
+                parts.set(bestA, joined);
+            }
+        }
+
+        /**
+         * Plan the join of the plans for two disjoint sets of relations,
+         * with the first as the outer, on the first join between them; any
+         * other joins between them follow it.
+         *
+         * @return the plan, or null if it costs at least bestCostSoFar or a
+         *         subquery would be the outer
+         */
+        private CostCard join(long outer, long inner, double bestCostSoFar) throws ParsingException {
+            CostCard cc1 = pc.getPlan(outer), cc2 = pc.getPlan(inner);
+            LogicalJoinNode j = null;
+            boolean pkey1 = false, pkey2 = false, pkey = cc1.pkey || cc2.pkey;
+            Vector<LogicalJoinNode> others = new Vector<LogicalJoinNode>();
+            for (int e = 0; e < edges.length; e++) {
+                boolean forward = (left[e] & outer) != 0 && (right[e] & inner) != 0;
+                boolean backward = (left[e] & inner) != 0 && (right[e] & outer) != 0;
+                if (!forward && !backward)
+                    continue;
+                if (backward && edges[e] instanceof LogicalSubplanJoinNode)
+                    return null;
+                pkey = pkey || leftPkey[e] || rightPkey[e];
+                if (j != null) {
+                    others.add(forward ? edges[e] : swapped[e]);
+                    continue;
+                }
+                j = forward ? edges[e] : swapped[e];
+                // a base table has a key if it is joined on it, a join's
+                // result if any join in it is on a key
+                pkey1 = Long.bitCount(outer) == 1 ? (forward ? leftPkey[e] : rightPkey[e]) : cc1.pkey;
+                pkey2 = Long.bitCount(inner) == 1 ? (forward ? rightPkey[e] : leftPkey[e]) : cc2.pkey;
+            }
+            if (j == null)
+                return null;
+
+            double cost = estimateJoinCost(j, cc1.card, cc2.card, cc1.cost, cc2.cost);
+            if (cost >= bestCostSoFar)
+                return null;
+            CostCard cc = new CostCard();
+            cc.cost = cost;
+            int seen = observed(outer | inner);
+            cc.card = seen >= 0 ? seen : estimateJoinCardinality(j, cc1.card, cc2.card, pkey1, pkey2, stats);
+            cc.pkey = pkey;
+            cc.plan = new Vector<LogicalJoinNode>(cc1.plan.size() + cc2.plan.size() + 1 + others.size());
+            cc.plan.addAll(cc1.plan);
+            cc.plan.addAll(cc2.plan);
+            cc.plan.add(j);
+            cc.plan.addAll(others);
+            return cc;
         }
-        return false;
     }
 
     /**
@@ -456,20 +649,6 @@ public class JoinOptimizer {
         return pkey1.equals(field);
     }
 
-    /**
-     * Return true if a primary key field is joined by one of the joins in
-     * joinlist
-     */
-    private boolean hasPkey(Vector<LogicalJoinNode> joinlist) {
-        for (LogicalJoinNode j : joinlist) {
-            if (isPkey(j.t1Alias, j.f1PureName)
-                    || (j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName)))
-                return true;
-        }
-        return false;
-
-    }
-
     /**
      * Helper function to display a Swing window with a tree representation of
      * the specified list of joins. See {@link #orderJoins}, which may want to
@@ -477,8 +656,9 @@ public class JoinOptimizer {
      * 
      * @param js
      *            the join plan to visualize
-     * @param pc
-     *            the PlanCache accumulated whild building the optimal plan
+     * @param g
+     *            the join graph whose PlanCache was accumulated while
+     *            building the optimal plan
      * @param stats
      *            table statistics for base tables
      * @param selectivities
@@ -486,7 +666,7 @@ public class JoinOptimizer {
      *            (where tables are indentified by their alias or name if no
      *            alias is given)
      */
-    private void printJoins(Vector<LogicalJoinNode> js, PlanCache pc,
+    private void printJoins(Vector<LogicalJoinNode> js, JoinGraph g,
             HashMap<String, TableStats> stats,
             HashMap<String, Double> selectivities) {
 
@@ -506,30 +686,40 @@ public class JoinOptimizer {
 
         // int k;
         DefaultMutableTreeNode root = null, treetop = null;
-        HashSet<LogicalJoinNode> pathSoFar = new HashSet<LogicalJoinNode>();
+        // the relations joined by the subtree each table is in
+        HashMap<String, Long> joined = new HashMap<String, Long>();
         boolean neither;
 
         System.out.println(js);
         for (LogicalJoinNode j : js) {
-            pathSoFar.add(j);
-            System.out.println("PATH SO FAR = " + pathSoFar);
+            long relations = g.relations(j);
+            if (joined.containsKey(j.t1Alias))
+                relations |= joined.get(j.t1Alias);
+            if (j.t2Alias != null && joined.containsKey(j.t2Alias))
+                relations |= joined.get(j.t2Alias);
+            for (Map.Entry<String, Long> e : joined.entrySet()) {
+                if ((e.getValue() & relations) != 0)
+                    e.setValue(relations);
+            }
+            joined.put(j.t1Alias, relations);
+            if (j.t2Alias != null)
+                joined.put(j.t2Alias, relations);
 
             String table1Name = Database.getCatalog().getTableName(
                     this.p.getTableId(j.t1Alias));
             String table2Name = Database.getCatalog().getTableName(
                     this.p.getTableId(j.t2Alias));
 
-            // Double c = pc.getCost(pathSoFar);
             neither = true;
 
             root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
-                    + pc.getCost(pathSoFar) + ", card = "
-                    + pc.getCard(pathSoFar) + ")");
+                    + g.pc.getCost(relations) + ", card = "
+                    + g.pc.getCard(relations) + ")");
             DefaultMutableTreeNode n = m.get(j.t1Alias);
             if (n == null) { // never seen this table before
                 n = new DefaultMutableTreeNode(j.t1Alias
                         + " (Cost = "
-                        + stats.get(table1Name).estimateScanCost()
+                        + p.estimateAccessCost(j.t1Alias, stats.get(table1Name))
                         + ", card = "
                         + stats.get(table1Name).estimateTableCardinality(
                                 selectivities.get(j.t1Alias)) + ")");
@@ -548,8 +738,8 @@ public class JoinOptimizer {
                         j.t2Alias == null ? "Subplan"
                                 : (j.t2Alias
                                         + " (Cost = "
-                                        + stats.get(table2Name)
-                                                .estimateScanCost()
+                                        + p.estimateAccessCost(j.t2Alias,
+                                                stats.get(table2Name))
                                         + ", card = "
                                         + stats.get(table2Name)
                                                 .estimateTableCardinality(
@@ -15,6 +15,10 @@ public class LogicalFilterNode {
     
     /* The constant on the right side of the filter */
     public String c;
+
+    /** The index of the parameter of a prepared statement the filter
+        compares against instead of c, or -1 */
+    public int parameter = -1;
     
     /** The field from t which is in the filter. The pure name, without alias or tablename*/
     public String fieldPureName;
@@ -1,11 +1,16 @@
 package simpledb;
 import java.util.Map;
 import java.util.Vector;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
  * LogicalPlan represents a logical query plan that has been through
@@ -13,8 +18,9 @@ import java.util.NoSuchElementException;
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
  * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * LogicalPlans can represent queries with several aggregates, all of
+ * which are computed by a single Aggregate operator, and at most one
+ * group by field.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -31,11 +37,34 @@ public class LogicalPlan {
     private Vector<LogicalSelectListNode> selectList;
     private String groupByField = null;
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
+    private Vector<String> aggOps;
+    private Vector<String> aggFields;
     private boolean oByAsc, hasOrderBy = false;
+    private int parallelism = 1;
     private String oByField;
     private String query;
+    private int numParameters = 0;
+    private Field[] parameters = null;
+    private Type[] parameterTypes = null;
+    /** The predicates and index predicates of the physical plan that compare
+        against parameters, mapped to the index of their parameter */
+    private IdentityHashMap<Predicate,Integer> parameterPredicates = new IdentityHashMap<Predicate,Integer>();
+    private IdentityHashMap<IndexPredicate,Integer> parameterIndexPredicates = new IdentityHashMap<IndexPredicate,Integer>();
+    /** The operators of the physical plan at the top of a filtered table
+        or a join, mapped to the aliases of their tables, with null for a
+        subquery; see {@link CardinalityFeedback} */
+    private IdentityHashMap<Operator,HashSet<String>> fragments = new IdentityHashMap<Operator,HashSet<String>>();
+    /** The estimated cost of the access path chosen for each filtered table */
+    private HashMap<String,Double> accessCosts = new HashMap<String,Double>();
+
+    /** Tables with fewer tuples than this are not worth scanning in parallel */
+    static final int PARALLEL_MIN_TUPLES = 4096;
+    /** Inner inputs of joins estimated to return more tuples than this are
+        not broadcast to the workers of a parallel join */
+    static final int BROADCAST_MAX_TUPLES = 1 << 20;
+    /** Grouped aggregates over a parallel plan that are estimated to have at
+        least this many groups repartition their input by group */
+    static final int REPARTITION_MIN_GROUPS = 1 << 12;
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -47,6 +76,8 @@ public class LogicalPlan {
         tableMap = new HashMap<String,Integer>();
 
         selectList = new Vector<LogicalSelectListNode>();
+        aggOps = new Vector<String>();
+        aggFields = new Vector<String>();
         this.query = "";
     }
 
@@ -105,6 +136,143 @@ public class LogicalPlan {
         filters.addElement(lf);
     }
 
+    /** Add a filter comparing a field to a parameter, whose value is given
+     *  by {@link #setParameters} before the physical plan is built.
+     *  @param field the field to filter on, as in {@link #addFilter}
+     *  @param p The predicate for the filter
+     *  @return the index of the parameter; parameters are numbered from 0
+     *  in the order they are added
+     *  @throws ParsingException if field is not in one of the tables
+     *  added via {@link #addScan} or if field is ambiguous
+     */
+    public int addParameterFilter(String field, Predicate.Op p) throws ParsingException {
+        field = disambiguateName(field);
+        String table = field.split("[.]")[0];
+
+        LogicalFilterNode lf = new LogicalFilterNode(table, field.split("[.]")[1], p, null);
+        lf.parameter = numParameters++;
+        filters.addElement(lf);
+        return lf.parameter;
+    }
+
+    /** @return the number of parameters added by {@link #addParameterFilter} */
+    public int getParameterCount() {
+        return numParameters;
+    }
+
+    /** Set the values of the parameters that {@link #physicalPlan} builds
+     *  the plan for.
+     *  @param values the value of each parameter, in the order of their indexes
+     */
+    public void setParameters(Field[] values) {
+        if (values.length != numParameters)
+            throw new IllegalArgumentException("expected " + numParameters + " parameters, got " + values.length);
+        this.parameters = values.clone();
+    }
+
+    /** Bind new values to the parameters of the plan last built by
+     *  {@link #physicalPlan}, which must be closed.  The plan stays the
+     *  one chosen for the values it was built with.
+     *  @param values the value of each parameter, in the order of their indexes
+     *  @throws ParsingException if a value does not have the type of the
+     *  field it is compared to
+     */
+    public void bindParameters(Field[] values) throws ParsingException {
+        if (parameterTypes == null)
+            throw new IllegalStateException("no physical plan has been built");
+        checkParameters(values);
+        this.parameters = values.clone();
+        for (Map.Entry<Predicate,Integer> e : parameterPredicates.entrySet())
+            e.getKey().setOperand(values[e.getValue()]);
+        for (Map.Entry<IndexPredicate,Integer> e : parameterIndexPredicates.entrySet())
+            e.getKey().setField(values[e.getValue()]);
+        // the fragments now have other tuples, which the plan has no
+        // estimates for
+        labelFragments(null, null, null);
+    }
+
+    /** @return the signature of a set of tables of this plan, which lists
+     *  the tables with their filters, using the current values of the
+     *  parameters, and the joins among them, and is the same for the same
+     *  set in any query; null if the set includes a subquery (a null alias),
+     *  an unknown table or a parameter without a value
+     */
+    String fragmentSignature(Collection<String> aliases) {
+        ArrayList<String> relations = new ArrayList<String>();
+        for (String alias : aliases) {
+            Integer tableId = alias == null ? null : tableMap.get(alias);
+            if (tableId == null)
+                return null;
+            ArrayList<String> preds = new ArrayList<String>();
+            for (LogicalFilterNode lf : filters) {
+                if (!lf.tableAlias.equals(alias))
+                    continue;
+                String c = lf.c;
+                if (lf.parameter >= 0) {
+                    if (parameters == null || parameters[lf.parameter] == null)
+                        return null;
+                    c = parameters[lf.parameter].toString();
+                }
+                preds.add(lf.fieldPureName + " " + lf.p + " " + c);
+            }
+            Collections.sort(preds);
+            relations.add(tableId + preds.toString());
+        }
+        Collections.sort(relations);
+        ArrayList<String> edges = new ArrayList<String>();
+        for (LogicalJoinNode j : joins) {
+            if (j instanceof LogicalSubplanJoinNode || !aliases.contains(j.t1Alias) || !aliases.contains(j.t2Alias))
+                continue;
+            String f1 = tableMap.get(j.t1Alias) + "." + j.f1PureName;
+            String f2 = tableMap.get(j.t2Alias) + "." + j.f2PureName;
+            if (f1.compareTo(f2) <= 0)
+                edges.add(f1 + " " + j.p + " " + f2);
+            else
+                edges.add(f2 + " " + j.swapInnerOuter().p + " " + f1);
+        }
+        Collections.sort(edges);
+        return relations + " " + edges;
+    }
+
+    /** Give the operators at the top of the fragments of the last physical
+     *  plan their signatures and the number of tuples the plan expects of
+     *  them.
+     *  @param jo the optimizer that ordered the joins of the plan, or null
+     *  if the plan has no estimates for the current parameters
+     */
+    private void labelFragments(JoinOptimizer jo, Map<String,TableStats> statsMap,
+            Map<String,Double> filterSelectivities) {
+        for (Map.Entry<Operator,HashSet<String>> e : fragments.entrySet()) {
+            HashSet<String> aliases = e.getValue();
+            String signature = fragmentSignature(aliases);
+            int estimate = -1;
+            if (jo != null && signature != null) {
+                Integer seen = CardinalityFeedback.lookup(signature);
+                if (seen != null) {
+                    estimate = seen;
+                } else if (aliases.size() == 1) {
+                    String alias = aliases.iterator().next();
+                    TableStats s = statsMap.get(Database.getCatalog().getTableName(getTableId(alias)));
+                    estimate = s.estimateTableCardinality(filterSelectivities.get(alias));
+                } else {
+                    estimate = jo.estimatedCardinality(aliases);
+                }
+            }
+            e.getKey().setFragment(signature, estimate);
+        }
+    }
+
+    private void checkParameters(Field[] values) throws ParsingException {
+        if (values.length != numParameters)
+            throw new ParsingException("expected " + numParameters + " parameters, got " + values.length);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null)
+                throw new ParsingException("no value for parameter " + (i + 1));
+            if (parameterTypes != null && values[i].getType() != parameterTypes[i])
+                throw new ParsingException("parameter " + (i + 1) + " must be of type " + parameterTypes[i]);
+        }
+    }
+
     /** Add a join between two fields of two different tables.  
      *  @param joinField1 The name of the first join field; this can
      *  be a fully qualified name (e.g., tableName.field or
@@ -186,8 +354,9 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  May be called once per aggregate in the select list;
+        all aggregates are computed in one pass and must share the same
+        GROUP BY field.
         @param op the aggregation operator
         @param afield the field to aggregate over
         @param gfield the field to group by
@@ -197,10 +366,416 @@ public class LogicalPlan {
         afield=disambiguateName(afield);
         if (gfield!=null)
             gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
+        if (hasAgg && (groupByField == null ? gfield != null : !groupByField.equals(gfield)))
+            throw new ParsingException("All aggregates must share the same GROUP BY field");
         groupByField = gfield;
         hasAgg = true;
+        if (aggregateIndex(op, afield) < 0) {
+            aggOps.addElement(op);
+            aggFields.addElement(afield);
+        }
+    }
+
+    /** @return the position of the aggregate op(afield) among the aggregates of
+        this plan, or -1 if the plan does not compute it */
+    private int aggregateIndex(String op, String afield) {
+        for (int i = 0; i < aggOps.size(); i++) {
+            if (aggOps.elementAt(i).equalsIgnoreCase(op) && aggFields.elementAt(i).equals(afield))
+                return i;
+        }
+        return -1;
+    }
+
+    /** Set the number of worker threads operators of this query may use.
+        @param dop the degree of parallelism, at least 1
+    */
+    public void setParallelism(int dop) {
+        if (dop < 1)
+            throw new IllegalArgumentException("the degree of parallelism must be at least 1");
+        this.parallelism = dop;
+    }
+
+    /** @return the degree of parallelism of this query */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Choose how to read the tuples of a table that satisfy the given filters.
+     * If the table is stored in a B+ tree and some filters bound its key, the
+     * equality or tightest lower bound and the tightest upper bound are
+     * combined into one index scan that starts at the former and stops at the
+     * latter.  The same goes for the field of each secondary index on the
+     * table, whose scan fetches every tuple in the range from its heap page,
+     * unless the index covers every field of the table the query refers to:
+     * then an index-only scan reads just the entries, of the range or of the
+     * whole index if no filter bounds its field.  If the table is stored in a
+     * hash file and a filter compares its key for equality, a lookup reads
+     * just the bucket of that key.  The index scan with the lowest estimated
+     * cost replaces the sequential scan if it is cheaper.  A sequential scan
+     * of a heap file skips the pages the filters rule out by their zone map,
+     * which its cost accounts for.  Filters the chosen scan does not answer
+     * are applied on top of it.
+     *
+     * @param scan the sequential scan of the table
+     * @param preds the filters on the table, over the TupleDesc of scan
+     * @param stats the statistics of the table, or null if there are none
+     */
+    private DbIterator accessPath(TransactionId t, String alias, DbIterator scan,
+            ArrayList<Predicate> preds, TableStats stats) {
+        int tableId = getTableId(alias);
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        double cost = stats == null ? 0.0 : stats.estimateScanCost(preds);
+        Predicate[] best = null;
+        SecondaryIndex bestIndex = null;
+        boolean bestCovers = false;
+        boolean bestHash = false;
+        if (stats != null) {
+            if (file instanceof HashFile) {
+                Predicate[] bounds = bounds(preds, ((HashFile) file).keyField());
+                if (bounds != null && bounds[0] != null && bounds[0].getOp() == Predicate.Op.EQUALS) {
+                    double c = stats.estimateHashLookupCost();
+                    if (c < cost) {
+                        cost = c;
+                        best = new Predicate[] { bounds[0], null };
+                        bestHash = true;
+                    }
+                }
+            }
+            if (file instanceof BTreeFile) {
+                int key = ((BTreeFile) file).keyField();
+                Predicate[] bounds = bounds(preds, key);
+                if (bounds != null) {
+                    double c = stats.estimateIndexScanCost(indexSelectivity(stats, key, bounds));
+                    if (c < cost) {
+                        cost = c;
+                        best = bounds;
+                    }
+                }
+            }
+            Set<Integer> used = referencedFields(alias);
+            for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+                boolean covers = used != null && index.covers(used);
+                Predicate[] bounds = bounds(preds, index.getField());
+                if (bounds == null && !covers)
+                    continue;
+                double c;
+                if (bounds == null) {
+                    bounds = new Predicate[2];
+                    c = stats.estimateIndexOnlyScanCost(index, 1.0);
+                } else {
+                    double sel = indexSelectivity(stats, index.getField(), bounds);
+                    c = covers ? stats.estimateIndexOnlyScanCost(index, sel)
+                            : stats.estimateIndexScanCost(index, sel);
+                }
+                if (c < cost) {
+                    cost = c;
+                    best = bounds;
+                    bestIndex = index;
+                    bestCovers = covers;
+                    bestHash = false;
+                }
+            }
+        }
+        accessCosts.put(alias, cost);
+
+        DbIterator node = scan;
+        if (best != null) {
+            IndexPredicate ipred = indexPredicate(best[0]);
+            IndexPredicate istop = indexPredicate(best[1]);
+            if (bestHash)
+                node = new HashScan(t, tableId, alias, ipred);
+            else if (bestIndex == null)
+                node = new BTreeScan(t, tableId, alias, ipred, istop);
+            else
+                node = new SecondaryIndexScan(t, bestIndex, alias, ipred, istop, bestCovers);
+            preds = new ArrayList<Predicate>(preds);
+            preds.remove(best[0]);
+            preds.remove(best[1]);
+            if (bestCovers) {
+                // the fields of an index-only scan are those of the entries
+                for (int i = 0; i < preds.size(); i++)
+                    preds.set(i, moveFilter(preds.get(i), bestIndex.entryField(preds.get(i).getField())));
+            }
+        }
+        if (node == scan && scan instanceof SeqScan)
+            ((SeqScan) scan).setPredicates(preds);
+        for (Predicate p : preds)
+            node = new Filter(p, node);
+        return node;
+    }
+
+    /**
+     * Answer the ORDER BY clause of a query over a single table by the order
+     * of the index its plan scans, so that the query needs no sort and its
+     * first tuples come out before the scan has read them all.  A sequential
+     * scan of a B+ tree ordered by its key becomes a B+ tree scan, and a
+     * scan of an index ordered by its field in descending order becomes a
+     * descending scan of the same range.
+     *
+     * @param plan the scan of the table, with the filters its scan does not
+     *        answer on top
+     * @return plan with its scan replaced by one in the order of the ORDER
+     *         BY clause, or null if no index of the table can answer it
+     */
+    private DbIterator indexOrder(TransactionId t, String alias, DbIterator plan) {
+        int tableId = getTableId(alias);
+        if (!oByField.startsWith(alias + "."))
+            return null;
+        int field;
+        try {
+            field = Database.getCatalog().getTupleDesc(tableId)
+                    .fieldNameToIndex(oByField.substring(alias.length() + 1));
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        Filter parent = null;
+        DbIterator scan = plan;
+        while (scan instanceof Filter) {
+            parent = (Filter) scan;
+            scan = parent.getChildren()[0];
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        DbIterator ordered = null;
+        if (scan instanceof SeqScan && !(scan instanceof ParallelSeqScan)
+                && file instanceof BTreeFile && ((BTreeFile) file).keyField() == field) {
+            ordered = new BTreeScan(t, tableId, alias, null, null, !oByAsc);
+        } else if (scan instanceof BTreeScan && ((BTreeFile) file).keyField() == field) {
+            BTreeScan bs = (BTreeScan) scan;
+            IndexPredicate[] range = descendingRange(bs.getIndexPredicate(), bs.getStopPredicate());
+            ordered = oByAsc || range == null ? scan
+                    : new BTreeScan(t, tableId, alias, range[0], range[1], true);
+        } else if (scan instanceof SecondaryIndexScan
+                && ((SecondaryIndexScan) scan).getIndex().getField() == field) {
+            SecondaryIndexScan is = (SecondaryIndexScan) scan;
+            IndexPredicate[] range = descendingRange(is.getIndexPredicate(), is.getStopPredicate());
+            ordered = oByAsc || range == null ? scan
+                    : new SecondaryIndexScan(t, is.getIndex(), alias, range[0], range[1], is.isIndexOnly(), true);
+        }
+        if (ordered == null || parent == null)
+            return ordered;
+        parent.setChildren(new DbIterator[] { ordered });
+        return plan;
+    }
+
+    /**
+     * @return the start and stop predicates of a descending scan of the
+     *         range an ascending scan from ipred to stop reads, or null if
+     *         the keys of the range are all equal, so that the ascending
+     *         scan returns them in descending order too
+     */
+    private static IndexPredicate[] descendingRange(IndexPredicate ipred, IndexPredicate stop) {
+        if (ipred != null && ipred.getOp() == Predicate.Op.EQUALS)
+            return null;
+        // a lower bound alone ends the descending scan as it is
+        if (stop == null)
+            return new IndexPredicate[] { ipred, null };
+        return new IndexPredicate[] { stop, ipred };
+    }
+
+    /**
+     * Find the range of an index on field the filters bound.
+     *
+     * @return the filter the index scan starts at and the one it stops at,
+     *         or null in place of the latter if the scan has no upper bound;
+     *         null if no filter bounds field
+     */
+    private static Predicate[] bounds(ArrayList<Predicate> preds, int field) {
+        Predicate start = null, stop = null;
+        for (Predicate p : preds) {
+            if (p.getField() != field)
+                continue;
+            switch (p.getOp()) {
+            case EQUALS:
+                if (start == null || start.getOp() != Predicate.Op.EQUALS)
+                    start = p;
+                break;
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                if (start == null || tighter(p, start, Predicate.Op.GREATER_THAN))
+                    start = p;
+                break;
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+                if (stop == null || tighter(p, stop, Predicate.Op.LESS_THAN))
+                    stop = p;
+                break;
+            default:
+                break;
+            }
+        }
+        if (start == null && stop == null)
+            return null;
+        // an upper bound alone is answered by a scan from the first leaf
+        if (start == null)
+            return new Predicate[] { stop, null };
+        return new Predicate[] { start, stop };
+    }
+
+    /**
+     * @return the fields of the table scanned under alias the query refers
+     *         to, or null if it refers to all of them or to an unknown one
+     */
+    private Set<Integer> referencedFields(String alias) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (LogicalSelectListNode si : selectList)
+            names.add(si.fname);
+        names.addAll(aggFields);
+        names.add(groupByField);
+        names.add(oByField);
+        for (LogicalFilterNode f : filters)
+            names.add(f.fieldQuantifiedName);
+        for (LogicalJoinNode j : joins) {
+            names.add(j.f1QuantifiedName);
+            names.add(j.f2QuantifiedName);
+        }
+        TupleDesc td = Database.getCatalog().getTupleDesc(getTableId(alias));
+        HashSet<Integer> fields = new HashSet<Integer>();
+        for (String name : names) {
+            if (name == null)
+                continue;
+            if (name.endsWith("*"))
+                return null;
+            if (!name.startsWith(alias + "."))
+                continue;
+            try {
+                fields.add(td.fieldNameToIndex(name.substring(alias.length() + 1)));
+            } catch (NoSuchElementException e) {
+                return null;
+            }
+        }
+        return fields;
+    }
+
+    /** @return a copy of filter p on another field, which takes the values
+        of the parameter p takes, if any */
+    private Predicate moveFilter(Predicate p, int field) {
+        Predicate moved = new Predicate(field, p.getOp(), p.getOperand());
+        Integer parameter = parameterPredicates.get(p);
+        if (parameter != null)
+            parameterPredicates.put(moved, parameter);
+        return moved;
+    }
+
+    private static double indexSelectivity(TableStats stats, int field, Predicate[] bounds) {
+        return stats.estimateIndexSelectivity(field,
+                new IndexPredicate(bounds[0].getOp(), bounds[0].getOperand()),
+                bounds[1] == null ? null : new IndexPredicate(bounds[1].getOp(), bounds[1].getOperand()));
+    }
+
+    /** @return the estimated cost of reading a table through the access
+        path the last physical plan chose for it, or of scanning all of it
+        if it chose none */
+    double estimateAccessCost(String alias, TableStats s) {
+        Double cost = accessCosts.get(alias);
+        return cost == null ? s.estimateScanCost() : cost;
+    }
+
+    /**
+     * @return true if bound p excludes more than bound cur, where both are
+     *         bounds in the direction of strict
+     */
+    private static boolean tighter(Predicate p, Predicate cur, Predicate.Op strict) {
+        if (p.getOperand().equals(cur.getOperand()))
+            return p.getOp() == strict && cur.getOp() != strict;
+        return p.getOperand().compare(strict, cur.getOperand());
+    }
+
+    private IndexPredicate indexPredicate(Predicate p) {
+        if (p == null)
+            return null;
+        IndexPredicate ipred = new IndexPredicate(p.getOp(), p.getOperand());
+        Integer parameter = parameterPredicates.get(p);
+        if (parameter != null)
+            parameterIndexPredicates.put(ipred, parameter);
+        return ipred;
+    }
+
+    /** Split the plan of the FROM and WHERE clauses into copies that together
+        compute it, to be run concurrently by the workers of a {@link Gather}.
+        The scan driving the plan is split into morsels if TableStats says its
+        table is large; every equality join above it then probes a hash table
+        built from a {@link Broadcast} of its inner input in each copy.
+        @return the copies, or null if plan cannot be or is not worth running
+        in parallel
+    */
+    private DbIterator[] parallelPipelines(TransactionId t, DbIterator plan,
+            Map<String,TableStats> statsMap, Map<String,Double> filterSelectivities) {
+        if (plan instanceof Join) {
+            Join j = (Join) plan;
+            DbIterator[] children = j.getChildren();
+            if (j.getJoinPredicate().getOperator() != Predicate.Op.EQUALS
+                    || estimateCardinality(children[1], statsMap, filterSelectivities) > BROADCAST_MAX_TUPLES)
+                return null;
+            DbIterator[] probes = parallelPipelines(t, children[0], statsMap, filterSelectivities);
+            if (probes == null)
+                return null;
+            Broadcast[] builds = Broadcast.broadcast(children[1], probes.length);
+            DbIterator[] pipelines = new DbIterator[probes.length];
+            for (int i = 0; i < probes.length; i++)
+                pipelines[i] = new HashEquiJoin(j.getJoinPredicate(), probes[i], builds[i]);
+            return pipelines;
+        }
+
+        ArrayList<Predicate> preds = new ArrayList<Predicate>();
+        DbIterator it = plan;
+        while (it instanceof Filter) {
+            preds.add(((Filter) it).getPredicate());
+            it = ((Filter) it).getChildren()[0];
+        }
+        if (!(it instanceof SeqScan) || it instanceof ParallelSeqScan)
+            return null;
+        SeqScan ss = (SeqScan) it;
+        TableStats stats = statsMap.get(ss.getTableName());
+        if (!(Database.getCatalog().getDatabaseFile(ss.getTableId()) instanceof HeapFile)
+                || stats == null || stats.totalTuples() < PARALLEL_MIN_TUPLES)
+            return null;
+        DbIterator[] pipelines = ParallelSeqScan.pipelines(t, ss.getTableId(), ss.getAlias(), preds, parallelism);
+        return pipelines.length < 2 ? null : pipelines;
+    }
+
+    /** @return the estimated number of distinct values of a qualified field */
+    private double estimateGroups(String field, Map<String,TableStats> statsMap) {
+        String[] parts = field.split("[.]");
+        Integer tableId = tableMap.get(parts[0]);
+        if (tableId == null)
+            return 1.0;
+        TableStats s = statsMap.get(Database.getCatalog().getTableName(tableId));
+        if (s == null)
+            return 1.0;
+        int index = Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(parts[1]);
+        return Math.min(s.totalTuples(), 1.0 / s.avgSelectivity(index, Predicate.Op.EQUALS));
+    }
+
+    /** @return the estimated number of tuples returned by a filtered scan,
+        or Integer.MAX_VALUE if plan is not a filtered scan, such as the
+        inner side of a bushy join, or there are no statistics for the
+        scanned table */
+    private static int estimateCardinality(DbIterator plan,
+            Map<String,TableStats> statsMap, Map<String,Double> filterSelectivities) {
+        while (plan instanceof Filter)
+            plan = ((Filter) plan).getChildren()[0];
+        String tableName, alias;
+        if (plan instanceof SeqScan) {
+            tableName = ((SeqScan) plan).getTableName();
+            alias = ((SeqScan) plan).getAlias();
+        } else if (plan instanceof BTreeScan) {
+            tableName = ((BTreeScan) plan).getTableName();
+            alias = ((BTreeScan) plan).getAlias();
+        } else if (plan instanceof SecondaryIndexScan) {
+            tableName = ((SecondaryIndexScan) plan).getTableName();
+            alias = ((SecondaryIndexScan) plan).getAlias();
+        } else if (plan instanceof HashScan) {
+            tableName = ((HashScan) plan).getTableName();
+            alias = ((HashScan) plan).getAlias();
+        } else {
+            return Integer.MAX_VALUE;
+        }
+        TableStats stats = statsMap.get(tableName);
+        if (stats == null)
+            return Integer.MAX_VALUE;
+        Double sel = filterSelectivities.get(alias);
+        return stats.estimateTableCardinality(sel == null ? 1.0 : sel);
     }
 
     /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
@@ -289,6 +864,15 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        if (numParameters > 0 && parameters == null)
+            throw new ParsingException("the query has parameters without values");
+        parameterTypes = null;
+        parameterPredicates.clear();
+        parameterIndexPredicates.clear();
+        fragments.clear();
+        accessCosts.clear();
+        HashMap<String,HashSet<String>> members = new HashMap<String,HashSet<String>>();
+        Type[] types = new Type[numParameters];
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -300,12 +884,14 @@ public class LogicalPlan {
             }
             
             subplanMap.put(table.alias,ss);
+            members.put(table.alias, new HashSet<String>(Collections.singleton(table.alias)));
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
 
         }
 
+        HashMap<String,ArrayList<Predicate>> tablePreds = new HashMap<String,ArrayList<Predicate>>();
         Iterator<LogicalFilterNode> filterIt = filters.iterator();        
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
@@ -323,7 +909,12 @@ public class LogicalPlan {
             } catch (java.util.NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
+            if (lf.parameter >= 0) {
+                f = parameters[lf.parameter];
+                if (f == null || f.getType() != ftyp)
+                    throw new ParsingException("parameter " + (lf.parameter + 1) + " must be of type " + ftyp);
+                types[lf.parameter] = ftyp;
+            } else if (ftyp == Type.INT_TYPE)
                 f = new IntField(new Integer(lf.c).intValue());
             else
                 f = new StringField(lf.c, Type.STRING_LEN);
@@ -334,14 +925,39 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (lf.parameter >= 0)
+                parameterPredicates.put(p, lf.parameter);
+            if (!tablePreds.containsKey(lf.tableAlias))
+                tablePreds.put(lf.tableAlias, new ArrayList<Predicate>());
+            tablePreds.get(lf.tableAlias).add(p);
+        }
+        parameterTypes = types;
 
-            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
-            
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
-            filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
+        for (LogicalScanNode table : tables) {
+            String alias = table.alias;
+            ArrayList<Predicate> preds = tablePreds.get(alias);
+            // without filters, only an index-only scan can beat a full scan
+            if (preds == null && Database.getCatalog().getIndexes(table.t).isEmpty())
+                continue;
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            if (preds == null)
+                preds = new ArrayList<Predicate>();
+            else // the filters on a table are estimated together, as they may be correlated
+                filterSelectivities.put(alias, s.estimateSelectivity(preds));
+            DbIterator access = accessPath(t, alias, subplanMap.get(alias), preds, s);
+            subplanMap.put(alias, access);
+            if (access instanceof Operator)
+                fragments.put((Operator) access, members.get(alias));
+        }
 
-            //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
+        boolean ordered = false;
+        if (hasOrderBy && !hasAgg && tables.size() == 1 && joins.isEmpty()) {
+            String alias = tables.firstElement().alias;
+            DbIterator access = indexOrder(t, alias, subplanMap.get(alias));
+            if (access != null) {
+                subplanMap.put(alias, access);
+                ordered = true;
+            }
         }
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
@@ -384,6 +1000,14 @@ public class LogicalPlan {
             DbIterator j;
             j = jo.instantiateJoin(lj,plan1,plan2);
             subplanMap.put(t1name, j);
+            HashSet<String> joined = new HashSet<String>(members.get(t1name));
+            if (isSubqueryJoin)
+                joined.add(null);
+            else
+                joined.addAll(members.remove(t2name));
+            members.put(t1name, joined);
+            if (j instanceof Operator)
+                fragments.put((Operator) j, joined);
 
             if (!isSubqueryJoin) {
                 subplanMap.remove(t2name);
@@ -406,7 +1030,15 @@ public class LogicalPlan {
             throw new ParsingException("Query does not include join expressions joining all nodes!");
         }
         
+        labelFragments(jo, statsMap, filterSelectivities);
+
         DbIterator node =  (DbIterator)(subplanMap.entrySet().iterator().next().getValue());
+        DbIterator[] pipelines = null;
+        if (parallelism > 1) {
+            pipelines = parallelPipelines(t, node, statsMap, filterSelectivities);
+            if (pipelines != null)
+                node = new Gather(pipelines);
+        }
 
         //walk the select list, to determine order in which to project output fields
         ArrayList<Integer> outFields = new ArrayList<Integer>();
@@ -414,7 +1046,11 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                int aggIndex = aggregateIndex(si.aggOp, si.fname);
+                if (aggIndex < 0) {
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") is not computed by this plan");
+                }
+                outFields.add((groupByField!=null?1:0) + aggIndex);
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
@@ -460,21 +1096,43 @@ public class LogicalPlan {
 
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
-            Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] afields = new int[aggFields.size()];
+                Aggregator.Op[] aops = new Aggregator.Op[aggOps.size()];
+                boolean splittable = true;
+                for (int i = 0; i < afields.length; i++) {
+                    afields[i] = td.fieldNameToIndex(aggFields.elementAt(i));
+                    aops[i] = getAggOp(aggOps.elementAt(i));
+                    splittable &= aops[i] != Aggregator.Op.COUNT_DISTINCT;
+                }
+                int gfield = groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField);
+                if (pipelines != null && groupByField != null
+                        && (!splittable || estimateGroups(groupByField, statsMap) >= REPARTITION_MIN_GROUPS)) {
+                    // every worker aggregates the groups of one partition,
+                    // so no partial aggregates need to be combined
+                    Repartition[] parts = Repartition.partition(pipelines, gfield, pipelines.length);
+                    DbIterator[] aggNodes = new DbIterator[parts.length];
+                    for (int i = 0; i < parts.length; i++) {
+                        Aggregate aggNode = new Aggregate(parts[i], afields, gfield, aops);
+                        aggNode.setMaxGroupsInMemory(Math.max(1, Aggregate.DEFAULT_MAX_GROUPS / parts.length));
+                        aggNodes[i] = aggNode;
+                    }
+                    node = new Gather(aggNodes);
+                } else {
+                    Aggregate aggNode = new Aggregate(node, afields, gfield, aops);
+                    aggNode.setParallelism(parallelism);
+                    node = aggNode;
+                }
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
+            } catch (UnsupportedOperationException e) {
+                throw new simpledb.ParsingException(e);
             }
-            node = aggNode;
         }
 
-        if (hasOrderBy) {
+        if (hasOrderBy && !ordered) {
             node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
         }
 
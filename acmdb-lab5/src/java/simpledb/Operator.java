@@ -16,14 +16,14 @@ public abstract class Operator implements DbIterator {
             throw new IllegalStateException("Operator not yet open");
         
         if (next == null)
-            next = fetchNext();
+            next = fetch();
         return next != null;
     }
 
     public Tuple next() throws DbException, TransactionAbortedException,
             NoSuchElementException {
         if (next == null) {
-            next = fetchNext();
+            next = fetch();
             if (next == null)
                 throw new NoSuchElementException();
         }
@@ -44,6 +44,26 @@ public abstract class Operator implements DbIterator {
     protected abstract Tuple fetchNext() throws DbException,
             TransactionAbortedException;
 
+    /**
+     * Call {@link #fetchNext}, counting the tuples of a fragment and
+     * recording their number with {@link CardinalityFeedback} when it is
+     * first exhausted after being opened.
+     */
+    private Tuple fetch() throws DbException, TransactionAbortedException {
+        Tuple t = fetchNext();
+        if (fragment == null)
+            return t;
+        if (t != null) {
+            rows++;
+        } else if (!recorded) {
+            recorded = true;
+            CardinalityFeedback.record(fragment, rows);
+            if (checkpoint && CardinalityFeedback.deviates(rows, fragmentEstimate))
+                throw new CardinalityFeedback.Deviation(fragment, rows, fragmentEstimate);
+        }
+        return t;
+    }
+
     /**
      * Closes this iterator. If overridden by a subclass, they should call
      * super.close() in order for Operator's internal state to be consistent.
@@ -57,9 +77,15 @@ public abstract class Operator implements DbIterator {
     private Tuple next = null;
     private boolean open = false;
     private int estimatedCardinality = 0;
+    private String fragment = null;
+    private int fragmentEstimate = -1;
+    private boolean checkpoint = false, recorded = false;
+    private long rows = 0;
 
     public void open() throws DbException, TransactionAbortedException {
         this.open = true;
+        rows = 0;
+        recorded = false;
     }
 
     /**
@@ -104,4 +130,41 @@ public abstract class Operator implements DbIterator {
         this.estimatedCardinality = card;
     }
 
+    /**
+     * @return the number of bytes this operator has written to temporary
+     *         files since it was constructed; 0 for operators that never
+     *         spill
+     * */
+    public long getSpillBytes() {
+        return 0;
+    }
+
+    /**
+     * Make this operator the top of a plan fragment whose actual number of
+     * tuples is recorded with {@link CardinalityFeedback}.
+     *
+     * @param signature the signature of the fragment, or null if it has none
+     * @param estimate the number of tuples the plan was chosen for, or -1 if
+     *        unknown
+     */
+    void setFragment(String signature, int estimate) {
+        this.fragment = signature;
+        this.fragmentEstimate = estimate;
+    }
+
+    /** @return the signature of the fragment this operator is the top of,
+        or null */
+    String getFragment() {
+        return fragment;
+    }
+
+    /**
+     * @param on whether this operator, the top of a fragment that is a
+     *        pipeline breaker, throws a {@link CardinalityFeedback.Deviation}
+     *        when its count is far from its estimate
+     */
+    void setCheckpoint(boolean on) {
+        this.checkpoint = on;
+    }
+
 }
@@ -41,10 +41,8 @@ public class OperatorCardinality {
                     hasJoinPK = updateOperatorCardinality(
                             (Operator) children[0], tableAliasToId, tableStats);
                     childC = ((Operator) children[0]).getEstimatedCardinality();
-                } else if (children[0] instanceof SeqScan) {
-                    childC = tableStats.get(
-                            ((SeqScan) children[0]).getTableName())
-                            .estimateTableCardinality(1.0);
+                } else if (isScan(children[0])) {
+                    childC = scanCardinality(children[0], tableStats);
                 }
             }
             o.setEstimatedCardinality(childC);
@@ -77,10 +75,9 @@ public class OperatorCardinality {
                 f.setEstimatedCardinality((int) (oChild
                         .getEstimatedCardinality() * selectivity) + 1);
                 return hasJoinPK;
-            } else if (child instanceof SeqScan) {
-                f.setEstimatedCardinality((int) (tableStats.get(
-                        ((SeqScan) child).getTableName())
-                        .estimateTableCardinality(1.0) * selectivity) + 1);
+            } else if (isScan(child)) {
+                f.setEstimatedCardinality((int) (scanCardinality(child,
+                        tableStats) * selectivity) + 1);
                 return false;
             }
         }
@@ -120,9 +117,8 @@ public class OperatorCardinality {
             child1HasJoinPK = pk || child1HasJoinPK;
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (isScan(child1)) {
+            child1Card = scanCardinality(child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -132,9 +128,8 @@ public class OperatorCardinality {
             child2HasJoinPK = pk || child2HasJoinPK;
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (isScan(child2)) {
+            child2Card = scanCardinality(child2, tableStats);
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -177,9 +172,8 @@ public class OperatorCardinality {
             child1HasJoinPK = pk || child1HasJoinPK;
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (isScan(child1)) {
+            child1Card = scanCardinality(child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -189,9 +183,8 @@ public class OperatorCardinality {
             child2HasJoinPK = pk || child2HasJoinPK;
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (isScan(child2)) {
+            child2Card = scanCardinality(child2, tableStats);
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -219,9 +212,8 @@ public class OperatorCardinality {
             return hasJoinPK;
         }
 
-        if (child instanceof SeqScan) {
-            childCard = (int) (tableStats.get(((SeqScan) child).getTableName())
-                    .estimateTableCardinality(1.0));
+        if (isScan(child)) {
+            childCard = scanCardinality(child, tableStats);
         }
 
         String[] tmp = a.groupFieldName().split("[.]");
@@ -244,4 +236,57 @@ public class OperatorCardinality {
         a.setEstimatedCardinality(childCard);
         return hasJoinPK;
     }
+
+    private static boolean isScan(DbIterator it) {
+        return it instanceof SeqScan || it instanceof BTreeScan
+                || it instanceof SecondaryIndexScan || it instanceof HashScan;
+    }
+
+    /**
+     * @return the estimated number of tuples returned by a scan, taking the
+     *         predicates pushed down into a {@link ParallelSeqScan} and the
+     *         key range of a {@link BTreeScan} or {@link SecondaryIndexScan}
+     *         and the key of a {@link HashScan} into account
+     */
+    private static int scanCardinality(DbIterator s,
+            Map<String, TableStats> tableStats) {
+        double selectivity = 1.0;
+        if (s instanceof BTreeScan) {
+            BTreeScan bs = (BTreeScan) s;
+            TableStats stats = tableStats.get(bs.getTableName());
+            if (bs.getIndexPredicate() != null) {
+                int key = ((BTreeFile) Database.getCatalog().getDatabaseFile(
+                        bs.getTableId())).keyField();
+                selectivity = stats.estimateIndexSelectivity(key,
+                        bs.getIndexPredicate(), bs.getStopPredicate());
+            }
+            return (int) stats.estimateTableCardinality(selectivity);
+        }
+        if (s instanceof SecondaryIndexScan) {
+            SecondaryIndexScan is = (SecondaryIndexScan) s;
+            TableStats stats = tableStats.get(is.getTableName());
+            if (is.getIndexPredicate() != null)
+                selectivity = stats.estimateIndexSelectivity(is.getIndex().getField(),
+                        is.getIndexPredicate(), is.getStopPredicate());
+            return (int) stats.estimateTableCardinality(selectivity);
+        }
+        if (s instanceof HashScan) {
+            HashScan hs = (HashScan) s;
+            TableStats stats = tableStats.get(hs.getTableName());
+            IndexPredicate p = hs.getIndexPredicate();
+            if (p != null) {
+                int key = ((HashFile) Database.getCatalog().getDatabaseFile(
+                        hs.getTableId())).keyField();
+                selectivity = stats.estimateSelectivity(key, p.getOp(), p.getField());
+            }
+            return (int) stats.estimateTableCardinality(selectivity);
+        }
+        TableStats stats = tableStats.get(((SeqScan) s).getTableName());
+        if (s instanceof ParallelSeqScan) {
+            for (Predicate p : ((ParallelSeqScan) s).getPredicates())
+                selectivity *= stats.estimateSelectivity(p.getField(),
+                        p.getOp(), p.getOperand());
+        }
+        return (int) stats.estimateTableCardinality(selectivity);
+    }
 }
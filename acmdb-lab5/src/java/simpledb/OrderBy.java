@@ -101,23 +101,31 @@ public class OrderBy extends Operator {
 }
 
 class TupleComparator implements Comparator<Tuple> {
-    int field;
+    int[] fields;
     boolean asc;
 
     public TupleComparator(int field, boolean asc) {
-        this.field = field;
+        this(new int[] { field }, asc);
+    }
+
+    /** Order tuples by the first field, then those equal on it by the next one */
+    public TupleComparator(int[] fields, boolean asc) {
+        this.fields = fields;
         this.asc = asc;
     }
 
     public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+        for (int field : fields) {
+            Field t1 = (o1).getField(field);
+            Field t2 = (o2).getField(field);
+            if (t1.compare(Predicate.Op.EQUALS, t2))
+                continue;
+            if (t1.compare(Predicate.Op.GREATER_THAN, t2))
+                return asc ? 1 : -1;
+            else
+                return asc ? -1 : 1;
+        }
+        return 0;
     }
     
 }
@@ -0,0 +1,96 @@
+package simpledb;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PageCursor hands out the pages of a file to the workers of a parallel scan
+ * in small contiguous ranges ("morsels").
+ * <p>
+ * Workers claim morsels from a shared atomic counter rather than being given
+ * a fixed share of the file up front, so a worker that is slowed down (by a
+ * selective filter, a cold page or a busy core) simply claims fewer morsels
+ * and the others pick up the slack.
+ * <p>
+ * Opening or rewinding one of the scans sharing a cursor does not start the
+ * cursor over, since the other scans may already be reading from it.  The
+ * operator that runs all of the scans restarts their cursors, with
+ * {@link #restart}, before it opens any of them.
+ */
+class PageCursor {
+
+    private final AtomicInteger next;
+    private final int firstPage;
+    private final int endPage;
+    private final int morselPages;
+
+    /**
+     * Create a cursor over pages firstPage to endPage - 1.
+     *
+     * @param firstPage the first page to hand out
+     * @param endPage one past the last page to hand out
+     * @param morselPages the number of pages in each morsel
+     */
+    PageCursor(int firstPage, int endPage, int morselPages) {
+        if (morselPages < 1)
+            throw new IllegalArgumentException("a morsel must hold at least one page");
+        this.next = new AtomicInteger(firstPage);
+        this.firstPage = firstPage;
+        this.endPage = endPage;
+        this.morselPages = morselPages;
+    }
+
+    /** Start handing out the pages from the first one again */
+    void reset() {
+        next.set(firstPage);
+    }
+
+    /**
+     * Start over the cursors shared by the scans of a set of pipelines, once
+     * each, before the pipelines are run again.  A pipeline's scan is found
+     * by following the only child of each operator, and not past an
+     * {@link Exchange}, whose own producers are restarted by its buffer.
+     */
+    static void restart(DbIterator[] pipelines) {
+        Set<PageCursor> cursors = Collections.newSetFromMap(new IdentityHashMap<PageCursor, Boolean>());
+        for (DbIterator it : pipelines) {
+            while (it instanceof Operator && !(it instanceof Exchange)
+                    && ((Operator) it).getChildren().length == 1)
+                it = ((Operator) it).getChildren()[0];
+            if (it instanceof SeqScan && ((SeqScan) it).getCursor() != null)
+                cursors.add(((SeqScan) it).getCursor());
+        }
+        for (PageCursor c : cursors)
+            c.reset();
+    }
+
+    /**
+     * Claim the next morsel.  Every morsel is claimed by exactly one caller.
+     *
+     * @return the first page of the morsel, or -1 if every page has already
+     *         been claimed
+     */
+    int claim() {
+        if (next.get() >= endPage)
+            return -1;
+        int first = next.getAndAdd(morselPages);
+        return first < endPage ? first : -1;
+    }
+
+    /**
+     * @return one past the last page of the morsel starting at firstPage
+     */
+    int morselEnd(int firstPage) {
+        return Math.min(firstPage + morselPages, endPage);
+    }
+
+    /**
+     * @return the number of morsels a cursor over the given number of pages
+     *         hands out
+     */
+    static int numMorsels(int pages, int morselPages) {
+        return (pages + morselPages - 1) / morselPages;
+    }
+}
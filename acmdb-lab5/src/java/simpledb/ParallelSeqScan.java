@@ -0,0 +1,154 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ParallelSeqScan is a sequential scan of a {@link HeapFile} that is divided
+ * among several worker threads.
+ * <p>
+ * The workers claim morsels of {@link #MORSEL_PAGES} pages at a time from a
+ * shared {@link PageCursor}, apply the predicates pushed down into the scan
+ * to the tuples of their morsels, and hand the survivors to the consumer
+ * through an {@link ExchangeBuffer}.  Tuples are returned in no particular
+ * order.
+ * <p>
+ * All workers read their pages through {@link BufferPool#getPage} on behalf
+ * of the scan's transaction, so the pages read by the scan are locked exactly
+ * as if the scan had run on a single thread.
+ * <p>
+ * A parallel operator can also run its own copy of the pipeline on each
+ * worker, instead of consuming the merged output; see {@link #pipelines}.
+ */
+public class ParallelSeqScan extends SeqScan {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of pages a worker claims at a time */
+    public static final int MORSEL_PAGES = 8;
+
+    private final Predicate[] preds;
+    private final int dop;
+
+    private transient ExchangeBuffer buffer;
+    private transient Tuple[] batch;
+    private transient int batchPos;
+
+    /**
+     * Creates a parallel scan over the specified table.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan; must be stored in a {@link HeapFile}
+     * @param tableAlias
+     *            the alias of this table
+     * @param preds
+     *            the predicates every returned tuple has to satisfy; field
+     *            indexes refer to the TupleDesc of this scan
+     * @param dop
+     *            the maximum number of worker threads to use
+     */
+    public ParallelSeqScan(TransactionId tid, int tableid, String tableAlias, Predicate[] preds, int dop) {
+        super(tid, tableid, tableAlias);
+        if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile))
+            throw new IllegalArgumentException("parallel scans need a HeapFile");
+        if (dop < 1)
+            throw new IllegalArgumentException("the degree of parallelism must be at least 1");
+        this.preds = preds.clone();
+        this.dop = dop;
+    }
+
+    /**
+     * @return the predicates pushed down into this scan
+     */
+    public Predicate[] getPredicates() {
+        return preds.clone();
+    }
+
+    /**
+     * @return the maximum number of worker threads this scan uses
+     */
+    public int getParallelism() {
+        return dop;
+    }
+
+    /**
+     * Build up to dop scan pipelines over a heap file that together return
+     * every tuple satisfying the predicates exactly once.  The pipelines
+     * share a page cursor, so they must be run concurrently to completion, and
+     * are rerun by restarting the cursor with {@link PageCursor#restart}
+     * before opening them all again.  No more pipelines are built than there are morsels
+     * in the file.
+     *
+     * @param tid
+     *            the transaction the pipelines run as a part of
+     * @param tableid
+     *            the table to scan; must be stored in a {@link HeapFile}
+     * @param tableAlias
+     *            the alias of this table
+     * @param preds
+     *            the predicates to filter each pipeline with
+     * @param dop
+     *            the maximum number of pipelines to build
+     */
+    static DbIterator[] pipelines(TransactionId tid, int tableid, String tableAlias, List<Predicate> preds,
+            int dop) {
+        HeapFile f = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
+        int pages = f.numPages();
+        int n = Math.max(1, Math.min(dop, PageCursor.numMorsels(pages, MORSEL_PAGES)));
+        PageCursor cursor = new PageCursor(0, pages, MORSEL_PAGES);
+        DbIterator[] parts = new DbIterator[n];
+        for (int i = 0; i < n; i++) {
+            DbIterator part = new SeqScan(tid, tableid, tableAlias, cursor, preds);
+            for (Predicate p : preds)
+                part = new Filter(p, part);
+            parts[i] = part;
+        }
+        return parts;
+    }
+
+    /**
+     * @return pipelines computing the output of this scan, as described in
+     *         {@link #pipelines(TransactionId, int, String, List, int)}
+     */
+    DbIterator[] pipelines(int n) {
+        return pipelines(getTransactionId(), getTableId(), getAlias(), Arrays.asList(preds), n);
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        buffer = new ExchangeBuffer(pipelines(dop), 1, 0);
+        buffer.open(0);
+        batch = null;
+        batchPos = 0;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (buffer == null)
+            return false;
+        while (batch == null || batchPos == batch.length) {
+            batch = buffer.take(0);
+            batchPos = 0;
+            if (batch == null)
+                return false;
+        }
+        return true;
+    }
+
+    public Tuple next() throws NoSuchElementException, TransactionAbortedException, DbException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return batch[batchPos++];
+    }
+
+    public void close() {
+        if (buffer != null)
+            buffer.close(0);
+        buffer = null;
+        batch = null;
+    }
+
+    public void rewind() throws DbException, NoSuchElementException, TransactionAbortedException {
+        close();
+        open();
+    }
+}
@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -12,6 +14,18 @@ import jline.SimpleCompletor;
 public class Parser {
     static boolean explain = false;
 
+    private int parallelism = 1;
+
+    /**
+     * Set the degree of parallelism used by the queries this parser runs
+     * from now on.
+     */
+    public void setParallelism(int dop) {
+        if (dop < 1)
+            throw new IllegalArgumentException("the degree of parallelism must be at least 1");
+        this.parallelism = dop;
+    }
+
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
             return Predicate.Op.EQUALS;
@@ -62,6 +76,17 @@ public class Parser {
             boolean isJoin = false;
             Predicate.Op op = getOp(wx.getOperator());
 
+            int param = isParameter(ops.elementAt(0)) ? 0 : isParameter(ops.elementAt(1)) ? 1 : -1;
+            if (param >= 0) {
+                ZExp other = ops.elementAt(1 - param);
+                if (!(other instanceof ZConstant)
+                        || ((ZConstant) other).getType() != ZConstant.COLUMNNAME)
+                    throw new simpledb.ParsingException(
+                            "Parameters can only be compared to fields.");
+                lp.addParameterFilter(((ZConstant) other).getValue(), op);
+                return;
+            }
+
             boolean op1const = ops.elementAt(0) instanceof ZConstant; // otherwise
                                                                       // is a
                                                                       // Query
@@ -97,6 +122,9 @@ public class Parser {
                     try {
                         LogicalPlan sublp = parseQueryLogicalPlan(tid,
                                 (ZQuery) ops.elementAt(1));
+                        if (sublp.getParameterCount() > 0)
+                            throw new simpledb.ParsingException(
+                                    "Parameters in subqueries are not supported.");
                         DbIterator pp = sublp.physicalPlan(tid,
                                 TableStats.getStatsMap(), explain);
                         lp.addJoin(tab1field, pp, op);
@@ -132,6 +160,12 @@ public class Parser {
 
     }
 
+    /** @return true if e is the parameter of a prepared statement, ? */
+    private static boolean isParameter(ZExp e) {
+        return e instanceof ZExpression && ((ZExpression) e).getOperator().equals("?")
+                && ((ZExpression) e).nbOperands() == 0;
+    }
+
     public LogicalPlan parseQueryLogicalPlan(TransactionId tid, ZQuery q)
             throws IOException, Zql.ParseException, simpledb.ParsingException {
         @SuppressWarnings("unchecked")
@@ -207,8 +241,8 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        Vector<String> aggFields = new Vector<String>();
+        Vector<String> aggFuns = new Vector<String>();
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -218,13 +252,11 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
+                aggFields.addElement(aggField);
+                aggFuns.addElement(aggFun);
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
@@ -241,12 +273,12 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (groupByField != null && aggFuns.isEmpty()) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        for (int i = 0; i < aggFuns.size(); i++) {
+            lp.addAggregate(aggFuns.elementAt(i), aggFields.elementAt(i), groupByField);
         }
         // sort the data
 
@@ -279,11 +311,68 @@ public class Parser {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        lp.setParallelism(parallelism);
         DbIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
         query.setLogicalPlan(lp);
+        printPlan(physicalPlan, lp);
+
+        return query;
+    }
+
+    /**
+     * Prepare a SELECT statement, whose parameters are written as ?, to be
+     * run many times.  The plan of an earlier statement with the same query
+     * is reused if the {@link QueryPlanCache} still holds it.
+     *
+     * @throws simpledb.ParsingException if sql is not a valid SELECT statement
+     */
+    public PreparedStatement prepare(String sql) throws simpledb.ParsingException {
+        return prepare(sql, null);
+    }
+
+    /**
+     * @param tid the transaction the statement will first be executed in, if
+     *        known, which spares parsing it again at that time
+     */
+    PreparedStatement prepare(String sql, TransactionId tid) throws simpledb.ParsingException {
+        String key = QueryPlanCache.key(sql, parallelism);
+        QueryPlanCache.Entry entry = QueryPlanCache.checkout(key);
+        if (entry == null)
+            entry = parseStatement(key, sql, tid);
+        return new PreparedStatement(this, sql, entry, tid);
+    }
+
+    /**
+     * Parse the logical plan of a prepared statement, for the degree of
+     * parallelism of this parser.
+     *
+     * @param tid the transaction subqueries are planned for, or null
+     */
+    QueryPlanCache.Entry parseStatement(String key, String sql, TransactionId tid)
+            throws simpledb.ParsingException {
+        ZqlParser p = new ZqlParser(new ByteArrayInputStream(sql.getBytes()));
+        try {
+            ZStatement stmt = p.readStatement();
+            if (!(stmt instanceof ZQuery))
+                throw new simpledb.ParsingException(
+                        "Only SELECT statements can be prepared: " + sql);
+            LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+            lp.setParallelism(parallelism);
+            return new QueryPlanCache.Entry(key, lp);
+        } catch (Zql.ParseException e) {
+            throw new simpledb.ParsingException(
+                    "Invalid SQL expression: \n \t " + e);
+        } catch (Zql.TokenMgrError e) {
+            throw new simpledb.ParsingException(
+                    "Invalid SQL expression: \n \t " + e);
+        } catch (IOException e) {
+            throw new simpledb.ParsingException(e);
+        }
+    }
 
+    private void printPlan(DbIterator physicalPlan, LogicalPlan lp) {
         if (physicalPlan != null) {
             Class<?> c;
             try {
@@ -316,8 +405,6 @@ public class Parser {
                 e.printStackTrace();
             }
         }
-
-        return query;
     }
 
     public Query handleInsertStatement(ZInsert s, TransactionId tId)
@@ -492,21 +579,143 @@ public class Parser {
         return curtrans;
     }
 
+    /**
+     * Run a single statement.  SELECT statements are run as prepared
+     * statements without parameters, so running the same query again reuses
+     * its plan.  A SELECT statement prefixed with EXPLAIN ANALYZE is run with
+     * its output discarded, and what each operator of its plan did is
+     * printed instead; see {@link ExplainAnalyze}.  CREATE INDEX statements,
+     * which ZQL does not parse, are handled by {@link #handleCreateIndex}.
+     */
     public void processNextStatement(String s) {
+        Matcher c = CREATE_INDEX.matcher(s);
+        if (c.matches()) {
+            try {
+                List<String> included = c.group(4) == null ? Collections.<String>emptyList()
+                        : Arrays.asList(c.group(4).trim().split("\\s*,\\s*"));
+                handleCreateIndex(c.group(1), c.group(2), c.group(3), included);
+            } catch (simpledb.ParsingException e) {
+                System.out.println("Invalid SQL expression: \n \t" + e.getMessage());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        Matcher m = EXPLAIN_ANALYZE.matcher(s);
+        boolean analyze = m.matches();
+        if (analyze)
+            s = m.group(1);
         try {
-            processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")));
+            processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")), s, analyze);
         } catch (UnsupportedEncodingException e) {
             e.printStackTrace();
             throw new RuntimeException(e);
         }
     }
 
+    private static final Pattern EXPLAIN_ANALYZE = Pattern.compile(
+            "\\s*explain\\s+analyze\\s+(.*)", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private static final Pattern CREATE_INDEX = Pattern.compile(
+            "\\s*create\\s+index\\s+(\\w+)\\s+on\\s+(\\w+)\\s*\\(\\s*(\\w+)\\s*\\)"
+            + "(?:\\s*include\\s*\\(\\s*(\\w+(?:\\s*,\\s*\\w+)*)\\s*\\))?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Create a secondary index on a field of a table, which is stored in the
+     * file name.idx next to the heap file of the table and loaded in a
+     * transaction of its own.  The index is used by queries from then on.
+     *
+     * @param name the name of the index, which must not name a table
+     * @param tableName the table to index
+     * @param fieldName the field to index
+     * @throws simpledb.ParsingException if the names are invalid or a
+     *         transaction is running
+     */
+    public SecondaryIndex handleCreateIndex(String name, String tableName, String fieldName)
+            throws simpledb.ParsingException, DbException, IOException,
+            TransactionAbortedException {
+        return handleCreateIndex(name, tableName, fieldName, Collections.<String>emptyList());
+    }
+
+    /**
+     * Create a covering secondary index, as CREATE INDEX name ON table
+     * (field) INCLUDE (included, ...) does, which stores the included fields
+     * in its entries so that queries referring to no other fields of the
+     * table never read the table.
+     *
+     * @see #handleCreateIndex(String, String, String)
+     */
+    public SecondaryIndex handleCreateIndex(String name, String tableName, String fieldName,
+            List<String> includedNames) throws simpledb.ParsingException, DbException,
+            IOException, TransactionAbortedException {
+        if (inUserTrans)
+            throw new simpledb.ParsingException(
+                    "CREATE INDEX cannot run in a transaction");
+        Catalog catalog = Database.getCatalog();
+        int tableId;
+        try {
+            tableId = catalog.getTableId(tableName);
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table " + tableName);
+        }
+        try {
+            catalog.getTableId(name);
+            throw new simpledb.ParsingException("Index " + name + " names a table");
+        } catch (NoSuchElementException e) {
+            // the name is free
+        }
+        DbFile table = catalog.getDatabaseFile(tableId);
+        if (!(table instanceof HeapFile))
+            throw new simpledb.ParsingException("Table " + tableName
+                    + " is not stored in a heap file");
+        int field = fieldIndex(table.getTupleDesc(), tableName, fieldName);
+        int[] included = new int[includedNames.size()];
+        for (int i = 0; i < included.length; i++)
+            included[i] = fieldIndex(table.getTupleDesc(), tableName, includedNames.get(i));
+        File f = new File(((HeapFile) table).getFile().getAbsoluteFile().getParentFile(),
+                name + ".idx");
+
+        Transaction t = new Transaction();
+        t.start();
+        SecondaryIndex index;
+        try {
+            index = SecondaryIndex.create(t.getId(), name, tableId, field, included, f);
+        } catch (DbException | IOException | TransactionAbortedException | RuntimeException e) {
+            t.abort();
+            throw e;
+        }
+        t.commit();
+        System.out.println("Created index " + name + " on " + tableName + "("
+                + fieldName + ").");
+        return index;
+    }
+
+    private static int fieldIndex(TupleDesc td, String tableName, String fieldName)
+            throws simpledb.ParsingException {
+        try {
+            return td.fieldNameToIndex(fieldName);
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown field " + fieldName
+                    + " of table " + tableName);
+        }
+    }
+
     public void processNextStatement(InputStream is) {
+        processNextStatement(is, null, false);
+    }
+
+    /**
+     * @param text the text of the statement in is, or null if it is unknown
+     * @param analyze true to run a SELECT statement under EXPLAIN ANALYZE
+     */
+    private void processNextStatement(InputStream is, String text, boolean analyze) {
         try {
             ZqlParser p = new ZqlParser(is);
             ZStatement s = p.readStatement();
 
             Query query = null;
+            PreparedStatement prepared = null;
             if (s instanceof ZTransactStmt)
                 handleTransactStatement((ZTransactStmt) s);
             else {
@@ -517,13 +726,28 @@ public class Parser {
                             + curtrans.getId().getId());
                 }
                 try {
-                    if (s instanceof ZInsert)
+                    if (analyze && !(s instanceof ZQuery))
+                        throw new simpledb.ParsingException(
+                                "Only SELECT statements can be analyzed.");
+                    if (analyze) {
+                        // a plan of its own, as instrumenting changes it
+                        query = handleQueryStatement((ZQuery) s, curtrans.getId());
+                        DbIterator plan = ExplainAnalyze.instrument(query.getPhysicalPlan());
+                        int rows = ExplainAnalyze.run(plan);
+                        System.out.println(ExplainAnalyze.report(plan));
+                        System.out.println(" " + rows + " rows.");
+                        query = null;
+                    } else if (s instanceof ZInsert)
                         query = handleInsertStatement((ZInsert) s,
                                 curtrans.getId());
                     else if (s instanceof ZDelete)
                         query = handleDeleteStatement((ZDelete) s,
                                 curtrans.getId());
-                    else if (s instanceof ZQuery)
+                    else if (s instanceof ZQuery && text != null && !explain) {
+                        prepared = prepare(text, curtrans.getId());
+                        query = prepared.execute(curtrans.getId());
+                        printPlan(query.getPhysicalPlan(), query.getLogicalPlan());
+                    } else if (s instanceof ZQuery)
                         query = handleQueryStatement((ZQuery) s,
                                 curtrans.getId());
                     else {
@@ -557,6 +781,8 @@ public class Parser {
                         throw (Zql.TokenMgrError) a;
                     throw new DbException(a.getMessage());
                 } finally {
+                    if (prepared != null)
+                        prepared.close();
                     if (!inUserTrans)
                         curtrans = null;
                 }
@@ -581,7 +807,8 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "set parallelism",
+            "explain analyze", "create index" };
 
     public static void main(String argv[]) throws IOException {
 
@@ -599,6 +826,7 @@ public class Parser {
     static final int SLEEP_TIME = 5000;
 
     protected void shutdown() {
+        TableStats.saveStatistics();
         System.out.println("Bye");
     }
 
@@ -607,7 +835,7 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
+        TableStats.loadStatistics(new File(argv[0] + ".stats"));
 
         String queryFile = null;
 
@@ -674,17 +902,26 @@ public class Parser {
                     buffer.append(line.substring(0, split + 1));
                     String cmd = buffer.toString().trim();
                     cmd = cmd.substring(0, cmd.length() - 1).trim() + ";";
-                    byte[] statementBytes = cmd.getBytes("UTF-8");
                     if (cmd.equalsIgnoreCase("quit;")
                             || cmd.equalsIgnoreCase("exit;")) {
                         shutdown();
                         quit = true;
                         break;
                     }
+                    if (cmd.toLowerCase().startsWith("set parallelism ")) {
+                        try {
+                            setParallelism(Integer.parseInt(cmd.substring(16, cmd.length() - 1).trim()));
+                            System.out.println("Parallelism set to " + parallelism + ".");
+                        } catch (IllegalArgumentException e) {
+                            System.out.println("Invalid parallelism: " + cmd);
+                        }
+                        line = line.substring(split + 1);
+                        buffer = new StringBuilder();
+                        continue;
+                    }
 
                     long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
+                    processNextStatement(cmd);
                     long time = System.currentTimeMillis() - startTime;
                     System.out.printf("----------------\n%.2f seconds\n\n",
                             ((double) time / 1000.0));
@@ -1,50 +1,53 @@
 package simpledb;
 import java.util.HashMap;
-import java.util.Set;
 import java.util.Vector;
 
 /** A PlanCache is a helper class that can be used to store the best
- * way to order a given set of joins */
+ * way to join a given set of relations.  A set of relations is a bitmask
+ * over the relations of the join graph being optimized, so looking up a
+ * plan creates no sets. */
 public class PlanCache {
-    HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>> bestOrders= new HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>>();
-    HashMap<Set<LogicalJoinNode>,Double> bestCosts= new HashMap<Set<LogicalJoinNode>,Double>();
-    HashMap<Set<LogicalJoinNode>,Integer> bestCardinalities = new HashMap<Set<LogicalJoinNode>,Integer>();
+    HashMap<Long,CostCard> bestPlans = new HashMap<Long,CostCard>();
     
-    /** Add a new cost, cardinality and ordering for a particular join set.  Does not verify that the
+    /** Add a new plan for a particular set of relations.  Does not verify that the
         new cost is less than any previously added cost -- simply adds or replaces an existing plan for the
-        specified join set
-        @param s the set of joins for which a new ordering (plan) is being added
-        @param cost the estimated cost of the specified plan
-        @param card the estimatied cardinality of the specified plan
-        @param order the ordering of the joins in the plan
+        specified set
+        @param relations the set of relations for which a new plan is being added
+        @param plan the cost, cardinality and ordering of the joins of the plan
     */
-    void addPlan(Set<LogicalJoinNode> s, double cost, int card, Vector<LogicalJoinNode> order) {
-        bestOrders.put(s,order);                        
-        bestCosts.put(s,cost);
-        bestCardinalities.put(s,card);
+    void addPlan(long relations, CostCard plan) {
+        bestPlans.put(relations, plan);
     }
     
-    /** Find the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best order for
-        @return the best order for s in the cache
+    /** Find the best plan in the cache for the specified set of relations
+        @param relations the set of relations to look up the best plan for
+        @return the best plan for relations in the cache, or null if there is none
     */
-    Vector<LogicalJoinNode> getOrder(Set<LogicalJoinNode> s) {
-        return bestOrders.get(s);
+    CostCard getPlan(long relations) {
+        return bestPlans.get(relations);
+    }
+
+    /** Find the best join order in the cache for the specified set of relations 
+        @param relations the set of relations to look up the best order for
+        @return the best order for relations in the cache
+    */
+    Vector<LogicalJoinNode> getOrder(long relations) {
+        return bestPlans.get(relations).plan;
     }
     
-    /** Find the cost of the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best cost for
-        @return the cost of the best order for s in the cache
+    /** Find the cost of the best join order in the cache for the specified set of relations 
+        @param relations the set of relations to look up the best cost for
+        @return the cost of the best order for relations in the cache
     */
-    double getCost(Set<LogicalJoinNode> s) {
-        return bestCosts.get(s);
+    double getCost(long relations) {
+        return bestPlans.get(relations).cost;
     }
     
-    /** Find the cardinality of the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best cardinality for
-        @return the cardinality of the best order for s in the cache
+    /** Find the cardinality of the best join order in the cache for the specified set of relations 
+        @param relations the set of relations to look up the best cardinality for
+        @return the cardinality of the best order for relations in the cache
     */
-    int getCard(Set<LogicalJoinNode> s) {
-        return bestCardinalities.get(s);
+    int getCard(long relations) {
+        return bestPlans.get(relations).card;
     }
 }
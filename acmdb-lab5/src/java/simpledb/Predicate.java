@@ -89,6 +89,14 @@ public class Predicate implements Serializable {
         // some code goes here
         return operand;
     }
+
+    /**
+     * Replace the operand, e.g. to bind a new value to the parameter of a
+     * prepared statement this predicate compares against.
+     */
+    void setOperand(Field operand) {
+        this.operand = operand;
+    }
     
     /**
      * Compares the field number of t specified in the constructor to the
@@ -0,0 +1,133 @@
+package simpledb;
+
+/**
+ * PreparedStatement is a SELECT query that is parsed once and can then be run
+ * many times, with new values for its parameters each time.
+ * <p>
+ * Parameters are written as <code>?</code> in place of the constant of a
+ * filter, e.g. <code>SELECT * FROM t WHERE t.a = ? AND t.b &lt; ?</code>,
+ * and are numbered in the order they appear.  The physical plan is built by
+ * the first execution, for the values bound by it, and later executions only
+ * bind their values to the operators of that plan and rewind it.  Statements
+ * are created by {@link Parser#prepare}, which reuses the plan of an earlier
+ * statement with the same query from the {@link QueryPlanCache}; closing a
+ * statement returns its plan to the cache.
+ */
+public class PreparedStatement {
+
+    private final Parser parser;
+    private final String sql;
+    private QueryPlanCache.Entry entry;
+    /** The transaction the subqueries of a logical plan without a physical
+        plan were planned for, or null */
+    private TransactionId parsedFor;
+    private Query running = null;
+    private boolean closed = false;
+
+    /**
+     * @param entry the plan of the statement, either checked out of the cache
+     *        or freshly parsed
+     * @param parsedFor the transaction a freshly parsed plan was parsed for
+     */
+    PreparedStatement(Parser parser, String sql, QueryPlanCache.Entry entry, TransactionId parsedFor) {
+        this.parser = parser;
+        this.sql = sql;
+        this.entry = entry;
+        this.parsedFor = parsedFor;
+    }
+
+    /** @return the number of parameters of the statement */
+    public int getParameterCount() {
+        return entry.logicalPlan.getParameterCount();
+    }
+
+    /**
+     * @return true if the statement has a physical plan, built by an earlier
+     *         execution or taken from the cache
+     */
+    public boolean hasPlan() {
+        return entry.physicalPlan != null;
+    }
+
+    /**
+     * Run the statement as a part of a transaction.  The query returned has
+     * not been started; it must be closed before the statement runs again.
+     *
+     * @param tid the transaction to run the statement in
+     * @param values the values of the parameters, in order
+     * @throws ParsingException if the number or the types of the values do
+     *         not match the parameters, or the query cannot be planned
+     */
+    public Query execute(TransactionId tid, Field... values)
+            throws ParsingException, DbException, TransactionAbortedException {
+        if (closed)
+            throw new IllegalStateException("the statement is closed");
+        if (values.length != getParameterCount())
+            throw new ParsingException("expected " + getParameterCount() + " parameters, got " + values.length);
+        finish();
+        if (entry.physicalPlan == null ? parsedFor == null || !parsedFor.equals(tid) : entry.isStale()) {
+            // subqueries are planned while parsing, so the query is parsed
+            // again for the transaction their scans run in
+            entry = parser.parseStatement(entry.key, sql, tid);
+            parsedFor = tid;
+        }
+
+        if (entry.physicalPlan == null) {
+            LogicalPlan lp = entry.logicalPlan;
+            lp.setParameters(values);
+            entry.catalogVersion = Database.getCatalog().getVersion();
+            entry.statsVersion = TableStats.getVersion();
+            entry.physicalPlan = lp.physicalPlan(tid, TableStats.getStatsMap(), Parser.explain);
+        } else {
+            entry.logicalPlan.bindParameters(values);
+            setTransactionId(entry.physicalPlan, tid);
+        }
+
+        running = new Query(entry.physicalPlan, tid);
+        running.setLogicalPlan(entry.logicalPlan);
+        return running;
+    }
+
+    /**
+     * Close the statement and return its plan to the cache.  The statement
+     * cannot be executed afterwards.
+     */
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        finish();
+        QueryPlanCache.checkin(entry);
+    }
+
+    /**
+     * Close the plan of the last execution, which replaces the plan of the
+     * statement if the execution planned the query again, as the parameters
+     * of the logical plan are now bound to its operators.
+     */
+    private void finish() {
+        if (running == null)
+            return;
+        entry.physicalPlan = running.getPhysicalPlan();
+        entry.physicalPlan.close();
+        running = null;
+    }
+
+    /**
+     * Make every scan of a closed plan run as a part of another transaction.
+     */
+    private static void setTransactionId(DbIterator plan, TransactionId tid) {
+        if (plan instanceof SeqScan)
+            ((SeqScan) plan).setTransactionId(tid);
+        else if (plan instanceof BTreeScan)
+            ((BTreeScan) plan).setTransactionId(tid);
+        else if (plan instanceof SecondaryIndexScan)
+            ((SecondaryIndexScan) plan).setTransactionId(tid);
+        else if (plan instanceof HashScan)
+            ((HashScan) plan).setTransactionId(tid);
+        else if (plan instanceof Operator) {
+            for (DbIterator child : ((Operator) plan).getChildren())
+                setTransactionId(child, tid);
+        }
+    }
+}
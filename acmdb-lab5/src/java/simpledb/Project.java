@@ -11,6 +11,11 @@ public class Project extends Operator {
     private DbIterator child;
     private TupleDesc td;
     private ArrayList<Integer> outFieldIds;
+    private int[] outFields;
+    /** true if the projection keeps every field of the child in place */
+    private boolean identity;
+    /** true if tuples of the child are returned as they are while open */
+    private transient boolean passThrough;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -39,6 +44,12 @@ public class Project extends Operator {
             fieldAr[i] = childtd.getFieldName(fieldList.get(i));
         }
         td = new TupleDesc(types, fieldAr);
+        outFields = new int[fieldAr.length];
+        identity = outFields.length == childtd.numFields();
+        for (int i = 0; i < outFields.length; i++) {
+            outFields[i] = fieldList.get(i);
+            identity &= outFields[i] == i && types[i] == childtd.getFieldType(i);
+        }
     }
 
     public TupleDesc getTupleDesc() {
@@ -48,6 +59,7 @@ public class Project extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
+        passThrough = identity && QueryCompiler.isEnabled();
         super.open();
     }
 
@@ -70,10 +82,12 @@ public class Project extends Operator {
             TransactionAbortedException, DbException {
         while (child.hasNext()) {
             Tuple t = child.next();
+            if (passThrough)
+                return t;
             Tuple newTuple = new Tuple(td);
             newTuple.setRecordId(t.getRecordId());
-            for (int i = 0; i < td.numFields(); i++) {
-                newTuple.setField(i, t.getField(outFieldIds.get(i)));
+            for (int i = 0; i < outFields.length; i++) {
+                newTuple.setField(i, t.getField(outFields[i]));
             }
             return newTuple;
         }
@@ -8,6 +8,10 @@ import java.util.*;
  * plan in the form of a high level DbIterator (built by initiating the
  * constructors of query plans) and runs it as a part of a specified
  * transaction.
+ * <p>
+ * A query with a logical plan is planned again if a pipeline breaker of its
+ * plan returns far more or fewer tuples than estimated before the query
+ * returns its first tuple; see {@link CardinalityFeedback}.
  * 
  * @author Sam Madden
  */
@@ -20,6 +24,9 @@ public class Query implements Serializable {
     transient private LogicalPlan logicalPlan;
     TransactionId tid;
     transient private boolean started = false;
+    /** Whether the pipeline breakers of the plan may re-optimize it */
+    transient private boolean armed = false;
+    transient private int reoptimizations = 0;
 
     public TransactionId getTransactionId() {
         return this.tid;
@@ -52,18 +59,91 @@ public class Query implements Serializable {
 
     public void start() throws IOException, DbException,
             TransactionAbortedException {
-        op.open();
+        arm(logicalPlan != null && CardinalityFeedback.isReoptimizing() && !hasExchange(op));
+        try {
+            op.open();
+        } catch (CardinalityFeedback.Deviation d) {
+            reoptimize();
+        }
 
         started = true;
     }
 
+    /**
+     * @return the number of times the query was planned again because a
+     *         pipeline breaker returned far more or fewer tuples than
+     *         estimated; see {@link CardinalityFeedback}
+     */
+    public int getReoptimizations() {
+        return reoptimizations;
+    }
+
+    /**
+     * Plan the query again, now that the counts of the fragments that have
+     * run are known, and open the new plan instead of the current one.
+     */
+    private void reoptimize() throws DbException, TransactionAbortedException {
+        while (true) {
+            op.close();
+            reoptimizations++;
+            try {
+                op = logicalPlan.physicalPlan(tid, TableStats.getStatsMap(), false);
+            } catch (ParsingException e) {
+                throw new DbException("cannot plan the query again: " + e.getMessage());
+            }
+            arm(reoptimizations < CardinalityFeedback.MAX_REOPTIMIZATIONS);
+            try {
+                op.open();
+                return;
+            } catch (CardinalityFeedback.Deviation d) {
+            }
+        }
+    }
+
+    /** Make the pipeline breakers of the plan check their estimates, or stop
+        them from doing so */
+    private void arm(boolean on) {
+        armed = on;
+        arm(op, on);
+    }
+
+    private static void arm(DbIterator it, boolean on) {
+        if (!(it instanceof Operator))
+            return;
+        DbIterator[] children = ((Operator) it).getChildren();
+        if ((it instanceof Join || it instanceof HashEquiJoin) && children[1] instanceof Operator)
+            ((Operator) children[1]).setCheckpoint(on);
+        for (DbIterator child : children)
+            arm(child, on);
+    }
+
+    /** @return true if the workers of an {@link Exchange} run part of the plan,
+        which cannot be restarted from this thread */
+    private static boolean hasExchange(DbIterator it) {
+        if (it instanceof Exchange)
+            return true;
+        if (it instanceof Operator) {
+            for (DbIterator child : ((Operator) it).getChildren()) {
+                if (hasExchange(child))
+                    return true;
+            }
+        }
+        return false;
+    }
+
     public TupleDesc getOutputTupleDesc() {
         return this.op.getTupleDesc();
     }
 
     /** @return true if there are more tuples remaining. */
     public boolean hasNext() throws DbException, TransactionAbortedException {
-        return op.hasNext();
+        while (true) {
+            try {
+                return op.hasNext();
+            } catch (CardinalityFeedback.Deviation d) {
+                reoptimize();
+            }
+        }
     }
 
     /**
@@ -83,7 +163,17 @@ public class Query implements Serializable {
         if (!started)
             throw new DbException("Database not started.");
 
-        return op.next();
+        while (true) {
+            try {
+                Tuple t = op.next();
+                // the plan cannot change once it has returned a tuple
+                if (armed)
+                    arm(false);
+                return t;
+            } catch (CardinalityFeedback.Deviation d) {
+                reoptimize();
+            }
+        }
     }
 
     /** Close the iterator */
@@ -92,6 +182,24 @@ public class Query implements Serializable {
         started = false;
     }
 
+    /**
+     * @return the number of bytes spilled to temporary files by the
+     *         operators of this query so far
+     */
+    public long getSpillBytes() {
+        return spillBytes(op);
+    }
+
+    private static long spillBytes(DbIterator it) {
+        if (!(it instanceof Operator))
+            return 0;
+        Operator o = (Operator) it;
+        long bytes = o.getSpillBytes();
+        for (DbIterator child : o.getChildren())
+            bytes += spillBytes(child);
+        return bytes;
+    }
+
     public void execute() throws IOException, DbException, TransactionAbortedException {
         TupleDesc td = this.getOutputTupleDesc();
 
@@ -113,6 +221,9 @@ public class Query implements Serializable {
             cnt++;
         }
         System.out.println("\n " + cnt + " rows.");
+        long spilled = getSpillBytes();
+        if (spilled > 0)
+            System.out.println(" " + spilled + " bytes spilled to disk.");
         this.close();
     }
 }
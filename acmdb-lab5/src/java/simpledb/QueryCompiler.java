@@ -0,0 +1,197 @@
+package simpledb;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.EnumMap;
+import java.util.List;
+
+/**
+ * QueryCompiler generates the code testing the predicates of a chain of
+ * {@link Filter}s, specialized for the query, with {@link java.lang.invoke}.
+ * <p>
+ * {@link Predicate#filter} looks up the field, dispatches on the class of
+ * the field and then switches on the operator for every tuple, and a chain
+ * of Filters adds a virtual call per predicate.  Compiling a conjunction
+ * instead builds one {@link MethodHandle} from static comparisons of unboxed
+ * values, with the field indexes and the operands bound as constants, e.g.
+ * for <code>f0 &lt; 5 AND f1 &gt;= 2</code> a guard of
+ * <code>intLessThan(intValue(t, 0), 5)</code> around
+ * <code>intGreaterThanOrEq(intValue(t, 1), 2)</code>.  The JVM compiles a
+ * method handle it calls often into code of its own, in which the
+ * comparisons are inlined, so no call site is shared by the predicates of
+ * different queries.  Predicates no comparison is generated for, such as
+ * string range comparisons, are evaluated by {@link Predicate#filter} from
+ * within the generated code.
+ * <p>
+ * Compilation is off by default.  When enabled, a Filter opened on a chain
+ * of Filters evaluates the whole chain with one compiled test over the
+ * tuples of the chain's input, and a {@link Project} that keeps every field
+ * of its input in place passes the input tuples through instead of copying
+ * them.  Other operators, aggregates in particular, are not compiled.
+ */
+public class QueryCompiler {
+
+    private static volatile boolean enabled = false;
+
+    private static final MethodHandle INT_VALUE;
+    private static final MethodHandle STRING_VALUE;
+    private static final MethodHandle INTERPRETED;
+    /** (Tuple)boolean returning false */
+    private static final MethodHandle FALSE;
+    /** The (value, operand)boolean comparisons of each operator */
+    private static final EnumMap<Predicate.Op, MethodHandle> INT_TESTS =
+            new EnumMap<Predicate.Op, MethodHandle>(Predicate.Op.class);
+    private static final EnumMap<Predicate.Op, MethodHandle> STRING_TESTS =
+            new EnumMap<Predicate.Op, MethodHandle>(Predicate.Op.class);
+
+    static {
+        try {
+            INT_VALUE = find("intValue", int.class, Tuple.class, int.class);
+            STRING_VALUE = find("stringValue", String.class, Tuple.class, int.class);
+            INTERPRETED = find("interpreted", boolean.class, Predicate.class, Tuple.class);
+            INT_TESTS.put(Predicate.Op.EQUALS, find("intEquals", boolean.class, int.class, int.class));
+            INT_TESTS.put(Predicate.Op.LIKE, INT_TESTS.get(Predicate.Op.EQUALS));
+            INT_TESTS.put(Predicate.Op.NOT_EQUALS, find("intNotEquals", boolean.class, int.class, int.class));
+            INT_TESTS.put(Predicate.Op.LESS_THAN, find("intLessThan", boolean.class, int.class, int.class));
+            INT_TESTS.put(Predicate.Op.LESS_THAN_OR_EQ,
+                    find("intLessThanOrEq", boolean.class, int.class, int.class));
+            INT_TESTS.put(Predicate.Op.GREATER_THAN, find("intGreaterThan", boolean.class, int.class, int.class));
+            INT_TESTS.put(Predicate.Op.GREATER_THAN_OR_EQ,
+                    find("intGreaterThanOrEq", boolean.class, int.class, int.class));
+            STRING_TESTS.put(Predicate.Op.EQUALS, find("stringEquals", boolean.class, String.class, String.class));
+            STRING_TESTS.put(Predicate.Op.NOT_EQUALS,
+                    find("stringNotEquals", boolean.class, String.class, String.class));
+            STRING_TESTS.put(Predicate.Op.LIKE, find("stringContains", boolean.class, String.class, String.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+        FALSE = MethodHandles.dropArguments(MethodHandles.constant(boolean.class, false), 0, Tuple.class);
+    }
+
+    private static MethodHandle find(String name, Class<?> rtype, Class<?>... ptypes)
+            throws ReflectiveOperationException {
+        return MethodHandles.lookup().findStatic(QueryCompiler.class, name, MethodType.methodType(rtype, ptypes));
+    }
+
+    private QueryCompiler() {
+    }
+
+    /**
+     * Enable or disable compilation for the operators opened from now on.
+     */
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** A test of a tuple, the compiled form of one or more predicates */
+    static final class TupleTest {
+        /** (Tuple)boolean */
+        private final MethodHandle test;
+
+        TupleTest(MethodHandle test) {
+            this.test = test;
+        }
+
+        boolean matches(Tuple t) {
+            try {
+                return (boolean) test.invokeExact(t);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Compile the conjunction of predicates, with the operands they have now.
+     * The predicates are tested in order, up to the first one that fails.
+     *
+     * @param preds the predicates, at least one
+     */
+    static TupleTest compile(List<Predicate> preds) {
+        MethodHandle all = handle(preds.get(preds.size() - 1));
+        for (int i = preds.size() - 2; i >= 0; i--)
+            all = MethodHandles.guardWithTest(handle(preds.get(i)), all, FALSE);
+        return new TupleTest(all);
+    }
+
+    static TupleTest compile(Predicate p) {
+        return new TupleTest(handle(p));
+    }
+
+    /** @return a (Tuple)boolean handle testing the predicate */
+    private static MethodHandle handle(Predicate p) {
+        Field operand = p.getOperand();
+        MethodHandle compare = null;
+        MethodHandle value = null;
+        Object c = null;
+        if (operand instanceof IntField) {
+            compare = INT_TESTS.get(p.getOp());
+            value = INT_VALUE;
+            c = ((IntField) operand).getValue();
+        } else if (operand instanceof StringField) {
+            compare = STRING_TESTS.get(p.getOp());
+            value = STRING_VALUE;
+            c = ((StringField) operand).getValue();
+        }
+        if (compare == null)
+            return MethodHandles.insertArguments(INTERPRETED, 0, p);
+        // (v) -> compare(v, c), applied to (t) -> value(t, field)
+        return MethodHandles.filterArguments(MethodHandles.insertArguments(compare, 1, c), 0,
+                MethodHandles.insertArguments(value, 1, p.getField()));
+    }
+
+    private static int intValue(Tuple t, int field) {
+        return ((IntField) t.getField(field)).getValue();
+    }
+
+    private static String stringValue(Tuple t, int field) {
+        return ((StringField) t.getField(field)).getValue();
+    }
+
+    private static boolean interpreted(Predicate p, Tuple t) {
+        return p.filter(t);
+    }
+
+    private static boolean intEquals(int v, int c) {
+        return v == c;
+    }
+
+    private static boolean intNotEquals(int v, int c) {
+        return v != c;
+    }
+
+    private static boolean intLessThan(int v, int c) {
+        return v < c;
+    }
+
+    private static boolean intLessThanOrEq(int v, int c) {
+        return v <= c;
+    }
+
+    private static boolean intGreaterThan(int v, int c) {
+        return v > c;
+    }
+
+    private static boolean intGreaterThanOrEq(int v, int c) {
+        return v >= c;
+    }
+
+    private static boolean stringEquals(String v, String c) {
+        return v.equals(c);
+    }
+
+    private static boolean stringNotEquals(String v, String c) {
+        return !v.equals(c);
+    }
+
+    private static boolean stringContains(String v, String c) {
+        return v.contains(c);
+    }
+}
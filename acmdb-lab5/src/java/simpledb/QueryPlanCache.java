@@ -0,0 +1,177 @@
+package simpledb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * QueryPlanCache keeps the optimized plans of recently run queries, so a
+ * query that is run again, e.g. by a {@link PreparedStatement}, skips parsing
+ * and optimization.
+ * <p>
+ * Plans are keyed by the normalized text of their query and the degree of
+ * parallelism they were built for, and the least recently used plan is
+ * evicted once the cache holds {@link #getCapacity} plans.  A plan is checked
+ * out of the cache while a statement uses it, since its operators can run only
+ * one query at a time; a second statement with the same query meanwhile
+ * builds a plan of its own.
+ * <p>
+ * A plan is dropped instead of reused once the catalog or the table
+ * statistics it was built under have changed, see {@link Catalog#getVersion}
+ * and {@link TableStats#getVersion}.
+ */
+public class QueryPlanCache {
+
+    /** Default maximum number of cached plans */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private static int capacity = DEFAULT_CAPACITY;
+    private static long hits = 0, misses = 0;
+
+    private static final LinkedHashMap<String,Entry> plans = new LinkedHashMap<String,Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) {
+            return size() > capacity;
+        }
+    };
+
+    /**
+     * The logical plan of a query and, once it has run, the physical plan
+     * built from it along with the versions it was built under.
+     */
+    static class Entry {
+        final String key;
+        final LogicalPlan logicalPlan;
+        DbIterator physicalPlan = null;
+        long catalogVersion, statsVersion;
+
+        Entry(String key, LogicalPlan logicalPlan) {
+            this.key = key;
+            this.logicalPlan = logicalPlan;
+        }
+
+        /**
+         * @return true if the catalog or the statistics have changed since
+         *         the physical plan was built
+         */
+        boolean isStale() {
+            return catalogVersion != Database.getCatalog().getVersion()
+                    || statsVersion != TableStats.getVersion();
+        }
+    }
+
+    private QueryPlanCache() {
+    }
+
+    /**
+     * Set the maximum number of cached plans, evicting the least recently
+     * used plans beyond it.
+     */
+    public static synchronized void setCapacity(int n) {
+        if (n < 0)
+            throw new IllegalArgumentException("the capacity of the plan cache cannot be negative");
+        capacity = n;
+        while (plans.size() > capacity)
+            plans.remove(plans.keySet().iterator().next());
+    }
+
+    public static synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /** @return the number of plans in the cache */
+    public static synchronized int size() {
+        return plans.size();
+    }
+
+    /** @return the number of checkouts that found a plan to reuse */
+    public static synchronized long getHits() {
+        return hits;
+    }
+
+    /** @return the number of checkouts that found no plan, or a stale one */
+    public static synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Drop every cached plan and reset the counters */
+    public static synchronized void clear() {
+        plans.clear();
+        hits = misses = 0;
+    }
+
+    /**
+     * @return the key of a query: its text without the trailing semicolon,
+     *         with runs of white space outside quotes collapsed to one space,
+     *         followed by the degree of parallelism
+     */
+    static String key(String sql, int parallelism) {
+        StringBuilder b = new StringBuilder(sql.length() + 4);
+        char quote = 0;
+        boolean space = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote == 0 && Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space && b.length() > 0)
+                b.append(' ');
+            space = false;
+            if (quote == 0 && (c == '\'' || c == '"'))
+                quote = c;
+            else if (c == quote)
+                quote = 0;
+            b.append(c);
+        }
+        int end = b.length();
+        while (end > 0 && (b.charAt(end - 1) == ';' || b.charAt(end - 1) == ' '))
+            end--;
+        b.setLength(end);
+        return b.append('|').append(parallelism).toString();
+    }
+
+    /**
+     * Take the plan of a query out of the cache.
+     *
+     * @return the entry of the plan, or null if there is no plan for the key
+     *         or its plan is stale
+     */
+    static synchronized Entry checkout(String key) {
+        Entry e = plans.remove(key);
+        if (e == null || e.isStale()) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e;
+    }
+
+    /**
+     * Return the plan of a query to the cache once it is no longer in use.
+     * Plans that are stale, were never built or run on several threads are
+     * dropped.
+     */
+    static synchronized void checkin(Entry e) {
+        if (e.physicalPlan == null || e.isStale() || !isCacheable(e.physicalPlan))
+            return;
+        if (!plans.containsKey(e.key))
+            plans.put(e.key, e);
+    }
+
+    /**
+     * @return false if the plan contains an {@link Exchange}, whose pipelines
+     *         are tied to the transaction they were built for
+     */
+    private static boolean isCacheable(DbIterator plan) {
+        if (plan instanceof Exchange)
+            return false;
+        if (plan instanceof Operator) {
+            for (DbIterator child : ((Operator) plan).getChildren()) {
+                if (!isCacheable(child))
+                    return false;
+            }
+        }
+        return true;
+    }
+}
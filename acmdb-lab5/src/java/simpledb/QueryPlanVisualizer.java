@@ -13,6 +13,7 @@ public class QueryPlanVisualizer {
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
+    static final String INDEX_SCAN = "index scan";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
@@ -65,17 +66,68 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof BTreeScan
+                || queryPlan instanceof SecondaryIndexScan || queryPlan instanceof HashScan) {
+            String tableName, alias;
+            if (queryPlan instanceof SeqScan) {
+                tableName = ((SeqScan) queryPlan).getTableName();
+                alias = ((SeqScan) queryPlan).getAlias();
+            } else if (queryPlan instanceof BTreeScan) {
+                tableName = ((BTreeScan) queryPlan).getTableName();
+                alias = ((BTreeScan) queryPlan).getAlias();
+            } else if (queryPlan instanceof SecondaryIndexScan) {
+                tableName = ((SecondaryIndexScan) queryPlan).getTableName();
+                alias = ((SecondaryIndexScan) queryPlan).getAlias();
+            } else {
+                tableName = ((HashScan) queryPlan).getTableName();
+                alias = ((HashScan) queryPlan).getAlias();
+            }
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
+                    .format("%1$s(%2$s)", queryPlan instanceof SeqScan ? SCAN : INDEX_SCAN,
+                            tableName + alias);
+            String key = null;
+            IndexPredicate[] bounds = null;
+            boolean descending = false;
+            if (queryPlan instanceof BTreeScan) {
+                BTreeScan bs = (BTreeScan) queryPlan;
+                key = bs.getTupleDesc().getFieldName(((BTreeFile) Database
+                        .getCatalog().getDatabaseFile(bs.getTableId())).keyField());
+                bounds = new IndexPredicate[] { bs.getIndexPredicate(), bs.getStopPredicate() };
+                descending = bs.isDescending();
+            } else if (queryPlan instanceof SecondaryIndexScan) {
+                SecondaryIndexScan is = (SecondaryIndexScan) queryPlan;
+                key = is.getTupleDesc().getFieldName(is.getKeyField());
+                bounds = new IndexPredicate[] { is.getIndexPredicate(), is.getStopPredicate() };
+                descending = is.isDescending();
+            } else if (queryPlan instanceof HashScan) {
+                HashScan hs = (HashScan) queryPlan;
+                key = hs.getTupleDesc().getFieldName(((HashFile) Database
+                        .getCatalog().getDatabaseFile(hs.getTableId())).keyField());
+                bounds = new IndexPredicate[] { hs.getIndexPredicate() };
+            }
+            if (bounds != null) {
+                for (IndexPredicate p : bounds) {
+                    if (p != null)
+                        thisNode.text += String.format(",%1$s(%2$s)", SELECT,
+                                key + p.getOp() + p.getField());
+                }
+            }
+            if (descending)
+                thisNode.text += String.format(",%1$s(%2$s)", ORDERBY, key + " desc");
+            if (queryPlan instanceof ParallelSeqScan) {
+                ParallelSeqScan ps = (ParallelSeqScan) queryPlan;
+                for (Predicate p : ps.getPredicates())
+                    thisNode.text += String.format(",%1$s(%2$s)", SELECT,
+                            ps.getTupleDesc().getFieldName(p.getField())
+                                    + p.getOp() + p.getOperand());
+                thisNode.text += String.format(",workers:%1$d",
+                        ps.getParallelism());
+            }
             if (SCAN.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
@@ -171,15 +223,19 @@ public class QueryPlanVisualizer {
                 String alignTxt;
                 TupleDesc td = a.getTupleDesc();
                 int gfield = a.groupField();
+                int firstAgg = gfield == Aggregator.NO_GROUPING ? 0 : 1;
+                StringBuilder aggs = new StringBuilder(td.getFieldName(firstAgg));
+                for (int i = firstAgg + 1; i < td.numFields(); i++)
+                    aggs.append(", ").append(td.getFieldName(i));
 
                 if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(),a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s,card:%2$d",
+                            aggs, a.getEstimatedCardinality());
                     alignTxt = td.getFieldName(00);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
-                            GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(),a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s(%2$s), %3$s,card:%4$d",
+                            GROUPBY, a.groupFieldName(), aggs,
+                            a.getEstimatedCardinality());
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
@@ -261,10 +317,13 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
             }
-            else if (plan.getClass().getSuperclass().getSuperclass().getSimpleName().equals("Exchange")) {
+            else if (plan instanceof Exchange || plan.getClass().getSuperclass().getSuperclass().getSimpleName().equals("Exchange")) {
                 String name="Exchange";
                 int card=0;
-                try {
+                if (plan instanceof Exchange) {
+                    name = ((Exchange) plan).getName();
+                    card = plan.getEstimatedCardinality();
+                } else try {
                     name = (String) plan.getClass().getMethod("getName").invoke(plan);
                     card = (Integer) plan.getClass().getMethod("getEstimatedCardinality").invoke(plan);
                 } catch (Exception e) {
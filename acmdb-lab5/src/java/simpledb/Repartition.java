@@ -0,0 +1,52 @@
+package simpledb;
+
+/**
+ * Repartition redistributes the output of copies of a pipeline by the hash
+ * of a field, so that every distinct value of the field goes to exactly one
+ * consumer.  A grouped aggregate or an equality join over each partition then
+ * needs no further combining.
+ * <p>
+ * The partitions are created together by {@link #partition}, and must be read
+ * concurrently.
+ */
+public class Repartition extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int field;
+
+    private Repartition(ExchangeBuffer buffer, int field, int partition) {
+        super(buffer, partition);
+        this.field = field;
+    }
+
+    /**
+     * Partition the output of the inputs on a field.
+     *
+     * @param inputs
+     *            the copies of the pipeline to run, one per worker
+     * @param field
+     *            the index of the field to partition on
+     * @param partitions
+     *            the number of partitions
+     * @return one operator per partition
+     */
+    public static Repartition[] partition(DbIterator[] inputs, int field, int partitions) {
+        ExchangeBuffer buffer = new ExchangeBuffer(inputs, partitions, field);
+        Repartition[] parts = new Repartition[partitions];
+        for (int i = 0; i < partitions; i++)
+            parts[i] = new Repartition(buffer, field, i);
+        return parts;
+    }
+
+    /**
+     * @return the index of the field this operator partitions on
+     */
+    public int getPartitionField() {
+        return field;
+    }
+
+    public String getName() {
+        return "repartition(" + getTupleDesc().getFieldName(field) + ") " + getConsumer() + "/" + numConsumers();
+    }
+}
@@ -0,0 +1,286 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+
+/**
+ * SecondaryIndex is a B+ tree index on a field of a heap file table.  It
+ * maps each value of the field to the {@link RecordId}s of the tuples
+ * holding it: every tuple of the table has an entry (key, included
+ * fields, page number, tuple number) in a {@link BTreeFile} keyed on its
+ * first field, with entries of equal keys ordered by page and tuple number
+ * so that the entry of a tuple is found by a single search.  An index
+ * covers the fields it stores: a query referring to no other fields of the
+ * table is answered from the entries alone, without reading the heap file.
+ * <p>
+ * The entries are kept up to date by {@link BufferPool#insertTuple} and
+ * {@link BufferPool#deleteTuple} as a part of the same transaction as the
+ * change to the table.  Only heap files are supported, since a tuple of a
+ * B+ tree moves to another page when its leaf splits.
+ *
+ * @see Catalog#addIndex
+ */
+public class SecondaryIndex {
+
+    private final String name;
+    private final int tableId;
+    private final int field;
+    private final int[] included;
+    private final BTreeFile file;
+
+    /**
+     * @param name the name of the index, under which its file is added to
+     *        the catalog
+     * @param tableId the table the index is on
+     * @param field the indexed field of the table
+     * @param file the entries of the index, in the format of
+     *        {@link #entryDesc(TupleDesc, int, int[])} without included fields
+     */
+    public SecondaryIndex(String name, int tableId, int field, BTreeFile file) {
+        this(name, tableId, field, new int[0], file);
+    }
+
+    /**
+     * @param name the name of the index, under which its file is added to
+     *        the catalog
+     * @param tableId the table the index is on
+     * @param field the indexed field of the table
+     * @param included the other fields of the table stored in the entries,
+     *        none of which is field or repeats another
+     * @param file the entries of the index, in the format of
+     *        {@link #entryDesc(TupleDesc, int, int[])}
+     */
+    public SecondaryIndex(String name, int tableId, int field, int[] included, BTreeFile file) {
+        this.name = name;
+        this.tableId = tableId;
+        this.field = field;
+        this.included = included.clone();
+        this.file = file;
+    }
+
+    /**
+     * @return the TupleDesc of the entries of an index on a field of a table:
+     *         the indexed field, the included fields, the page number and the
+     *         tuple number
+     */
+    public static TupleDesc entryDesc(TupleDesc td, int field, int[] included) {
+        int n = included.length;
+        Type[] types = new Type[n + 3];
+        String[] names = new String[n + 3];
+        types[0] = td.getFieldType(field);
+        names[0] = td.getFieldName(field);
+        for (int i = 0; i < n; i++) {
+            types[i + 1] = td.getFieldType(included[i]);
+            names[i + 1] = td.getFieldName(included[i]);
+        }
+        types[n + 1] = types[n + 2] = Type.INT_TYPE;
+        names[n + 1] = "page";
+        names[n + 2] = "tuple";
+        return new TupleDesc(types, names);
+    }
+
+    /**
+     * Create an index on a field of a table, stored in a new B+ tree file,
+     * add it to the catalog and load it with the tuples of the table as a
+     * part of transaction tid.  The pages of the table are locked first, so
+     * writers of the table wait for tid to complete instead of adding
+     * entries for tuples the load adds as well.  The index is removed from
+     * the catalog if the load fails, but not if tid aborts later.
+     *
+     * @param tid the transaction creating the index
+     * @param name the name of the index
+     * @param tableId the table to index, which must be stored in a heap file
+     * @param field the field to index
+     * @param f the file to store the index in; its contents are replaced
+     * @return the new index
+     */
+    public static SecondaryIndex create(TransactionId tid, String name, int tableId, int field, File f)
+            throws DbException, IOException, TransactionAbortedException {
+        return create(tid, name, tableId, field, new int[0], f);
+    }
+
+    /**
+     * Create a covering index, which stores the included fields of the table
+     * in its entries as well; the indexed field and repeated fields are
+     * stored once.
+     *
+     * @see #create(TransactionId, String, int, int, File)
+     */
+    public static SecondaryIndex create(TransactionId tid, String name, int tableId, int field,
+            int[] included, File f) throws DbException, IOException, TransactionAbortedException {
+        DbFile table = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(table instanceof HeapFile))
+            throw new DbException("only tables stored in heap files can have secondary indexes");
+        TupleDesc td = table.getTupleDesc();
+        LinkedHashSet<Integer> fields = new LinkedHashSet<Integer>();
+        fields.add(field);
+        for (int i : included)
+            fields.add(i);
+        for (int i : fields) {
+            if (i < 0 || i >= td.numFields())
+                throw new DbException("no field " + i + " in table " + tableId);
+        }
+        fields.remove(field);
+        included = new int[fields.size()];
+        int j = 0;
+        for (int i : fields)
+            included[j++] = i;
+        if (f.exists() && !f.delete())
+            throw new IOException("unable to replace " + f);
+        int n = included.length;
+        BTreeFile file = new BTreeFile(f, 0, entryDesc(td, field, included), new int[] { n + 1, n + 2 });
+        SecondaryIndex index = new SecondaryIndex(name, tableId, field, included, file);
+        // including the page an insert would append next
+        for (int i = 0; i <= ((HeapFile) table).numPages(); i++)
+            Database.getBufferPool().lockPage(tid, new HeapPageId(tableId, i), Permissions.READ_ONLY);
+        Database.getCatalog().addIndex(index);
+        try {
+            file.bulkLoad(tid, index.new Entries(new SeqScan(tid, tableId)), 1.0);
+        } catch (DbException | IOException | TransactionAbortedException | RuntimeException e) {
+            Database.getCatalog().removeIndex(index);
+            throw e;
+        }
+        return index;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** @return the id of the table the index is on */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /** @return the indexed field of the table */
+    public int getField() {
+        return field;
+    }
+
+    /** @return the fields of the table stored in the entries besides the indexed one */
+    public int[] getIncluded() {
+        return included.clone();
+    }
+
+    /**
+     * @return the position in an entry of a field of the table, or -1 if the
+     *         entries do not store it
+     */
+    public int entryField(int tableField) {
+        if (tableField == field)
+            return 0;
+        for (int i = 0; i < included.length; i++) {
+            if (included[i] == tableField)
+                return i + 1;
+        }
+        return -1;
+    }
+
+    /** @return true if the entries store all of the given fields of the table */
+    public boolean covers(Collection<Integer> fields) {
+        for (int f : fields) {
+            if (entryField(f) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /** @return the B+ tree file holding the entries of the index */
+    public BTreeFile getFile() {
+        return file;
+    }
+
+    /** @return the entry of a tuple of the table, which must have a RecordId */
+    Tuple entry(Tuple t) {
+        RecordId rid = t.getRecordId();
+        Tuple e = new Tuple(file.getTupleDesc());
+        int n = included.length;
+        e.setField(0, t.getField(field));
+        for (int i = 0; i < n; i++)
+            e.setField(i + 1, t.getField(included[i]));
+        e.setField(n + 1, new IntField(rid.getPageId().pageNumber()));
+        e.setField(n + 2, new IntField(rid.tupleno()));
+        return e;
+    }
+
+    /** @return the RecordId of the tuple of the table an entry refers to */
+    RecordId recordId(Tuple entry) {
+        int page = ((IntField) entry.getField(included.length + 1)).getValue();
+        int tuple = ((IntField) entry.getField(included.length + 2)).getValue();
+        return new RecordId(new HeapPageId(tableId, page), tuple);
+    }
+
+    /**
+     * Add the entry of a tuple just inserted into the table.
+     */
+    void insert(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Database.getBufferPool().insertTuple(tid, file.getId(), entry(t));
+    }
+
+    /**
+     * Remove the entry of a tuple about to be deleted from the table, which
+     * a single search for its key, page number and tuple number finds.
+     */
+    void delete(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        DbFileIterator it = file.indexIterator(tid,
+                new IndexPredicate(Predicate.Op.EQUALS, file.keyOf(entry(t))));
+        Tuple found;
+        it.open();
+        try {
+            found = it.hasNext() ? it.next() : null;
+        } finally {
+            it.close();
+        }
+        if (found == null)
+            throw new DbException("index " + name + " has no entry for " + t.getRecordId());
+        Database.getBufferPool().deleteTuple(tid, found);
+    }
+
+    /**
+     * The entries of the tuples of a scan of the table.
+     */
+    private class Entries extends Operator {
+
+        private static final long serialVersionUID = 1L;
+
+        private DbIterator child;
+
+        Entries(DbIterator child) {
+            this.child = child;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            child.open();
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            child.close();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            child.rewind();
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            return child.hasNext() ? entry(child.next()) : null;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return file.getTupleDesc();
+        }
+
+        public DbIterator[] getChildren() {
+            return new DbIterator[] { child };
+        }
+
+        public void setChildren(DbIterator[] children) {
+            child = children[0];
+        }
+    }
+}
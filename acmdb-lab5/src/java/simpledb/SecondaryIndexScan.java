@@ -0,0 +1,198 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * SecondaryIndexScan reads the tuples of a table whose indexed field falls
+ * in a range of a {@link SecondaryIndex}, in the order of that field or
+ * in descending order: it
+ * scans the range of entries of the index and fetches the tuple each of
+ * them refers to from its heap page.  An index-only scan never reads the
+ * heap file: it returns the fields the entries store, which are the indexed
+ * field followed by the included fields, and its tuples have no RecordId.
+ */
+public class SecondaryIndexScan implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private TransactionId tid;
+    private final SecondaryIndex index;
+    private final String alias;
+    private final IndexPredicate ipred;
+    private final IndexPredicate stop;
+    private final boolean indexOnly;
+    private final boolean descending;
+    private final TupleDesc td;
+    private transient DbFileIterator it;
+    private boolean isOpen = false;
+
+    /**
+     * Creates a scan of a range of a secondary index as a part of the
+     * specified transaction.
+     *
+     * @param tid the transaction this scan is running as a part of
+     * @param index the index to scan
+     * @param tableAlias the alias of the table of the index; the returned
+     *        tupleDesc has fields named tableAlias.fieldName
+     * @param ipred the predicate on the indexed field the scan starts at, or
+     *        null to return all the tuples of the table
+     * @param stop an upper bound (LESS_THAN or LESS_THAN_OR_EQ) on the
+     *        indexed field, or null
+     * @see BTreeFile#indexIterator(TransactionId, IndexPredicate, IndexPredicate)
+     */
+    public SecondaryIndexScan(TransactionId tid, SecondaryIndex index, String tableAlias,
+            IndexPredicate ipred, IndexPredicate stop) {
+        this(tid, index, tableAlias, ipred, stop, false);
+    }
+
+    /**
+     * Creates a scan of a range of a secondary index, which returns either
+     * the tuples of the table or, if indexOnly is true, the fields of the
+     * table the entries store.
+     *
+     * @see #SecondaryIndexScan(TransactionId, SecondaryIndex, String, IndexPredicate, IndexPredicate)
+     */
+    public SecondaryIndexScan(TransactionId tid, SecondaryIndex index, String tableAlias,
+            IndexPredicate ipred, IndexPredicate stop, boolean indexOnly) {
+        this(tid, index, tableAlias, ipred, stop, indexOnly, false);
+    }
+
+    /**
+     * Creates a scan of a range of a secondary index, which returns the
+     * tuples in descending order of the indexed field if descending is true.
+     * A descending scan starts at the last entry matching ipred, and stop is
+     * a lower bound (GREATER_THAN or GREATER_THAN_OR_EQ) then.
+     *
+     * @see #SecondaryIndexScan(TransactionId, SecondaryIndex, String, IndexPredicate, IndexPredicate, boolean)
+     * @see BTreeFile#descendingIterator(TransactionId, IndexPredicate, IndexPredicate)
+     */
+    public SecondaryIndexScan(TransactionId tid, SecondaryIndex index, String tableAlias,
+            IndexPredicate ipred, IndexPredicate stop, boolean indexOnly, boolean descending) {
+        if (ipred == null && stop != null)
+            throw new IllegalArgumentException("a bounded index scan needs a start predicate");
+        this.tid = tid;
+        this.index = index;
+        this.alias = tableAlias;
+        this.ipred = ipred;
+        this.stop = stop;
+        this.indexOnly = indexOnly;
+        this.descending = descending;
+        // the fields of an entry before the RecordId have the names of the
+        // fields of the table they store
+        TupleDesc fieldTd = indexOnly ? index.getFile().getTupleDesc()
+                : Database.getCatalog().getTupleDesc(index.getTableId());
+        int n = indexOnly ? fieldTd.numFields() - 2 : fieldTd.numFields();
+        String[] names = new String[n];
+        Type[] types = new Type[n];
+        for (int i = 0; i < n; i++) {
+            names[i] = tableAlias + "." + fieldTd.getFieldName(i);
+            types[i] = fieldTd.getFieldType(i);
+        }
+        this.td = new TupleDesc(types, names);
+    }
+
+    /** @return the name of the table the index is on */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(index.getTableId());
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    /** @return the id of the table the index is on */
+    public int getTableId() {
+        return index.getTableId();
+    }
+
+    public SecondaryIndex getIndex() {
+        return index;
+    }
+
+    /** @return true if the scan returns the fields of the entries without reading the table */
+    public boolean isIndexOnly() {
+        return indexOnly;
+    }
+
+    /** @return the position of the indexed field in the tuples returned */
+    public int getKeyField() {
+        return indexOnly ? 0 : index.getField();
+    }
+
+    /** @return the index predicate the scan starts at, or null for a full scan */
+    public IndexPredicate getIndexPredicate() {
+        return ipred;
+    }
+
+    /** @return the bound the scan stops at, or null */
+    public IndexPredicate getStopPredicate() {
+        return stop;
+    }
+
+    /** @return true if the scan returns the tuples greatest indexed field first */
+    public boolean isDescending() {
+        return descending;
+    }
+
+    /**
+     * Run this scan as a part of another transaction from now on; the scan
+     * must be closed.
+     */
+    public void setTransactionId(TransactionId tid) {
+        this.tid = tid;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (isOpen)
+            throw new DbException("double open on one DbIterator.");
+        BTreeFile file = index.getFile();
+        if (descending)
+            it = file.descendingIterator(tid, ipred, stop);
+        else
+            it = ipred == null ? file.iterator(tid) : file.indexIterator(tid, ipred, stop);
+        it.open();
+        isOpen = true;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        return it.hasNext();
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException,
+            NoSuchElementException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        Tuple entry = it.next();
+        if (indexOnly) {
+            Tuple t = new Tuple(td);
+            for (int i = 0; i < td.numFields(); i++)
+                t.setField(i, entry.getField(i));
+            return t;
+        }
+        RecordId rid = index.recordId(entry);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                rid.getPageId(), Permissions.READ_ONLY);
+        Tuple t = page.getTuple(rid.tupleno());
+        if (t == null)
+            throw new DbException("index " + index.getName() + " refers to empty slot " + rid);
+        return t;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    public void close() {
+        if (it != null)
+            it.close();
+        it = null;
+        isOpen = false;
+    }
+}
@@ -14,6 +14,8 @@ public class SeqScan implements DbIterator {
     private int tableId;
     private String tableAlias;
     private DbFileIterator dbFileIterator;
+    private List<Predicate> predicates = null;
+    private PageCursor cursor = null;
     /**
      * Creates a sequential scan over the specified table as a part of the
      * specified transaction.
@@ -38,6 +40,96 @@ public class SeqScan implements DbIterator {
         this.dbFileIterator = Database.getCatalog().getDatabaseFile(this.tableId).iterator(this.transactionId);
     }
 
+    /**
+     * Creates a sequential scan over pages firstPage to endPage - 1 of the
+     * specified heap file, so that a scan can be divided among workers.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan; must be stored in a {@link HeapFile}
+     * @param tableAlias
+     *            the alias of this table
+     * @param firstPage
+     *            the first page to read
+     * @param endPage
+     *            one past the last page to read
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int firstPage, int endPage) {
+        this.transactionId = tid;
+        this.tableId = tableid;
+        this.tableAlias = tableAlias;
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(f instanceof HeapFile))
+            throw new IllegalArgumentException("page range scans need a HeapFile");
+        this.dbFileIterator = ((HeapFile) f).iterator(tid, firstPage, endPage);
+    }
+
+    /**
+     * Creates a sequential scan over the morsels it claims from a cursor
+     * shared with the other workers of a parallel scan.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan; must be stored in a {@link HeapFile}
+     * @param tableAlias
+     *            the alias of this table
+     * @param cursor
+     *            the cursor to claim pages from
+     * @param preds
+     *            the predicates to skip pages with, as in
+     *            {@link #setPredicates}, or null
+     */
+    SeqScan(TransactionId tid, int tableid, String tableAlias, PageCursor cursor, List<Predicate> preds) {
+        this.transactionId = tid;
+        this.tableId = tableid;
+        this.tableAlias = tableAlias;
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(f instanceof HeapFile))
+            throw new IllegalArgumentException("morsel scans need a HeapFile");
+        this.dbFileIterator = ((HeapFile) f).iterator(tid, cursor, preds);
+        this.cursor = cursor;
+    }
+
+    /**
+     * @return the cursor this scan claims morsels from, or null if it reads
+     *         its pages on its own
+     */
+    PageCursor getCursor() {
+        return cursor;
+    }
+
+    /**
+     * @return the id of the table this operator scans
+     * */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * Skip the pages of a heap file whose zone map shows that none of their
+     * tuples satisfies all of the predicates; the tuples of the other pages
+     * are still returned whether they satisfy them or not.  The scan must be
+     * closed.
+     *
+     * @param preds
+     *            the predicates, whose field indexes refer to the TupleDesc
+     *            of this scan, or null to read every page
+     * @see ZoneMap
+     * */
+    public void setPredicates(List<Predicate> preds) {
+        this.predicates = preds;
+        reset(tableId, tableAlias);
+    }
+
+    /**
+     * @return the transaction this scan runs as a part of
+     * */
+    public TransactionId getTransactionId() {
+        return transactionId;
+    }
+
     /**
      * @return
      *       return the table name of the table the operator scans. This should
@@ -72,7 +164,21 @@ public class SeqScan implements DbIterator {
         // some code goes here
         this.tableId = tableid;
         this.tableAlias = tableAlias;
-        this.dbFileIterator = Database.getCatalog().getDatabaseFile(this.tableId).iterator(this.transactionId);
+        this.cursor = null;
+        DbFile f = Database.getCatalog().getDatabaseFile(this.tableId);
+        if (predicates != null && f instanceof HeapFile)
+            this.dbFileIterator = ((HeapFile) f).iterator(this.transactionId, predicates);
+        else
+            this.dbFileIterator = f.iterator(this.transactionId);
+    }
+
+    /**
+     * Run this scan as a part of another transaction from now on; the scan
+     * must be closed.
+     */
+    public void setTransactionId(TransactionId tid) {
+        this.transactionId = tid;
+        reset(tableId, tableAlias);
     }
 
     public SeqScan(TransactionId tid, int tableid) {
@@ -0,0 +1,146 @@
+package simpledb;
+
+import java.io.*;
+import java.util.NoSuchElementException;
+
+/**
+ * SpillFile is an append-only temporary file of tuples, used by operators
+ * that have to move intermediate state out of memory.
+ * <p>
+ * Tuples are written with the same fixed-width field encoding used by
+ * {@link HeapPage}.  Once {@link #iterator} has been called no more tuples
+ * may be added; the file can then be scanned any number of times until it
+ * is {@link #delete deleted}.
+ */
+class SpillFile {
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private long bytes = 0;
+    private int numTuples = 0;
+
+    /**
+     * Create a new, empty spill file in the default temporary directory.
+     *
+     * @param td the TupleDesc of the tuples that will be written
+     */
+    SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        this.file = File.createTempFile("simpledb", ".spill");
+        this.file.deleteOnExit();
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    }
+
+    /**
+     * Append a tuple to the file.
+     *
+     * @throws IllegalStateException if the file has already been opened for
+     *             reading
+     */
+    void add(Tuple t) throws IOException {
+        if (out == null)
+            throw new IllegalStateException("spill file is no longer writable");
+        for (int i = 0; i < td.numFields(); i++)
+            t.getField(i).serialize(out);
+        bytes += td.getSize();
+        numTuples++;
+    }
+
+    /** @return the number of bytes written to this file */
+    long getBytes() {
+        return bytes;
+    }
+
+    /** @return the number of tuples written to this file */
+    int numTuples() {
+        return numTuples;
+    }
+
+    TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Finish writing, and return an iterator over the tuples in the order in
+     * which they were added.
+     */
+    DbIterator iterator() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        return new SpillFileIterator();
+    }
+
+    /** Remove the file from disk. */
+    void delete() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // ignore failures closing a file we are about to delete
+            }
+            out = null;
+        }
+        file.delete();
+    }
+
+    /**
+     * Sequential reader over the tuples of a finished spill file.
+     */
+    private class SpillFileIterator implements DbIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private DataInputStream in;
+        private int read;
+
+        public void open() throws DbException {
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            } catch (FileNotFoundException e) {
+                throw new DbException("spill file " + file + " is missing");
+            }
+            read = 0;
+        }
+
+        public boolean hasNext() {
+            return in != null && read < numTuples;
+        }
+
+        public Tuple next() throws DbException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(in));
+            } catch (java.text.ParseException e) {
+                throw new DbException("corrupt spill file " + file);
+            }
+            read++;
+            return t;
+        }
+
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore failures closing a read-only stream
+                }
+                in = null;
+            }
+        }
+    }
+}
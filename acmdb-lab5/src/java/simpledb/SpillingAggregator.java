@@ -0,0 +1,419 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SpillingAggregator computes grouped aggregates within a memory budget,
+ * expressed as the maximum number of groups that may be held in memory.
+ * The (group, value) pairs COUNT DISTINCT aggregates remember count against
+ * the budget as well.
+ * <p>
+ * Groups are accumulated in an {@link AggregateHashTable} until it holds
+ * maxGroups groups.  From then on, tuples of groups that are already in the
+ * table are still aggregated in memory, while tuples of any other group are
+ * hash partitioned into {@link SpillFile}s.  Whenever the groups and the
+ * distinct pairs exceed the budget, the pairs are moved to a file of their
+ * own, to be sorted and counted when the results are read.  When the results
+ * are read, the in-memory groups are returned first and every partition is
+ * then aggregated in turn, recursively, using fresh hash bits at each level.
+ * Before the first partition is aggregated, the results of the in-memory
+ * groups are written to a file of their own, for rewinding, and the hash
+ * table is dropped, so that only one level's groups are held in memory at a
+ * time.  A partition that is still too large after {@link #MAX_DEPTH} levels
+ * (e.g. because many keys share a hash code) is aggregated by external sort
+ * instead.
+ * <p>
+ * Since every group lives either in memory or in exactly one partition, each
+ * group is reported exactly once.  Unlike {@link IntegerAggregator}, no tuple
+ * may be merged once {@link #iterator} has been called.
+ */
+class SpillingAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of partitions a level spills into */
+    static final int FANOUT = 16;
+    private static final int FANOUT_BITS = 4;
+    /** Number of levels of hash partitioning before falling back to sorting */
+    static final int MAX_DEPTH = 4;
+
+    private final TupleDesc childTd;
+    private final int gbfield;
+    private final Type gbfieldtype;
+    private final int[] afields;
+    private final Op[] ops;
+    private final int maxGroups;
+    private final int depth;
+    private final AtomicLong spillBytes;
+
+    private final TupleDesc resultTd;
+    /** The in-memory groups, or null once their results have been spilled */
+    private AggregateHashTable table;
+    /** The results of the in-memory groups, once the table is dropped */
+    private SpillFile tableResults;
+    private SpillFile[] partitions;
+
+    /**
+     * Constructor.
+     *
+     * @param childTd
+     *            the TupleDesc of the tuples that will be merged
+     * @param gbfield
+     *            the 0-based index of the group-by field in the tuple, or
+     *            NO_GROUPING if there is no grouping
+     * @param gbfieldtype
+     *            the type of the group by field, or null if there is no
+     *            grouping
+     * @param afields
+     *            the 0-based indexes of the aggregate fields in the tuple
+     * @param ops
+     *            the aggregation operator for each aggregate field
+     * @param maxGroups
+     *            the maximum number of groups to keep in memory
+     * @param spillBytes
+     *            counter to which the size of everything spilled is added
+     */
+    SpillingAggregator(TupleDesc childTd, int gbfield, Type gbfieldtype, int[] afields, Op[] ops,
+            int maxGroups, AtomicLong spillBytes) {
+        this(childTd, gbfield, gbfieldtype, afields, ops, maxGroups, spillBytes, 0);
+    }
+
+    private SpillingAggregator(TupleDesc childTd, int gbfield, Type gbfieldtype, int[] afields, Op[] ops,
+            int maxGroups, AtomicLong spillBytes, int depth) {
+        if (maxGroups < 1)
+            throw new IllegalArgumentException("the group budget must be at least 1");
+        this.childTd = childTd;
+        this.gbfield = gbfield;
+        this.gbfieldtype = gbfieldtype;
+        this.afields = afields;
+        this.ops = ops;
+        this.maxGroups = maxGroups;
+        this.spillBytes = spillBytes;
+        this.depth = depth;
+        this.table = new AggregateHashTable(gbfield, gbfieldtype, afields, ops);
+        this.resultTd = table.getTupleDesc();
+    }
+
+    /**
+     * Merge a new tuple into the aggregate, spilling it to a partition if it
+     * belongs to a group that does not fit in memory.
+     *
+     * @param tup
+     *            the Tuple containing an aggregate field and a group-by field
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        if (table.merge(tup, maxGroups - table.distinctEntries())) {
+            if (table.numGroups() + table.distinctEntries() > maxGroups)
+                spillDistinct(table);
+            return;
+        }
+        if (partitions == null)
+            partitions = new SpillFile[FANOUT];
+        int p = partitionOf(tup.getField(gbfield));
+        try {
+            if (partitions[p] == null)
+                partitions[p] = new SpillFile(childTd);
+            partitions[p].add(tup);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        spillBytes.addAndGet(childTd.getSize());
+    }
+
+    /**
+     * Create a DbIterator over group aggregate results.  The iterator
+     * aggregates spilled partitions lazily, one at a time.
+     */
+    public DbIterator iterator() {
+        return new ResultIterator();
+    }
+
+    /**
+     * Delete every file spilled by this aggregator.
+     */
+    void discard() {
+        if (tableResults != null) {
+            tableResults.delete();
+            tableResults = null;
+        }
+        if (partitions != null) {
+            for (SpillFile f : partitions) {
+                if (f != null)
+                    f.delete();
+            }
+            partitions = null;
+        }
+    }
+
+    /**
+     * Write the results of the in-memory groups to a file and drop the hash
+     * table holding them.
+     */
+    private void spillTable() throws DbException {
+        try {
+            SpillFile f = new SpillFile(resultTd);
+            DbIterator it = table.iterator();
+            it.open();
+            while (it.hasNext())
+                f.add(it.next());
+            it.close();
+            spillBytes.addAndGet(f.getBytes());
+            tableResults = f;
+        } catch (IOException e) {
+            throw new DbException("unable to spill the in-memory groups: " + e.getMessage());
+        } catch (TransactionAbortedException e) {
+            throw new DbException("unexpected abort reading the in-memory groups");
+        }
+        table = null;
+    }
+
+    /** Move the distinct pairs of a table to disk */
+    private void spillDistinct(AggregateHashTable t) {
+        try {
+            spillBytes.addAndGet(t.spillDistinct(maxGroups));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private int partitionOf(Field f) {
+        int h = AggregateHashTable.mix(f.hashCode());
+        return (h >>> (8 + FANOUT_BITS * depth)) & (FANOUT - 1);
+    }
+
+    /**
+     * Returns the in-memory groups, then the groups of each partition.
+     */
+    private class ResultIterator implements DbIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private DbIterator cur;
+        private SpillingAggregator sub;
+        private int nextPartition;
+
+        public void open() throws DbException, TransactionAbortedException {
+            if (table != null) {
+                cur = table.iterator();
+                cur.open();
+            } else {
+                cur = openSpill(tableResults);
+            }
+            sub = null;
+            nextPartition = 0;
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (cur == null)
+                return false;
+            while (!cur.hasNext()) {
+                if (!advance())
+                    return false;
+            }
+            return true;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return cur.next();
+        }
+
+        /** Move on to the next non-empty partition. */
+        private boolean advance() throws DbException, TransactionAbortedException {
+            closeCurrent();
+            // the in-memory groups have been returned, so the table is not
+            // needed while the partitions are aggregated
+            if (table != null && partitions != null)
+                spillTable();
+            while (partitions != null && nextPartition < FANOUT) {
+                SpillFile part = partitions[nextPartition++];
+                if (part == null)
+                    continue;
+                if (depth + 1 < MAX_DEPTH) {
+                    sub = new SpillingAggregator(childTd, gbfield, gbfieldtype, afields, ops,
+                            maxGroups, spillBytes, depth + 1);
+                    DbIterator in = openSpill(part);
+                    while (in.hasNext())
+                        sub.mergeTupleIntoGroup(in.next());
+                    in.close();
+                    cur = sub.iterator();
+                } else {
+                    cur = new SortAggregateIterator(part);
+                }
+                cur.open();
+                return true;
+            }
+            return false;
+        }
+
+        private void closeCurrent() {
+            if (cur != null)
+                cur.close();
+            cur = null;
+            if (sub != null)
+                sub.discard();
+            sub = null;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return resultTd;
+        }
+
+        public void close() {
+            closeCurrent();
+        }
+    }
+
+    private DbIterator openSpill(SpillFile f) throws DbException {
+        try {
+            DbIterator it = f.iterator();
+            it.open();
+            return it;
+        } catch (IOException e) {
+            throw new DbException("unable to read spill file: " + e.getMessage());
+        } catch (TransactionAbortedException e) {
+            throw new DbException("unexpected abort reading spill file");
+        }
+    }
+
+    /**
+     * Sort-based aggregation of one partition: the partition is cut into
+     * sorted runs of at most maxGroups tuples, and the runs are merged so that
+     * the tuples of each group arrive together and can be aggregated one
+     * group at a time.
+     */
+    private class SortAggregateIterator implements DbIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final SpillFile input;
+        private final TupleComparator cmp = new TupleComparator(gbfield, true);
+        private ArrayList<SpillFile> runs;
+        private PriorityQueue<RunHead> heads;
+        private Tuple next;
+
+        SortAggregateIterator(SpillFile input) {
+            this.input = input;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            if (runs == null)
+                runs = makeRuns();
+            heads = new PriorityQueue<RunHead>();
+            for (SpillFile run : runs) {
+                DbIterator it = openSpill(run);
+                if (it.hasNext())
+                    heads.add(new RunHead(it, it.next()));
+                else
+                    it.close();
+            }
+            next = null;
+        }
+
+        private ArrayList<SpillFile> makeRuns() throws DbException, TransactionAbortedException {
+            ArrayList<SpillFile> result = new ArrayList<SpillFile>();
+            DbIterator in = openSpill(input);
+            ArrayList<Tuple> buffer = new ArrayList<Tuple>();
+            try {
+                while (in.hasNext()) {
+                    buffer.add(in.next());
+                    if (buffer.size() == maxGroups || !in.hasNext()) {
+                        Collections.sort(buffer, cmp);
+                        SpillFile run = new SpillFile(childTd);
+                        for (Tuple t : buffer)
+                            run.add(t);
+                        spillBytes.addAndGet(run.getBytes());
+                        result.add(run);
+                        buffer.clear();
+                    }
+                }
+            } catch (IOException e) {
+                throw new DbException("unable to write sorted run: " + e.getMessage());
+            } finally {
+                in.close();
+            }
+            return result;
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (next == null && heads != null && !heads.isEmpty())
+                next = aggregateNextGroup();
+            return next != null;
+        }
+
+        private Tuple aggregateNextGroup() throws DbException, TransactionAbortedException {
+            AggregateHashTable group = new AggregateHashTable(gbfield, gbfieldtype, afields, ops);
+            Field key = heads.peek().tuple.getField(gbfield);
+            while (!heads.isEmpty() && heads.peek().tuple.getField(gbfield).equals(key)) {
+                RunHead head = heads.poll();
+                group.merge(head.tuple);
+                if (group.distinctEntries() > maxGroups)
+                    spillDistinct(group);
+                if (head.it.hasNext()) {
+                    head.tuple = head.it.next();
+                    heads.add(head);
+                } else {
+                    head.it.close();
+                }
+            }
+            DbIterator result = group.iterator();
+            result.open();
+            return result.next();
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = next;
+            next = null;
+            return t;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return resultTd;
+        }
+
+        public void close() {
+            if (heads != null) {
+                for (RunHead head : heads)
+                    head.it.close();
+                heads = null;
+            }
+            if (runs != null) {
+                for (SpillFile run : runs)
+                    run.delete();
+                runs = null;
+            }
+        }
+
+        private class RunHead implements Comparable<RunHead> {
+            final DbIterator it;
+            Tuple tuple;
+
+            RunHead(DbIterator it, Tuple tuple) {
+                this.it = it;
+                this.tuple = tuple;
+            }
+
+            public int compareTo(RunHead o) {
+                return cmp.compare(tuple, o.tuple);
+            }
+        }
+    }
+}
@@ -1,9 +1,5 @@
 package simpledb;
 
-import java.util.ArrayList;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
 /**
  * Knows how to compute some aggregate over a set of StringFields.
  */
@@ -11,12 +7,8 @@ public class StringAggregator implements Aggregator {
 
     private static final long serialVersionUID = 1L;
 
-    private int gbfield;
-    private int afield;
-    private Type gbfieldtype;
-    private Op aggreOp;
-    private TupleDesc tupleDesc;
-    private Map<Field, Integer> Counts;
+    private AggregateHashTable table;
+
     /**
      * Aggregate constructor
      * @param gbfield the 0-based index of the group-by field in the tuple, or NO_GROUPING if there is no grouping
@@ -28,17 +20,22 @@ public class StringAggregator implements Aggregator {
 
     public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
         // some code goes here
-        if (what != Op.COUNT) throw new UnsupportedOperationException("String only support COUNT");
-        this.gbfield = gbfield;
-        this.gbfieldtype = gbfieldtype;
-        this.afield = afield;
-        this.aggreOp = what;
-        Counts = new ConcurrentHashMap<>();
-        if (gbfield == Aggregator.NO_GROUPING){
-            this.tupleDesc = new TupleDesc(new Type[] {Type.INT_TYPE}, new String[]{"aggregateValue"});
-        } else {
-            this.tupleDesc = new TupleDesc(new Type[] {gbfieldtype, Type.INT_TYPE}, new String[]{"groupValue", "aggregateValue"});
+        this(gbfield, gbfieldtype, new int[]{afield}, new Op[]{what});
+    }
+
+    /**
+     * Constructor for computing several aggregates in a single pass.
+     * @param gbfield the 0-based index of the group-by field in the tuple, or NO_GROUPING if there is no grouping
+     * @param gbfieldtype the type of the group by field, or null if there is no grouping
+     * @param afields the 0-based indexes of the aggregate fields in the tuple
+     * @param what aggregation operator for each field -- only supports COUNT and COUNT_DISTINCT
+     */
+    public StringAggregator(int gbfield, Type gbfieldtype, int[] afields, Op[] what) {
+        for (Op op : what) {
+            if (op != Op.COUNT && op != Op.COUNT_DISTINCT)
+                throw new UnsupportedOperationException("String only support COUNT");
         }
+        this.table = new AggregateHashTable(gbfield, gbfieldtype, afields, what);
     }
 
     /**
@@ -47,14 +44,7 @@ public class StringAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        Field groupfield;
-        if (gbfield == Aggregator.NO_GROUPING)
-            groupfield = null;
-        else
-            groupfield = tup.getField(gbfield);
-
-        Integer cnt = Counts.getOrDefault(groupfield, 0);
-        Counts.put(groupfield, cnt + 1);
+        table.merge(tup);
     }
 
     /**
@@ -67,20 +57,7 @@ public class StringAggregator implements Aggregator {
      */
     public DbIterator iterator() {
         // some code goes here
-        ArrayList<Tuple> tuples = new ArrayList<>();
-        for (Map.Entry<Field, Integer> entry : Counts.entrySet()){
-            Tuple tuple = new Tuple(tupleDesc);
-            Integer value = entry.getValue();
-
-            if (gbfield == Aggregator.NO_GROUPING) {
-                tuple.setField(0, new IntField(value));
-            } else {
-                tuple.setField(0, entry.getKey());
-                tuple.setField(1, new IntField(value));
-            }
-            tuples.add(tuple);
-        }
-        return new TupleIterator(tupleDesc, tuples);
+        return table.iterator();
     }
 
 }
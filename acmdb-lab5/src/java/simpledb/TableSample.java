@@ -0,0 +1,173 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TableSample reads the tuples of a uniform random sample of the pages of a
+ * table, so that statistics on a large table can be estimated from a bounded
+ * amount of I/O.
+ * <p>
+ * Pages are chosen by reservoir sampling over the data pages of the file: the
+ * pages of a {@link HeapFile}, or the leaf pages of a {@link BTreeFile}, whose
+ * ids are found by reading its internal pages only.  The chosen pages are then
+ * read in file order.  Files of any other type are read in full.
+ * <p>
+ * Statistics need no isolation, so the pages are read without holding locks
+ * until the sampling transaction completes: each page is unlocked once it
+ * has been read, and B+ tree internal pages are not locked at all.  The
+ * sampling transaction never waits for a lock while it holds one, so it
+ * neither keeps writers waiting nor takes part in a deadlock that would
+ * abort one of them.
+ * <p>
+ * Sampling whole pages rather than single tuples makes the sample somewhat
+ * less random when tuples are clustered, but reads every page it pays for in
+ * full.
+ */
+class TableSample {
+
+    /** Sample size meaning that every page is read */
+    static final int ALL_PAGES = 0;
+
+    private final DbFile file;
+    private final int samplePages;
+    private final Random random;
+    private int numPages = -1;
+    private int sampledPages = -1;
+
+    /**
+     * @param file
+     *            the file to sample
+     * @param samplePages
+     *            the maximum number of pages to read, or ALL_PAGES
+     * @param seed
+     *            the seed of the random choice of pages, so that the same
+     *            table gets the same sample every time
+     */
+    TableSample(DbFile file, int samplePages, long seed) {
+        this.file = file;
+        this.samplePages = samplePages;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Choose the pages to read and return an iterator over their tuples.
+     *
+     * @param tid the transaction to read the pages as a part of
+     */
+    DbFileIterator iterator(TransactionId tid) throws DbException, TransactionAbortedException {
+        final List<? extends PageId> pages;
+        if (file instanceof HeapFile) {
+            ArrayList<HeapPageId> heapPages = new ArrayList<HeapPageId>();
+            for (int i : choose(((HeapFile) file).numPages()))
+                heapPages.add(new HeapPageId(file.getId(), i));
+            pages = heapPages;
+        } else if (file instanceof BTreeFile) {
+            List<BTreePageId> leaves = ((BTreeFile) file).leafPageIds(tid);
+            ArrayList<BTreePageId> leafPages = new ArrayList<BTreePageId>();
+            for (int i : choose(leaves.size()))
+                leafPages.add(leaves.get(i));
+            pages = leafPages;
+        } else if (file instanceof HashFile) {
+            numPages = sampledPages = 1;
+            return ((HashFile) file).unlockingIterator(tid);
+        } else {
+            numPages = sampledPages = 1;
+            return file.iterator(tid);
+        }
+        return new PageListIterator(tid, pages);
+    }
+
+    /**
+     * @return the number of data pages in the file, once iterator() has been
+     *         called
+     */
+    int numPages() {
+        return numPages;
+    }
+
+    /**
+     * @return the number of data pages read by the iterator
+     */
+    int numSampledPages() {
+        return sampledPages;
+    }
+
+    /**
+     * @return the factor to multiply counts over the sample by to estimate
+     *         counts over the whole table
+     */
+    double scale() {
+        return sampledPages <= 0 ? 1.0 : (double) numPages / sampledPages;
+    }
+
+    /**
+     * Choose up to samplePages of the page numbers 0 to n - 1, each with the
+     * same probability, by reservoir sampling.
+     *
+     * @return the chosen page numbers in ascending order
+     */
+    private int[] choose(int n) {
+        int k = samplePages == ALL_PAGES ? n : Math.min(samplePages, n);
+        int[] reservoir = new int[k];
+        for (int i = 0; i < n; i++) {
+            if (i < k) {
+                reservoir[i] = i;
+            } else {
+                int j = random.nextInt(i + 1);
+                if (j < k)
+                    reservoir[j] = i;
+            }
+        }
+        Arrays.sort(reservoir);
+        numPages = n;
+        sampledPages = k;
+        return reservoir;
+    }
+
+    /** Iterates over the tuples of a list of heap or B+ tree leaf pages. */
+    private static class PageListIterator extends AbstractDbFileIterator {
+        private final TransactionId tid;
+        private final List<? extends PageId> pages;
+        private int nextPage;
+        private Iterator<Tuple> it;
+
+        PageListIterator(TransactionId tid, List<? extends PageId> pages) {
+            this.tid = tid;
+            this.pages = pages;
+        }
+
+        public void open() {
+            nextPage = 0;
+            it = Collections.<Tuple>emptyList().iterator();
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (it == null)
+                return null;
+            while (!it.hasNext()) {
+                // statistics need no isolation, so a page is unlocked once it
+                // has been read rather than holding up writers until the end
+                if (nextPage > 0)
+                    Database.getBufferPool().releasePage(tid, pages.get(nextPage - 1));
+                if (nextPage == pages.size()) {
+                    it = null;
+                    return null;
+                }
+                Page p = Database.getBufferPool().getPage(tid, pages.get(nextPage++), Permissions.READ_ONLY);
+                it = p instanceof HeapPage ? ((HeapPage) p).iterator() : ((BTreeLeafPage) p).iterator();
+            }
+            return it.next();
+        }
+
+        public void rewind() {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            it = null;
+        }
+    }
+}
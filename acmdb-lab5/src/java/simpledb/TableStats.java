@@ -232,10 +232,21 @@
 //TODO
 package simpledb;
 
+import java.io.*;
+import java.util.ArrayList;
+import java.text.ParseException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
@@ -247,6 +258,9 @@ public class TableStats {
 
     private static final ConcurrentHashMap<String, TableStats> statsMap = new ConcurrentHashMap<String, TableStats>();
 
+    /** Bumped whenever the statistics of a table are replaced */
+    private static final AtomicLong version = new AtomicLong();
+
     static final int IOCOSTPERPAGE = 1000;
 
     public static TableStats getTableStats(String tablename) {
@@ -255,6 +269,17 @@ public class TableStats {
 
     public static void setTableStats(String tablename, TableStats stats) {
         statsMap.put(tablename, stats);
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return the version of the statistics, which changes whenever the
+     *         statistics of a table are set or replaced by a refresh, but not
+     *         when they are updated incrementally; plans chosen under one
+     *         version may be worse than the optimizer would choose now
+     */
+    public static long getVersion() {
+        return version.get();
     }
 
     public static void setStatsMap(HashMap<String, TableStats> s) {
@@ -262,6 +287,7 @@ public class TableStats {
             java.lang.reflect.Field statsMapF = TableStats.class.getDeclaredField("statsMap");
             statsMapF.setAccessible(true);
             statsMapF.set(null, s);
+            version.incrementAndGet();
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -278,24 +304,244 @@ public class TableStats {
         return statsMap;
     }
 
+    /**
+     * Compute statistics for every table in the catalog, several tables at a
+     * time, each from a sample of at most {@link #getSamplePages} pages.
+     */
     public static void computeStatistics() {
-        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
-
         System.out.println("Computing table stats.");
+        computeStatistics(Database.getCatalog().tableIdIterator());
+        System.out.println("Done.");
+    }
+
+    private static void computeStatistics(Iterator<Integer> tableIt) {
+        List<Callable<TableStats>> tasks = new ArrayList<Callable<TableStats>>();
+        final List<String> names = new ArrayList<String>();
+        while (tableIt.hasNext()) {
+            final int tableid = tableIt.next();
+            names.add(Database.getCatalog().getTableName(tableid));
+            tasks.add(new Callable<TableStats>() {
+                public TableStats call() {
+                    return new TableStats(tableid, IOCOSTPERPAGE);
+                }
+            });
+        }
+        try {
+            List<TableStats> stats = WorkerPool.invokeAll(tasks);
+            for (int i = 0; i < stats.size(); i++)
+                setTableStats(names.get(i), stats.get(i));
+        } catch (DbException e) {
+            e.printStackTrace();
+        } catch (TransactionAbortedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static final int STATS_FILE_MAGIC = 0x53444253;
+    private static final int STATS_FILE_VERSION = 2;
+
+    private static volatile File statsFile = null;
+
+    /**
+     * Load the statistics of the tables in the catalog from a file written by
+     * {@link #saveStatistics}, compute the statistics of tables the file does
+     * not hold, and save the result back to the file.  The statistics of
+     * tables whose file has changed since they were saved are used until a
+     * background refresh replaces them.  From now on the statistics are saved
+     * to this file whenever a refresh completes.
+     *
+     * @param file the statistics file, which need not exist yet
+     */
+    public static void loadStatistics(File file) {
+        System.out.println("Loading table stats.");
+        statsFile = file;
+        HashMap<String, TableStats> loaded = new HashMap<String, TableStats>();
+        if (file.exists()) {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                try {
+                    if (in.readInt() != STATS_FILE_MAGIC || in.readInt() != STATS_FILE_VERSION)
+                        throw new IOException("not a statistics file: " + file);
+                    int n = in.readInt();
+                    for (int i = 0; i < n; i++) {
+                        String name = in.readUTF();
+                        TableStats s = read(in);
+                        if (s != null)
+                            loaded.put(name, s);
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // a missing or damaged file only means computing everything
+                e.printStackTrace();
+                loaded.clear();
+            }
+        }
+
+        ArrayList<Integer> missing = new ArrayList<Integer>();
+        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
         while (tableIt.hasNext()) {
             int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+            String name = Database.getCatalog().getTableName(tableid);
+            TableStats s = loaded.get(name);
+            if (s == null) {
+                missing.add(tableid);
+            } else {
+                setTableStats(name, s);
+                if (s.builtPages != s.numPages())
+                    s.refresh();
+            }
         }
-        System.out.println("Done.");
+        computeStatistics(missing.iterator());
+        System.out.println("Loaded " + loaded.size() + ", computed " + missing.size() + ".");
+        saveStatistics();
+    }
+
+    /**
+     * Save the statistics of every table in the catalog to the file given to
+     * {@link #loadStatistics}, if any.
+     */
+    public static void saveStatistics() {
+        File file = statsFile;
+        if (file == null)
+            return;
+        try {
+            saveStatistics(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Save the statistics of every table in the catalog to a file, which is
+     * replaced as a whole.
+     */
+    public static synchronized void saveStatistics(File file) throws IOException {
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<TableStats> stats = new ArrayList<TableStats>();
+        for (Map.Entry<String, TableStats> e : statsMap.entrySet()) {
+            if (!e.getValue().failed) {
+                names.add(e.getKey());
+                stats.add(e.getValue());
+            }
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(STATS_FILE_MAGIC);
+            out.writeInt(STATS_FILE_VERSION);
+            out.writeInt(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                out.writeUTF(names.get(i));
+                stats.get(i).write(out);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file))
+                throw new IOException("cannot replace " + file);
+        }
+    }
+
+    /**
+     * Apply the insertion of a tuple into a table to the statistics of the
+     * table.  Called by {@link BufferPool#insertTuple}, and by
+     * {@link BTreeFile#bulkLoad} for the tuples it appends.
+     */
+    static void tupleInserted(int tableId, Tuple t) {
+        TableStats s = forTable(tableId);
+        if (s != null)
+            s.update(t, 1);
+    }
+
+    /**
+     * Apply the deletion of a tuple from a table to the statistics of the
+     * table.  Called by {@link BufferPool#deleteTuple}.
+     */
+    static void tupleDeleted(int tableId, Tuple t) {
+        TableStats s = forTable(tableId);
+        if (s != null)
+            s.update(t, -1);
+    }
+
+    private static TableStats forTable(int tableId) {
+        TableStats s;
+        try {
+            s = statsMap.get(Database.getCatalog().getTableName(tableId));
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        return s != null && s.tableId == tableId ? s : null;
+    }
+
+    /**
+     * Default maximum number of pages read to build the statistics of a table;
+     * 4 MB of the default 4 KB pages
+     */
+    static final int DEFAULT_SAMPLE_PAGES = 1024;
+
+    private static volatile int samplePages = DEFAULT_SAMPLE_PAGES;
+
+    /**
+     * Set the maximum number of pages read to build the statistics of a table
+     * by constructors that are not given a sample size.
+     *
+     * @param pages the number of pages, or 0 to read every page
+     */
+    public static void setSamplePages(int pages) {
+        if (pages < 0)
+            throw new IllegalArgumentException("the sample size cannot be negative");
+        samplePages = pages;
+    }
+
+    public static int getSamplePages() {
+        return samplePages;
     }
 
-    private ConcurrentHashMap<Integer, IntHistogram> fieldToIntHistogram;
-    private ConcurrentHashMap<Integer, StringHistogram> fieldToStringHistogram;
+    /**
+     * Fraction of the tuples of a table that may be inserted or deleted
+     * before its statistics are refreshed
+     */
+    static final double STALE_FRACTION = 0.2;
+    /** Number of changes that never make the statistics of a table stale */
+    static final int STALE_MIN_CHANGES = 1000;
+
+    /** Number of rows kept to estimate conjunctions of predicates on */
+    static final int ROW_SAMPLE_SIZE = 1000;
+    /**
+     * Number of tuples the histograms and most common values are built
+     * from, drawn uniformly from the tuples read; the distinct value
+     * sketches see every tuple read
+     */
+    static final int VALUE_SAMPLE_SIZE = 30000;
+    /**
+     * Fewest rows of the row sample a conjunction must match for the sample
+     * to estimate it; rarer conjunctions are capped at this many instead
+     */
+    static final int MIN_SAMPLE_MATCHES = 10;
+
+    /** The statistics of each field, indexed by field */
+    private ColumnStats[] columns;
+    /** A uniform sample of whole rows, which keeps correlations between fields */
+    private Field[][] rows;
+    private int numRows = 0;
     private int tableId, ioCostPerPage;
     private TupleDesc schema;
     private int totalTuples = 0;
-    private HeapFile table;
+    private DbFile table;
+    /** The sample size these statistics were built with */
+    private int sampleSize;
+    /** Tuples of the table per tuple in the histograms */
+    private double scale = 1.0;
+    /** The number of tuples and pages of the table when these were built */
+    private int builtTuples, builtPages;
+    /** Insertions and deletions applied since these were built */
+    private int changes = 0;
+    private boolean failed = false;
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
 
 
     /**
@@ -314,6 +560,19 @@ public class TableStats {
      *                      sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
+        this(tableid, ioCostPerPage, samplePages);
+    }
+
+    /**
+     * Create a new TableStats object from a random sample of the pages of a
+     * table.  Counts taken over the sample are scaled up to the whole table.
+     *
+     * @param tableid       The table over which to compute statistics
+     * @param ioCostPerPage The cost per page of IO.
+     * @param samplePages   The maximum number of pages to read, or 0 to read
+     *                      every page
+     */
+    public TableStats(int tableid, int ioCostPerPage, int samplePages) {
         // For this function, you'll have to get the
         // DbFile for the table in question,
         // then scan through its tuples and calculate
@@ -324,59 +583,277 @@ public class TableStats {
         // some code goes here
         this.tableId = tableid;
         this.ioCostPerPage = ioCostPerPage;
-        this.fieldToIntHistogram = new ConcurrentHashMap<>();
-        this.fieldToStringHistogram = new ConcurrentHashMap<>();
-        this.table = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
+        this.table = Database.getCatalog().getDatabaseFile(tableId);
+        this.schema = table.getTupleDesc();
+        this.columns = new ColumnStats[schema.numFields()];
+        this.rows = new Field[ROW_SAMPLE_SIZE][];
+        this.sampleSize = samplePages;
+        this.builtPages = numPages();
+        TransactionId tid = new TransactionId();
+        try {
+            TableSample sample = new TableSample(table, samplePages, tableid);
+            DbFileIterator it = sample.iterator(tid);
+            scale = sample.scale();
+            createHistograms(it);
+            totalTuples = (int) Math.round(totalTuples * scale);
+            builtTuples = totalTuples;
+        } catch (TransactionAbortedException e) {
+            failed = true;
+            e.printStackTrace();
+        } catch (DbException e) {
+            failed = true;
+            e.printStackTrace();
+        } finally {
+            // the sample is only read, so this just releases its locks
+            try {
+                Database.getBufferPool().transactionComplete(tid);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Create statistics read back by {@link #read}. */
+    private TableStats(int tableid, int ioCostPerPage, DbFile table) {
+        this.tableId = tableid;
+        this.ioCostPerPage = ioCostPerPage;
+        this.table = table;
         this.schema = table.getTupleDesc();
-        Transaction transaction = new Transaction();
-        createHistograms(table.iterator(transaction.getId()));
+        this.columns = new ColumnStats[schema.numFields()];
+        this.rows = new Field[ROW_SAMPLE_SIZE][];
+    }
 
+    /**
+     * Write these statistics to out, in the form read by {@link #read}.
+     */
+    private synchronized void write(DataOutputStream out) throws IOException {
+        out.writeInt(tableId);
+        out.writeInt(ioCostPerPage);
+        out.writeInt(sampleSize);
+        out.writeDouble(scale);
+        out.writeInt(totalTuples);
+        out.writeInt(builtTuples);
+        out.writeInt(builtPages);
+        out.writeInt(changes);
+        out.writeInt(schema.numFields());
+        for (int field = 0; field < schema.numFields(); ++field) {
+            out.writeByte(schema.getFieldType(field) == Type.INT_TYPE ? 1 : 2);
+            out.writeBoolean(columns[field] != null);
+            if (columns[field] != null)
+                columns[field].write(out);
+        }
+        out.writeInt(numRows);
+        for (int i = 0; i < numRows; i++) {
+            for (Field f : rows[i])
+                f.serialize(out);
+        }
     }
 
-    private void createHistograms(DbFileIterator tupleIter) {
+    /**
+     * Read statistics written by {@link #write}.
+     *
+     * @return the statistics, or null if their table is no longer in the
+     *         catalog or has a different schema
+     */
+    private static TableStats read(DataInputStream in) throws IOException {
+        int tableid = in.readInt();
+        int ioCostPerPage = in.readInt();
+        int sampleSize = in.readInt();
+        double scale = in.readDouble();
+        int totalTuples = in.readInt(), builtTuples = in.readInt(), builtPages = in.readInt();
+        int changes = in.readInt();
+        int numFields = in.readInt();
+
+        TableStats s = null;
         try {
-            tupleIter.open();
-            int mins[] = new int[schema.numFields()], maxs[] = new int[schema.numFields()];
+            s = new TableStats(tableid, ioCostPerPage, Database.getCatalog().getDatabaseFile(tableid));
+        } catch (NoSuchElementException e) {
+            // the table was dropped; its histograms are still read past below
+        }
+        boolean matches = s != null && numFields == s.schema.numFields();
+        Type[] types = new Type[numFields];
+        ColumnStats[] columns = new ColumnStats[numFields];
+        for (int field = 0; field < numFields; ++field) {
+            types[field] = in.readByte() == 1 ? Type.INT_TYPE : Type.STRING_TYPE;
+            if (in.readBoolean())
+                columns[field] = ColumnStats.read(in);
+            matches = matches && s.schema.getFieldType(field) == types[field];
+        }
+        int numRows = in.readInt();
+        Field[][] rows = new Field[Math.max(numRows, ROW_SAMPLE_SIZE)][];
+        try {
+            for (int i = 0; i < numRows; i++) {
+                rows[i] = new Field[numFields];
+                for (int field = 0; field < numFields; ++field)
+                    rows[i][field] = types[field].parse(in);
+            }
+        } catch (ParseException e) {
+            throw new IOException("damaged row sample", e);
+        }
+        if (!matches)
+            return null;
+        s.columns = columns;
+        s.rows = rows;
+        s.numRows = numRows;
+        s.sampleSize = sampleSize;
+        s.scale = scale;
+        s.totalTuples = totalTuples;
+        s.builtTuples = builtTuples;
+        s.builtPages = builtPages;
+        s.changes = changes;
+        return s;
+    }
+
+    /**
+     * Apply the insertion (delta 1) or deletion (delta -1) of a tuple.  The
+     * row count and distinct value sketches see every change; the histograms
+     * hold a sample of the table, so a change reaches them with the same
+     * probability a tuple has of being in the sample.  The row sample is kept
+     * uniform by reservoir sampling.  A value outside the range of its
+     * histogram, or enough changes, make the statistics stale and start a
+     * refresh.
+     * <p>
+     * Changes are applied as they are made, so those of transactions that
+     * later abort stay counted until the next refresh.
+     */
+    private void update(Tuple t, int delta) {
+        boolean stale;
+        synchronized (this) {
+            totalTuples = Math.max(0, totalTuples + delta);
+            changes++;
+            stale = changes > Math.max(STALE_MIN_CHANGES, STALE_FRACTION * builtTuples);
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            boolean inSample = scale <= 1.0 || random.nextDouble() * scale < 1.0;
             for (int field = 0; field < schema.numFields(); ++field) {
-                mins[field] = Integer.MAX_VALUE;
-                maxs[field] = Integer.MIN_VALUE;
+                if (columns[field] == null)
+                    continue;
+                if (delta < 0)
+                    columns[field].remove(t.getField(field), inSample);
+                else if (!columns[field].add(t.getField(field), inSample))
+                    stale = true;
             }
-            while (tupleIter.hasNext()) {
-                ++totalTuples;
-                Tuple tuple = tupleIter.next();
-                for (int field = 0; field < schema.numFields(); ++field) {
-                    if (schema.getFieldType(field).equals(Type.INT_TYPE)) {
-                        int value = ((IntField) tuple.getField(field)).getValue();
-                        mins[field] = Integer.min(mins[field], value);
-                        maxs[field] = Integer.max(maxs[field], value);
-                    }
-                }
+            if (delta > 0)
+                sampleRow(t, random);
+            else
+                unsampleRow(t);
+        }
+        if (stale)
+            refresh();
+    }
+
+    /** Offer an inserted tuple to the row sample. */
+    private void sampleRow(Tuple t, Random random) {
+        int slot = numRows < ROW_SAMPLE_SIZE ? numRows++ : random.nextInt(Math.max(1, totalTuples));
+        if (slot < ROW_SAMPLE_SIZE) {
+            Field[] row = new Field[schema.numFields()];
+            for (int field = 0; field < row.length; ++field)
+                row[field] = t.getField(field);
+            rows[slot] = row;
+        }
+    }
+
+    /** Remove a deleted tuple from the row sample, if it is there. */
+    private void unsampleRow(Tuple t) {
+        for (int i = 0; i < numRows; i++) {
+            boolean same = true;
+            for (int field = 0; field < rows[i].length && same; ++field)
+                same = rows[i][field].equals(t.getField(field));
+            if (same) {
+                rows[i] = rows[--numRows];
+                rows[numRows] = null;
+                return;
             }
-            for (int field = 0; field < schema.numFields(); ++field) {
-                if (schema.getFieldType(field).equals(Type.INT_TYPE)) {
-                    fieldToIntHistogram.put(field, new IntHistogram(NUM_HIST_BINS, mins[field], maxs[field]));
-                } else if (schema.getFieldType(field).equals(Type.STRING_TYPE)) {
-                    fieldToStringHistogram.put(field, new StringHistogram(NUM_HIST_BINS));
+        }
+    }
+
+    /**
+     * Rebuild these statistics on a worker thread, unless that is already
+     * under way, and replace them once done.  Queries keep using these
+     * statistics in the meantime.
+     */
+    private void refresh() {
+        if (!refreshing.compareAndSet(false, true))
+            return;
+        WorkerPool.submit(new Callable<Void>() {
+            public Void call() {
+                try {
+                    TableStats fresh = new TableStats(tableId, ioCostPerPage, sampleSize);
+                    String name = Database.getCatalog().getTableName(tableId);
+                    if (!fresh.failed && statsMap.replace(name, TableStats.this, fresh)) {
+                        version.incrementAndGet();
+                        saveStatistics();
+                    }
+                } finally {
+                    refreshing.set(false);
                 }
+                return null;
             }
-            tupleIter.rewind();
+        });
+    }
+
+    /**
+     * Build the statistics in a single pass over the tuples: the keys of
+     * every field are buffered until the whole sample has been read, and a
+     * sample of whole rows is drawn from the tuples by reservoir sampling.
+     */
+    private void createHistograms(DbFileIterator tupleIter) throws DbException, TransactionAbortedException {
+        int numFields = schema.numFields();
+        // a reservoir of the values of VALUE_SAMPLE_SIZE tuples, grown up
+        // to that size as tuples are read
+        long[][] keys = new long[numFields][64];
+        // integers are hashed from their keys, strings need their own hashes
+        long[][] hashes = new long[numFields][];
+        HyperLogLog[] sketches = new HyperLogLog[numFields];
+        for (int field = 0; field < numFields; ++field) {
+            if (schema.getFieldType(field).equals(Type.STRING_TYPE))
+                hashes[field] = new long[64];
+            sketches[field] = new HyperLogLog();
+        }
+        Random random = new Random(tableId);
+        int n = 0;
+        tupleIter.open();
+        try {
             while (tupleIter.hasNext()) {
                 Tuple tuple = tupleIter.next();
-                for (int field = 0; field < schema.numFields(); ++field) {
-                    if (schema.getFieldType(field).equals(Type.INT_TYPE)) {
-                        int value = ((IntField) tuple.getField(field)).getValue();
-                        fieldToIntHistogram.get(field).addValue(value);
-                    } else if (schema.getFieldType(field).equals(Type.STRING_TYPE)) {
-                        String value = ((StringField) tuple.getField(field)).getValue();
-                        fieldToStringHistogram.get(field).addValue(value);
+                int valueSlot = n < VALUE_SAMPLE_SIZE ? n : random.nextInt(n + 1);
+                if (valueSlot < VALUE_SAMPLE_SIZE && valueSlot == keys[0].length) {
+                    int size = Math.min(2 * valueSlot, VALUE_SAMPLE_SIZE);
+                    for (int field = 0; field < numFields; ++field) {
+                        keys[field] = Arrays.copyOf(keys[field], size);
+                        if (hashes[field] != null)
+                            hashes[field] = Arrays.copyOf(hashes[field], size);
                     }
                 }
+                for (int field = 0; field < numFields; ++field) {
+                    Field f = tuple.getField(field);
+                    long key = ColumnStats.key(f);
+                    long hash = hashes[field] != null ? ColumnStats.hash(f) : HyperLogLog.hash(key);
+                    sketches[field].add(hash);
+                    if (valueSlot < VALUE_SAMPLE_SIZE) {
+                        keys[field][valueSlot] = key;
+                        if (hashes[field] != null)
+                            hashes[field][valueSlot] = hash;
+                    }
+                }
+                int slot = n < ROW_SAMPLE_SIZE ? n : random.nextInt(n + 1);
+                if (slot < ROW_SAMPLE_SIZE) {
+                    Field[] row = new Field[numFields];
+                    for (int field = 0; field < numFields; ++field)
+                        row[field] = tuple.getField(field);
+                    rows[slot] = row;
+                }
+                n++;
             }
-        } catch (TransactionAbortedException e) {
-            e.printStackTrace();
-        } catch (DbException e) {
-            e.printStackTrace();
+        } finally {
+            tupleIter.close();
         }
+        totalTuples = n;
+        numRows = Math.min(n, ROW_SAMPLE_SIZE);
+        int values = Math.min(n, VALUE_SAMPLE_SIZE);
+        double valueScale = values == 0 ? scale : scale * n / values;
+        for (int field = 0; field < numFields; ++field)
+            columns[field] = ColumnStats.build(keys[field], hashes[field], values, valueScale, NUM_HIST_BINS,
+                    sketches[field]);
     }
 
     /**
@@ -393,7 +870,118 @@ public class TableStats {
      */
     public double estimateScanCost() {
         // some code goes here
-        return table.numPages() * ioCostPerPage;
+        return numPages() * ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of a sequential scan that skips the pages whose zone
+     * map shows that none of their tuples satisfies all of the predicates
+     * (see {@link ZoneMap}).  Pages the zone map knows nothing about are
+     * counted as read.
+     *
+     * @param preds the predicates the scan skips pages with
+     * @return The estimated cost of the scan.
+     */
+    public double estimateScanCost(List<Predicate> preds) {
+        if (!(table instanceof HeapFile) || preds.isEmpty())
+            return estimateScanCost();
+        HeapFile f = (HeapFile) table;
+        return f.getZoneMap().pagesToRead(f.numPages(), preds) * ioCostPerPage;
+    }
+
+    /** Pages read to descend from the root pointer of a B+ tree to a leaf */
+    static final int INDEX_DESCENT_PAGES = 3;
+
+    /**
+     * Estimates the cost of scanning the range of a B+ tree index holding the
+     * given fraction of the table: descending to the first leaf, then reading
+     * that fraction of the file's pages through the leaf sibling pointers.
+     *
+     * @param selectivityFactor the fraction of the table the range holds
+     * @return The estimated cost of the index scan.
+     */
+    public double estimateIndexScanCost(double selectivityFactor) {
+        return (INDEX_DESCENT_PAGES + Math.ceil(numPages() * selectivityFactor)) * ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of scanning the range of a secondary index holding
+     * the given fraction of the table: descending to the first leaf, reading
+     * that fraction of the index's pages, then fetching the heap page of
+     * every tuple in the range, which are at most all the pages of the table.
+     *
+     * @param index the secondary index on the table
+     * @param selectivityFactor the fraction of the table the range holds
+     * @return The estimated cost of the index scan.
+     */
+    public double estimateIndexScanCost(SecondaryIndex index, double selectivityFactor) {
+        double entryPages = Math.ceil(index.getFile().numPages() * selectivityFactor);
+        double tablePages = Math.min(estimateTableCardinality(selectivityFactor), numPages());
+        return (INDEX_DESCENT_PAGES + entryPages + tablePages) * ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of an index-only scan of the range of a covering
+     * index holding the given fraction of the table: descending to the first
+     * leaf, then reading that fraction of the index's pages, without reading
+     * any page of the table.
+     *
+     * @param index the secondary index on the table
+     * @param selectivityFactor the fraction of the table the range holds
+     * @return The estimated cost of the index-only scan.
+     */
+    public double estimateIndexOnlyScanCost(SecondaryIndex index, double selectivityFactor) {
+        return (INDEX_DESCENT_PAGES + Math.ceil(index.getFile().numPages() * selectivityFactor))
+                * ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of looking a key up in a hash file: reading the
+     * pages of one bucket, which are its first page and the overflow pages
+     * after it, so on average at most the pages of the file other than its
+     * header page divided among its buckets, and at least one page.  The
+     * header page every lookup reads is not counted, since it stays in the
+     * buffer pool while the table is being used.
+     *
+     * @return The estimated cost of the lookup, or of a full scan if the
+     *         table is not stored in a HashFile.
+     */
+    public double estimateHashLookupCost() {
+        if (!(table instanceof HashFile))
+            return estimateScanCost();
+        HashFile f = (HashFile) table;
+        double chain = (double) (f.numPages() - 1) / f.numBuckets();
+        return Math.max(1.0, chain) * ioCostPerPage;
+    }
+
+    /**
+     * Estimate the selectivity of a B+ tree scan on field that starts at ipred
+     * and stops at stop.  Both bounds restrict the same field, so the fraction
+     * within the range is the part of each bound's selectivity the other does
+     * not exclude, rather than their product.
+     *
+     * @param field the key field of the index
+     * @param ipred the predicate the scan starts at, or null
+     * @param stop  the upper bound the scan stops at, or null
+     * @return The estimated fraction of the tuples the scan returns
+     */
+    public double estimateIndexSelectivity(int field, IndexPredicate ipred, IndexPredicate stop) {
+        double sel = 1.0;
+        if (ipred != null)
+            sel = estimateSelectivity(field, ipred.getOp(), ipred.getField());
+        if (stop != null)
+            sel += estimateSelectivity(field, stop.getOp(), stop.getField()) - 1.0;
+        return Math.max(0.0, Math.min(1.0, sel));
+    }
+
+    private int numPages() {
+        if (table instanceof HeapFile)
+            return ((HeapFile) table).numPages();
+        if (table instanceof BTreeFile)
+            return ((BTreeFile) table).numPages();
+        if (table instanceof HashFile)
+            return ((HashFile) table).numPages();
+        return 0;
     }
 
     /**
@@ -420,7 +1008,21 @@ public class TableStats {
      */
     public double avgSelectivity(int field, Predicate.Op op) {
         // some code goes here
-        return 1.0;
+        ColumnStats column = columns[field];
+        return column == null ? 1.0 : column.avgSelectivity(op);
+    }
+
+    /**
+     * Estimate the number of distinct values of a field in the table.
+     *
+     * @param field the index of the field
+     * @return The estimated number of distinct values, at least 1
+     */
+    public double numDistinct(int field) {
+        ColumnStats column = columns[field];
+        if (column == null)
+            return Math.max(1, totalTuples);
+        return Math.max(1.0, Math.min(column.ndv(), totalTuples));
     }
 
     /**
@@ -435,16 +1037,55 @@ public class TableStats {
      */
     public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
         // some code goes here
-        if (fieldToIntHistogram.containsKey(field)) {
-            int value = ((IntField) constant).getValue();
-            IntHistogram histogram = fieldToIntHistogram.get(field);
-            return histogram.estimateSelectivity(op, value);
-        } else if (fieldToStringHistogram.containsKey(field)) {
-            String value = ((StringField) constant).getValue();
-            StringHistogram histogram = fieldToStringHistogram.get(field);
-            return histogram.estimateSelectivity(op, value);
+        ColumnStats column = columns[field];
+        if (column == null)
+            return 1.0;
+        if (op == Predicate.Op.LIKE) {
+            // substring matches say nothing about the order of values
+            return estimateSelectivity(Arrays.asList(new Predicate(field, op, constant)));
+        }
+        return column.estimateSelectivity(op, constant);
+    }
+
+    /**
+     * Estimate the selectivity of a conjunction of predicates
+     * <tt>field op constant</tt> on the table.  Predicates on different
+     * fields are often correlated, so rather than multiplying their
+     * selectivities the conjunction is evaluated on a sample of rows.  If
+     * too few rows match for that to be reliable, the product of the
+     * selectivities is used instead, but no more than the sample allows.
+     *
+     * @param preds The predicates, all of which a tuple must satisfy
+     * @return The estimated selectivity of the conjunction
+     */
+    public double estimateSelectivity(List<Predicate> preds) {
+        if (preds.size() == 1 && preds.get(0).getOp() != Predicate.Op.LIKE) {
+            Predicate p = preds.get(0);
+            return estimateSelectivity(p.getField(), p.getOp(), p.getOperand());
+        }
+        double independent = 1.0;
+        for (Predicate p : preds) {
+            if (p.getOp() != Predicate.Op.LIKE)
+                independent *= estimateSelectivity(p.getField(), p.getOp(), p.getOperand());
+        }
+        int matches = 0, sampled;
+        synchronized (this) {
+            sampled = numRows;
+            for (int i = 0; i < numRows; i++) {
+                boolean match = true;
+                for (int j = 0; j < preds.size() && match; j++) {
+                    Predicate p = preds.get(j);
+                    match = rows[i][p.getField()].compare(p.getOp(), p.getOperand());
+                }
+                if (match)
+                    matches++;
+            }
         }
-        return 1.0;
+        if (sampled == 0)
+            return independent;
+        if (matches >= MIN_SAMPLE_MATCHES)
+            return (double) matches / sampled;
+        return Math.min(independent, (double) MIN_SAMPLE_MATCHES / sampled);
     }
 
     /**
@@ -0,0 +1,90 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * WorkerPool runs the tasks of intra-query parallel operators.
+ * <p>
+ * Threads are created on demand and reused; they are daemon threads so an
+ * idle pool never keeps the JVM alive.  Operators bound their own degree of
+ * parallelism, so the pool itself is unbounded, which also means an operator
+ * waiting on its workers can never starve the workers of a nested parallel
+ * operator.
+ */
+class WorkerPool {
+
+    private static final ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
+        private int count = 0;
+
+        public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "simpledb-worker-" + (count++));
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private WorkerPool() {
+    }
+
+    /**
+     * @return the number of processors available to the JVM, the default
+     *         degree of parallelism
+     */
+    static int defaultParallelism() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Submit a single task to the pool.
+     */
+    static <T> Future<T> submit(Callable<T> task) {
+        return pool.submit(task);
+    }
+
+    /**
+     * Run all tasks concurrently and wait for them to finish.  If any task
+     * fails, the others are cancelled and the first failure is rethrown.
+     *
+     * @return the results of the tasks, in order
+     */
+    static <T> List<T> invokeAll(List<? extends Callable<T>> tasks)
+            throws DbException, TransactionAbortedException {
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        for (Callable<T> task : tasks)
+            futures.add(pool.submit(task));
+        List<T> results = new ArrayList<T>();
+        try {
+            for (Future<T> f : futures)
+                results.add(await(f));
+        } finally {
+            for (Future<T> f : futures)
+                f.cancel(true);
+        }
+        return results;
+    }
+
+    /**
+     * Wait for a task to finish, unwrapping the exception it failed with.
+     */
+    static <T> T await(Future<T> f) throws DbException, TransactionAbortedException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while waiting for a worker");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DbException)
+                throw (DbException) cause;
+            if (cause instanceof TransactionAbortedException)
+                throw (TransactionAbortedException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new DbException("worker failed: " + cause);
+        }
+    }
+}
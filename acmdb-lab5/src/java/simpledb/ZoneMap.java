@@ -0,0 +1,291 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * ZoneMap keeps, for every page of a {@link HeapFile}, the number of tuples
+ * on the page and the smallest and largest value of each integer field, so
+ * that a scan with a filter can skip the pages none of whose tuples can pass
+ * it.
+ * <p>
+ * An entry is either unknown, in which case its page is always read, or
+ * covers every tuple the page may hold: it is computed from the page when the
+ * page is read from or written to disk, and widened by
+ * {@link HeapPage#insertTuple}.  Deleting a tuple leaves the bounds alone, as
+ * does aborting a transaction, so an entry may be wider than its page until
+ * the page is read or written again.  An entry that exactly describes an
+ * empty page lets scans skip the page whatever their filters.
+ * <p>
+ * The entries are kept in a side file next to the heap file, with the name of
+ * the heap file followed by <code>.zm</code>.  Entries that changed are
+ * written to it by {@link #flush}, which the heap file calls when a
+ * transaction that used it completes, not on every page read or written;
+ * pages written since are detected by the stamp of the side file.  It records the
+ * length and modification time of the heap file when it was last written and
+ * is ignored if they no longer match, e.g. because the heap file was
+ * replaced.  SimpleDB has no null values, so no null counts are kept.
+ */
+public class ZoneMap {
+
+    private static final int MAGIC = 0x5a4d4150;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+
+    private final File data, side;
+    /** The integer fields, and the position of each field among them or -1 */
+    private final int[] columns, columnOf;
+    private final int entrySize;
+
+    private int pages = 0;
+    /** The tuples on each page, or -1 if the entry is unknown */
+    private int[] rows = new int[0];
+    /** Whether each entry describes its page exactly */
+    private boolean[] exact = new boolean[0];
+    /** The bounds of each page, columns.length per page */
+    private int[] min = new int[0], max = new int[0];
+    private final BitSet dirty = new BitSet();
+    /** The number of entries in the side file, which match this zone map
+        apart from the dirty ones, or -1 if the side file does not match */
+    private int stored = -1;
+
+    /**
+     * Open the zone map of a heap file, reading its side file if there is
+     * one that matches the heap file.
+     */
+    public ZoneMap(File data, TupleDesc td) {
+        this.data = data;
+        this.side = sideFile(data);
+        columnOf = new int[td.numFields()];
+        int n = 0;
+        for (int i = 0; i < columnOf.length; i++)
+            columnOf[i] = td.getFieldType(i) == Type.INT_TYPE ? n++ : -1;
+        columns = new int[n];
+        for (int i = 0; i < columnOf.length; i++) {
+            if (columnOf[i] >= 0)
+                columns[columnOf[i]] = i;
+        }
+        entrySize = 8 + 8 * n;
+        load();
+    }
+
+    /** @return the side file of a heap file */
+    public static File sideFile(File data) {
+        return new File(data.getPath() + ".zm");
+    }
+
+    /** @return the number of tuples on a page, or -1 if unknown */
+    public synchronized int getRows(int page) {
+        return page < pages ? rows[page] : -1;
+    }
+
+    /**
+     * @return false if no tuple on a page can pass all of the predicates;
+     *         predicates that are not on an integer field with an integer
+     *         operand cannot rule a page out
+     */
+    public synchronized boolean mayMatch(int page, List<Predicate> preds) {
+        if (page >= pages || rows[page] < 0)
+            return true;
+        if (rows[page] == 0)
+            return !exact[page];
+        for (Predicate p : preds) {
+            int c = columnOf[p.getField()];
+            if (c < 0 || !(p.getOperand() instanceof IntField))
+                continue;
+            if (!mayMatch(min[page * columns.length + c], max[page * columns.length + c],
+                    p.getOp(), ((IntField) p.getOperand()).getValue()))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean mayMatch(int lo, int hi, Predicate.Op op, int v) {
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return lo <= v && v <= hi;
+        case NOT_EQUALS:
+            return lo != v || hi != v;
+        case LESS_THAN:
+            return lo < v;
+        case LESS_THAN_OR_EQ:
+            return lo <= v;
+        case GREATER_THAN:
+            return hi > v;
+        case GREATER_THAN_OR_EQ:
+            return hi >= v;
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * @return the number of pages among the first numPages that a scan with
+     *         the predicates has to read
+     */
+    public synchronized int pagesToRead(int numPages, List<Predicate> preds) {
+        int n = 0;
+        for (int page = 0; page < numPages; page++) {
+            if (mayMatch(page, preds))
+                n++;
+        }
+        return n;
+    }
+
+    /** Widen the entry of a page by a tuple inserted on it */
+    synchronized void insert(int page, Tuple t) {
+        if (page >= pages || rows[page] < 0)
+            return;
+        rows[page]++;
+        exact[page] = false;
+        widen(page, t);
+        dirty.set(page);
+    }
+
+    /** Count a tuple deleted from a page */
+    synchronized void delete(int page) {
+        if (page >= pages || rows[page] <= 0)
+            return;
+        rows[page]--;
+        exact[page] = false;
+        dirty.set(page);
+    }
+
+    /**
+     * Compute the entry of a page that has the same tuples as on disk, unless
+     * it is already exact.
+     */
+    synchronized void observe(HeapPage p) {
+        int page = p.getId().pageNumber();
+        if (page < pages && exact[page])
+            return;
+        compute(p);
+    }
+
+    /** Compute the entry of a page that has been written to disk */
+    synchronized void written(HeapPage p) {
+        compute(p);
+    }
+
+    private void compute(HeapPage p) {
+        int page = p.getId().pageNumber();
+        grow(page + 1);
+        Arrays.fill(min, page * columns.length, (page + 1) * columns.length, Integer.MAX_VALUE);
+        Arrays.fill(max, page * columns.length, (page + 1) * columns.length, Integer.MIN_VALUE);
+        int n = 0;
+        Iterator<Tuple> it = p.iterator();
+        while (it.hasNext()) {
+            widen(page, it.next());
+            n++;
+        }
+        rows[page] = n;
+        exact[page] = true;
+        dirty.set(page);
+    }
+
+    private void widen(int page, Tuple t) {
+        int base = page * columns.length;
+        for (int c = 0; c < columns.length; c++) {
+            int v = ((IntField) t.getField(columns[c])).getValue();
+            if (v < min[base + c])
+                min[base + c] = v;
+            if (v > max[base + c])
+                max[base + c] = v;
+        }
+    }
+
+    private void grow(int n) {
+        if (n <= pages)
+            return;
+        if (n > rows.length) {
+            int cap = Math.max(n, rows.length * 2);
+            int oldCap = rows.length;
+            rows = Arrays.copyOf(rows, cap);
+            Arrays.fill(rows, oldCap, cap, -1);
+            exact = Arrays.copyOf(exact, cap);
+            min = Arrays.copyOf(min, cap * columns.length);
+            max = Arrays.copyOf(max, cap * columns.length);
+        }
+        pages = n;
+    }
+
+    /**
+     * Write the entries that changed since they were last written to the
+     * side file, and stamp it with the current length and modification time
+     * of the heap file.
+     */
+    public synchronized void flush() {
+        if (dirty.isEmpty() && stored == pages)
+            return;
+        try (RandomAccessFile f = new RandomAccessFile(side, "rw")) {
+            if (stored < 0) {
+                f.setLength(0);
+                stored = 0;
+            }
+            for (int page = dirty.nextSetBit(0); page >= 0 && page < stored; page = dirty.nextSetBit(page + 1)) {
+                f.seek(HEADER_SIZE + (long) page * entrySize);
+                f.write(entry(page));
+            }
+            // unknown entries are written too, so that no gap is read back
+            // as an entry
+            if (stored < pages) {
+                ByteArrayOutputStream tail = new ByteArrayOutputStream((pages - stored) * entrySize);
+                for (int page = stored; page < pages; page++)
+                    tail.write(entry(page));
+                f.seek(HEADER_SIZE + (long) stored * entrySize);
+                f.write(tail.toByteArray());
+                stored = pages;
+            }
+            f.seek(0);
+            f.writeInt(MAGIC);
+            f.writeInt(columns.length);
+            f.writeLong(data.length());
+            f.writeLong(data.lastModified());
+            dirty.clear();
+        } catch (IOException e) {
+            // the side file is only an optimization; its entries are
+            // computed again
+            side.delete();
+            stored = -1;
+        }
+    }
+
+    private byte[] entry(int page) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(entrySize);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(rows[page]);
+        out.writeInt(exact[page] ? 1 : 0);
+        for (int c = 0; c < columns.length; c++) {
+            out.writeInt(min[page * columns.length + c]);
+            out.writeInt(max[page * columns.length + c]);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void load() {
+        if (!side.exists())
+            return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(side)))) {
+            if (in.readInt() != MAGIC || in.readInt() != columns.length
+                    || in.readLong() != data.length() || in.readLong() != data.lastModified())
+                return;
+            int n = (int) ((side.length() - HEADER_SIZE) / entrySize);
+            grow(n);
+            for (int page = 0; page < n; page++) {
+                rows[page] = in.readInt();
+                exact[page] = in.readInt() == 1;
+                for (int c = 0; c < columns.length; c++) {
+                    min[page * columns.length + c] = in.readInt();
+                    max[page * columns.length + c] = in.readInt();
+                }
+            }
+            stored = n;
+        } catch (IOException e) {
+            pages = 0;
+            rows = new int[0];
+            exact = new boolean[0];
+            min = new int[0];
+            max = new int[0];
+        }
+    }
+}
@@ -176,6 +176,88 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Unit test for Aggregate.getNext() when the groups do not fit in the
+   * group budget and have to be spilled to disk
+   */
+  @Test public void spillingAggregate() throws Exception {
+    Aggregate op = new Aggregate(scan1, 1, 0,
+        Aggregator.Op.SUM);
+    op.setMaxGroupsInMemory(1);
+    op.open();
+    sum.open();
+    TestUtil.matchAllTuples(sum, op);
+    assertTrue(op.getSpillBytes() > 0);
+
+    op.rewind();
+    sum.rewind();
+    TestUtil.matchAllTuples(sum, op);
+
+    // the in-memory groups are read back after the aggregator has moved on
+    // to its partitions
+    op.rewind();
+    op.next();
+    op.next();
+    op.rewind();
+    sum.rewind();
+    TestUtil.matchAllTuples(sum, op);
+    op.close();
+  }
+
+  /**
+   * Unit test for Aggregate.getNext() with enough spilled groups that the
+   * deepest partitions are aggregated by sorting
+   */
+  @Test public void spillingAggregateSortFallback() throws Exception {
+    int groups = 300;
+    int[] input = new int[groups * 4];
+    int[] expected = new int[groups * 2];
+    for (int g = 0; g < groups; g++) {
+      input[4 * g] = g; input[4 * g + 1] = g;
+      input[4 * g + 2] = g; input[4 * g + 3] = 2 * g;
+      expected[2 * g] = g; expected[2 * g + 1] = 3 * g;
+    }
+    Aggregate op = new Aggregate(TestUtil.createTupleList(width1, input), 1, 0,
+        Aggregator.Op.SUM);
+    op.setMaxGroupsInMemory(1);
+    op.open();
+    DbIterator exp = TestUtil.createTupleList(width1, expected);
+    exp.open();
+    TestUtil.matchAllTuples(exp, op);
+    op.close();
+  }
+
+  /**
+   * Unit test for Aggregate.getNext() with COUNT DISTINCT over more distinct
+   * values per group than fit in memory
+   */
+  @Test public void spillingCountDistinct() throws Exception {
+    int groups = 3, values = 200;
+    int[] input = new int[groups * values * 4];
+    int[] expected = new int[groups * 2];
+    int k = 0;
+    for (int g = 0; g < groups; g++) {
+      for (int v = 0; v < values * 2; v++) {
+        input[k++] = g;
+        input[k++] = v % values;
+      }
+      expected[2 * g] = g;
+      expected[2 * g + 1] = values;
+    }
+    Aggregate op = new Aggregate(TestUtil.createTupleList(width1, input), 1, 0,
+        Aggregator.Op.COUNT_DISTINCT);
+    op.setMaxGroupsInMemory(50);
+    op.open();
+    assertTrue(op.getSpillBytes() > 0);
+    DbIterator exp = TestUtil.createTupleList(width1, expected);
+    exp.open();
+    TestUtil.matchAllTuples(exp, op);
+    op.rewind();
+    exp.rewind();
+    TestUtil.matchAllTuples(exp, op);
+    op.close();
+  }
+
   /**
    * JUnit suite target
    */
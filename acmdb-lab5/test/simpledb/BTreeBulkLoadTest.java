@@ -0,0 +1,259 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoadTest extends SimpleDbTestBase {
+	private BTreeFile bf;
+	private int leafTuples;
+	private int rows;
+
+	/**
+	 * Create an empty B+ tree on small pages, and enough rows for a tree
+	 * of three levels.
+	 */
+	@Before public void setUp() throws Exception {
+		super.setUp();
+		BufferPool.setPageSize(1024);
+		leafTuples = BTreeUtility.getNumTuplesPerPage(2);
+		rows = leafTuples * (BTreeUtility.getNumEntriesPerPage() + 1) * 2;
+		File temp = File.createTempFile("bulk", ".dat");
+		temp.deleteOnExit();
+		bf = BTreeUtility.createEmptyBTreeFile(temp.getAbsolutePath(), 2, 0);
+		Database.resetBufferPool(100);
+	}
+
+	@After public void tearDown() throws Exception {
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	/** @return the tuples with keys from lo to hi - 1, shuffled */
+	private static TupleIterator tuples(int lo, int hi) {
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for(int i = lo; i < hi; i++)
+			tuples.add(BTreeUtility.getBTreeTuple(new int[] {i, -i}));
+		Collections.shuffle(tuples, new Random(lo));
+		return new TupleIterator(Utility.getTupleDesc(2), tuples);
+	}
+
+	/** @return the keys of the tree, checking its invariants */
+	private ArrayList<Integer> keys(boolean checkOccupancy) throws Exception {
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), checkOccupancy);
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			assertEquals(-((IntField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue());
+			keys.add(((IntField) t.getField(0)).getValue());
+		}
+		it.close();
+		Database.getBufferPool().transactionComplete(tid);
+		return keys;
+	}
+
+	private static void assertKeys(int lo, int hi, List<Integer> keys) {
+		assertEquals(hi - lo, keys.size());
+		for(int i = lo; i < hi; i++)
+			assertEquals(i, (int) keys.get(i - lo));
+	}
+
+	/**
+	 * Loading an empty tree packs its leaves and builds the levels above
+	 * them.
+	 */
+	@Test public void emptyTree() throws Exception {
+		TransactionId tid = new TransactionId();
+		assertEquals(rows, bf.bulkLoad(tid, tuples(0, rows), 1.0));
+		Database.getBufferPool().transactionComplete(tid);
+
+		assertKeys(0, rows, keys(true));
+		// full leaves, and one internal page for every entries per page of them
+		int leaves = (rows + leafTuples - 1) / leafTuples;
+		assertTrue(bf.numPages() <= leaves + leaves / BTreeUtility.getNumEntriesPerPage() + 2);
+	}
+
+	/**
+	 * The leaves are filled to the fill factor, leaving room for inserts.
+	 */
+	@Test public void fillFactor() throws Exception {
+		TransactionId tid = new TransactionId();
+		bf.bulkLoad(tid, tuples(0, rows), 0.6);
+		Database.getBufferPool().transactionComplete(tid);
+
+		assertKeys(0, rows, keys(true));
+		int leaves = rows / (int) (leafTuples * 0.6);
+		assertTrue(bf.numPages() >= leaves);
+		assertTrue(bf.numPages() <= leaves + leaves / (BTreeUtility.getNumEntriesPerPage() / 2) + 2);
+
+		// inserting keeps the tree consistent
+		tid = new TransactionId();
+		for(int i = 0; i < leafTuples; i++)
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[] {i * 7, -i * 7}));
+		Database.getBufferPool().transactionComplete(tid);
+		assertEquals(rows + leafTuples, keys(true).size());
+	}
+
+	/**
+	 * Loads with increasing keys append to the right edge of the tree, and
+	 * the tuples with smaller keys are inserted one by one.
+	 */
+	@Test public void append() throws Exception {
+		TransactionId tid = new TransactionId();
+		bf.bulkLoad(tid, tuples(0, rows / 2), 1.0);
+		Database.getBufferPool().transactionComplete(tid);
+		int pages = bf.numPages();
+
+		tid = new TransactionId();
+		assertEquals(rows / 2, bf.bulkLoad(tid, tuples(rows / 2, rows), 0.8));
+		Database.getBufferPool().transactionComplete(tid);
+		assertKeys(0, rows, keys(true));
+		assertTrue(bf.numPages() > pages);
+
+		// a few rows at a time, some of them in the middle of the tree
+		for(int i = 0; i < 5; i++) {
+			tid = new TransactionId();
+			ArrayList<Tuple> more = new ArrayList<Tuple>();
+			for(int j = 0; j < 30; j++)
+				more.add(BTreeUtility.getBTreeTuple(new int[] {rows + i * 30 + j, -(rows + i * 30 + j)}));
+			more.add(BTreeUtility.getBTreeTuple(new int[] {-1 - i, 1 + i}));
+			assertEquals(31, bf.bulkLoad(tid, new TupleIterator(Utility.getTupleDesc(2), more), 1.0));
+			Database.getBufferPool().transactionComplete(tid);
+		}
+		assertKeys(-5, rows + 150, keys(true));
+	}
+
+	/**
+	 * An aborted load leaves the tree as it was.
+	 */
+	@Test public void abort() throws Exception {
+		TransactionId tid = new TransactionId();
+		bf.bulkLoad(tid, tuples(0, rows / 2), 1.0);
+		Database.getBufferPool().transactionComplete(tid);
+
+		int records = Database.getLogFile().getTotalRecords();
+		int pages = bf.numPages();
+		tid = new TransactionId();
+		bf.bulkLoad(tid, tuples(rows / 2, rows), 1.0);
+		// every new page is logged
+		assertEquals(bf.numPages() - pages, Database.getLogFile().getTotalRecords() - records);
+		int loaded = bf.numPages();
+		Database.getBufferPool().transactionComplete(tid, false);
+
+		assertKeys(0, rows / 2, keys(true));
+		// the pages of the aborted load are free again
+		tid = new TransactionId();
+		int pgNo = bf.getEmptyPageNo(tid, new HashMap<PageId, Page>());
+		assertTrue(pgNo > pages && pgNo <= loaded);
+		Database.getBufferPool().transactionComplete(tid, false);
+	}
+
+	/**
+	 * A load into an empty tree that aborts leaves the tree empty, and
+	 * the next load fills it.
+	 */
+	@Test public void abortEmpty() throws Exception {
+		TransactionId tid = new TransactionId();
+		bf.bulkLoad(tid, tuples(0, rows), 1.0);
+		Database.getBufferPool().transactionComplete(tid, false);
+		assertKeys(0, 0, keys(true));
+
+		tid = new TransactionId();
+		bf.bulkLoad(tid, tuples(0, rows / 2), 1.0);
+		Database.getBufferPool().transactionComplete(tid);
+		assertKeys(0, rows / 2, keys(true));
+	}
+
+	/**
+	 * A leaf that another transaction splits while a load is running gets a
+	 * page the load did not plan to write.
+	 */
+	@Test public void splitDuringLoad() throws Exception {
+		TransactionId tid = new TransactionId();
+		bf.bulkLoad(tid, tuples(0, rows), 0.6);
+		Database.getBufferPool().transactionComplete(tid);
+		// fill the left-most leaf, splitting it once on the way, which leaves
+		// no free pages to reuse; its parent keeps room for another split
+		tid = new TransactionId();
+		int pages = bf.numPages();
+		BTreePageId first = new BTreePageId(bf.getId(), 1, BTreePageId.LEAF);
+		int copies = 0;
+		while(bf.numPages() == pages || ((BTreeLeafPage) Database.getBufferPool().getPage(tid, first,
+				Permissions.READ_ONLY)).getNumEmptySlots() > 0) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[] {0, 0}));
+			copies++;
+		}
+		Database.getBufferPool().transactionComplete(tid);
+
+		// the first tuple the load adds to a leaf splits the left-most leaf
+		// again from another thread
+		final Throwable[] failed = new Throwable[1];
+		final Thread split = new Thread() {
+			public void run() {
+				try {
+					TransactionId other = new TransactionId();
+					Database.getBufferPool().insertTuple(other, bf.getId(), BTreeUtility.getBTreeTuple(new int[] {0, 0}));
+					Database.getBufferPool().transactionComplete(other);
+				} catch(Throwable e) {
+					failed[0] = e;
+				}
+			}
+		};
+		int n = leafTuples * 3;
+		ArrayList<Tuple> loaded = new ArrayList<Tuple>();
+		for(int i = rows; i < rows + n; i++) {
+			Tuple t = new Tuple(Utility.getTupleDesc(2)) {
+				private static final long serialVersionUID = 1L;
+
+				public void setRecordId(RecordId rid) {
+					super.setRecordId(rid);
+					if(rid == null || split.getState() != Thread.State.NEW)
+						return;
+					split.start();
+					try {
+						split.join(10000);
+					} catch(InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			t.setField(0, new IntField(i));
+			t.setField(1, new IntField(-i));
+			loaded.add(t);
+		}
+		tid = new TransactionId();
+		assertEquals(n, bf.bulkLoad(tid, new TupleIterator(Utility.getTupleDesc(2), loaded), 1.0));
+		assertTrue(!split.isAlive());
+		assertNull(failed[0]);
+		Database.getBufferPool().transactionComplete(tid);
+
+		ArrayList<Integer> keys = keys(false);
+		assertEquals(rows + copies + 1 + n, keys.size());
+		assertEquals(Collections.nCopies(copies + 2, 0), keys.subList(0, copies + 2));
+		assertKeys(1, rows, keys.subList(copies + 2, copies + 1 + rows));
+		assertKeys(rows, rows + n, keys.subList(copies + 1 + rows, keys.size()));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void badFillFactor() throws Exception {
+		bf.bulkLoad(new TransactionId(), tuples(0, 10), 0.4);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoadTest.class);
+	}
+}
@@ -0,0 +1,120 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeFreeSpaceTest extends SimpleDbTestBase {
+	private BTreeFile bf;
+
+	/**
+	 * Create a B+ tree file of empty pages, none of them marked free.
+	 */
+	@Before public void setUp() throws Exception {
+		super.setUp();
+		File temp = File.createTempFile("free", ".dat");
+		temp.deleteOnExit();
+		temp.delete();
+		bf = BTreeUtility.createEmptyBTreeFile(temp.getAbsolutePath(), 2, 0, 20);
+	}
+
+	@After public void tearDown() throws Exception {
+		Database.reset();
+	}
+
+	/** Mark the pages dirty as BufferPool.insertTuple would, and complete the transaction. */
+	private static void complete(TransactionId tid, HashMap<PageId, Page> dirtypages, boolean commit)
+			throws Exception {
+		for(Page p : dirtypages.values())
+			p.markDirty(true, tid);
+		Database.getBufferPool().transactionComplete(tid, commit);
+	}
+
+	private void free(boolean commit, int... pages) throws Exception {
+		TransactionId tid = new TransactionId();
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		for(int pgNo : pages)
+			bf.setEmptyPage(tid, dirtypages, pgNo);
+		complete(tid, dirtypages, commit);
+	}
+
+	private int[] allocate(boolean commit, int n) throws Exception {
+		TransactionId tid = new TransactionId();
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		int[] pages = new int[n];
+		for(int i = 0; i < n; i++)
+			pages[i] = bf.getEmptyPageNo(tid, dirtypages);
+		complete(tid, dirtypages, commit);
+		return pages;
+	}
+
+	/**
+	 * Freed pages are handed out again lowest first, before the file grows.
+	 */
+	@Test public void reuseInOrder() throws Exception {
+		free(true, 5, 3);
+		int next = bf.numPages() + 1;
+		assertArrayEquals(new int[] {3, 5, next}, allocate(true, 3));
+		assertEquals(next, bf.numPages());
+	}
+
+	/**
+	 * A page whose free was rolled back is still in the cache, but is not
+	 * handed out.
+	 */
+	@Test public void abortedFree() throws Exception {
+		free(true, 2);
+		assertArrayEquals(new int[] {2}, allocate(true, 1));
+		free(false, 4);
+		int[] pages = allocate(true, 1);
+		assertEquals(bf.numPages(), pages[0]);
+	}
+
+	/**
+	 * A page whose allocation was rolled back is handed out once the cache
+	 * runs out of pages.
+	 */
+	@Test public void abortedAllocation() throws Exception {
+		free(true, 2, 3);
+		assertArrayEquals(new int[] {2}, allocate(false, 1));
+		assertArrayEquals(new int[] {3, 2}, allocate(true, 2));
+	}
+
+	/**
+	 * Header page i holds the slots of the pages from i times the number of
+	 * slots of a header page on.
+	 */
+	@Test public void manyHeaderPages() throws Exception {
+		int slots = BTreeHeaderPage.getNumSlots();
+		free(true, 2 * slots + 7, 9, slots);
+		TransactionId tid = new TransactionId();
+		BTreePageId headerId = ((BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY)).getHeaderId();
+		int headers = 0;
+		for(; headerId != null; headers++) {
+			BTreeHeaderPage header = (BTreeHeaderPage) Database.getBufferPool().getPage(tid,
+					headerId, Permissions.READ_ONLY);
+			if(headers == 1)
+				assertFalse(header.isSlotUsed(0));
+			headerId = header.getNextPageId();
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		assertEquals(3, headers);
+		assertArrayEquals(new int[] {9, slots, 2 * slots + 7}, allocate(true, 3));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeFreeSpaceTest.class);
+	}
+}
@@ -313,6 +313,100 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * The child a linear scan over the entries descends into for a key
+	 */
+	private static BTreePageId linearChildId(BTreeInternalPage page, Field f) {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = it.next();
+		while (f != null && f.compare(Predicate.Op.GREATER_THAN, e.getKey()) && it.hasNext())
+			e = it.next();
+		if (f == null || f.compare(Predicate.Op.LESS_THAN_OR_EQ, e.getKey()))
+			return e.getLeftChild();
+		return e.getRightChild();
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.findChildId()
+	 */
+	@Test public void findChildId() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		assertEquals(linearChildId(page, null), page.findChildId(null));
+		for (int[] entry : EXAMPLE_VALUES) {
+			for (int key = entry[1] - 1; key <= entry[1] + 1; key++)
+				assertEquals(linearChildId(page, new IntField(key)), page.findChildId(new IntField(key)));
+		}
+		assertEquals(new BTreePageId(pid.getTableId(), 1, BTreePageId.LEAF), page.findChildId(new IntField(0)));
+		assertEquals(new BTreePageId(pid.getTableId(), 21, BTreePageId.LEAF), page.findChildId(new IntField(70000)));
+
+		// the search follows the entries as they are deleted and inserted
+		Iterator<BTreeEntry> it = page.iterator();
+		int i = 0;
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			if (i++ % 3 == 1)
+				page.deleteKeyAndRightChild(e);
+		}
+		int last = page.reverseIterator().next().getRightChild().pageNumber();
+		page.insertEntry(BTreeUtility.getBTreeEntry(last, 70000, pid.getTableId()));
+		for (int key = 0; key < 75000; key += 250)
+			assertEquals(linearChildId(page, new IntField(key)), page.findChildId(new IntField(key)));
+		assertEquals(new BTreePageId(pid.getTableId(), last + 1, BTreePageId.LEAF), page.findChildId(new IntField(75000)));
+
+		// an empty page has no child to descend into
+		page = new BTreeInternalPage(pid, BTreeInternalPage.createEmptyPageData(), 0);
+		assertTrue(page.findChildId(new IntField(5)) == null);
+	}
+
+	/**
+	 * Unit test for the right link of BTreeInternalPage
+	 */
+	@Test public void moveRight() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		BTreePageId right = new BTreePageId(pid.getTableId(), 30, BTreePageId.INTERNAL);
+		assertTrue(page.moveRight(new IntField(70000)) == null);
+
+		int stamp = page.getLatchStamp();
+		assertEquals(0, stamp % 2);
+		page.setRightLink(right, new IntField(40000));
+		assertTrue(page.getLatchStamp() != stamp);
+		assertTrue(page.moveRight(null) == null);
+		assertTrue(page.moveRight(new IntField(40000)) == null);
+		assertEquals(right, page.moveRight(new IntField(40001)));
+
+		page.setRightLink(null, null);
+		assertTrue(page.moveRight(new IntField(40001)) == null);
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.beginChange()
+	 */
+	@Test public void latchStamp() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		int stamp = page.getLatchStamp();
+		page.beginChange();
+		assertEquals(1, page.getLatchStamp() % 2);
+		// entry changes nest in the change begun outside
+		page.deleteKeyAndRightChild(page.reverseIterator().next());
+		assertEquals(stamp + 1, page.getLatchStamp());
+		page.endChange();
+		assertEquals(stamp + 2, page.getLatchStamp());
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.reverseIterator() on a page with a
+	 * single entry, such as a new root
+	 */
+	@Test public void reverseIteratorOneEntry() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, BTreeInternalPage.createEmptyPageData(), 0);
+		BTreeEntry e = BTreeUtility.getBTreeEntry(1, pid.getTableId());
+		page.insertEntry(e);
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		assertTrue(it.hasNext());
+		assertEquals(e.getRightChild(), it.next().getRightChild());
+		assertFalse(it.hasNext());
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -0,0 +1,154 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.BTreeUtility.BTreeWriter;
+import simpledb.Predicate.Op;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeLatchingTest extends SimpleDbTestBase {
+	private static final int POLL_INTERVAL = 100;
+	private static final int TIMEOUT = 10000;
+
+	private BTreeFile bf;
+	private BufferPool bp;
+	private int rows;
+
+	/**
+	 * Create a packed two-level B+ tree, whose root splits on the first
+	 * insert into a full leaf.
+	 */
+	@Before public void setUp() throws Exception {
+		super.setUp();
+		BufferPool.setPageSize(1024);
+		int leafTuples = BTreeUtility.getNumTuplesPerPage(2);
+		rows = leafTuples * (BTreeUtility.getNumEntriesPerPage() + 1);
+		bf = BTreeUtility.createRandomBTreeFile(2, rows, null, null, 0);
+		bp = Database.resetBufferPool(500);
+	}
+
+	@After public void tearDown() throws Exception {
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private BTreePageId rootId(TransactionId tid) throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bp.getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		return rootPtr.getRootId();
+	}
+
+	/** @return the first tuple with the smallest key */
+	private Tuple first(TransactionId tid, IndexPredicate ipred) throws Exception {
+		DbFileIterator it = bf.indexIterator(tid, ipred);
+		it.open();
+		Tuple t = it.next();
+		it.close();
+		return t;
+	}
+
+	/**
+	 * A lookup locks the leaf page it reads, but not the root pointer page or
+	 * the internal pages it passes through.
+	 */
+	@Test public void lookupLocksOnlyLeaf() throws Exception {
+		TransactionId check = new TransactionId();
+		BTreePageId rootId = rootId(check);
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		bp.transactionComplete(check);
+
+		TransactionId tid = new TransactionId();
+		Tuple t = first(tid, new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(0)));
+		assertTrue(bp.holdsLock(tid, t.getRecordId().getPageId()));
+		assertFalse(bp.holdsLock(tid, BTreeRootPtrPage.getId(bf.getId())));
+		assertFalse(bp.holdsLock(tid, rootId));
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * A writer splits the root while a transaction that looked up a key in
+	 * another leaf is still running, instead of waiting for it to complete.
+	 */
+	@Test public void splitRootUnderReader() throws Exception {
+		TransactionId check = new TransactionId();
+		BTreePageId rootId = rootId(check);
+		BTreeInternalPage root = (BTreeInternalPage) bp.getPage(check, rootId, Permissions.READ_ONLY);
+		assertEquals(0, root.getNumEmptySlots());
+		bp.transactionComplete(check);
+
+		// read the left-most leaf and keep the transaction open
+		TransactionId reader = new TransactionId();
+		Tuple t = first(reader, new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(0)));
+
+		// insert into the right-most leaf, splitting it and the root
+		TransactionId writerTid = new TransactionId();
+		BTreeWriter writer = new BTreeWriter(writerTid, bf, BTreeUtility.MAX_RAND_VALUE, 1);
+		writer.start();
+		for (int waited = 0; !writer.succeeded() && writer.getError() == null && waited < TIMEOUT; waited += POLL_INTERVAL)
+			Thread.sleep(POLL_INTERVAL);
+		assertTrue(writer.succeeded());
+		bp.transactionComplete(writerTid);
+
+		// the reader still sees its leaf, and later lookups the new root
+		assertEquals(t, first(reader, new IndexPredicate(Op.EQUALS, t.getField(0))));
+		bp.transactionComplete(reader);
+		TransactionId tid = new TransactionId();
+		assertFalse(rootId.equals(rootId(tid)));
+		assertEquals(new IntField(BTreeUtility.MAX_RAND_VALUE),
+				first(tid, new IndexPredicate(Op.EQUALS, new IntField(BTreeUtility.MAX_RAND_VALUE))).getField(0));
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int count = 0;
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		assertEquals(rows + 1, count);
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * A lookup in another part of the tree completes while a transaction
+	 * that split a leaf, an internal page and the root is still running.
+	 */
+	@Test public void lookupDuringSplit() throws Exception {
+		TransactionId writerTid = new TransactionId();
+		BTreeWriter writer = new BTreeWriter(writerTid, bf, BTreeUtility.MAX_RAND_VALUE, 1);
+		writer.start();
+		writer.join(TIMEOUT);
+		assertTrue(writer.succeeded());
+
+		final TransactionId reader = new TransactionId();
+		final Tuple[] found = new Tuple[1];
+		Thread lookup = new Thread() {
+			public void run() {
+				try {
+					found[0] = first(reader, new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(0)));
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		lookup.start();
+		lookup.join(TIMEOUT);
+		assertNotNull(found[0]);
+		assertTrue(bp.holdsLock(writerTid, BTreeRootPtrPage.getId(bf.getId())));
+		bp.transactionComplete(reader);
+		bp.transactionComplete(writerTid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeLatchingTest.class);
+	}
+}
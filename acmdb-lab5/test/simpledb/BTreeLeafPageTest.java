@@ -336,6 +336,56 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.insertTuple() into the gaps deletions leave
+	 */
+	@Test public void addTupleAfterDelete() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		Iterator<Tuple> it = page.iterator();
+		int i = 0;
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if (i++ % 3 != 0)
+				page.deleteTuple(t);
+		}
+		int free = page.getNumEmptySlots();
+		Random rand = new Random(0);
+		for (i = 0; i < free; i++)
+			page.insertTuple(BTreeUtility.getBTreeTuple(rand.nextInt(70000), 2));
+		assertEquals(0, page.getNumEmptySlots());
+
+		// the tuples are in order, and their RecordIds are their slots
+		it = page.iterator();
+		int slot = 0, prev = Integer.MIN_VALUE;
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			int key = ((IntField) t.getField(0)).getValue();
+			assertTrue(prev <= key);
+			assertEquals(new RecordId(pid, slot++), t.getRecordId());
+			prev = key;
+		}
+	}
+
+	/**
+	 * Unit test for BTreeLeafPage.iterator(Field)
+	 */
+	@Test public void searchIterator() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		int[] keys = new int[EXAMPLE_VALUES.length];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = EXAMPLE_VALUES[i][0];
+		Arrays.sort(keys);
+		for (int i = 0; i < keys.length; i++) {
+			for (int key = keys[i] - 1; key <= keys[i]; key++) {
+				Iterator<Tuple> it = page.iterator(new IntField(key));
+				for (int j = i; j < keys.length; j++)
+					assertEquals(new IntField(keys[j]), it.next().getField(0));
+				assertFalse(it.hasNext());
+			}
+		}
+		assertFalse(page.iterator(new IntField(keys[keys.length - 1] + 1)).hasNext());
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -0,0 +1,219 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeStringKeyTest extends SimpleDbTestBase {
+	private static final String PREFIX = "https://example.org/customers/";
+
+	private TupleDesc td;
+	private BTreeFile bf;
+	private int rows;
+
+	/**
+	 * Create an empty B+ tree keyed on a string field, on small pages.
+	 */
+	@Before public void setUp() throws Exception {
+		super.setUp();
+		BufferPool.setPageSize(1024);
+		td = new TupleDesc(new Type[] {Type.STRING_TYPE, Type.INT_TYPE}, new String[] {"s", "i"});
+		File temp = File.createTempFile("strings", ".dat");
+		temp.deleteOnExit();
+		temp.delete();
+		bf = new BTreeFile(temp, 0, td);
+		Database.getCatalog().addTable(bf, "strings");
+		Database.resetBufferPool(500);
+		rows = 3000;
+	}
+
+	@After public void tearDown() throws Exception {
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private Tuple tuple(int i) {
+		Tuple t = new Tuple(td);
+		t.setField(0, new StringField(String.format("%s%05d", PREFIX, i), Type.STRING_LEN));
+		t.setField(1, new IntField(i));
+		return t;
+	}
+
+	/** Insert the rows with keys from 0 to n - 1, shuffled, a hundred per transaction */
+	private void insert(int n) throws Exception {
+		ArrayList<Integer> order = new ArrayList<Integer>();
+		for(int i = 0; i < n; i++)
+			order.add(i);
+		Collections.shuffle(order, new Random(n));
+		TransactionId tid = new TransactionId();
+		for(int i = 0; i < n; i++) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(order.get(i)));
+			if(i % 100 == 99) {
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/** @return the values of the rows whose keys match the predicate */
+	private ArrayList<Integer> lookup(Predicate.Op op, int key) throws Exception {
+		TransactionId tid = new TransactionId();
+		ArrayList<Integer> found = new ArrayList<Integer>();
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(op, tuple(key).getField(0)));
+		it.open();
+		while(it.hasNext())
+			found.add(((IntField) it.next().getField(1)).getValue());
+		it.close();
+		Database.getBufferPool().transactionComplete(tid);
+		return found;
+	}
+
+	/** @return the number of internal pages on every level, from the root down */
+	private ArrayList<Integer> levels() throws Exception {
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		ArrayList<Integer> levels = new ArrayList<Integer>();
+		List<BTreePageId> level = Collections.singletonList(rootPtr.getRootId());
+		while(level.get(0).pgcateg() == BTreePageId.INTERNAL) {
+			levels.add(level.size());
+			ArrayList<BTreePageId> below = new ArrayList<BTreePageId>();
+			for(BTreePageId id : level) {
+				BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(tid, id,
+						Permissions.READ_ONLY);
+				// the page reads back from its own data
+				BTreeInternalPage copy = new BTreeInternalPage(id, page.getPageData(), 0);
+				assertArrayEquals(page.getPageData(), copy.getPageData());
+				Iterator<BTreeEntry> it = page.iterator();
+				Iterator<BTreeEntry> copied = copy.iterator();
+				below.add(it.next().getLeftChild());
+				assertTrue(copied.next().getKey().equals(page.iterator().next().getKey()));
+				while(it.hasNext())
+					below.add(it.next().getRightChild());
+			}
+			level = below;
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		return levels;
+	}
+
+	@Test public void separator() {
+		Field l = new StringField("apple", Type.STRING_LEN);
+		assertEquals("apr", ((StringField) BTreeFile.separator(l,
+				new StringField("apricot", Type.STRING_LEN))).getValue());
+		assertEquals("b", ((StringField) BTreeFile.separator(l,
+				new StringField("banana", Type.STRING_LEN))).getValue());
+		// a key that is a prefix of the next one cannot be shortened
+		assertSame(l, BTreeFile.separator(l, new StringField("apples", Type.STRING_LEN)));
+		assertSame(l, BTreeFile.separator(l, l));
+		Field i = new IntField(3);
+		assertSame(i, BTreeFile.separator(i, new IntField(7)));
+	}
+
+	/**
+	 * Internal pages hold many more entries than fixed-size string keys
+	 * would allow, which keeps the tree shallow.
+	 */
+	@Test public void fanout() throws Exception {
+		insert(rows);
+		ArrayList<Integer> levels = levels();
+		int fixedEntries = (BufferPool.getPageSize() * 8 - 73) / (Type.STRING_TYPE.getLen() * 8 + 33);
+		int leafTuples = (BufferPool.getPageSize() * 8 - 96) / (td.getSize() * 8 + 1);
+		// the leaves, at least half full, need more than two levels of pages
+		// with fixed-size keys above them
+		assertTrue(2 * rows / leafTuples > (fixedEntries + 1) * (fixedEntries + 1));
+		assertTrue(levels.size() <= 2);
+		assertEquals(1, (int) levels.get(0));
+
+		for(int i = 0; i < rows; i += 7)
+			assertEquals(Collections.singletonList(i), lookup(Predicate.Op.EQUALS, i));
+		assertEquals(100, lookup(Predicate.Op.LESS_THAN, 100).size());
+		assertEquals(rows - 100, lookup(Predicate.Op.GREATER_THAN_OR_EQ, 100).size());
+	}
+
+	/**
+	 * Deleting most of the rows merges and redistributes the entries of
+	 * internal pages by their bytes.
+	 */
+	@Test public void delete() throws Exception {
+		insert(rows);
+		TransactionId tid = new TransactionId();
+		for(int i = 0; i < rows; i++) {
+			if(i % 10 == 0)
+				continue;
+			DbFileIterator it = bf.indexIterator(tid,
+					new IndexPredicate(Predicate.Op.EQUALS, tuple(i).getField(0)));
+			it.open();
+			Tuple t = it.next();
+			it.close();
+			Database.getBufferPool().deleteTuple(tid, t);
+			if(i % 100 == 99) {
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		Database.getBufferPool().transactionComplete(tid);
+
+		assertEquals(1, (int) levels().get(0));
+		assertEquals(rows / 10, lookup(Predicate.Op.GREATER_THAN_OR_EQ, 0).size());
+		assertEquals(Collections.singletonList(20), lookup(Predicate.Op.EQUALS, 20));
+		assertEquals(0, lookup(Predicate.Op.EQUALS, 21).size());
+	}
+
+	/**
+	 * A bulk load packs internal pages for keys of any length.
+	 */
+	@Test public void bulkLoad() throws Exception {
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for(int i = 0; i < rows; i++)
+			tuples.add(tuple(i));
+		Collections.shuffle(tuples, new Random(rows));
+		TransactionId tid = new TransactionId();
+		assertEquals(rows, bf.bulkLoad(tid, new TupleIterator(td, tuples), 1.0));
+		Database.getBufferPool().transactionComplete(tid);
+		levels();
+		insert(rows / 10);
+		assertEquals(rows + rows / 10, lookup(Predicate.Op.GREATER_THAN_OR_EQ, 0).size());
+		assertEquals(Arrays.asList(5, 5), lookup(Predicate.Op.EQUALS, 5));
+	}
+
+	/**
+	 * Pages of string keys in the fixed-size format of earlier versions are
+	 * rejected rather than misread, and new pages are marked with the
+	 * compact format.
+	 */
+	@Test public void format() throws Exception {
+		BTreePageId id = new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL);
+		BTreeInternalPage empty = new BTreeInternalPage(id, BTreePage.createEmptyPageData(), 0);
+		assertTrue((empty.getPageData()[4] & BTreeInternalPage.COMPACT_FORMAT) != 0);
+		new BTreeInternalPage(id, empty.getPageData(), 0);
+
+		// a parent pointer, the leaf category and two used slots
+		byte[] old = BTreePage.createEmptyPageData();
+		old[4] = BTreePageId.LEAF;
+		old[5] = 3;
+		try {
+			new BTreeInternalPage(id, old, 0);
+			fail("read a page in the fixed-size format");
+		} catch(java.io.IOException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeStringKeyTest.class);
+	}
+}
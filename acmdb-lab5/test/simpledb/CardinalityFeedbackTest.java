@@ -0,0 +1,234 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Vector;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class CardinalityFeedbackTest extends SimpleDbTestBase {
+
+    ArrayList<ArrayList<Integer>> tuples1, tuples2;
+    HeapFile f1, f2;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        CardinalityFeedback.clear();
+        tuples1 = new ArrayList<ArrayList<Integer>>();
+        f1 = SystemTestUtil.createRandomHeapFile(2, 1000, 100, null, tuples1, "c");
+        Database.getCatalog().addTable(f1, "t1");
+        TableStats.setTableStats("t1", new TableStats(f1.getId(), 1000));
+        tuples2 = new ArrayList<ArrayList<Integer>>();
+        f2 = SystemTestUtil.createRandomHeapFile(2, 1000, 100, null, tuples2, "c");
+        Database.getCatalog().addTable(f2, "t2");
+        TableStats.setTableStats("t2", new TableStats(f2.getId(), 1000));
+    }
+
+    @After
+    public void tearDown() {
+        CardinalityFeedback.clear();
+        CardinalityFeedback.setReoptimizing(true);
+    }
+
+    /** SELECT * FROM t1, t2 WHERE t1.c0 < 30 AND t1.c1 = t2.c1 */
+    private LogicalPlan plan() throws ParsingException {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(f1.getId(), "t1");
+        lp.addScan(f2.getId(), "t2");
+        lp.addFilter("t1.c0", Predicate.Op.LESS_THAN, "30");
+        lp.addJoin("t1.c1", "t2.c1", Predicate.Op.EQUALS);
+        lp.addProjectField("*", null);
+        return lp;
+    }
+
+    private int filtered() {
+        int n = 0;
+        for (ArrayList<Integer> t : tuples1) {
+            if (t.get(0) < 30)
+                n++;
+        }
+        return n;
+    }
+
+    private int joined() {
+        int n = 0;
+        for (ArrayList<Integer> t : tuples1) {
+            if (t.get(0) >= 30)
+                continue;
+            for (ArrayList<Integer> u : tuples2) {
+                if (t.get(1).equals(u.get(1)))
+                    n++;
+            }
+        }
+        return n;
+    }
+
+    private static int run(Query q) throws Exception {
+        int n = 0;
+        q.start();
+        while (q.hasNext()) {
+            q.next();
+            n++;
+        }
+        q.close();
+        return n;
+    }
+
+    /**
+     * Signatures name the same fragment in every query, whatever the aliases
+     * and the order of the joins and filters.
+     */
+    @Test
+    public void signature() throws Exception {
+        LogicalPlan a = plan();
+        LogicalPlan b = new LogicalPlan();
+        b.addScan(f2.getId(), "x");
+        b.addScan(f1.getId(), "y");
+        b.addJoin("x.c1", "y.c1", Predicate.Op.EQUALS);
+        b.addFilter("y.c0", Predicate.Op.LESS_THAN, "30");
+        Assert.assertEquals(a.fragmentSignature(Arrays.asList("t1", "t2")),
+                b.fragmentSignature(Arrays.asList("y", "x")));
+        Assert.assertEquals(a.fragmentSignature(Arrays.asList("t1")),
+                b.fragmentSignature(Arrays.asList("y")));
+        Assert.assertFalse(a.fragmentSignature(Arrays.asList("t1")).equals(
+                a.fragmentSignature(Arrays.asList("t2"))));
+        Assert.assertNull(a.fragmentSignature(Arrays.asList("t1", null)));
+    }
+
+    /**
+     * Running a plan records the tuples of its filtered tables and joins.
+     */
+    @Test
+    public void record() throws Exception {
+        CardinalityFeedback.setReoptimizing(false);
+        LogicalPlan lp = plan();
+        TransactionId tid = new TransactionId();
+        Query q = new Query(lp.physicalPlan(tid, TableStats.getStatsMap(), false), tid);
+        q.setLogicalPlan(lp);
+        Assert.assertEquals(joined(), run(q));
+        Database.getBufferPool().transactionComplete(tid);
+
+        Assert.assertEquals(filtered(), (int) CardinalityFeedback.lookup(
+                lp.fragmentSignature(Arrays.asList("t1"))));
+        Assert.assertEquals(joined(), (int) CardinalityFeedback.lookup(
+                lp.fragmentSignature(Arrays.asList("t1", "t2"))));
+        Assert.assertEquals(0, q.getReoptimizations());
+    }
+
+    /**
+     * orderJoins uses the recorded counts in place of its estimates.
+     */
+    @Test
+    public void orderJoinsUsesFeedback() throws Exception {
+        LogicalPlan lp = plan();
+        CardinalityFeedback.record(lp.fragmentSignature(Arrays.asList("t1", "t2")), 12345);
+        Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+        joins.add(new LogicalJoinNode("t1", "t2", "c1", "c1", Predicate.Op.EQUALS));
+        JoinOptimizer jo = new JoinOptimizer(lp, joins);
+        jo.orderJoins(new HashMap<String, TableStats>(TableStats.getStatsMap()), selectivities(), false);
+        Assert.assertEquals(12345, jo.estimatedCardinality(new HashSet<String>(Arrays.asList("t1", "t2"))));
+    }
+
+    private HashMap<String, Double> selectivities() {
+        HashMap<String, Double> sel = new HashMap<String, Double>();
+        sel.put("t1", 0.3);
+        sel.put("t2", 1.0);
+        return sel;
+    }
+
+    /**
+     * A join whose inner input returns far fewer tuples than the plan was
+     * chosen for plans the query again before the sort above it returns a
+     * tuple, and the query still returns its tuples once.
+     */
+    @Test
+    public void reoptimize() throws Exception {
+        LogicalPlan lp = plan();
+        lp.addOrderBy("t2.c0", true);
+        // a stale count making t1 look large enough to be the inner input
+        String t1 = lp.fragmentSignature(Arrays.asList("t1"));
+        CardinalityFeedback.record(t1, 1000000);
+        TransactionId tid = new TransactionId();
+        DbIterator first = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        Query q = new Query(first, tid);
+                q.setLogicalPlan(lp);
+        Assert.assertEquals(joined(), run(q));
+        Database.getBufferPool().transactionComplete(tid);
+
+        Assert.assertEquals(1, q.getReoptimizations());
+        Assert.assertTrue(q.getPhysicalPlan() != first);
+        Assert.assertEquals(filtered(), (int) CardinalityFeedback.lookup(t1));
+
+        // without re-optimization the plan runs as chosen
+        CardinalityFeedback.setReoptimizing(false);
+        CardinalityFeedback.record(t1, 1000000);
+        tid = new TransactionId();
+        q = new Query(lp.physicalPlan(tid, TableStats.getStatsMap(), false), tid);
+        q.setLogicalPlan(lp);
+        Assert.assertEquals(joined(), run(q));
+        Database.getBufferPool().transactionComplete(tid);
+        Assert.assertEquals(0, q.getReoptimizations());
+    }
+
+    /**
+     * The count of a pipeline breaker deviates by the configured factor in
+     * either direction.
+     */
+    @Test
+    public void deviates() {
+        double factor = CardinalityFeedback.getFactor();
+        try {
+            CardinalityFeedback.setFactor(4.0);
+            Assert.assertTrue(CardinalityFeedback.deviates(400, 100));
+            Assert.assertTrue(CardinalityFeedback.deviates(25, 100));
+            Assert.assertFalse(CardinalityFeedback.deviates(399, 100));
+            Assert.assertFalse(CardinalityFeedback.deviates(0, 0));
+            Assert.assertFalse(CardinalityFeedback.deviates(1000, -1));
+        } finally {
+            CardinalityFeedback.setFactor(factor);
+        }
+    }
+
+    /**
+     * The least recently used counts are evicted beyond the capacity, and
+     * counts recorded before the statistics changed are dropped.
+     */
+    @Test
+    public void evictsAndExpires() {
+        int capacity = CardinalityFeedback.getCapacity();
+        try {
+            CardinalityFeedback.setCapacity(2);
+            CardinalityFeedback.record("a", 1);
+            CardinalityFeedback.record("b", 2);
+            Assert.assertEquals(1, (int) CardinalityFeedback.lookup("a"));
+            CardinalityFeedback.record("c", 3);
+            Assert.assertEquals(2, CardinalityFeedback.size());
+            Assert.assertNull(CardinalityFeedback.lookup("b"));
+            Assert.assertEquals(1, (int) CardinalityFeedback.lookup("a"));
+
+            TableStats.setTableStats("t1", new TableStats(f1.getId(), 1000));
+            Assert.assertNull(CardinalityFeedback.lookup("a"));
+            Assert.assertEquals(1, CardinalityFeedback.size());
+            CardinalityFeedback.record("a", 4);
+            Assert.assertEquals(4, (int) CardinalityFeedback.lookup("a"));
+        } finally {
+            CardinalityFeedback.setCapacity(capacity);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(CardinalityFeedbackTest.class);
+    }
+}
@@ -0,0 +1,186 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ExchangeTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int rows = 2000;
+  int groups = 50;
+  DbIterator[] inputs;
+  int[] data;
+
+  /**
+   * Initialize each unit test with several inputs holding disjoint parts of
+   * one relation, as produced by copies of a pipeline
+   */
+  @Before public void createTupleLists() throws Exception {
+    data = new int[rows * width1];
+    for (int i = 0; i < rows; i++) {
+      data[2 * i] = i % groups;
+      data[2 * i + 1] = i;
+    }
+    inputs = new DbIterator[4];
+    int perInput = rows / inputs.length * width1;
+    for (int i = 0; i < inputs.length; i++) {
+      int[] part = new int[perInput];
+      System.arraycopy(data, i * perInput, part, 0, perInput);
+      inputs[i] = TestUtil.createTupleList(width1, part);
+    }
+  }
+
+  private static int count(DbIterator it) throws Exception {
+    int n = 0;
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * Unit test for Gather: returns the union of its inputs, and can be rewound
+   */
+  @Test public void gather() throws Exception {
+    Gather op = new Gather(inputs);
+    op.open();
+    DbIterator expected = TestUtil.createTupleList(width1, data);
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+    op.rewind();
+    assertEquals(rows, count(op));
+    op.close();
+  }
+
+  /**
+   * Unit test for Gather over pipelines sharing a page cursor: the Gather
+   * starts the cursor over when it is rewound, and opening one pipeline on
+   * its own does not
+   */
+  @Test public void gatherMorsels() throws Exception {
+    // enough pages for a morsel per pipeline
+    int n = 20000;
+    HeapFile f = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(width1, n, null, null);
+    TransactionId tid = new TransactionId();
+    DbIterator[] parts = ParallelSeqScan.pipelines(tid, f.getId(), "", new java.util.ArrayList<Predicate>(), 4);
+    assertTrue(parts.length > 1);
+    Gather op = new Gather(parts);
+    op.open();
+    for (int i = 0; i < 100; i++)
+      op.next();
+    op.rewind();
+    assertEquals(n, count(op));
+    op.close();
+
+    parts[0].open();
+    assertTrue(!parts[0].hasNext());
+    parts[0].close();
+    PageCursor.restart(new DbIterator[] { parts[0] });
+    parts[0].open();
+    assertEquals(n, count(parts[0]));
+    parts[0].close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Unit test for Repartition: every group ends up in exactly one partition,
+   * so aggregating each partition separately gives the full result
+   */
+  @Test public void repartitionAggregate() throws Exception {
+    Repartition[] parts = Repartition.partition(inputs, 0, 3);
+    DbIterator[] aggs = new DbIterator[parts.length];
+    for (int i = 0; i < parts.length; i++)
+      aggs[i] = new Aggregate(parts[i], 1, 0, Aggregator.Op.COUNT);
+    Gather op = new Gather(aggs);
+    op.open();
+
+    HashMap<Integer, Integer> seen = new HashMap<Integer, Integer>();
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      int group = ((IntField) t.getField(0)).getValue();
+      assertTrue("group " + group + " returned twice", !seen.containsKey(group));
+      seen.put(group, ((IntField) t.getField(1)).getValue());
+    }
+    assertEquals(groups, seen.size());
+    for (int count : seen.values())
+      assertEquals(rows / groups, count);
+    op.close();
+  }
+
+  /**
+   * Unit test for Broadcast: every consumer sees every tuple
+   */
+  @Test public void broadcast() throws Exception {
+    Broadcast[] consumers = Broadcast.broadcast(TestUtil.createTupleList(width1, data), 3);
+    Gather op = new Gather(consumers);
+    op.open();
+    assertEquals(3 * rows, count(op));
+    op.rewind();
+    assertEquals(3 * rows, count(op));
+    op.close();
+  }
+
+  /**
+   * Unit test for a parallel hash join: each copy of the probe side joins
+   * against a broadcast of the build side
+   */
+  @Test public void broadcastHashJoin() throws Exception {
+    int[] build = new int[groups * width1];
+    for (int g = 0; g < groups; g++) {
+      build[2 * g] = g;
+      build[2 * g + 1] = -g;
+    }
+    Broadcast[] builds = Broadcast.broadcast(TestUtil.createTupleList(width1, build), inputs.length);
+    DbIterator[] joins = new DbIterator[inputs.length];
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    for (int i = 0; i < inputs.length; i++)
+      joins[i] = new HashEquiJoin(pred, inputs[i], builds[i]);
+    Gather op = new Gather(joins);
+    op.open();
+    int n = 0;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      assertEquals(t.getField(0), t.getField(2));
+      assertEquals(-((IntField) t.getField(0)).getValue(), ((IntField) t.getField(3)).getValue());
+      n++;
+    }
+    assertEquals(rows, n);
+    op.close();
+  }
+
+  /**
+   * Unit test for a failing input: the failure reaches the consumer
+   */
+  @Test(expected = DbException.class) public void failingInput() throws Exception {
+    DbIterator failing = new Filter(new Predicate(0, Predicate.Op.EQUALS, new IntField(0)),
+        TestUtil.createTupleList(width1, data)) {
+      private static final long serialVersionUID = 1L;
+      protected Tuple fetchNext() throws DbException {
+        throw new DbException("input failed");
+      }
+    };
+    Gather op = new Gather(new DbIterator[] { inputs[0], failing });
+    op.open();
+    try {
+      count(op);
+    } finally {
+      op.close();
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ExchangeTest.class);
+  }
+}
@@ -0,0 +1,79 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ExternalSortTest extends SimpleDbTestBase {
+
+    /** @return n tuples with random keys and their position as second field */
+    private static TupleIterator random(int n, int keys) {
+        Random r = new Random(n);
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < n; i++) {
+            Tuple t = new Tuple(Utility.getTupleDesc(2));
+            t.setField(0, new IntField(r.nextInt(keys)));
+            t.setField(1, new IntField(i));
+            tuples.add(t);
+        }
+        return new TupleIterator(Utility.getTupleDesc(2), tuples);
+    }
+
+    /** Check that the tuples are sorted on the first field, and stable */
+    private static int checkSorted(DbIterator it, boolean asc) throws Exception {
+        int n = 0;
+        Tuple prev = null;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (prev != null) {
+                int a = ((IntField) prev.getField(0)).getValue(), b = ((IntField) t.getField(0)).getValue();
+                Assert.assertTrue(asc ? a <= b : a >= b);
+                if (a == b)
+                    Assert.assertTrue(((IntField) prev.getField(1)).getValue() < ((IntField) t.getField(1)).getValue());
+            }
+            prev = t;
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Input that fits in one run is sorted in memory.
+     */
+    @Test
+    public void inMemory() throws Exception {
+        ExternalSort sort = new ExternalSort(random(500, 50), 0, true, 500);
+        sort.open();
+        Assert.assertEquals(0, sort.numRuns());
+        Assert.assertEquals(500, sort.numTuples());
+        Assert.assertEquals(500, checkSorted(sort, true));
+        sort.close();
+    }
+
+    /**
+     * Larger input is cut into runs on disk, which are merged, also when
+     * rewound.
+     */
+    @Test
+    public void merge() throws Exception {
+        ExternalSort sort = new ExternalSort(random(1050, 50), 0, false, 100);
+        sort.open();
+        Assert.assertEquals(11, sort.numRuns());
+        Assert.assertEquals(1050, checkSorted(sort, false));
+        sort.rewind();
+        Assert.assertEquals(1050, checkSorted(sort, false));
+        sort.close();
+        Assert.assertEquals(0, sort.numRuns());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ExternalSortTest.class);
+    }
+}
@@ -120,6 +120,55 @@ public class FilterTest extends SimpleDbTestBase {
     op.close();
   }
 
+  /**
+   * Unit test for QueryCompiler.compile: every compiled predicate accepts
+   * exactly the tuples Predicate.filter accepts
+   */
+  @Test public void compiledPredicates() {
+    TupleDesc strings = new TupleDesc(new Type[] { Type.STRING_TYPE });
+    for (Predicate.Op op : Predicate.Op.values()) {
+      for (int c = -2; c <= 2; c++) {
+        Predicate ints = new Predicate(0, op, new IntField(c));
+        Predicate strs = new Predicate(0, op, new StringField("b" + c, Type.STRING_LEN));
+        for (int v = -3; v <= 3; v++) {
+          Tuple t = Utility.getHeapTuple(v, testWidth);
+          assertEquals(ints.filter(t), QueryCompiler.compile(ints).matches(t));
+          Tuple s = new Tuple(strings);
+          s.setField(0, new StringField("ab" + v, Type.STRING_LEN));
+          assertEquals(strs.filter(s), QueryCompiler.compile(strs).matches(s));
+        }
+      }
+    }
+  }
+
+  /**
+   * Unit test for a chain of Filters evaluated by the top Filter, with and
+   * without query compilation
+   */
+  @Test public void filterChain() throws Exception {
+    boolean enabled = QueryCompiler.isEnabled();
+    try {
+      for (boolean compile : new boolean[] { false, true }) {
+        QueryCompiler.setEnabled(compile);
+        this.scan = new TestUtil.MockScan(-5, 5, testWidth);
+        Filter inner = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, TestUtil.getField(-2)),
+            new Filter(new Predicate(2, Predicate.Op.NOT_EQUALS, TestUtil.getField(0)), scan));
+        Filter op = new Filter(new Predicate(0, Predicate.Op.LESS_THAN, TestUtil.getField(3)), inner);
+        op.open();
+        for (int v : new int[] { -2, -1, 1, 2 })
+          assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(v, testWidth), op.next()));
+        assertTrue(TestUtil.checkExhausted(op));
+        // the Filters read past are open too
+        assertTrue(!inner.hasNext());
+        op.rewind();
+        assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(-2, testWidth), op.next()));
+        op.close();
+      }
+    } finally {
+      QueryCompiler.setEnabled(enabled);
+    }
+  }
+
   /**
    * JUnit suite target
    */
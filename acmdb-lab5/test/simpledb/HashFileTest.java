@@ -0,0 +1,310 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class HashFileTest extends SimpleDbTestBase {
+    private HashFile hf;
+    private int rows;
+
+    /**
+     * Create an empty hash file on small pages, and enough rows to fill
+     * many buckets.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        BufferPool.setPageSize(1024);
+        File temp = File.createTempFile("hash", ".dat");
+        temp.delete();
+        temp.deleteOnExit();
+        hf = new HashFile(temp, 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(hf, "h");
+        Database.resetBufferPool(500);
+        rows = 4000;
+    }
+
+    @After public void tearDown() throws Exception {
+        BufferPool.resetPageSize();
+        Database.reset();
+    }
+
+    /** Insert the rows (i, -i) for i from lo to hi - 1 as one transaction. */
+    private void insert(int lo, int hi, boolean commit) throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = lo; i < hi; i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] {i, -i}));
+        Database.getBufferPool().transactionComplete(tid, commit);
+    }
+
+    /** @return the tuples with the given key */
+    private ArrayList<Tuple> lookup(int key) throws Exception {
+        TransactionId tid = new TransactionId();
+        ArrayList<Tuple> found = new ArrayList<Tuple>();
+        DbFileIterator it = hf.indexIterator(tid,
+                new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+        it.open();
+        while (it.hasNext())
+            found.add(it.next());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return found;
+    }
+
+    private int count() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(-((IntField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue());
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+
+    /**
+     * Inserts split buckets as they fill pages, so that every key is found
+     * in a short chain.
+     */
+    @Test public void insertAndLookup() throws Exception {
+        insert(0, rows, true);
+        assertEquals(rows, count());
+        assertTrue(hf.numBuckets() > 16);
+        assertTrue(hf.numPages() - 1 <= 2 * hf.numBuckets());
+        for (int i = 0; i < rows; i += 7) {
+            ArrayList<Tuple> found = lookup(i);
+            assertEquals(1, found.size());
+            assertEquals(-i, ((IntField) found.get(0).getField(1)).getValue());
+        }
+        assertEquals(0, lookup(rows).size());
+    }
+
+    /**
+     * A file keeps splitting buckets past the number one page can list, by
+     * adding directory pages.
+     */
+    @Test public void manyBuckets() throws Exception {
+        BufferPool.setPageSize(256);
+        for (int i = 0; i < rows; i += 500)
+            insert(i, i + 500, true);
+        assertTrue(hf.numBuckets() > 2 * HashDirectoryPage.getMaxBuckets());
+        assertTrue(hf.numPages() - 1 <= 3 * hf.numBuckets());
+        assertEquals(rows, count());
+        for (int i = 0; i < rows; i += 7)
+            assertEquals(1, lookup(i).size());
+    }
+
+    /** All the tuples with the same key are in one bucket. */
+    @Test public void duplicateKeys() throws Exception {
+        for (int j = 0; j < 3; j++)
+            insert(0, rows / 4, true);
+        assertEquals(3 * (rows / 4), count());
+        assertEquals(3, lookup(0).size());
+        assertEquals(3, lookup(rows / 4 - 1).size());
+    }
+
+    /** Predicates other than EQUALS read every bucket. */
+    @Test public void rangePredicate() throws Exception {
+        insert(0, rows, true);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.indexIterator(tid,
+                new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(100)));
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            assertTrue(((IntField) it.next().getField(0)).getValue() < 100);
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(100, n);
+    }
+
+    @Test public void deleteTuples() throws Exception {
+        insert(0, rows, true);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < rows; i += 2) {
+            DbFileIterator it = hf.indexIterator(tid,
+                    new IndexPredicate(Predicate.Op.EQUALS, new IntField(i)));
+            it.open();
+            Tuple t = it.next();
+            it.close();
+            Database.getBufferPool().deleteTuple(tid, t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(rows / 2, count());
+        assertEquals(0, lookup(10).size());
+        assertEquals(1, lookup(11).size());
+    }
+
+    /** Aborting an insert also undoes the splits it made. */
+    @Test public void abort() throws Exception {
+        insert(0, rows / 2, true);
+        int buckets = hf.numBuckets();
+        insert(rows / 2, rows, false);
+        assertEquals(rows / 2, count());
+        assertEquals(buckets, hf.numBuckets());
+        assertEquals(1, lookup(0).size());
+        assertEquals(0, lookup(rows - 1).size());
+    }
+
+    /**
+     * While a transaction that split a bucket is running, lookups in the
+     * buckets it did not touch complete, and inserts that fill a page leave
+     * the split to a later insert instead of waiting for the header page.
+     */
+    @Test public void splitDoesNotBlock() throws Exception {
+        insert(0, rows / 2, true);
+        HashPageId headerId = HashHeaderPage.getId(hf.getId());
+        final HashHeaderPage before = (HashHeaderPage) hf.readPage(headerId);
+        TransactionId splitter = null;
+        int key = rows / 2;
+        while (splitter == null) {
+            TransactionId tid = new TransactionId();
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] {key, -key}));
+            if (Database.getBufferPool().holdsLock(tid, headerId))
+                splitter = tid;
+            else
+                Database.getBufferPool().transactionComplete(tid);
+            key++;
+        }
+        final int last = key - 1;
+        final int[] found = new int[1];
+        final TransactionId other = new TransactionId();
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < rows / 2; i++) {
+                        int bucket = before.bucket(HashFile.hash(new IntField(i)));
+                        if (bucket == before.getNext() || bucket == before.bucket(HashFile.hash(new IntField(last))))
+                            continue;
+                        DbFileIterator it = hf.indexIterator(other,
+                                new IndexPredicate(Predicate.Op.EQUALS, new IntField(i)));
+                        it.open();
+                        while (it.hasNext()) {
+                            it.next();
+                            found[0]++;
+                        }
+                        it.close();
+                        Database.getBufferPool().insertTuple(other, hf.getId(),
+                                Utility.getHeapTuple(new int[] {i, -i}));
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        t.start();
+        t.join(10000);
+        assertFalse(t.isAlive());
+        assertTrue(found[0] > rows / 4);
+        assertTrue(Database.getBufferPool().holdsLock(splitter, headerId));
+        assertFalse(Database.getBufferPool().holdsLock(other, headerId));
+        Database.getBufferPool().transactionComplete(other);
+        Database.getBufferPool().transactionComplete(splitter);
+        assertEquals(last + 1 + found[0], count());
+    }
+
+    /**
+     * The pages an aborted insert added to the file are reused, so inserting
+     * the same rows again does not make the file any longer.
+     */
+    @Test public void abortedPagesReused() throws Exception {
+        insert(0, rows / 2, true);
+        insert(rows / 2, rows, false);
+        int pages = hf.numPages();
+        insert(rows / 2, rows, true);
+        assertEquals(pages, hf.numPages());
+        assertEquals(rows, count());
+    }
+
+    /** The pages of a hash file can be written to the log and read back. */
+    @Test public void logPages() throws Exception {
+        insert(0, rows, true);
+        File log = File.createTempFile("hashlog", ".log");
+        log.deleteOnExit();
+        LogFile lf = new LogFile(log);
+        TransactionId tid = new TransactionId();
+        HashHeaderPage header = (HashHeaderPage) Database.getBufferPool().getPage(tid,
+                HashHeaderPage.getId(hf.getId()), Permissions.READ_ONLY);
+        HashDirectoryPage directory = (HashDirectoryPage) Database.getBufferPool().getPage(tid,
+                new HashPageId(hf.getId(), header.getDirectoryPage(1), HashPageId.DIRECTORY),
+                Permissions.READ_ONLY);
+        HashPage page = (HashPage) Database.getBufferPool().getPage(tid,
+                new HashPageId(hf.getId(), directory.getBucketPage(1), HashPageId.BUCKET),
+                Permissions.READ_ONLY);
+        Database.getBufferPool().transactionComplete(tid);
+
+        RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        lf.writePageData(raf, header);
+        lf.writePageData(raf, directory);
+        lf.writePageData(raf, page);
+        raf.seek(0);
+        Page h = lf.readPageData(raf);
+        Page d = lf.readPageData(raf);
+        Page p = lf.readPageData(raf);
+        raf.close();
+        assertEquals(header.getId(), h.getId());
+        assertEquals(header.getNumBuckets(), ((HashHeaderPage) h).getNumBuckets());
+        assertArrayEquals(header.getPageData(), h.getPageData());
+        assertEquals(directory.getId(), d.getId());
+        assertArrayEquals(directory.getPageData(), d.getPageData());
+        assertEquals(page.getId(), p.getId());
+        assertArrayEquals(page.getPageData(), p.getPageData());
+    }
+
+    /** The planner answers an equality filter on the key with a hash lookup. */
+    @Test public void planLookup() throws Exception {
+        insert(0, rows, true);
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("h", new TableStats(hf.getId(), 1000));
+        assertTrue(stats.get("h").estimateHashLookupCost() <= 2 * 1000);
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "h");
+        lp.addFilter("h.c0", Predicate.Op.EQUALS, "42");
+        lp.addProjectField("h.c1", null);
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        DbIterator leaf = plan;
+        while (leaf instanceof Operator)
+            leaf = ((Operator) leaf).getChildren()[0];
+        assertTrue(leaf instanceof HashScan);
+        plan.open();
+        assertTrue(plan.hasNext());
+        assertEquals(-42, ((IntField) plan.next().getField(0)).getValue());
+        assertFalse(plan.hasNext());
+        plan.close();
+
+        // a range has to be read from every bucket
+        lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "h");
+        lp.addFilter("h.c0", Predicate.Op.LESS_THAN, "42");
+        lp.addProjectField("h.c1", null);
+        leaf = lp.physicalPlan(tid, stats, false);
+        while (leaf instanceof Operator)
+            leaf = ((Operator) leaf).getChildren()[0];
+        assertFalse(leaf instanceof HashScan);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashFileTest.class);
+    }
+}
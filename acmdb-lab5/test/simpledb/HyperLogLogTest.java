@@ -0,0 +1,43 @@
+package simpledb;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+public class HyperLogLogTest {
+
+	/**
+	 * Small cardinalities are counted nearly exactly
+	 */
+	@Test public void smallCardinalityTest() {
+		HyperLogLog h = new HyperLogLog();
+		Assert.assertEquals(0.0, h.estimate(), 0.001);
+		for (int rep = 0; rep < 10; rep++) {
+			for (int v = 0; v < 100; v++)
+				h.add(HyperLogLog.hash(v));
+		}
+		Assert.assertEquals(100.0, h.estimate(), 2.0);
+	}
+
+	/**
+	 * Large cardinalities are estimated within a few percent
+	 */
+	@Test public void largeCardinalityTest() {
+		HyperLogLog h = new HyperLogLog();
+		for (int v = 0; v < 1000000; v++)
+			h.add(HyperLogLog.hash("value " + v));
+		Assert.assertEquals(1000000.0, h.estimate(), 50000.0);
+	}
+
+	/**
+	 * Merging two sketches estimates the union of their values
+	 */
+	@Test public void mergeTest() {
+		HyperLogLog a = new HyperLogLog(), b = new HyperLogLog();
+		for (int v = 0; v < 30000; v++)
+			a.add(HyperLogLog.hash(v));
+		for (int v = 20000; v < 50000; v++)
+			b.add(HyperLogLog.hash(v));
+		a.merge(b);
+		Assert.assertEquals(50000.0, a.estimate(), 2500.0);
+	}
+}
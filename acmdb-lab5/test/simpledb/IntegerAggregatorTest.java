@@ -126,6 +126,54 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test computing MIN, MAX and AVG of the same field in a single pass
+   */
+  @Test public void mergeMultiple() throws Exception {
+    scan1.open();
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, new int[] { 1, 1, 1 },
+        new Aggregator.Op[] { Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.AVG });
+
+    int[][] multi = new int[][] {
+      { 1, 2, 2, 2 },
+      { 1, 2, 4, 3 },
+      { 1, 2, 6, 4 },
+      { 1, 2, 6, 4, 3, 2, 2, 2 }
+    };
+    for (int[] step : multi) {
+      agg.mergeTupleIntoGroup(scan1.next());
+      DbIterator it = agg.iterator();
+      it.open();
+      TestUtil.matchAllTuples(TestUtil.createTupleList(4, step), it);
+    }
+  }
+
+  /**
+   * Test IntegerAggregator over a COUNT_DISTINCT, with enough groups to
+   * force the hash table to grow
+   */
+  @Test public void mergeCountDistinct() throws Exception {
+    int groups = 1000;
+    int[] input = new int[groups * 3 * 2];
+    int[] expected = new int[groups * 2];
+    for (int g = 0; g < groups; g++) {
+      // values g, g, g+1 -> two distinct values per group
+      input[6 * g] = g; input[6 * g + 1] = g;
+      input[6 * g + 2] = g; input[6 * g + 3] = g;
+      input[6 * g + 4] = g; input[6 * g + 5] = g + 1;
+      expected[2 * g] = g; expected[2 * g + 1] = 2;
+    }
+    DbIterator scan = TestUtil.createTupleList(width1, input);
+    scan.open();
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.COUNT_DISTINCT);
+    while (scan.hasNext())
+      agg.mergeTupleIntoGroup(scan.next());
+
+    DbIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1, expected), it);
+  }
+
   /**
    * Test IntegerAggregator.iterator() for DbIterator behaviour
    */
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Vector;
 
 import org.junit.Assert;
@@ -520,6 +521,83 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertEquals(result.get(result.size() - 1).t2Alias, "bigTable");
     }
 
+    /**
+     * Check that a join order can be executed: every join must join two
+     * plans built by the joins before it, never a plan with itself
+     */
+    private static void assertExecutable(Vector<LogicalJoinNode> order) {
+        HashMap<String, String> partOf = new HashMap<String, String>();
+        for (LogicalJoinNode j : order) {
+            String p1 = find(partOf, j.t1Alias), p2 = find(partOf, j.t2Alias);
+            Assert.assertFalse("join " + j + " joins a plan with itself", p1.equals(p2));
+            partOf.put(p2, p1);
+        }
+    }
+
+    private static String find(HashMap<String, String> partOf, String alias) {
+        while (partOf.containsKey(alias))
+            alias = partOf.get(alias);
+        return alias;
+    }
+
+    /**
+     * Plan a 15-way star join, by dynamic programming and greedily, within
+     * the time limit; the greedy plan costs no less than the one dynamic
+     * programming finds
+     */
+    @Test(timeout = 60000)
+    public void starOrderJoinsTest() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        final int IO_COST = 103;
+        final int DIMENSIONS = 14;
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        TransactionId tid = new TransactionId();
+
+        HeapFile fact = SystemTestUtil.createRandomHeapFile(DIMENSIONS, 10000,
+                1000, null, new ArrayList<ArrayList<Integer>>(), "c");
+        Database.getCatalog().addTable(fact, "fact");
+        stats.put("fact", new TableStats(fact.getId(), IO_COST));
+        filterSelectivities.put("fact", 1.0);
+        StringBuilder from = new StringBuilder("fact"), where = new StringBuilder();
+        for (int d = 0; d < DIMENSIONS; d++) {
+            String name = "dim" + d;
+            HeapFile dim = SystemTestUtil.createRandomHeapFile(2, 10 + 50 * d,
+                    1000, null, new ArrayList<ArrayList<Integer>>(), "c");
+            Database.getCatalog().addTable(dim, name);
+            stats.put(name, new TableStats(dim.getId(), IO_COST));
+            // the smaller dimensions are filtered harder
+            filterSelectivities.put(name, 0.1 + 0.9 * d / DIMENSIONS);
+            nodes.add(new LogicalJoinNode("fact", name, "c" + d, "c0",
+                    Predicate.Op.EQUALS));
+            from.append(", ").append(name);
+            where.append(d == 0 ? "" : " AND ").append("fact.c" + d + " = " + name + ".c0");
+        }
+        Collections.shuffle(nodes);
+        HashSet<String> all = new HashSet<String>(stats.keySet());
+        Parser p = new Parser();
+        JoinOptimizer j = new JoinOptimizer(p.generateLogicalPlan(tid,
+                "SELECT COUNT(fact.c0) FROM " + from + " WHERE " + where + ";"), nodes);
+
+        Vector<LogicalJoinNode> result = j.orderJoins(stats, filterSelectivities, false);
+        Assert.assertEquals(nodes.size(), result.size());
+        assertExecutable(result);
+        double dp = j.estimatedCost(all);
+        Assert.assertTrue(dp > 0);
+
+        int maxDpRelations = JoinOptimizer.getMaxDpRelations();
+        JoinOptimizer.setMaxDpRelations(4);
+        try {
+            result = j.orderJoins(stats, filterSelectivities, false);
+            Assert.assertEquals(nodes.size(), result.size());
+            assertExecutable(result);
+            Assert.assertTrue(j.estimatedCost(all) >= dp);
+        } finally {
+            JoinOptimizer.setMaxDpRelations(maxDpRelations);
+        }
+    }
+
     /**
      * Test a join ordering with an inequality, to make sure the inequality gets
      * put as the innermost join
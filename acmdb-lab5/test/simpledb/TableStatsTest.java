@@ -1,7 +1,9 @@
 package simpledb;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -100,6 +102,174 @@ public class TableStatsTest extends SimpleDbTestBase {
 		Assert.assertEquals(0, s.estimateTableCardinality(0.0));
 	}
 	
+	/**
+	 * Verify that statistics built from a sample of the pages of a table
+	 * estimate its size and value distribution
+	 */
+	@Test public void sampledStatsTest() {
+		TableStats s = new TableStats(this.tableId, IO_COST, f.numPages() / 5);
+		Assert.assertEquals(10200, s.totalTuples(), 200);
+		Assert.assertEquals(10200, s.estimateTableCardinality(1.0), 200);
+		for (int col = 0; col < 10; col++) {
+			Assert.assertEquals(1.0/32.0, s.estimateSelectivity(col, Predicate.Op.EQUALS, new IntField(16)), 0.015);
+			Assert.assertEquals(0.5, s.estimateSelectivity(col, Predicate.Op.LESS_THAN, new IntField(16)), 0.1);
+		}
+	}
+
+	/**
+	 * Verify that a table with more tuples than the value sample is
+	 * summarized from a sample of its values, while the number of distinct
+	 * values is estimated from all of them
+	 */
+	@Test public void valueSampleTest() throws Exception {
+		int rows = 3 * TableStats.VALUE_SAMPLE_SIZE;
+		ArrayList<ArrayList<Integer>> unique = new ArrayList<ArrayList<Integer>>();
+		for (int i = 0; i < rows; i++)
+			unique.add(new ArrayList<Integer>(Arrays.asList(i, i % 100)));
+		File temp = File.createTempFile("table", ".dat");
+		temp.deleteOnExit();
+		ZoneMap.sideFile(temp).deleteOnExit();
+		HeapFileEncoder.convert(unique, temp, BufferPool.getPageSize(), 2);
+		HeapFile hf = Utility.openHeapFile(2, "c", temp);
+		Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+
+		TableStats s = new TableStats(hf.getId(), IO_COST, 0);
+		Assert.assertEquals(rows, s.totalTuples());
+		Assert.assertEquals(rows, s.numDistinct(0), rows * 0.05);
+		Assert.assertEquals(100, s.numDistinct(1), 5);
+		Assert.assertEquals(0.5, s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(rows / 2)), 0.02);
+		Assert.assertEquals(0.01, s.estimateSelectivity(1, Predicate.Op.EQUALS, new IntField(42)), 0.003);
+	}
+
+	/**
+	 * Verify that statistics can be built for tables stored in a B+ tree,
+	 * in full and from a sample of their leaf pages
+	 */
+	@Test public void btreeStatsTest() throws Exception {
+		ArrayList<ArrayList<Integer>> btreeTuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20000, null, btreeTuples, 0);
+		Database.getCatalog().addTable(bf, SystemTestUtil.getUUID());
+
+		TableStats s = new TableStats(bf.getId(), IO_COST, 0);
+		Assert.assertEquals(20000, s.totalTuples());
+		Assert.assertEquals(bf.numPages() * IO_COST, s.estimateScanCost(), 0.001);
+
+		s = new TableStats(bf.getId(), IO_COST, 10);
+		Assert.assertEquals(20000, s.totalTuples(), 2000);
+	}
+
+	/**
+	 * Verify that statistics of a B+ tree are built while a writer holds its
+	 * root pointer and root page, without waiting for it
+	 */
+	@Test public void btreeStatsDuringWriteTest() throws Exception {
+		final BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20000, null,
+				new ArrayList<ArrayList<Integer>>(), 0);
+		Database.getCatalog().addTable(bf, SystemTestUtil.getUUID());
+		TransactionId writer = new TransactionId();
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(writer,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_WRITE);
+		Assert.assertEquals(BTreePageId.INTERNAL, rootPtr.getRootId().pgcateg());
+		Database.getBufferPool().getPage(writer, rootPtr.getRootId(), Permissions.READ_WRITE);
+
+		final TableStats[] s = new TableStats[1];
+		Thread stats = new Thread() {
+			public void run() {
+				s[0] = new TableStats(bf.getId(), IO_COST, 10);
+			}
+		};
+		stats.start();
+		stats.join(10000);
+		Assert.assertFalse(stats.isAlive());
+		Assert.assertEquals(20000, s[0].totalTuples(), 2000);
+		Database.getBufferPool().transactionComplete(writer);
+	}
+
+	/**
+	 * Verify that statistics saved to a file are read back as they were
+	 */
+	@Test public void persistenceTest() throws Exception {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		TableStats.setTableStats(tableName, s);
+		File file = File.createTempFile("table", ".stats");
+		file.deleteOnExit();
+		TableStats.saveStatistics(file);
+
+		TableStats.getStatsMap().remove(tableName);
+		TableStats.loadStatistics(file);
+		TableStats loaded = TableStats.getTableStats(tableName);
+		Assert.assertNotNull(loaded);
+		Assert.assertEquals(s.totalTuples(), loaded.totalTuples());
+		Assert.assertEquals(s.estimateScanCost(), loaded.estimateScanCost(), 0.001);
+		for (int v = 0; v <= 32; v += 8)
+			Assert.assertEquals(s.estimateSelectivity(3, Predicate.Op.LESS_THAN, new IntField(v)),
+					loaded.estimateSelectivity(3, Predicate.Op.LESS_THAN, new IntField(v)), 0.0);
+	}
+
+	/**
+	 * Verify that inserted and deleted tuples are applied to the statistics,
+	 * and that a value outside the histograms replaces them in the background
+	 */
+	@Test public void incrementalUpdateTest() throws Exception {
+		TableStats s = new TableStats(this.tableId, IO_COST, 0);
+		TableStats.setTableStats(tableName, s);
+		double before = s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(5));
+
+		TransactionId tid = new TransactionId();
+		ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+		for (int i = 0; i < 500; i++) {
+			Tuple t = Utility.getHeapTuple(5, 10);
+			Database.getBufferPool().insertTuple(tid, tableId, t);
+			inserted.add(t);
+		}
+		Assert.assertEquals(10700, s.totalTuples());
+		Assert.assertTrue(s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(5)) > before + 0.03);
+		for (int i = 0; i < 100; i++)
+			Database.getBufferPool().deleteTuple(tid, inserted.get(i));
+		Assert.assertEquals(10600, s.totalTuples());
+		Assert.assertSame(s, TableStats.getTableStats(tableName));
+
+		Database.getBufferPool().insertTuple(tid, tableId, Utility.getHeapTuple(1000, 10));
+		Database.getBufferPool().transactionComplete(tid);
+		for (int i = 0; i < 100 && TableStats.getTableStats(tableName) == s; i++)
+			Thread.sleep(100);
+		TableStats fresh = TableStats.getTableStats(tableName);
+		Assert.assertNotSame(s, fresh);
+		Assert.assertEquals(10601, fresh.totalTuples());
+		Assert.assertTrue(fresh.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(500)) > 0.0);
+	}
+
+	/**
+	 * Verify that a conjunction of predicates on correlated fields is
+	 * estimated from the row sample rather than as independent predicates
+	 */
+	@Test public void correlatedSelectivityTest() throws Exception {
+		// the second field always equals the first
+		ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+		for (int i = 0; i < 10000; i++) {
+			ArrayList<Integer> row = new ArrayList<Integer>();
+			row.add(i % 10);
+			row.add(i % 10);
+			rows.add(row);
+		}
+		File file = File.createTempFile("table", ".dat");
+		file.deleteOnExit();
+		HeapFileEncoder.convert(rows, file, BufferPool.getPageSize(), 2);
+		HeapFile hf = Utility.openHeapFile(2, file);
+		Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+
+		TableStats s = new TableStats(hf.getId(), IO_COST);
+		ArrayList<Predicate> preds = new ArrayList<Predicate>();
+		preds.add(new Predicate(0, Predicate.Op.EQUALS, new IntField(3)));
+		Assert.assertEquals(0.1, s.estimateSelectivity(preds), 0.02);
+		preds.add(new Predicate(1, Predicate.Op.EQUALS, new IntField(3)));
+		Assert.assertEquals(0.1, s.estimateSelectivity(preds), 0.02);
+		preds.add(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(3)));
+		Assert.assertTrue(s.estimateSelectivity(preds) < 0.011);
+		Assert.assertEquals(10.0, s.numDistinct(0), 0.5);
+		Assert.assertEquals(0.1, s.avgSelectivity(1, Predicate.Op.EQUALS), 0.01);
+	}
+
 	/**
 	 * Verify that selectivity estimates do something reasonable.
 	 * Don't bother splitting this into N different functions for
@@ -0,0 +1,154 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ZoneMapTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 20000;
+
+    private HeapFile f;
+
+    /**
+     * Create an append-ordered table whose first field counts up from 0
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < ROWS; i++)
+            tuples.add(new ArrayList<Integer>(Arrays.asList(i, i % 7)));
+        File temp = File.createTempFile("table", ".dat");
+        temp.deleteOnExit();
+        ZoneMap.sideFile(temp).deleteOnExit();
+        HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), 2);
+        f = Utility.openHeapFile(2, "c", temp);
+        Database.getCatalog().addTable(f, "z");
+    }
+
+    private static List<Predicate> preds(Predicate.Op op, int value) {
+        return Collections.singletonList(new Predicate(0, op, new IntField(value)));
+    }
+
+    /** @return the tuples matching preds, counting the pages requested in pages[0] */
+    private int scan(TransactionId tid, List<Predicate> preds, long[] pages) throws Exception {
+        SeqScan ss = new SeqScan(tid, f.getId(), "z");
+        ss.setPredicates(preds);
+        DbIterator it = ss;
+        for (Predicate p : preds)
+            it = new Filter(p, it);
+        long before = BufferPool.threadPageCounts()[0];
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        pages[0] = BufferPool.threadPageCounts()[0] - before;
+        return n;
+    }
+
+    /**
+     * Once the pages have been read, a scan only reads the pages a filter on
+     * the ordered field can match.
+     */
+    @Test
+    public void skipsPages() throws Exception {
+        TransactionId tid = new TransactionId();
+        long[] pages = new long[1];
+        Assert.assertEquals(99, scan(tid, preds(Predicate.Op.GREATER_THAN, ROWS - 100), pages));
+        Assert.assertEquals(f.numPages(), pages[0]);
+
+        Assert.assertEquals(99, scan(tid, preds(Predicate.Op.GREATER_THAN, ROWS - 100), pages));
+        Assert.assertTrue(pages[0] <= 2);
+        Assert.assertEquals(1, scan(tid, preds(Predicate.Op.EQUALS, 5000), pages));
+        Assert.assertEquals(1, pages[0]);
+        Assert.assertEquals(0, scan(tid, preds(Predicate.Op.LESS_THAN, 0), pages));
+        Assert.assertEquals(0, pages[0]);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Inserted tuples widen the entry of their page, deleted ones leave it
+     * as it is, so scans keep finding every matching tuple.
+     */
+    @Test
+    public void maintained() throws Exception {
+        TransactionId tid = new TransactionId();
+        long[] pages = new long[1];
+        scan(tid, preds(Predicate.Op.LESS_THAN, 0), pages);
+
+        Tuple t = new Tuple(f.getTupleDesc());
+        t.setField(0, new IntField(-5));
+        t.setField(1, new IntField(0));
+        Database.getBufferPool().insertTuple(tid, f.getId(), t);
+        Assert.assertEquals(1, scan(tid, preds(Predicate.Op.LESS_THAN, 0), pages));
+
+        SeqScan ss = new SeqScan(tid, f.getId(), "z");
+        Filter small = new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(10)), ss);
+        small.open();
+        while (small.hasNext())
+            Database.getBufferPool().deleteTuple(tid, small.next());
+        small.close();
+        Assert.assertEquals(0, scan(tid, preds(Predicate.Op.LESS_THAN, 10), pages));
+        Assert.assertEquals(1, scan(tid, preds(Predicate.Op.EQUALS, 10), pages));
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        Assert.assertEquals(0, scan(tid, preds(Predicate.Op.LESS_THAN, 10), pages));
+        Assert.assertEquals(ROWS - 10, scan(tid, preds(Predicate.Op.GREATER_THAN_OR_EQ, 10), pages));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The zone map is kept in a side file, written when a transaction
+     * completes rather than by every scan, which is ignored once the heap
+     * file changes without it.
+     */
+    @Test
+    public void sideFile() throws Exception {
+        TransactionId tid = new TransactionId();
+        scan(tid, preds(Predicate.Op.LESS_THAN, 0), new long[1]);
+        Assert.assertFalse(ZoneMap.sideFile(f.getFile()).exists());
+        Database.getBufferPool().transactionComplete(tid);
+        Assert.assertTrue(ZoneMap.sideFile(f.getFile()).exists());
+
+        ZoneMap reopened = new ZoneMap(f.getFile(), f.getTupleDesc());
+        Assert.assertEquals(f.getZoneMap().getRows(0), reopened.getRows(0));
+        Assert.assertTrue(reopened.getRows(0) > 0);
+        Assert.assertFalse(reopened.mayMatch(0, preds(Predicate.Op.LESS_THAN, 0)));
+
+        Assert.assertTrue(f.getFile().setLastModified(f.getFile().lastModified() - 10000));
+        reopened = new ZoneMap(f.getFile(), f.getTupleDesc());
+        Assert.assertEquals(-1, reopened.getRows(0));
+        Assert.assertTrue(reopened.mayMatch(0, preds(Predicate.Op.LESS_THAN, 0)));
+    }
+
+    /**
+     * The estimated cost of a scan counts only the pages it cannot skip.
+     */
+    @Test
+    public void scanCost() throws Exception {
+        TableStats s = new TableStats(f.getId(), 1000);
+        Assert.assertEquals(f.numPages() * 1000.0, s.estimateScanCost(), 0.0);
+        Assert.assertEquals(1000.0, s.estimateScanCost(preds(Predicate.Op.EQUALS, 5000)), 0.0);
+        Assert.assertEquals(s.estimateScanCost(), s.estimateScanCost(preds(Predicate.Op.NOT_EQUALS, 5000)), 0.0);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ZoneMapTest.class);
+    }
+}
@@ -0,0 +1,58 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+/**
+ * Times point lookups on B+ trees whose internal pages hold from 100 to 500
+ * keys, so that each descent binary searches pages of that size.  Not a part
+ * of the test suites; run it with <code>ant benchmark</code>.
+ */
+public class BTreeScanBenchmark extends SimpleDbTestBase {
+
+    @Test public void pointLookupFanouts() throws Exception {
+        final int rows = 20000, lookups = 5000;
+        Random rand = new Random(7);
+        try {
+            for (int fanout = 100; fanout <= 500; fanout += 100) {
+                // an internal page holds (page size * 8 - 73) / 65 integer keys
+                BufferPool.setPageSize((fanout * 65 + 73 + 7) / 8);
+                Database.reset();
+                BTreeFile f = BTreeUtility.createBTreeFile(2, rows, null, null, 0);
+                // room for the whole tree, so that no lookup reads from disk
+                Database.resetBufferPool(f.numPages() + 10);
+                TransactionId tid = new TransactionId();
+                long nanos = 0;
+                for (int round = 0; round < 2; round++) {
+                    long start = System.nanoTime();
+                    for (int i = 0; i < lookups; i++) {
+                        int key = rand.nextInt(rows) + 1;
+                        DbFileIterator it = f.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+                        it.open();
+                        assertEquals(new IntField(key), it.next().getField(0));
+                        it.close();
+                    }
+                    // the first round reads the pages and warms up the JIT
+                    if (round > 0)
+                        nanos = System.nanoTime() - start;
+                }
+                Database.getBufferPool().transactionComplete(tid);
+                System.out.println("point lookups at fanout " + fanout + ": "
+                        + nanos / lookups + " ns per lookup");
+            }
+        } finally {
+            BufferPool.resetPageSize();
+            Database.reset();
+        }
+    }
+
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeScanBenchmark.class);
+    }
+}
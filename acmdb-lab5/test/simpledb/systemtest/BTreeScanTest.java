@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.Iterator;
@@ -282,6 +283,294 @@ public class BTreeScanTest extends SimpleDbTestBase {
         Database.getBufferPool().transactionComplete(tid);
     }
 
+    /** Test that a scan bounded on both sides returns the range and reads only its pages */
+    @Test public void testRange() throws Exception {
+        final int LEAF_PAGES = 30;
+
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        int keyField = 0;
+        BTreeFile f = BTreeUtility.createBTreeFile(2, LEAF_PAGES*502, null, tuples, keyField);
+        TupleDesc td = Utility.getTupleDesc(2);
+        InstrumentedBTreeFile table = new InstrumentedBTreeFile(f.getFile(), keyField, td);
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        int low = r.nextInt(LEAF_PAGES*502 / 2);
+        int high = low + 502 * 3 + r.nextInt(502);
+        IndexPredicate ipred = new IndexPredicate(Op.GREATER_THAN, new IntField(low));
+        IndexPredicate stop = new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(high));
+        ArrayList<ArrayList<Integer>> tuplesFiltered = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> tup : tuples) {
+            if (tup.get(keyField) > low && tup.get(keyField) <= high)
+                tuplesFiltered.add(tup);
+        }
+
+        TransactionId tid = new TransactionId();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        table.readCount = 0;
+        BTreeScan scan = new BTreeScan(tid, f.getId(), "table", ipred, stop);
+        SystemTestUtil.matchTuples(scan, tuplesFiltered);
+        // root pointer page + root + the leaf pages of the range, one of which
+        // may only hold the key past the stop key
+        int leafPageCount = tuplesFiltered.size()/502 + 2;
+        assertTrue(table.readCount <= leafPageCount + 2);
+
+        // an empty range ends at the first key
+        scan = new BTreeScan(tid, f.getId(), "table",
+                new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(high)),
+                new IndexPredicate(Op.LESS_THAN, new IntField(low)));
+        SystemTestUtil.matchTuples(scan, new ArrayList<ArrayList<Integer>>());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that the planner answers a selective range on the key with one bounded index scan */
+    @Test public void testAccessPath() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createBTreeFile(2, 20 * 502, null, tuples, 0);
+        BTreeFile table = new BTreeFile(f.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        String name = SystemTestUtil.getUUID();
+        Database.getCatalog().addTable(table, name);
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(table.getId(), 1000));
+
+        TransactionId tid = new TransactionId();
+        DbIterator plan = rangeQuery(table, tid, stats, "1000", "1500");
+        assertTrue(leaf(plan) instanceof BTreeScan);
+        // both bounds are answered by the index scan
+        assertTrue(!(((Operator) plan).getChildren()[0] instanceof Filter));
+        ArrayList<ArrayList<Integer>> tuplesFiltered = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> tup : tuples) {
+            if (tup.get(0) > 1000 && tup.get(0) < 1500)
+                tuplesFiltered.add(tup);
+        }
+        SystemTestUtil.matchTuples(plan, tuplesFiltered);
+
+        // a range holding the whole table is cheaper to scan sequentially
+        plan = rangeQuery(table, tid, stats, "-1", "" + (20 * 502 + 1));
+        assertTrue(leaf(plan) instanceof SeqScan);
+        SystemTestUtil.matchTuples(plan, tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that a descending scan returns the keys in a range greatest first */
+    @Test public void testDescending() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        int keyField = r.nextInt(3);
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(3, 10000, null, tuples, keyField);
+        int low = r.nextInt(BTreeUtility.MAX_RAND_VALUE / 2);
+        int high = low + r.nextInt(BTreeUtility.MAX_RAND_VALUE / 2);
+        int key = tuples.get(r.nextInt(tuples.size())).get(keyField);
+
+        TransactionId tid = new TransactionId();
+        validateDescending(tid, f, tuples, null, null);
+        validateDescending(tid, f, tuples, new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(high)), null);
+        validateDescending(tid, f, tuples, new IndexPredicate(Op.LESS_THAN, new IntField(key)), null);
+        validateDescending(tid, f, tuples, new IndexPredicate(Op.GREATER_THAN, new IntField(low)), null);
+        validateDescending(tid, f, tuples, new IndexPredicate(Op.EQUALS, new IntField(key)), null);
+        validateDescending(tid, f, tuples, new IndexPredicate(Op.LESS_THAN, new IntField(high)),
+                new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(low)));
+        validateDescending(tid, f, tuples, new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(key)),
+                new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(key)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that the last keys below a bound are read from the last leaf pages */
+    @Test public void testDescendingReadPage() throws Exception {
+        final int LEAF_PAGES = 30;
+
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createBTreeFile(2, LEAF_PAGES*502, null, tuples, 0);
+        InstrumentedBTreeFile table = new InstrumentedBTreeFile(f.getFile(), 0, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        TransactionId tid = new TransactionId();
+        for (IndexPredicate ipred : new IndexPredicate[] { null,
+                new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(r.nextInt(LEAF_PAGES*502))) }) {
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            table.readCount = 0;
+            BTreeScan scan = new BTreeScan(tid, table.getId(), "table", ipred, null, true);
+            scan.open();
+            Field last = null;
+            for (int i = 0; i < 10 && scan.hasNext(); i++) {
+                Field k = scan.next().getField(0);
+                if (ipred != null)
+                    assertTrue(k.compare(Op.LESS_THAN_OR_EQ, ipred.getField()));
+                if (last != null)
+                    assertTrue(k.compare(Op.LESS_THAN_OR_EQ, last));
+                last = k;
+            }
+            scan.close();
+            // root pointer page + root + the leaf page holding the bound, its
+            // right sibling and its left sibling
+            assertTrue(table.readCount <= 5);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that the planner answers ORDER BY on the key by the order of a B+ tree scan */
+    @Test public void testOrderByKey() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createBTreeFile(2, 20 * 502, null, tuples, 0);
+        BTreeFile table = new BTreeFile(f.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        String name = SystemTestUtil.getUUID();
+        Database.getCatalog().addTable(table, name);
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(table.getId(), 1000));
+        TransactionId tid = new TransactionId();
+
+        // a whole table in descending order
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addProjectField("t.c0", null);
+        lp.addOrderBy("t.c0", false);
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        assertFalse(hasOrderBy(plan));
+        assertTrue(leaf(plan) instanceof BTreeScan);
+        assertTrue(((BTreeScan) leaf(plan)).isDescending());
+        assertOrdered(plan, 20 * 502, false);
+
+        // a range in either order
+        for (boolean asc : new boolean[] { true, false }) {
+            lp = new LogicalPlan();
+            lp.addScan(table.getId(), "t");
+            lp.addFilter("t.c0", Op.GREATER_THAN, "1000");
+            lp.addFilter("t.c0", Op.LESS_THAN, "1500");
+            lp.addProjectField("t.c0", null);
+            lp.addOrderBy("t.c0", asc);
+            plan = lp.physicalPlan(tid, stats, false);
+            assertFalse(hasOrderBy(plan));
+            assertTrue(leaf(plan) instanceof BTreeScan);
+            assertOrdered(plan, 499, asc);
+        }
+
+        // another field still needs a sort
+        lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addProjectField("t.c0", null);
+        lp.addOrderBy("t.c1", false);
+        assertTrue(hasOrderBy(lp.physicalPlan(tid, stats, false)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Check that a descending scan from ipred to stop returns the tuples of
+     * the range greatest key first.
+     */
+    private void validateDescending(TransactionId tid, BTreeFile f, ArrayList<ArrayList<Integer>> tuples,
+            IndexPredicate ipred, IndexPredicate stop) throws Exception {
+        int keyField = f.keyField();
+        ArrayList<ArrayList<Integer>> tuplesFiltered = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> tup : tuples) {
+            IntField key = new IntField(tup.get(keyField));
+            if ((ipred == null || key.compare(ipred.getOp(), ipred.getField()))
+                    && (stop == null || key.compare(stop.getOp(), stop.getField())))
+                tuplesFiltered.add(tup);
+        }
+        BTreeScan scan = new BTreeScan(tid, f.getId(), "table", ipred, stop, true);
+        ArrayList<ArrayList<Integer>> found = new ArrayList<ArrayList<Integer>>();
+        scan.open();
+        while (scan.hasNext()) {
+            ArrayList<Integer> tup = SystemTestUtil.tupleToList(scan.next());
+            if (!found.isEmpty())
+                assertTrue(found.get(found.size() - 1).get(keyField) >= tup.get(keyField));
+            found.add(tup);
+        }
+        scan.close();
+        Comparator<ArrayList<Integer>> byTuple = new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> t1, ArrayList<Integer> t2) {
+                return t1.toString().compareTo(t2.toString());
+            }
+        };
+        Collections.sort(found, byTuple);
+        Collections.sort(tuplesFiltered, byTuple);
+        assertEquals(tuplesFiltered, found);
+    }
+
+    private static void assertOrdered(DbIterator plan, int count, boolean asc) throws Exception {
+        plan.open();
+        Integer last = null;
+        int n = 0;
+        while (plan.hasNext()) {
+            int key = ((IntField) plan.next().getField(0)).getValue();
+            if (last != null)
+                assertTrue(asc ? last <= key : last >= key);
+            last = key;
+            n++;
+        }
+        plan.close();
+        assertEquals(count, n);
+    }
+
+    private static boolean hasOrderBy(DbIterator plan) {
+        for (; plan instanceof Operator; plan = ((Operator) plan).getChildren()[0]) {
+            if (plan instanceof OrderBy)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Point lookups on B+ trees whose internal pages hold from 100 to 500
+     * keys find their key, and read one page per level of the tree, fewer
+     * as the fanout grows.  The timing of these lookups is in
+     * BTreeScanBenchmark.
+     */
+    @Test public void testPointLookupFanouts() throws Exception {
+        final int rows = 20000, lookups = 500;
+        Random rand = new Random(7);
+        long first = -1, last = -1;
+        try {
+            for (int fanout = 100; fanout <= 500; fanout += 100) {
+                // an internal page holds (page size * 8 - 73) / 65 integer keys
+                BufferPool.setPageSize((fanout * 65 + 73 + 7) / 8);
+                Database.reset();
+                BTreeFile f = BTreeUtility.createBTreeFile(2, rows, null, null, 0);
+                TransactionId tid = new TransactionId();
+                long pages = -1;
+                for (int i = 0; i < lookups; i++) {
+                    int key = rand.nextInt(rows) + 1;
+                    ExplainAnalyze.Instrumented it = (ExplainAnalyze.Instrumented) ExplainAnalyze.instrument(
+                            new BTreeScan(tid, f.getId(), "t", new IndexPredicate(Op.EQUALS, new IntField(key))),
+                            false);
+                    it.open();
+                    assertEquals(new IntField(key), it.next().getField(0));
+                    assertFalse(it.hasNext());
+                    it.close();
+                    // every leaf is at the same depth
+                    if (pages >= 0)
+                        assertEquals(pages, it.getPages());
+                    pages = it.getPages();
+                }
+                Database.getBufferPool().transactionComplete(tid);
+                if (first < 0)
+                    first = pages;
+                else
+                    assertTrue(pages <= last);
+                last = pages;
+            }
+            assertTrue(last < first);
+        } finally {
+            BufferPool.resetPageSize();
+            Database.reset();
+        }
+    }
+
+    private static DbIterator rangeQuery(BTreeFile table, TransactionId tid,
+            HashMap<String, TableStats> stats, String low, String high) throws ParsingException {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addFilter("t.c0", Op.GREATER_THAN, low);
+        lp.addFilter("t.c0", Op.LESS_THAN, high);
+        lp.addProjectField("t.c0", null);
+        lp.addProjectField("t.c1", null);
+        return lp.physicalPlan(tid, stats, false);
+    }
+
+    private static DbIterator leaf(DbIterator plan) {
+        while (plan instanceof Operator)
+            plan = ((Operator) plan).getChildren()[0];
+        return plan;
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(BTreeScanTest.class);
@@ -0,0 +1,99 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class ExplainAnalyzeTest extends SimpleDbTestBase {
+
+    /** Test that every operator reports the tuples it returned and the pages it read */
+    @Test public void testCounters() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 5000, 100, null, tuples, "c");
+        Database.getCatalog().addTable(f, "t");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("t", new TableStats(f.getId(), 1000));
+        int matching = 0;
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) < 30)
+                matching++;
+        }
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(f.getId(), "t");
+        lp.addFilter("t.c0", Predicate.Op.LESS_THAN, "30");
+        lp.addProjectField("t.c1", null);
+        TransactionId tid = new TransactionId();
+        DbIterator plan = ExplainAnalyze.instrument(lp.physicalPlan(tid, stats, false));
+        assertEquals(matching, ExplainAnalyze.run(plan));
+        Database.getBufferPool().transactionComplete(tid);
+
+        // project -> filter -> scan, each in its decorator
+        ExplainAnalyze.Instrumented project = (ExplainAnalyze.Instrumented) plan;
+        Operator projectOp = (Operator) project.getChildren()[0];
+        ExplainAnalyze.Instrumented filter = (ExplainAnalyze.Instrumented) projectOp.getChildren()[0];
+        ExplainAnalyze.Instrumented scan = (ExplainAnalyze.Instrumented)
+                ((Operator) filter.getChildren()[0]).getChildren()[0];
+        assertEquals(matching, project.getRows());
+        assertEquals(matching, filter.getRows());
+        assertEquals(tuples.size(), scan.getRows());
+        assertEquals(1, scan.getOpens());
+        assertEquals(f.numPages(), scan.getPages());
+        // the pages of the scan are counted by every operator above it
+        assertEquals(scan.getPages(), project.getPages());
+        assertTrue(project.getWallNanos() >= scan.getWallNanos());
+
+        String report = ExplainAnalyze.report(plan);
+        assertEquals(3, report.split("\n").length);
+        assertTrue(report.contains("actual rows=" + tuples.size()));
+    }
+
+    /** Test that a plan instrumented without timing still counts every tuple */
+    @Test public void testWithoutTiming() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 5000, 100, null, null, "c");
+        Database.getCatalog().addTable(f, "t");
+        TransactionId tid = new TransactionId();
+        ExplainAnalyze.Instrumented scan = (ExplainAnalyze.Instrumented)
+                ExplainAnalyze.instrument(new SeqScan(tid, f.getId(), "t"), false);
+        assertEquals(5000, ExplainAnalyze.run(scan));
+        Database.getBufferPool().transactionComplete(tid);
+
+        assertEquals(5000, scan.getRows());
+        assertEquals(1, scan.getOpens());
+        // only the pages read by open are counted
+        assertTrue(scan.getPages() < f.numPages());
+        assertTrue(ExplainAnalyze.report(scan).contains("actual rows=5000"));
+    }
+
+    /** Test that the parser prints the report of EXPLAIN ANALYZE instead of the tuples */
+    @Test public void testParser() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1000, 100, null, null, "c");
+        Database.getCatalog().addTable(f, "t");
+        TableStats.setTableStats("t", new TableStats(f.getId(), 1000));
+
+        PrintStream out = System.out;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(buffer, true));
+        try {
+            new Parser().processNextStatement("explain  analyze SELECT t.c0 FROM t WHERE t.c1 > 50;");
+        } finally {
+            System.setOut(out);
+        }
+        String printed = buffer.toString();
+        assertTrue(printed, printed.contains("SeqScan t t"));
+        assertTrue(printed, printed.contains("actual rows=1000"));
+        assertTrue(printed, printed.contains("committed"));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ExplainAnalyzeTest.class);
+    }
+}
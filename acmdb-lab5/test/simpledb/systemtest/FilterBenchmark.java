@@ -0,0 +1,58 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import simpledb.*;
+
+/**
+ * Times the interpreted and the compiled scan, filter and project pipeline.
+ * Not a part of the test suites; run it with <code>ant benchmark</code>.
+ */
+public class FilterBenchmark extends SimpleDbTestBase {
+
+    @Test public void compiledPipeline() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, 100000, 1000, null, null);
+        boolean enabled = QueryCompiler.isEnabled();
+        try {
+            int[] counts = new int[2];
+            long[] nanos = new long[2];
+            for (int round = 0; round < 4; round++) {
+                for (int mode = 0; mode < 2; mode++) {
+                    QueryCompiler.setEnabled(mode == 1);
+                    TransactionId tid = new TransactionId();
+                    DbIterator it = new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(800)),
+                            new Filter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(100)),
+                                    new Filter(new Predicate(2, Predicate.Op.NOT_EQUALS, new IntField(7)),
+                                            new SeqScan(tid, table.getId(), ""))));
+                    it = new Project(new ArrayList<Integer>(Arrays.asList(0, 1, 2)),
+                            new Type[] { Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE }, it);
+                    long start = System.nanoTime();
+                    it.open();
+                    int count = 0;
+                    while (it.hasNext()) {
+                        it.next();
+                        count++;
+                    }
+                    it.close();
+                    // the first round warms up the buffer pool and the JIT
+                    if (round > 0)
+                        nanos[mode] += System.nanoTime() - start;
+                    counts[mode] = count;
+                    Database.getBufferPool().transactionComplete(tid);
+                }
+                assertEquals(counts[0], counts[1]);
+            }
+            System.out.println("scan, filter and project of 100000 tuples: interpreted "
+                    + nanos[0] / 3000000 + " ms, compiled " + nanos[1] / 3000000 + " ms");
+        } finally {
+            QueryCompiler.setEnabled(enabled);
+        }
+    }
+
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(FilterBenchmark.class);
+    }
+}
@@ -1,7 +1,10 @@
 package simpledb.systemtest;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import static org.junit.Assert.*;
+
+import org.junit.Test;
 import simpledb.*;
 
 public class FilterTest extends FilterBase {
@@ -22,6 +25,55 @@ public class FilterTest extends FilterBase {
         return resultCount;
     }
 
+    /**
+     * Test that compiled chains of Filters return the same tuples in the same
+     * order as interpreted ones, before and after a rewind.
+     */
+    @Test public void testCompiledPipeline() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, 20000, 1000, null, null);
+        Predicate[][] chains = {
+            { new Predicate(0, Predicate.Op.LESS_THAN, new IntField(800)),
+              new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(100)),
+              new Predicate(2, Predicate.Op.NOT_EQUALS, new IntField(7)) },
+            { new Predicate(0, Predicate.Op.EQUALS, new IntField(5)) },
+            { new Predicate(1, Predicate.Op.LESS_THAN_OR_EQ, new IntField(30)),
+              new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(900)) },
+        };
+        boolean enabled = QueryCompiler.isEnabled();
+        try {
+            for (Predicate[] chain : chains) {
+                ArrayList<ArrayList<Integer>> interpreted = run(table, chain, false);
+                assertFalse(interpreted.isEmpty());
+                assertEquals(interpreted, run(table, chain, true));
+            }
+        } finally {
+            QueryCompiler.setEnabled(enabled);
+        }
+    }
+
+    /**
+     * @return the tuples of a scan of the table through a chain of Filters,
+     *         the first predicate on top, twice over with a rewind in between
+     */
+    static ArrayList<ArrayList<Integer>> run(HeapFile table, Predicate[] chain, boolean compile)
+            throws Exception {
+        QueryCompiler.setEnabled(compile);
+        TransactionId tid = new TransactionId();
+        DbIterator it = new SeqScan(tid, table.getId(), "");
+        for (int i = chain.length - 1; i >= 0; i--)
+            it = new Filter(chain[i], it);
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        it.open();
+        for (int pass = 0; pass < 2; pass++) {
+            while (it.hasNext())
+                result.add(SystemTestUtil.tupleToList(it.next()));
+            it.rewind();
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return result;
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(FilterTest.class);
@@ -0,0 +1,84 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Vector;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Times join ordering by dynamic programming over the connected subgraphs
+ * of the join graph (DPccp) against the greedy fallback, for star and chain
+ * joins of 12 to 15 tables.  Not a part of the test suites; run it with
+ * <code>ant benchmark</code>.
+ */
+public class JoinOrderBenchmark extends SimpleDbTestBase {
+
+    private static final int IO_COST = 103;
+    private static final int MAX_TABLES = 15;
+    private static final int ROUNDS = 5;
+
+    private final HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+    private final HashMap<String, Double> selectivities = new HashMap<String, Double>();
+    private final int[] ids = new int[MAX_TABLES];
+
+    @Test public void planningTime() throws Exception {
+        for (int t = 0; t < MAX_TABLES; t++) {
+            String name = "t" + t;
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, 100 + 100 * t, 1000, null, null);
+            Database.getCatalog().addTable(f, name);
+            ids[t] = f.getId();
+            stats.put(name, new TableStats(f.getId(), IO_COST));
+            // the smaller tables are filtered harder
+            selectivities.put(name, 0.1 + 0.9 * t / MAX_TABLES);
+        }
+        for (int n = 12; n <= MAX_TABLES; n++) {
+            Vector<LogicalJoinNode> star = new Vector<LogicalJoinNode>();
+            Vector<LogicalJoinNode> chain = new Vector<LogicalJoinNode>();
+            for (int t = 1; t < n; t++) {
+                star.add(new LogicalJoinNode("t0", "t" + t, "c0", "c0", Predicate.Op.EQUALS));
+                chain.add(new LogicalJoinNode("t" + (t - 1), "t" + t, "c1", "c0", Predicate.Op.EQUALS));
+            }
+            report("star", n, star);
+            report("chain", n, chain);
+        }
+    }
+
+    private void report(String shape, int n, Vector<LogicalJoinNode> joins) throws Exception {
+        long dp = time(n, joins, JoinOptimizer.DEFAULT_MAX_DP_RELATIONS);
+        long greedy = time(n, joins, 1);
+        System.out.println(n + "-way " + shape + " join ordered in " + dp + " us by DPccp, "
+                + greedy + " us greedily");
+    }
+
+    /** @return the average time in microseconds to order the joins of n tables */
+    private long time(int n, Vector<LogicalJoinNode> joins, int maxDpRelations) throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        for (int t = 0; t < n; t++)
+            lp.addScan(ids[t], "t" + t);
+        int saved = JoinOptimizer.getMaxDpRelations();
+        JoinOptimizer.setMaxDpRelations(maxDpRelations);
+        try {
+            long nanos = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                JoinOptimizer jo = new JoinOptimizer(lp, joins);
+                long start = System.nanoTime();
+                Vector<LogicalJoinNode> order = jo.orderJoins(stats, selectivities, false);
+                // the first round warms up the JIT
+                if (round > 0)
+                    nanos += System.nanoTime() - start;
+                assertEquals(joins.size(), order.size());
+            }
+            return nanos / (ROUNDS - 1) / 1000;
+        } finally {
+            JoinOptimizer.setMaxDpRelations(saved);
+        }
+    }
+
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(JoinOrderBenchmark.class);
+    }
+}
@@ -0,0 +1,75 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class ParallelScanTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 10;
+    private static final int DOP = 4;
+
+    /** Tests that a parallel scan returns every tuple exactly once. */
+    @Test public void testScan() throws IOException, DbException, TransactionAbortedException {
+        int[] rowSizes = new int[]{0, 1, 1025, 5000};
+        for (int rows : rowSizes) {
+            ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+            HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, rows, null, tuples);
+            TransactionId tid = new TransactionId();
+            SystemTestUtil.matchTuples(
+                    new ParallelSeqScan(tid, f.getId(), "", new Predicate[0], DOP), tuples);
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /** Tests that the pushed-down predicates are applied by the workers. */
+    @Test public void testPredicates() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, 5000, 100, null, tuples);
+        Predicate[] preds = new Predicate[]{
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(50)),
+                new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(20))};
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) < 50 && t.get(1) >= 20)
+                expected.add(t);
+        }
+
+        TransactionId tid = new TransactionId();
+        SystemTestUtil.matchTuples(new ParallelSeqScan(tid, f.getId(), "", preds, DOP), expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Tests that a parallel scan can be closed early and rewound. */
+    @Test public void testRewind() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, 5000, null, tuples);
+
+        TransactionId tid = new TransactionId();
+        ParallelSeqScan scan = new ParallelSeqScan(tid, f.getId(), "", new Predicate[0], DOP);
+        scan.open();
+        for (int i = 0; i < 100; ++i) {
+            assertTrue(scan.hasNext());
+            assertNotNull(scan.next());
+        }
+        scan.rewind();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        assertEquals(tuples.size(), count);
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ParallelScanTest.class);
+    }
+}
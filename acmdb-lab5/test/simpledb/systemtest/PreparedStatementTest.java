@@ -0,0 +1,162 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+public class PreparedStatementTest extends SimpleDbTestBase {
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        QueryPlanCache.clear();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 2000, 100, null, tuples, "c");
+        Database.getCatalog().addTable(f, "t");
+        TableStats.setTableStats("t", new TableStats(f.getId(), 1000));
+    }
+
+    /** Test that every execution returns the tuples matching its own values */
+    @Test public void testParameters() throws Exception {
+        Parser p = new Parser();
+        PreparedStatement ps = p.prepare("SELECT * FROM t WHERE t.c0 < ? AND t.c1 = ?;");
+        assertEquals(2, ps.getParameterCount());
+        int[][] values = { { 50, 7 }, { 90, 31 }, { 10, 99 }, { 50, 7 } };
+        for (int[] v : values) {
+            Transaction t = new Transaction();
+            t.start();
+            Query q = ps.execute(t.getId(), new IntField(v[0]), new IntField(v[1]));
+            SystemTestUtil.matchTuples(q.getPhysicalPlan(), matching(v[0], v[1]));
+            t.commit();
+        }
+        ps.close();
+    }
+
+    /** Test that the values of the parameters have to match their fields */
+    @Test public void testParameterTypes() throws Exception {
+        Parser p = new Parser();
+        PreparedStatement ps = p.prepare("SELECT * FROM t WHERE t.c0 = ?;");
+        TransactionId tid = new TransactionId();
+        try {
+            ps.execute(tid, new StringField("a", Type.STRING_LEN));
+            fail("a string cannot be compared to an integer field");
+        } catch (ParsingException e) {
+        }
+        try {
+            ps.execute(tid);
+            fail("the parameter needs a value");
+        } catch (ParsingException e) {
+        }
+        ps.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that a statement reuses the plan of an earlier one until the statistics or the catalog change */
+    @Test public void testCache() throws Exception {
+        Parser p = new Parser();
+        run(p, "SELECT * FROM t WHERE t.c0 < ?;", 20);
+        assertEquals(1, QueryPlanCache.size());
+
+        // the same query, written differently
+        PreparedStatement ps = p.prepare("SELECT *  FROM t\n WHERE t.c0 < ?");
+        assertTrue(ps.hasPlan());
+        assertEquals(1, QueryPlanCache.getHits());
+        assertEquals(0, QueryPlanCache.size());
+        TransactionId tid = new TransactionId();
+        SystemTestUtil.matchTuples(ps.execute(tid, new IntField(60)).getPhysicalPlan(), matching(60, -1));
+        Database.getBufferPool().transactionComplete(tid);
+        ps.close();
+        assertEquals(1, QueryPlanCache.size());
+
+        // a different degree of parallelism needs another plan
+        p.setParallelism(2);
+        assertFalse(p.prepare("SELECT * FROM t WHERE t.c0 < ?;").hasPlan());
+        p.setParallelism(1);
+
+        TableStats.setTableStats("t", TableStats.getTableStats("t"));
+        assertFalse(p.prepare("SELECT * FROM t WHERE t.c0 < ?;").hasPlan());
+
+        run(p, "SELECT * FROM t WHERE t.c0 < ?;", 20);
+        Database.getCatalog().addTable(SystemTestUtil.createRandomHeapFile(1, 1, null, null), "u");
+        assertFalse(p.prepare("SELECT * FROM t WHERE t.c0 < ?;").hasPlan());
+    }
+
+    /** Test that the least recently used plans are evicted */
+    @Test public void testEviction() throws Exception {
+        int capacity = QueryPlanCache.getCapacity();
+        try {
+            QueryPlanCache.setCapacity(2);
+            Parser p = new Parser();
+            run(p, "SELECT * FROM t WHERE t.c0 < ?;", 1);
+            run(p, "SELECT * FROM t WHERE t.c0 > ?;", 1);
+            run(p, "SELECT * FROM t WHERE t.c0 < ?;", 1);
+            run(p, "SELECT * FROM t WHERE t.c0 = ?;", 1);
+            assertEquals(2, QueryPlanCache.size());
+            assertTrue(p.prepare("SELECT * FROM t WHERE t.c0 < ?;").hasPlan());
+            assertFalse(p.prepare("SELECT * FROM t WHERE t.c0 > ?;").hasPlan());
+        } finally {
+            QueryPlanCache.setCapacity(capacity);
+        }
+    }
+
+    /** Test that new values reach the bounds of a B+ tree range scan */
+    @Test public void testIndexScan() throws Exception {
+        ArrayList<ArrayList<Integer>> keys = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createBTreeFile(2, 20 * 502, null, keys, 0);
+        BTreeFile table = new BTreeFile(f.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(table, "b");
+        TableStats.setTableStats("b", new TableStats(table.getId(), 1000));
+
+        Parser p = new Parser();
+        PreparedStatement ps = p.prepare("SELECT * FROM b WHERE b.c0 > ? AND b.c0 < ?;");
+        int[][] ranges = { { 1000, 1500 }, { 4000, 4100 }, { 9000, 9001 } };
+        for (int[] r : ranges) {
+            TransactionId tid = new TransactionId();
+            DbIterator plan = ps.execute(tid, new IntField(r[0]), new IntField(r[1])).getPhysicalPlan();
+            DbIterator leaf = plan;
+            while (leaf instanceof Operator)
+                leaf = ((Operator) leaf).getChildren()[0];
+            assertTrue(leaf instanceof BTreeScan);
+            ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+            for (ArrayList<Integer> tup : keys) {
+                if (tup.get(0) > r[0] && tup.get(0) < r[1])
+                    expected.add(tup);
+            }
+            SystemTestUtil.matchTuples(plan, expected);
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        ps.close();
+    }
+
+    private void run(Parser p, String sql, int value) throws Exception {
+        PreparedStatement ps = p.prepare(sql);
+        TransactionId tid = new TransactionId();
+        Query q = ps.execute(tid, new IntField(value));
+        q.start();
+        while (q.hasNext())
+            q.next();
+        q.close();
+        Database.getBufferPool().transactionComplete(tid);
+        ps.close();
+    }
+
+    /** @return the tuples with c0 less than low and c1 equal to eq, if eq is not -1 */
+    private ArrayList<ArrayList<Integer>> matching(int low, int eq) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> tup : tuples) {
+            if (tup.get(0) < low && (eq == -1 || tup.get(1) == eq))
+                result.add(tup);
+        }
+        return result;
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(PreparedStatementTest.class);
+    }
+}
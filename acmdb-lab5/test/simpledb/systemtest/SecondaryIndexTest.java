@@ -0,0 +1,360 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile f;
+    private SecondaryIndex index;
+
+    /**
+     * Create a table with random values in both fields, and an index on the
+     * second one.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        f = SystemTestUtil.createRandomHeapFile(2, 20000, 5000, null, tuples, "c");
+        Database.getCatalog().addTable(f, "t");
+        File idx = File.createTempFile("index", ".idx");
+        idx.deleteOnExit();
+        TransactionId tid = new TransactionId();
+        index = SecondaryIndex.create(tid, "t_c1", f.getId(), 1, idx);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private ArrayList<ArrayList<Integer>> matching(int low, int high) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(1) >= low && t.get(1) <= high)
+                result.add(t);
+        }
+        return result;
+    }
+
+    /** @return a scan of the tuples of the index whose second field is in [low, high] */
+    private SecondaryIndexScan scan(TransactionId tid, int low, int high) {
+        return new SecondaryIndexScan(tid, index, "t",
+                new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(low)),
+                new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(high)));
+    }
+
+    /** Test that a scan of the index returns the tuples of a range in the order of the field */
+    @Test public void testScan() throws Exception {
+        assertEquals(tuples.size(), count(index.getFile()));
+        TransactionId tid = new TransactionId();
+        SecondaryIndexScan scan = scan(tid, 100, 200);
+        SystemTestUtil.matchTuples(scan, matching(100, 200));
+        scan.open();
+        int prev = Integer.MIN_VALUE;
+        while (scan.hasNext()) {
+            int v = ((IntField) scan.next().getField(1)).getValue();
+            assertTrue(prev <= v);
+            prev = v;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that inserts and deletes change the index, and aborting them restores it */
+    @Test public void testMaintained() throws Exception {
+        TransactionId tid = new TransactionId();
+        Tuple t = new Tuple(f.getTupleDesc());
+        t.setField(0, new IntField(-1));
+        t.setField(1, new IntField(150));
+        Database.getBufferPool().insertTuple(tid, f.getId(), t);
+        ArrayList<ArrayList<Integer>> expected = matching(100, 200);
+        expected.add(SystemTestUtil.tupleToList(t));
+        SystemTestUtil.matchTuples(scan(tid, 100, 200), expected);
+        Database.getBufferPool().transactionComplete(tid);
+
+        // delete the tuples of the range through the index
+        tid = new TransactionId();
+        SecondaryIndexScan scan = scan(tid, 100, 200);
+        ArrayList<Tuple> doomed = new ArrayList<Tuple>();
+        scan.open();
+        while (scan.hasNext())
+            doomed.add(scan.next());
+        scan.close();
+        for (Tuple d : doomed)
+            Database.getBufferPool().deleteTuple(tid, d);
+        SystemTestUtil.matchTuples(scan(tid, 100, 200), new ArrayList<ArrayList<Integer>>());
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        SystemTestUtil.matchTuples(scan(tid, 100, 200), expected);
+        assertEquals(tuples.size() + 1, count(index.getFile()));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Test that entries with equal keys are ordered by the tuples they refer
+     * to, so that deleting a tuple finds its entry with a single search
+     * however many tuples share its key
+     */
+    @Test public void testDuplicateKeys() throws Exception {
+        HeapFile d = SystemTestUtil.createRandomHeapFile(2, 20000, 3, null, new ArrayList<ArrayList<Integer>>(), "c");
+        Database.getCatalog().addTable(d, "d");
+        File idx = File.createTempFile("index", ".idx");
+        idx.deleteOnExit();
+        TransactionId tid = new TransactionId();
+        SecondaryIndex dups = SecondaryIndex.create(tid, "d_c1", d.getId(), 1, idx);
+        for (int i = 0; i < 2000; i++) {
+            Tuple t = new Tuple(d.getTupleDesc());
+            t.setField(0, new IntField(i));
+            t.setField(1, new IntField(1));
+            Database.getBufferPool().insertTuple(tid, d.getId(), t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        BTreeChecker.checkRep(dups.getFile(), tid, new HashMap<PageId, Page>(), false);
+        DbFileIterator entries = dups.getFile().iterator(tid);
+        entries.open();
+        int[] prev = null;
+        while (entries.hasNext()) {
+            Tuple e = entries.next();
+            int[] key = new int[3];
+            for (int i = 0; i < 3; i++)
+                key[i] = ((IntField) e.getField(i)).getValue();
+            if (prev != null) {
+                int c = prev[0] != key[0] ? prev[0] - key[0] : prev[1] != key[1] ? prev[1] - key[1] : prev[2] - key[2];
+                assertTrue(c < 0);
+            }
+            prev = key;
+        }
+        entries.close();
+
+        // delete every hundredth tuple of the table, reading a page for each
+        // level of the index rather than the thousands of entries with its
+        // key, but for the odd merge with a sibling
+        ArrayList<Tuple> doomed = new ArrayList<Tuple>();
+        SeqScan scan = new SeqScan(tid, d.getId());
+        scan.open();
+        for (int i = 0; scan.hasNext(); i++) {
+            Tuple t = scan.next();
+            if (i % 100 == 0)
+                doomed.add(t);
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        long pages = 0;
+        for (Tuple t : doomed) {
+            tid = new TransactionId();
+            ExplainAnalyze.Instrumented delete = (ExplainAnalyze.Instrumented) ExplainAnalyze.instrument(
+                    new Delete(tid, new TupleIterator(d.getTupleDesc(), Collections.singletonList(t))));
+            delete.open();
+            assertEquals(1, ((IntField) delete.next().getField(0)).getValue());
+            delete.close();
+            pages += delete.getPages();
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        assertTrue(pages <= 6 * doomed.size());
+        assertEquals(22000 - doomed.size(), count(dups.getFile()));
+    }
+
+    /** Test that the planner uses the index for selective point and range filters only */
+    @Test public void testAccessPath() throws Exception {
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("t", new TableStats(f.getId(), 1000));
+        TransactionId tid = new TransactionId();
+
+        DbIterator plan = query(tid, stats, Op.EQUALS, "1234", null);
+        assertTrue(leaf(plan) instanceof SecondaryIndexScan);
+        SystemTestUtil.matchTuples(plan, matching(1234, 1234));
+
+        plan = query(tid, stats, Op.GREATER_THAN_OR_EQ, "2500", "2502");
+        assertTrue(leaf(plan) instanceof SecondaryIndexScan);
+        // both bounds are answered by the index scan
+        assertTrue(!(((Operator) plan).getChildren()[0] instanceof Filter));
+        SystemTestUtil.matchTuples(plan, matching(2500, 2502));
+
+        // most of the table is cheaper to scan sequentially
+        plan = query(tid, stats, Op.GREATER_THAN, "10", "4990");
+        assertTrue(leaf(plan) instanceof SeqScan);
+        SystemTestUtil.matchTuples(plan, matching(11, 4990));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Test that a query referring only to fields a covering index stores is
+     * answered by an index-only scan, which reads no page of the table
+     */
+    @Test public void testIndexOnly() throws Exception {
+        ArrayList<ArrayList<Integer>> wide = new ArrayList<ArrayList<Integer>>();
+        HeapFile w = SystemTestUtil.createRandomHeapFile(6, 20000, 5000, null, wide, "c");
+        Database.getCatalog().addTable(w, "w");
+        File idx = File.createTempFile("index", ".idx");
+        idx.deleteOnExit();
+        TransactionId tid = new TransactionId();
+        SecondaryIndex covering = SecondaryIndex.create(tid, "w_c1", w.getId(), 1, new int[] { 2, 1, 2 }, idx);
+        Database.getBufferPool().transactionComplete(tid);
+        assertArrayEquals(new int[] { 2 }, covering.getIncluded());
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("w", new TableStats(w.getId(), 1000));
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : wide) {
+            if (t.get(1) >= 1000 && t.get(1) < 1100 && t.get(2) > 2500)
+                expected.add(new ArrayList<Integer>(t.subList(1, 3)));
+        }
+        tid = new TransactionId();
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(w.getId(), "w");
+        lp.addFilter("w.c1", Op.GREATER_THAN_OR_EQ, "1000");
+        lp.addFilter("w.c1", Op.LESS_THAN, "1100");
+        lp.addFilter("w.c2", Op.GREATER_THAN, "2500");
+        lp.addProjectField("w.c1", null);
+        lp.addProjectField("w.c2", null);
+        DbIterator plan = ExplainAnalyze.instrument(lp.physicalPlan(tid, stats, false));
+        SecondaryIndexScan scan = (SecondaryIndexScan) leaf(plan);
+        assertTrue(scan.isIndexOnly());
+        SystemTestUtil.matchTuples(plan, expected);
+        // the root pointer, the internal pages and the leaves of the range
+        assertTrue(((ExplainAnalyze.Instrumented) plan).getPages() <= covering.getFile().numPages() / 10 + 5);
+
+        // a field the index does not store needs the tuples
+        lp = new LogicalPlan();
+        lp.addScan(w.getId(), "w");
+        lp.addFilter("w.c1", Op.EQUALS, "1000");
+        lp.addProjectField("w.c3", null);
+        assertFalse(((SecondaryIndexScan) leaf(lp.physicalPlan(tid, stats, false))).isIndexOnly());
+
+        // without filters, the index is scanned whole as it is smaller than the table
+        lp = new LogicalPlan();
+        lp.addScan(w.getId(), "w");
+        lp.addProjectField("w.c2", null);
+        plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(((SecondaryIndexScan) leaf(plan)).isIndexOnly());
+        expected.clear();
+        for (ArrayList<Integer> t : wide)
+            expected.add(new ArrayList<Integer>(t.subList(2, 3)));
+        SystemTestUtil.matchTuples(plan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Test that a transaction inserting into a table while an index on it is
+     * being created is waited for before the index is added to the catalog,
+     * so that its tuple gets a single entry
+     */
+    @Test public void testInsertDuringCreate() throws Exception {
+        final HeapFile d = SystemTestUtil.createRandomHeapFile(2, 2000, 5000, null,
+                new ArrayList<ArrayList<Integer>>(), "c");
+        Database.getCatalog().addTable(d, "d");
+        File idx = File.createTempFile("index", ".idx");
+        idx.deleteOnExit();
+        // the writer has locked the table before the index is created
+        final TransactionId writing = new TransactionId();
+        Database.getBufferPool().getPage(writing, new HeapPageId(d.getId(), 0), Permissions.READ_WRITE);
+        final Exception[] failed = new Exception[1];
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    long deadline = System.currentTimeMillis() + 500;
+                    while (Database.getCatalog().getIndexes(d.getId()).isEmpty()
+                            && System.currentTimeMillis() < deadline)
+                        Thread.yield();
+                    Tuple t = new Tuple(d.getTupleDesc());
+                    t.setField(0, new IntField(-1));
+                    t.setField(1, new IntField(-1));
+                    Database.getBufferPool().insertTuple(writing, d.getId(), t);
+                    Database.getBufferPool().transactionComplete(writing);
+                } catch (Exception e) {
+                    failed[0] = e;
+                }
+            }
+        };
+        writer.start();
+        TransactionId tid = new TransactionId();
+        SecondaryIndex created = SecondaryIndex.create(tid, "d_c1", d.getId(), 1, idx);
+        Database.getBufferPool().transactionComplete(tid);
+        writer.join();
+        assertNull(failed[0]);
+
+        assertEquals(2001, count(created.getFile()));
+        tid = new TransactionId();
+        SecondaryIndexScan scan = new SecondaryIndexScan(tid, created, "d",
+                new IndexPredicate(Op.EQUALS, new IntField(-1)), null);
+        scan.open();
+        assertTrue(scan.hasNext());
+        scan.next();
+        assertFalse(scan.hasNext());
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that the parser creates an index the planner then uses */
+    @Test public void testCreateIndex() throws Exception {
+        String name = "t_c0_" + System.nanoTime();
+        new File(f.getFile().getAbsoluteFile().getParentFile(), name + ".idx").deleteOnExit();
+        Parser p = new Parser();
+        p.processNextStatement("create index " + name + " on t (c0);");
+        assertEquals(2, Database.getCatalog().getIndexes(f.getId()).size());
+        SecondaryIndex created = Database.getCatalog().getIndexes(f.getId()).get(1);
+        assertEquals(name, created.getName());
+        assertEquals(0, created.getField());
+        assertEquals(tuples.size(), count(created.getFile()));
+
+        p.processNextStatement("create index " + name + "_c on t (c1) include (c0);");
+        new File(f.getFile().getAbsoluteFile().getParentFile(), name + "_c.idx").deleteOnExit();
+        assertEquals(3, Database.getCatalog().getIndexes(f.getId()).size());
+        assertArrayEquals(new int[] { 0 }, Database.getCatalog().getIndexes(f.getId()).get(2).getIncluded());
+
+        // errors leave the catalog as it was
+        p.processNextStatement("create index " + name + "_2 on t (nosuchfield);");
+        p.processNextStatement("create index t on t (c0);");
+        p.processNextStatement("create index " + name + "_3 on t (c0) include (c9);");
+        assertEquals(3, Database.getCatalog().getIndexes(f.getId()).size());
+    }
+
+    /** @return the plan of a query with a filter on the indexed field, and an upper bound if high is not null */
+    private static DbIterator query(TransactionId tid, HashMap<String, TableStats> stats,
+            Op op, String value, String high) throws ParsingException {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(Database.getCatalog().getTableId("t"), "t");
+        lp.addFilter("t.c1", op, value);
+        if (high != null)
+            lp.addFilter("t.c1", Op.LESS_THAN_OR_EQ, high);
+        lp.addProjectField("t.c0", null);
+        lp.addProjectField("t.c1", null);
+        return lp.physicalPlan(tid, stats, false);
+    }
+
+    private static DbIterator leaf(DbIterator plan) {
+        while (plan instanceof Operator)
+            plan = ((Operator) plan).getChildren()[0];
+        return plan;
+    }
+
+    private static int count(DbFile file) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = file.iterator(tid);
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SecondaryIndexTest.class);
+    }
+}